@@ -0,0 +1,97 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.bdb;
+
+import java.util.concurrent.TimeUnit;
+
+import org.archive.modules.CrawlURI;
+import org.archive.modules.SchedulingConstants;
+import org.archive.modules.extractor.LinkContext;
+import org.archive.net.UURIFactory;
+import org.archive.url.URIException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sleepycat.je.DatabaseEntry;
+
+/**
+ * JMH benchmark of KryoBinding round-trips of a CrawlURI as stored in the
+ * frontier's pending-URI database: a discovered, not yet fetched URI with
+ * its via, hop path and queue assignment.
+ *
+ * Run with the benchmarks jar, passing "KryoBindingBenchmark" as the
+ * benchmark pattern.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KryoBindingBenchmark {
+
+    protected KryoBinding<CrawlURI> binding;
+    protected CrawlURI curi;
+    protected DatabaseEntry stored;
+
+    @Setup
+    public void setup() throws URIException {
+        binding = new KryoBinding<CrawlURI>(CrawlURI.class);
+        curi = new CrawlURI(
+                UURIFactory.getInstance("http://www.example.com/section/article-12345.html?ref=front"),
+                "LLLE",
+                UURIFactory.getInstance("http://www.example.com/section/index.html"),
+                LinkContext.NAVLINK_MISC);
+        curi.setClassKey("com,example,www,");
+        curi.setSchedulingDirective(SchedulingConstants.NORMAL);
+        curi.setHolderCost(1);
+        curi.setPrecedence(1);
+        curi.setOrdinal(1234567);
+        curi.setSourceTag("http://www.example.com/");
+        stored = new DatabaseEntry();
+        binding.objectToEntry(curi, stored);
+    }
+
+    @Benchmark
+    public DatabaseEntry write() {
+        DatabaseEntry entry = new DatabaseEntry();
+        binding.objectToEntry(curi, entry);
+        return entry;
+    }
+
+    @Benchmark
+    public CrawlURI read() {
+        return binding.entryToObject(stored);
+    }
+
+    @Benchmark
+    public CrawlURI roundTrip() {
+        DatabaseEntry entry = new DatabaseEntry();
+        binding.objectToEntry(curi, entry);
+        return binding.entryToObject(entry);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.crawler.frontier;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmark of the frontier's dispatch path: each operation is one
+ * next() (pass the outbound gate, take a ready queue key, lock the queue)
+ * followed by one finished() (return the key to the ready queues), using
+ * either the classic fair outboundLock with a single LinkedBlockingQueue or
+ * the striped DispatchGate with a StripedReadyQueue.
+ *
+ * Run with the benchmarks jar, passing "DispatchBenchmark" as the
+ * benchmark pattern.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatchBenchmark {
+
+    /** 0 for the classic lock-and-single-queue path, otherwise stripes */
+    @Param({"0", "8", "32"})
+    public int stripes;
+
+    /** number of distinct queues in rotation */
+    @Param({"20000"})
+    public int queues;
+
+    protected ReentrantReadWriteLock outboundLock;
+    protected DispatchGate gate;
+    protected BlockingQueue<String> ready;
+    protected Object[] monitors;
+
+    @Setup
+    public void setup() {
+        outboundLock = new ReentrantReadWriteLock(true);
+        if (stripes > 0) {
+            gate = new DispatchGate(stripes);
+            ready = new StripedReadyQueue(stripes);
+        } else {
+            ready = new LinkedBlockingQueue<String>();
+        }
+        monitors = new Object[queues];
+        for (int i = 0; i < queues; i++) {
+            monitors[i] = new Object();
+            ready.add(Integer.toString(i));
+        }
+    }
+
+    protected void nextFinished(Blackhole bh) throws InterruptedException {
+        String key;
+        if (gate != null) {
+            gate.enter();
+            try {
+                key = ready.poll();
+            } finally {
+                gate.exit();
+            }
+        } else {
+            outboundLock.readLock().lockInterruptibly();
+            try {
+                key = ready.poll();
+            } finally {
+                outboundLock.readLock().unlock();
+            }
+        }
+        if (key == null) {
+            return;
+        }
+        synchronized (monitors[Integer.parseInt(key)]) {
+            bh.consume(key);
+        }
+        ready.offer(key);
+    }
+
+    @Benchmark
+    @Threads(100)
+    public void threads100(Blackhole bh) throws InterruptedException {
+        nextFinished(bh);
+    }
+
+    @Benchmark
+    @Threads(1000)
+    public void threads1k(Blackhole bh) throws InterruptedException {
+        nextFinished(bh);
+    }
+
+    @Benchmark
+    @Threads(5000)
+    public void threads5k(Blackhole bh) throws InterruptedException {
+        nextFinished(bh);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.crawler.frontier;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.FileUtils;
+import org.archive.crawler.framework.Frontier.State;
+import org.archive.crawler.reporting.AlertThreadGroup;
+import org.archive.modules.CrawlURI;
+import org.archive.modules.SchedulingConstants;
+import org.archive.net.UURIFactory;
+import org.archive.spring.PathSharingContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark of a real BdbFrontier, assembled by Spring from
+ * frontier-benchmark-beans.cxml with empty processor chains. Each
+ * operation of {@link #cycle()} schedules one new URI, takes one URI with
+ * next() and reports it successfully finished(), so it covers the
+ * uniq filter, queue assignment, the pending-URI database and the
+ * ready/in-process/snoozed bookkeeping; {@link #schedule()} only adds,
+ * growing the queues as a large seed list or a link-rich crawl would.
+ *
+ * Run with the benchmarks jar, passing "FrontierBenchmark" as the
+ * benchmark pattern; add "-t N" to dispatch from N threads at once.
+ */
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrontierBenchmark {
+
+    /** number of distinct hosts, hence queues, new URIs are spread over */
+    @Param({"1000"})
+    public int hosts;
+
+    /** frontier dispatchStripes setting; 0 for the classic outbound lock */
+    @Param({"0"})
+    public int dispatchStripes;
+
+    protected File jobDir;
+    protected PathSharingContext ac;
+    protected BdbFrontier frontier;
+    protected final AtomicLong serial = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        jobDir = Files.createTempDirectory("frontier-benchmark").toFile();
+        File cxml = new File(jobDir, "frontier-benchmark-beans.cxml");
+        try (InputStream in = FrontierBenchmark.class.getResourceAsStream(
+                "frontier-benchmark-beans.cxml")) {
+            FileUtils.copyInputStreamToFile(in, cxml);
+        }
+        ac = new PathSharingContext(new String[] {cxml.toURI().toString()}, false, null);
+        ac.refresh();
+        frontier = ac.getBean("frontier", BdbFrontier.class);
+        frontier.setDispatchStripes(dispatchStripes);
+        // as in CrawlJob, start in an AlertThreadGroup, which the logger 
+        // module and any crawl-created threads expect to find themselves in
+        final AtomicReference<RuntimeException> failure = 
+            new AtomicReference<RuntimeException>();
+        Thread launcher = new Thread(new AlertThreadGroup("frontier-benchmark"),
+                "frontier-benchmark launchthread") {
+            public void run() {
+                try {
+                    ac.start();
+                } catch (RuntimeException e) {
+                    failure.set(e);
+                }
+            }
+        };
+        launcher.start();
+        launcher.join();
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        frontier.run();
+        // outbound takes are held until the manager thread reaches RUN
+        while (frontier.lastReachedState != State.RUN
+                && frontier.lastReachedState != State.EMPTY) {
+            Thread.sleep(10);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        ac.stop();
+        ac.close();
+        FileUtils.deleteDirectory(jobDir);
+    }
+
+    protected CrawlURI newCrawlURI() throws IOException {
+        long n = serial.incrementAndGet();
+        CrawlURI curi = new CrawlURI(UURIFactory.getInstance(
+                "http://host" + (n % hosts) + ".example.com/p" + n));
+        curi.setSchedulingDirective(SchedulingConstants.NORMAL);
+        return curi;
+    }
+
+    @Benchmark
+    public void cycle() throws IOException, InterruptedException {
+        frontier.schedule(newCrawlURI());
+        CrawlURI curi = frontier.next();
+        curi.setFetchStatus(200);
+        // normally set by DispositionProcessor; without it every queue
+        // would snooze for the default 5 seconds
+        curi.setPolitenessDelay(0);
+        frontier.finished(curi);
+    }
+
+    @Benchmark
+    public void schedule() throws IOException {
+        frontier.schedule(newCrawlURI());
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.crawler.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.archive.crawler.datamodel.UriUniqFilter;
+import org.archive.modules.CrawlURI;
+import org.archive.net.UURIFactory;
+import org.archive.spring.ConfigPath;
+import org.archive.util.BloomFilter64bit;
+import org.archive.util.fingerprint.MemLongFPSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark of UriUniqFilter.add() for each of the stock
+ * implementations. Operations alternate between a URI never offered before
+ * and a repeat of an earlier one, roughly the mix seen when many pages
+ * link to the same navigation and asset URIs; accepted URIs go to a
+ * receiver which discards them.
+ *
+ * Run with the benchmarks jar, passing "UriUniqFilterBenchmark" as the
+ * benchmark pattern. (BenchmarkUriUniqFilters remains as a quick
+ * single-run comparison of the same filters.)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UriUniqFilterBenchmark {
+
+    @Param({"bdb", "bloom", "mem", "fp", "memfpmerge", "diskfpmerge", "mapped"})
+    public String filter;
+
+    /** number of distinct hosts new URIs are spread over */
+    @Param({"1000"})
+    public int hosts;
+
+    protected File scratch;
+    protected UriUniqFilter uniq;
+    protected CrawlURI curi;
+    protected long serial = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        scratch = Files.createTempDirectory("uniq-benchmark").toFile();
+        uniq = createFilter(filter, scratch);
+        uniq.setDestination(new UriUniqFilter.CrawlUriReceiver() {
+            public void receive(CrawlURI item) {
+                // discarded
+            }
+        });
+        curi = new CrawlURI(UURIFactory.getInstance("http://example.com/"));
+    }
+
+    protected static UriUniqFilter createFilter(String name, File scratch)
+            throws IOException {
+        switch (name) {
+        case "bdb":
+            return new BdbUriUniqFilter(new File(scratch, "bdb"));
+        case "bloom":
+            BloomUriUniqFilter bloom = new BloomUriUniqFilter();
+            // default sizing is ~500MB; 10 million entries is plenty here
+            bloom.setBloomFilter(new BloomFilter64bit(10000000, 22));
+            bloom.afterPropertiesSet();
+            return bloom;
+        case "mem":
+            return new MemUriUniqFilter();
+        case "fp":
+            return new FPUriUniqFilter(new MemLongFPSet());
+        case "memfpmerge":
+            return new MemFPMergeUriUniqFilter();
+        case "diskfpmerge":
+            File fps = new File(scratch, "fps");
+            FileUtils.forceMkdir(fps);
+            return new DiskFPMergeUriUniqFilter(fps);
+        case "mapped":
+            MappedFPUriUniqFilter mapped = new MappedFPUriUniqFilter();
+            mapped.setBeanName("uriUniqFilter");
+            mapped.setDir(new ConfigPath("mapped",
+                    new File(scratch, "mapped").getAbsolutePath()));
+            mapped.start();
+            return mapped;
+        default:
+            throw new IllegalArgumentException("unknown filter " + name);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        uniq.close();
+        FileUtils.deleteDirectory(scratch);
+    }
+
+    @Benchmark
+    public void add() {
+        long n = serial++;
+        // odd operations repeat a URI added about half as many operations ago
+        long id = (n & 1) == 0 ? n : (n >>> 1) & ~1L;
+        uniq.add("http://host" + (id % hosts) + ".example.com/p" + id, curi);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.deciderules;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.archive.modules.CrawlURI;
+import org.archive.net.UURIFactory;
+import org.archive.url.URIException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmark of MatchesListRegexDecideRule with a long list of generated
+ * exclusion regexes (by host, path keyword, file extension and query
+ * parameter), comparing the rule, which prefilters with
+ * MultiPatternMatcher, against running every regex in turn as it used to.
+ *
+ * Run with the benchmarks jar, passing "MatchesListRegexDecideRuleBenchmark"
+ * as the benchmark pattern.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MatchesListRegexDecideRuleBenchmark {
+
+    protected static final int URI_COUNT = 1000;
+
+    @Param({"100", "2000"})
+    public int regexes;
+
+    @Param({"sequential", "prefiltered"})
+    public String mode;
+
+    protected List<Pattern> patterns;
+    protected MatchesListRegexDecideRule rule;
+    protected CrawlURI[] curis;
+
+    @Setup
+    public void setup() throws URIException {
+        Random random = new Random(42);
+        String[] words = {"calendar", "cgi-bin", "print", "login", "share",
+                "archive", "search", "tag", "feed", "user", "cart", "sort"};
+        String[] extensions = {"gif", "jpe?g", "png", "css", "js", "pdf", "zip"};
+        patterns = new ArrayList<Pattern>();
+        for (int i = 0; i < regexes; i++) {
+            String word = words[random.nextInt(words.length)];
+            switch (i % 4) {
+            case 0:
+                patterns.add(Pattern.compile("https?://([^/]*\\.)?host" + i
+                        + "\\.example\\.(com|org)/.*"));
+                break;
+            case 1:
+                patterns.add(Pattern.compile(".*host" + i + "\\.example\\.com/"
+                        + word + "/.*"));
+                break;
+            case 2:
+                patterns.add(Pattern.compile("(?i).*/site" + i + "/.*\\.("
+                        + extensions[random.nextInt(extensions.length)] + ")$"));
+                break;
+            default:
+                patterns.add(Pattern.compile(".*[?&]" + word + i + "=[^&]*.*"));
+            }
+        }
+        rule = new MatchesListRegexDecideRule();
+        rule.setRegexList(patterns);
+        rule.setDecision(DecideResult.REJECT);
+
+        curis = new CrawlURI[URI_COUNT];
+        for (int i = 0; i < URI_COUNT; i++) {
+            int n = random.nextInt(regexes * 2);
+            String word = words[random.nextInt(words.length)];
+            String uri;
+            switch (i % 4) {
+            case 0: uri = "http://www.host" + n + ".example.com/" + word + "/page.html"; break;
+            case 1: uri = "https://host" + n + ".example.org/site" + n + "/img/" + i + ".JPG"; break;
+            case 2: uri = "http://www.example.net/list?" + word + n + "=x&page=" + i; break;
+            default: uri = "http://news" + n + ".example.com/2024/" + i + "/story.html"; break;
+            }
+            curis[i] = new CrawlURI(UURIFactory.getInstance(uri));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(URI_COUNT)
+    public void evaluate(Blackhole bh) {
+        if ("sequential".equals(mode)) {
+            for (CrawlURI curi : curis) {
+                String str = curi.toString();
+                boolean matches = false;
+                for (Pattern p : patterns) {
+                    if (p.matcher(str).matches()) {
+                        matches = true;
+                        break;
+                    }
+                }
+                bh.consume(matches);
+            }
+        } else {
+            for (CrawlURI curi : curis) {
+                bh.consume(rule.evaluate(curi));
+            }
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.extractor;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.archive.modules.CrawlMetadata;
+import org.archive.modules.CrawlURI;
+import org.archive.net.UURI;
+import org.archive.net.UURIFactory;
+import org.archive.url.URIException;
+import org.archive.util.Recorder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark of link extraction by ExtractorHTML, ExtractorCSS and
+ * ExtractorJS. Each trial generates a fixed document (the same for every
+ * run, from a seeded Random) and records it once; each operation extracts
+ * its outlinks into a fresh CrawlURI.
+ *
+ * Run with the benchmarks jar, passing "ExtractorBenchmark" as the
+ * benchmark pattern.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExtractorBenchmark {
+
+    @Param({"html", "css", "js"})
+    public String format;
+
+    /** approximate size of the generated document, in kilobytes */
+    @Param({"64"})
+    public int sizeKb;
+
+    protected File scratch;
+    protected Recorder recorder;
+    protected Extractor extractor;
+    protected UURI uuri;
+    protected String contentType;
+    protected long contentSize;
+
+    /**
+     * Logger module that drops all errors, so that malformed links in the
+     * corpus don't turn the benchmark into a logging benchmark.
+     */
+    protected static class NullUriErrorLoggerModule 
+    implements UriErrorLoggerModule {
+        private static final Logger LOGGER = 
+            Logger.getLogger(NullUriErrorLoggerModule.class.getName());
+        public void logUriError(URIException e, UURI u, CharSequence l) {
+        }
+        public Logger getLogger(String name) {
+            return LOGGER;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        scratch = Files.createTempDirectory("extractor-benchmark").toFile();
+        Random rand = new Random(20100101);
+        String content;
+        switch (format) {
+        case "html":
+            ExtractorHTML html = new ExtractorHTML();
+            CrawlMetadata metadata = new CrawlMetadata();
+            metadata.afterPropertiesSet();
+            html.setMetadata(metadata);
+            ExtractorJS js = new ExtractorJS();
+            js.setLoggerModule(new NullUriErrorLoggerModule());
+            html.setExtractorJS(js);
+            html.afterPropertiesSet();
+            extractor = html;
+            contentType = "text/html";
+            content = generateHtml(rand, sizeKb * 1024);
+            break;
+        case "css":
+            extractor = new ExtractorCSS();
+            contentType = "text/css";
+            content = generateCss(rand, sizeKb * 1024);
+            break;
+        case "js":
+            extractor = new ExtractorJS();
+            contentType = "application/javascript";
+            content = generateJs(rand, sizeKb * 1024);
+            break;
+        default:
+            throw new IllegalArgumentException("unknown format " + format);
+        }
+        extractor.setLoggerModule(new NullUriErrorLoggerModule());
+        uuri = UURIFactory.getInstance("http://www.example.com/section/page." + format);
+
+        byte[] b = content.getBytes(StandardCharsets.UTF_8);
+        contentSize = b.length;
+        recorder = new Recorder(scratch, "extract", 1024 * 1024, 1024 * 1024);
+        InputStream is = recorder.inputWrap(new ByteArrayInputStream(b));
+        recorder.markContentBegin();
+        byte[] buf = new byte[8192];
+        while (is.read(buf) >= 0) {
+            // recording
+        }
+        is.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        recorder.cleanup();
+        FileUtils.deleteDirectory(scratch);
+    }
+
+    @Benchmark
+    public CrawlURI extract() throws InterruptedException {
+        CrawlURI curi = new CrawlURI(uuri, null, null, LinkContext.NAVLINK_MISC);
+        curi.setContentType(contentType);
+        curi.setContentSize(contentSize);
+        curi.setFetchStatus(200);
+        curi.setRecorder(recorder);
+        extractor.process(curi);
+        return curi;
+    }
+
+    protected static String randomPath(Random rand) {
+        StringBuilder sb = new StringBuilder();
+        int segments = 1 + rand.nextInt(4);
+        for (int i = 0; i < segments; i++) {
+            sb.append('/').append(WORDS[rand.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    protected static String randomHref(Random rand) {
+        switch (rand.nextInt(5)) {
+        case 0:
+            return "http://host" + rand.nextInt(50) + ".example.org" 
+                + randomPath(rand) + ".html";
+        case 1:
+            return "../" + WORDS[rand.nextInt(WORDS.length)] + "/";
+        case 2:
+            return randomPath(rand) + "?id=" + rand.nextInt(100000) 
+                + "&amp;sort=" + WORDS[rand.nextInt(WORDS.length)];
+        default:
+            return WORDS[rand.nextInt(WORDS.length)] + rand.nextInt(1000) + ".html";
+        }
+    }
+
+    protected static void appendText(StringBuilder sb, Random rand, int words) {
+        for (int i = 0; i < words; i++) {
+            sb.append(WORDS[rand.nextInt(WORDS.length)]).append(' ');
+        }
+    }
+
+    protected static String generateHtml(Random rand, int size) {
+        StringBuilder sb = new StringBuilder(size + 4096);
+        sb.append("<!DOCTYPE html>\n<html lang=\"en\">\n<head>\n");
+        sb.append("<meta charset=\"utf-8\">\n<title>");
+        appendText(sb, rand, 6);
+        sb.append("</title>\n");
+        sb.append("<base href=\"http://www.example.com/section/\">\n");
+        sb.append("<link rel=\"stylesheet\" href=\"/css/site.css?v=3\">\n");
+        sb.append("<style>\nbody { background: url(/img/bg.png) }\n");
+        sb.append("@import url(\"print.css\") print;\n</style>\n");
+        sb.append("<script src=\"/js/jquery.min.js\"></script>\n");
+        sb.append("<script>\nvar base = \"/api/v1/items\";\n");
+        sb.append("function go(p) { window.location = \"/page/\" + p + \".html\"; }\n");
+        sb.append("</script>\n</head>\n<body>\n");
+        while (sb.length() < size) {
+            switch (rand.nextInt(8)) {
+            case 0:
+                sb.append("<div class=\"item\"><img src=\"")
+                  .append(randomPath(rand)).append(".jpg\" alt=\"");
+                appendText(sb, rand, 3);
+                sb.append("\" width=\"120\" height=\"90\"></div>\n");
+                break;
+            case 1:
+                sb.append("<form action=\"").append(randomPath(rand))
+                  .append("\" method=\"get\"><input type=\"text\" name=\"q\">")
+                  .append("<input type=\"submit\" value=\"Go\"></form>\n");
+                break;
+            case 2:
+                sb.append("<a href=\"#\" onclick=\"go('")
+                  .append(WORDS[rand.nextInt(WORDS.length)])
+                  .append("'); return false;\">");
+                appendText(sb, rand, 2);
+                sb.append("</a>\n");
+                break;
+            default:
+                sb.append("<p>");
+                appendText(sb, rand, 10 + rand.nextInt(30));
+                sb.append("<a href=\"").append(randomHref(rand)).append("\">");
+                appendText(sb, rand, 3);
+                sb.append("</a> ");
+                appendText(sb, rand, 5 + rand.nextInt(20));
+                sb.append("</p>\n");
+            }
+        }
+        sb.append("</body>\n</html>\n");
+        return sb.toString();
+    }
+
+    protected static String generateCss(Random rand, int size) {
+        StringBuilder sb = new StringBuilder(size + 1024);
+        sb.append("@charset \"utf-8\";\n@import url(\"reset.css\");\n");
+        sb.append("@import 'fonts.css';\n");
+        while (sb.length() < size) {
+            sb.append('.').append(WORDS[rand.nextInt(WORDS.length)])
+              .append('-').append(rand.nextInt(1000)).append(" {\n");
+            sb.append("  margin: ").append(rand.nextInt(20)).append("px;\n");
+            sb.append("  color: #").append(Integer.toHexString(rand.nextInt(0xffffff)))
+              .append(";\n");
+            if (rand.nextInt(3) == 0) {
+                sb.append("  background-image: url(")
+                  .append(rand.nextBoolean() ? "\"" : "")
+                  .append(randomPath(rand)).append(".png")
+                  .append(rand.nextBoolean() ? "\"" : "").append(");\n");
+            }
+            if (rand.nextInt(20) == 0) {
+                sb.append("  src: url('/fonts/")
+                  .append(WORDS[rand.nextInt(WORDS.length)])
+                  .append(".woff2') format('woff2');\n");
+            }
+            sb.append("}\n");
+        }
+        return sb.toString();
+    }
+
+    protected static String generateJs(Random rand, int size) {
+        StringBuilder sb = new StringBuilder(size + 1024);
+        sb.append("(function() {\n  'use strict';\n");
+        while (sb.length() < size) {
+            String name = WORDS[rand.nextInt(WORDS.length)] + rand.nextInt(100);
+            switch (rand.nextInt(4)) {
+            case 0:
+                sb.append("  var ").append(name).append(" = \"")
+                  .append(randomPath(rand)).append(".json\";\n");
+                break;
+            case 1:
+                sb.append("  function ").append(name).append("(a, b) {\n")
+                  .append("    return a + b * ").append(rand.nextInt(100))
+                  .append(";\n  }\n");
+                break;
+            case 2:
+                sb.append("  document.write('<img src=\"")
+                  .append(randomPath(rand)).append(".gif\">');\n");
+                break;
+            default:
+                sb.append("  var ").append(name).append(" = '");
+                appendText(sb, rand, 4);
+                sb.append("';\n");
+            }
+        }
+        sb.append("})();\n");
+        return sb.toString();
+    }
+
+    protected static final String[] WORDS = {
+        "archive", "crawl", "frontier", "queue", "heritrix", "news", "about",
+        "contact", "images", "products", "search", "index", "blog", "2024",
+        "article", "story", "video", "static", "assets", "help", "login",
+        "media", "events", "photos", "sports", "world", "local", "science",
+    };
+}
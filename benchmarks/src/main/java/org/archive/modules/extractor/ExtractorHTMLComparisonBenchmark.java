@@ -0,0 +1,166 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.extractor;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.archive.modules.CrawlMetadata;
+import org.archive.modules.CrawlURI;
+import org.archive.modules.extractor.ExtractorBenchmark.NullUriErrorLoggerModule;
+import org.archive.net.UURI;
+import org.archive.net.UURIFactory;
+import org.archive.util.Recorder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH comparison of ExtractorHTML and StreamingExtractorHTML over a corpus of
+ * pages. Each operation extracts outlinks from every page of the corpus.
+ * 
+ * By default the corpus is a few generated pages (as in ExtractorBenchmark)
+ * plus one page of unclosed tags; to measure real pages instead, save them
+ * as .html files in a directory and pass it as the corpus parameter, eg
+ * "-p corpus=/data/pages".
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExtractorHTMLComparisonBenchmark {
+
+    @Param({"regex", "streaming"})
+    public String extractor;
+
+    /** directory of .html files, or empty for generated pages */
+    @Param({""})
+    public String corpus;
+
+    protected File scratch;
+    protected ExtractorHTML html;
+    protected UURI uuri;
+    protected List<Recorder> recorders = new ArrayList<Recorder>();
+    protected List<Long> sizes = new ArrayList<Long>();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        scratch = Files.createTempDirectory("extractor-html-benchmark").toFile();
+        switch (extractor) {
+        case "regex":
+            html = new ExtractorHTML();
+            break;
+        case "streaming":
+            html = new StreamingExtractorHTML();
+            break;
+        default:
+            throw new IllegalArgumentException("unknown extractor " + extractor);
+        }
+        CrawlMetadata metadata = new CrawlMetadata();
+        metadata.afterPropertiesSet();
+        html.setMetadata(metadata);
+        ExtractorJS js = new ExtractorJS();
+        js.setLoggerModule(new NullUriErrorLoggerModule());
+        html.setExtractorJS(js);
+        html.setLoggerModule(new NullUriErrorLoggerModule());
+        html.afterPropertiesSet();
+        uuri = UURIFactory.getInstance("http://www.example.com/section/page.html");
+
+        if (corpus.isEmpty()) {
+            Random rand = new Random(20100101);
+            for (int sizeKb : new int[] {16, 64, 256}) {
+                record(ExtractorBenchmark.generateHtml(rand, sizeKb * 1024)
+                        .getBytes(StandardCharsets.UTF_8));
+            }
+            StringBuilder unclosed = new StringBuilder();
+            while (unclosed.length() < 16 * 1024) {
+                unclosed.append("<script <a href=\"x.html <!-- ");
+            }
+            unclosed.append('>');
+            record(unclosed.toString().getBytes(StandardCharsets.UTF_8));
+        } else {
+            File[] files = new File(corpus).listFiles(
+                    (dir, name) -> name.endsWith(".html") || name.endsWith(".htm"));
+            if (files == null || files.length == 0) {
+                throw new IllegalArgumentException("no .html files in " + corpus);
+            }
+            for (File file : files) {
+                record(Files.readAllBytes(file.toPath()));
+            }
+        }
+    }
+
+    protected void record(byte[] b) throws IOException {
+        Recorder recorder = new Recorder(scratch, "extract" + recorders.size(),
+                1024 * 1024, 1024 * 1024);
+        InputStream is = recorder.inputWrap(new ByteArrayInputStream(b));
+        recorder.markContentBegin();
+        byte[] buf = new byte[8192];
+        while (is.read(buf) >= 0) {
+            // recording
+        }
+        is.close();
+        recorders.add(recorder);
+        sizes.add((long) b.length);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        for (Recorder recorder : recorders) {
+            recorder.cleanup();
+        }
+        FileUtils.deleteDirectory(scratch);
+    }
+
+    @Benchmark
+    public int extract() throws InterruptedException {
+        int links = 0;
+        for (int i = 0; i < recorders.size(); i++) {
+            CrawlURI curi = new CrawlURI(uuri, null, null, LinkContext.NAVLINK_MISC);
+            curi.setContentType("text/html");
+            curi.setContentSize(sizes.get(i));
+            curi.setFetchStatus(200);
+            curi.setRecorder(recorders.get(i));
+            html.process(curi);
+            links += curi.getOutLinks().size();
+        }
+        return links;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.net;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.archive.bdb.AutoKryo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * JMH benchmark of robots.txt rule checking, as PreconditionEnforcer does
+ * for every URI: the per-path cost of RobotsDirectives.allows() on a 
+ * generated robots.txt with the given number of Allow/Disallow rules 
+ * (about a tenth of them with wildcards), plus the one-off costs of
+ * parsing and compiling the file and of reading the compiled rules back
+ * from their stored (Kryo) form, as when a CrawlServer is loaded from the
+ * server cache.
+ *
+ * Run with the benchmarks jar, passing "RobotsDirectivesBenchmark" as the
+ * benchmark pattern.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RobotsDirectivesBenchmark {
+
+    protected static final int PATH_COUNT = 1000;
+
+    @Param({"10", "1000", "5000"})
+    public int rules;
+
+    protected String robotsTxt;
+    protected RobotsDirectives directives;
+    protected String[] paths;
+    protected AutoKryo kryo;
+    protected byte[] stored;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(42);
+        StringBuilder sb = new StringBuilder("User-agent: *\n");
+        String[] dirs = {"search", "cgi-bin", "private", "tmp", "user", "api", "shop", "cart"};
+        for (int i = 0; i < rules; i++) {
+            String dir = dirs[random.nextInt(dirs.length)];
+            if (i % 10 == 9) {
+                sb.append("Disallow: /").append(dir).append("/*?sessionid=").append(i).append("\n");
+            } else if (i % 5 == 0) {
+                sb.append("Allow: /").append(dir).append("/public/").append(i).append("/\n");
+            } else {
+                sb.append("Disallow: /").append(dir).append("/").append(i).append("/\n");
+            }
+        }
+        robotsTxt = sb.toString();
+        directives = new Robotstxt(new StringReader(robotsTxt)).getDirectivesFor("heritrix");
+
+        paths = new String[PATH_COUNT];
+        for (int i = 0; i < PATH_COUNT; i++) {
+            String dir = dirs[random.nextInt(dirs.length)];
+            int n = random.nextInt(Math.max(rules, 1) * 2);
+            switch (i % 4) {
+            case 0: paths[i] = "/" + dir + "/" + n + "/page.html"; break;
+            case 1: paths[i] = "/" + dir + "/public/" + n + "/index.html"; break;
+            case 2: paths[i] = "/" + dir + "/list?sessionid=" + n; break;
+            default: paths[i] = "/images/" + n + ".png"; break;
+            }
+        }
+
+        kryo = new AutoKryo();
+        kryo.autoregister(RobotsDirectives.class);
+        Output output = new Output(1024, -1);
+        kryo.writeObject(output, directives);
+        stored = output.toBytes();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PATH_COUNT)
+    public void allows(Blackhole bh) {
+        for (String path : paths) {
+            bh.consume(directives.allows(path));
+        }
+    }
+
+    @Benchmark
+    public RobotsRuleTrie parseAndCompile() throws IOException {
+        return new Robotstxt(new StringReader(robotsTxt)).getDirectivesFor("heritrix").getRules();
+    }
+
+    @Benchmark
+    public RobotsDirectives readStored() {
+        return kryo.readObject(new Input(stored), RobotsDirectives.class);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.writer;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.archive.modules.CrawlMetadata;
+import org.archive.modules.CrawlURI;
+import org.archive.modules.CrawlURI.FetchType;
+import org.archive.modules.fetcher.DefaultServerCache;
+import org.archive.net.UURI;
+import org.archive.net.UURIFactory;
+import org.archive.spring.ConfigPath;
+import org.archive.util.Recorder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark of WARCWriterProcessor writing the request, response and
+ * metadata records of one recorded HTTP fetch per operation. The response
+ * is recorded once per trial and replayed into every write, so the
+ * measurement covers record formatting, digesting, compression and file
+ * output, not the network. Files go to a temporary directory which is
+ * removed after the trial.
+ *
+ * Run with the benchmarks jar, passing "WARCWriterProcessorBenchmark" as
+ * the benchmark pattern.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WARCWriterProcessorBenchmark {
+
+    @Param({"true", "false"})
+    public boolean compress;
+
+    /** size of the recorded response body, in kilobytes */
+    @Param({"8"})
+    public int bodyKb;
+
+    protected File scratch;
+    protected WARCWriterProcessor writer;
+    protected Recorder recorder;
+    protected UURI uuri;
+    protected long contentSize;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        scratch = Files.createTempDirectory("warc-benchmark").toFile();
+        writer = new WARCWriterProcessor();
+        writer.setDirectory(new ConfigPath("warcs", scratch.getAbsolutePath()));
+        writer.setCompress(compress);
+        DefaultServerCache serverCache = new DefaultServerCache();
+        serverCache.getHostFor("www.example.com").setIP(
+                InetAddress.getLoopbackAddress(), -1);
+        writer.setServerCache(serverCache);
+        CrawlMetadata metadata = new CrawlMetadata();
+        metadata.afterPropertiesSet();
+        writer.setMetadataProvider(metadata);
+        writer.start();
+
+        uuri = UURIFactory.getInstance("http://www.example.com/index.html");
+        StringBuilder body = new StringBuilder("<html><body>\r\n");
+        Random rand = new Random(1);
+        while (body.length() < bodyKb * 1024) {
+            // text-like, so that compression has something to do
+            body.append("<p>").append(Long.toString(rand.nextLong(), 36))
+                .append(" crawl archive frontier ").append(rand.nextInt(1000))
+                .append("</p>\r\n");
+        }
+        body.append("</body></html>\r\n");
+        String header = "HTTP/1.1 200 OK\r\n"
+                + "Content-Type: text/html\r\n"
+                + "Content-Length: " + body.length() + "\r\n"
+                + "\r\n";
+        byte[] response = (header + body).getBytes(StandardCharsets.US_ASCII);
+        contentSize = response.length;
+        recorder = new Recorder(scratch, "response", 64 * 1024, 64 * 1024);
+        recorder.inputWrap(new ByteArrayInputStream(response));
+        recorder.getRecordedInput().readFully();
+        recorder.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        writer.stop();
+        recorder.cleanup();
+        FileUtils.deleteDirectory(scratch);
+    }
+
+    @Benchmark
+    public CrawlURI write() throws InterruptedException {
+        CrawlURI curi = new CrawlURI(uuri);
+        curi.setRecorder(recorder);
+        curi.setFetchStatus(200);
+        curi.setFetchType(FetchType.HTTP_GET);
+        curi.setContentSize(contentSize);
+        writer.process(curi);
+        return curi;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmark of SURT prefix lookups against a large generated scope, as
+ * SurtPrefixedDecideRule and SheetOverlaysManager make them, comparing a
+ * SurtPrefixSet (with PrefixFinder for all-prefixes queries) against a
+ * PrefixTrie. Setup prints the heap each structure retains.
+ *
+ * Run with the benchmarks jar, passing "PrefixTrieBenchmark" as the
+ * benchmark pattern; add "-p prefixes=5000000" (and heap to match) for a
+ * scope at production scale.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class PrefixTrieBenchmark {
+
+    protected static final int LOOKUP_COUNT = 1000;
+
+    @Param({"100000", "1000000"})
+    public int prefixes;
+
+    @Param({"prefixSet", "trie"})
+    public String impl;
+
+    protected SurtPrefixSet prefixSet;
+    protected PrefixTrie trie;
+    protected String[] candidates;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        long before = usedHeap();
+        Random random = new Random(42);
+        String[] tlds = {"com", "org", "net", "edu", "gov", "uk,co", "de", "fr"};
+        List<String> surts = new ArrayList<String>(prefixes);
+        for (int i = 0; i < prefixes; i++) {
+            String host = "http://(" + tlds[random.nextInt(tlds.length)]
+                    + ",site" + random.nextInt(prefixes) + ",";
+            switch (i % 3) {
+            case 0: surts.add(host); break;
+            case 1: surts.add(host + "www,)/"); break;
+            default: surts.add(host + "www,)/section" + (i % 97) + "/"); break;
+            }
+        }
+        candidates = new String[LOOKUP_COUNT];
+        for (int i = 0; i < LOOKUP_COUNT; i++) {
+            String surt = surts.get(random.nextInt(surts.size()));
+            candidates[i] = i % 2 == 0
+                    ? surt + "www,)/section" + i + "/page.html"
+                    : "http://(com,miss" + i + ",www,)/";
+        }
+        if ("trie".equals(impl)) {
+            trie = PrefixTrie.of(surts, true);
+        } else {
+            // reduced, as SurtPrefixedDecideRule keeps it
+            prefixSet = new SurtPrefixSet();
+            prefixSet.addAll(surts);
+        }
+        // drop the source list, so only what the structure keeps counts
+        surts = null;
+        long retained = usedHeap() - before;
+        int size = trie != null ? trie.size() : prefixSet.size();
+        System.out.println(impl + " of " + size + " reduced prefixes retains ~"
+                + (retained >> 20) + "MiB"
+                + (trie != null ? " (packed arrays " + (trie.sizeInBytes() >> 20) + "MiB)" : ""));
+    }
+
+    protected static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUP_COUNT)
+    public void containsPrefixOf(Blackhole bh) {
+        if (trie != null) {
+            for (String candidate : candidates) {
+                bh.consume(trie.containsPrefixOf(candidate));
+            }
+        } else {
+            for (String candidate : candidates) {
+                bh.consume(prefixSet.containsPrefixOf(candidate));
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUP_COUNT)
+    public void allPrefixesOf(Blackhole bh) {
+        if (trie != null) {
+            for (String candidate : candidates) {
+                bh.consume(trie.prefixesOf(candidate));
+            }
+        } else {
+            for (String candidate : candidates) {
+                bh.consume(PrefixFinder.find(prefixSet, candidate));
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.io;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Replay of a recording that also knows where the recording spilled to
+ * disk. Reading behaves exactly like the wrapped {@link ReplayInputStream};
+ * in addition, the part of the recording that lies in the backing spool
+ * file can be handed to a {@link WritableByteChannel} with
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, so a
+ * writer appending to a file never pulls those bytes through the heap.
+ * 
+ * <p>Lives in this package because the spool filename is only visible to
+ * {@link RecordingOutputStream}'s neighbours.
+ */
+public class SpooledReplayInputStream extends FilterInputStream {
+    protected final ReplayInputStream replay;
+    /** spool file, or null if the whole recording fit in memory */
+    protected final File spoolFile;
+    /** bytes of the recording held in the in-memory buffer */
+    protected final long bufferLength;
+
+    protected SpooledReplayInputStream(ReplayInputStream replay,
+            RecordingOutputStream recording) {
+        super(replay);
+        this.replay = replay;
+        this.bufferLength = recording.getBufferLength();
+        this.spoolFile = recording.getSize() > bufferLength
+                ? new File(recording.backingFilename)
+                : null;
+    }
+
+    /**
+     * Replay the whole recording of the given input.
+     */
+    public static SpooledReplayInputStream of(RecordingInputStream input)
+            throws IOException {
+        return new SpooledReplayInputStream(input.getReplayInputStream(),
+                input.asOutputStream());
+    }
+
+    public long position() throws IOException {
+        return replay.position();
+    }
+
+    public long getSize() {
+        return replay.getSize();
+    }
+
+    /**
+     * @return bytes from the current position up to the end of the in-memory
+     *         buffer; these can only be read, not transferred
+     */
+    public long bufferedRemaining() throws IOException {
+        return Math.max(0, Math.min(bufferLength, replay.getSize())
+                - replay.position());
+    }
+
+    /**
+     * @return bytes from the current position (or the end of the in-memory
+     *         buffer, whichever is later) to the end of the recording
+     */
+    public long spooledRemaining() throws IOException {
+        if (spoolFile == null) {
+            return 0;
+        }
+        return replay.getSize() - Math.max(bufferLength, replay.position());
+    }
+
+    /**
+     * Transfer up to <code>maxBytes</code> from the spool file to the target
+     * channel and advance this stream past them. Does nothing unless the
+     * in-memory part has already been read.
+     * 
+     * @return number of bytes transferred
+     */
+    public long transferSpooledTo(WritableByteChannel target, long maxBytes)
+            throws IOException {
+        long position = replay.position();
+        if (spoolFile == null || position < bufferLength) {
+            return 0;
+        }
+        long count = Math.min(maxBytes, replay.getSize() - position);
+        long done = 0;
+        try (FileChannel source = FileChannel.open(spoolFile.toPath(),
+                StandardOpenOption.READ)) {
+            long offset = position - bufferLength;
+            while (done < count) {
+                long n = source.transferTo(offset + done, count - done, target);
+                if (n <= 0) {
+                    break;
+                }
+                done += n;
+            }
+        }
+        replay.position(position + done);
+        return done;
+    }
+}
@@ -21,6 +21,7 @@ package org.archive.net;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.esotericsoftware.kryo.DefaultSerializer;
 import com.esotericsoftware.kryo.Serializer;
@@ -28,13 +29,15 @@ import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 import org.archive.url.URIException;
 import org.archive.url.UsableURI;
+import org.archive.util.SurtPrefixSet;
 
 import com.esotericsoftware.kryo.Kryo;
 
 /**
  * Usable URI. The bulk of the functionality of this class has moved to
  * {@link UsableURI} in the archive-commons project. This class adds Kryo
- * serialization.
+ * serialization, and a memoized view of the SURT forms that scoping, overlay
+ * and queue-assignment code each derive from the URI.
  */
 @DefaultSerializer(UURI.KryoSerializer.class)
 public class UURI extends UsableURI {
@@ -59,6 +62,18 @@ public class UURI extends UsableURI {
 
     private static final long serialVersionUID = -8946640480772772310L;
 
+    /** instances that have computed any SURT view */
+    protected static final LongAdder surtViewUris = new LongAdder();
+    /** SURT views computed, over all instances */
+    protected static final LongAdder surtViewsComputed = new LongAdder();
+    /** SURT views answered from the memo, over all instances */
+    protected static final LongAdder surtViewsReused = new LongAdder();
+
+    /** memoized {@link SurtPrefixSet#getCandidateSurt(UsableURI)} */
+    private transient String candidateSurt;
+    /** memoized SURT authority; "" once found missing */
+    private transient String surtAuthority;
+
     public UURI(String fixup, boolean b, String charset) throws URIException {
         super(fixup, b, charset);
     }
@@ -72,6 +87,77 @@ public class UURI extends UsableURI {
         super();
     }
 
+    /**
+     * The SURT form, with https coerced to http, as compared against SURT
+     * prefixes. Same as {@link SurtPrefixSet#getCandidateSurt(UsableURI)},
+     * computed once per instance.
+     */
+    public String getCandidateSurt() {
+        String surt = candidateSurt;
+        if (surt == null) {
+            surt = SurtPrefixSet.getCandidateSurt(this);
+            if (surtAuthority == null) {
+                surtViewUris.increment();
+            }
+            candidateSurt = surt;
+            surtViewsComputed.increment();
+        } else {
+            surtViewsReused.increment();
+        }
+        return surt;
+    }
+
+    /**
+     * The authority part of the SURT form, between "://(" and ")", as in
+     * "org,archive,www,"; computed once per instance.
+     *
+     * @return SURT authority, or null if the SURT form has none
+     */
+    public String getSurtAuthority() {
+        String authority = surtAuthority;
+        if (authority == null) {
+            String surt = getSurtForm();
+            int indexOfOpen = surt.indexOf("://(");
+            int indexOfClose = surt.indexOf(")");
+            if (indexOfOpen == -1 || indexOfClose == -1
+                    || ((indexOfOpen + 4) >= indexOfClose)) {
+                authority = "";
+            } else {
+                authority = surt.substring(indexOfOpen + 4, indexOfClose);
+            }
+            if (candidateSurt == null) {
+                surtViewUris.increment();
+            }
+            surtAuthority = authority;
+            surtViewsComputed.increment();
+        } else {
+            surtViewsReused.increment();
+        }
+        return authority.isEmpty() ? null : authority;
+    }
+
+    /**
+     * @return number of UURIs that have computed any SURT view
+     */
+    public static long getSurtViewUris() {
+        return surtViewUris.sum();
+    }
+
+    /**
+     * @return number of SURT views computed, over all UURIs
+     */
+    public static long getSurtViewsComputed() {
+        return surtViewsComputed.sum();
+    }
+
+    /**
+     * @return number of SURT view requests answered without recomputation,
+     * over all UURIs
+     */
+    public static long getSurtViewsReused() {
+        return surtViewsReused.sum();
+    }
+
     private void writeObject(ObjectOutputStream stream) throws IOException {
         stream.writeUTF(toCustomString());
     }
@@ -0,0 +1,627 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Prefilter for evaluating many regular expressions against the same input.
+ * 
+ * <p>Each pattern's source is examined for literal text that any match must
+ * contain; eg <code>.*\.example\.com/(calendar|cgi-bin)/.*</code> can only
+ * match input that contains ".example.com/" and one of "calendar" or
+ * "cgi-bin". All such literals, from all the patterns, are compiled into
+ * one Aho-Corasick automaton, so a single pass over the input, in time
+ * linear in its length, rules out every pattern whose literals are absent.
+ * Only the remaining candidates need to be run with java.util.regex.
+ * 
+ * <p>The literal analysis is conservative: constructs it doesn't understand
+ * (and the COMMENTS, UNICODE_CASE and CANON_EQ flags) just mean the pattern
+ * is always a candidate. Literals are compared ignoring ASCII case, so
+ * case-insensitive patterns are filtered too.
+ * 
+ * <p>Instances are immutable and safe for use by multiple threads.
+ */
+public class MultiPatternMatcher {
+
+    protected final Pattern[] patterns;
+    protected final List<Pattern> source;
+
+    /** pattern -&gt; factors -&gt; literal ids; null if always a candidate */
+    protected final int[][][] factors;
+    protected final int prefilteredCount;
+
+    /** class of each ASCII char; others through {@link #otherClasses} */
+    protected final int[] asciiClasses = new int[128];
+    protected final Map<Character,Integer> otherClasses =
+        new HashMap<Character,Integer>();
+    protected final int classCount;
+    /** state x class -&gt; state */
+    protected final int[] transitions;
+    /** ids of the literals ending at each state, or null */
+    protected final int[][] outputs;
+    protected final int literalCount;
+
+    public MultiPatternMatcher(List<Pattern> patterns) {
+        this.source = patterns;
+        this.patterns = patterns.toArray(new Pattern[patterns.size()]);
+        this.factors = new int[this.patterns.length][][];
+
+        Map<String,Integer> literalIds = new LinkedHashMap<String,Integer>();
+        int prefiltered = 0;
+        for (int i = 0; i < this.patterns.length; i++) {
+            List<List<String>> required = requiredLiterals(this.patterns[i]);
+            if (required == null || required.isEmpty()) {
+                continue;
+            }
+            factors[i] = new int[required.size()][];
+            for (int f = 0; f < required.size(); f++) {
+                List<String> alternatives = required.get(f);
+                factors[i][f] = new int[alternatives.size()];
+                for (int a = 0; a < alternatives.size(); a++) {
+                    Integer id = literalIds.get(alternatives.get(a));
+                    if (id == null) {
+                        id = literalIds.size();
+                        literalIds.put(alternatives.get(a), id);
+                    }
+                    factors[i][f][a] = id;
+                }
+            }
+            prefiltered++;
+        }
+        this.prefilteredCount = prefiltered;
+        this.literalCount = literalIds.size();
+
+        // alphabet: only chars appearing in some literal are distinguished
+        int classes = 1;
+        for (String literal : literalIds.keySet()) {
+            for (int i = 0; i < literal.length(); i++) {
+                char c = literal.charAt(i);
+                if (c < 128) {
+                    if (asciiClasses[c] == 0) {
+                        asciiClasses[c] = classes++;
+                    }
+                } else if (!otherClasses.containsKey(c)) {
+                    otherClasses.put(c, classes++);
+                }
+            }
+        }
+        this.classCount = classes;
+
+        // trie
+        List<int[]> rows = new ArrayList<int[]>();
+        List<List<Integer>> ends = new ArrayList<List<Integer>>();
+        rows.add(new int[classCount]);
+        ends.add(null);
+        for (Map.Entry<String,Integer> entry : literalIds.entrySet()) {
+            String literal = entry.getKey();
+            int state = 0;
+            for (int i = 0; i < literal.length(); i++) {
+                int c = classOf(literal.charAt(i));
+                if (rows.get(state)[c] == 0) {
+                    rows.get(state)[c] = rows.size();
+                    rows.add(new int[classCount]);
+                    ends.add(null);
+                }
+                state = rows.get(state)[c];
+            }
+            if (ends.get(state) == null) {
+                ends.set(state, new ArrayList<Integer>());
+            }
+            ends.get(state).add(entry.getValue());
+        }
+
+        // failure links, folded into a complete transition table
+        int states = rows.size();
+        int[] fail = new int[states];
+        ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+        for (int c = 0; c < classCount; c++) {
+            if (rows.get(0)[c] != 0) {
+                queue.add(rows.get(0)[c]);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.remove();
+            if (ends.get(fail[state]) != null) {
+                if (ends.get(state) == null) {
+                    ends.set(state, new ArrayList<Integer>());
+                }
+                ends.get(state).addAll(ends.get(fail[state]));
+            }
+            int[] row = rows.get(state);
+            int[] failRow = rows.get(fail[state]);
+            for (int c = 0; c < classCount; c++) {
+                if (row[c] != 0) {
+                    fail[row[c]] = failRow[c];
+                    queue.add(row[c]);
+                } else {
+                    row[c] = failRow[c];
+                }
+            }
+        }
+        this.transitions = new int[states * classCount];
+        this.outputs = new int[states][];
+        for (int s = 0; s < states; s++) {
+            System.arraycopy(rows.get(s), 0, transitions, s * classCount, classCount);
+            List<Integer> e = ends.get(s);
+            if (e != null) {
+                outputs[s] = new int[e.size()];
+                for (int i = 0; i < e.size(); i++) {
+                    outputs[s][i] = e.get(i);
+                }
+            }
+        }
+    }
+
+    protected int classOf(char c) {
+        if (c < 128) {
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            return asciiClasses[c];
+        }
+        Integer cls = otherClasses.get(c);
+        return cls == null ? 0 : cls;
+    }
+
+    /**
+     * Indexes of the patterns that might match (with either
+     * {@link java.util.regex.Matcher#matches()} or
+     * {@link java.util.regex.Matcher#find()}) somewhere in the input. Any
+     * pattern not in the result certainly doesn't.
+     */
+    public BitSet candidates(CharSequence input) {
+        BitSet found = new BitSet(literalCount);
+        if (literalCount > 0) {
+            BitSet seen = new BitSet(outputs.length);
+            int state = 0;
+            for (int i = 0, n = input.length(); i < n; i++) {
+                state = transitions[state * classCount + classOf(input.charAt(i))];
+                if (outputs[state] != null && !seen.get(state)) {
+                    seen.set(state);
+                    for (int id : outputs[state]) {
+                        found.set(id);
+                    }
+                }
+            }
+        }
+        BitSet result = new BitSet(patterns.length);
+        patterns:
+        for (int i = 0; i < patterns.length; i++) {
+            if (factors[i] != null) {
+                for (int[] factor : factors[i]) {
+                    if (!anySet(found, factor)) {
+                        continue patterns;
+                    }
+                }
+            }
+            result.set(i);
+        }
+        return result;
+    }
+
+    protected static boolean anySet(BitSet bits, int[] indexes) {
+        for (int i : indexes) {
+            if (bits.get(i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        return patterns.length;
+    }
+
+    public Pattern getPattern(int i) {
+        return patterns[i];
+    }
+
+    /** how many of the patterns have literals to filter on */
+    public int getPrefilteredCount() {
+        return prefilteredCount;
+    }
+
+    /**
+     * Whether this was built from the given list, as it is now. Lets callers
+     * cache an instance per configured list.
+     */
+    public boolean isFor(List<Pattern> patterns) {
+        return source == patterns && this.patterns.length == patterns.size();
+    }
+
+    /**
+     * Literal text required by any match of the pattern, as a list of
+     * factors, each a list of alternatives (lowercased) at least one of
+     * which must appear in the input. Null if nothing could be determined.
+     */
+    public static List<List<String>> requiredLiterals(Pattern pattern) {
+        int flags = pattern.flags();
+        if ((flags & (Pattern.COMMENTS | Pattern.UNICODE_CASE | Pattern.CANON_EQ)) != 0) {
+            return null;
+        }
+        List<List<String>> result;
+        if ((flags & Pattern.LITERAL) != 0) {
+            result = new ArrayList<List<String>>();
+            if (!pattern.pattern().isEmpty()) {
+                result.add(List.of(pattern.pattern()));
+            }
+        } else {
+            LiteralParser parser = new LiteralParser(pattern.pattern());
+            try {
+                result = parser.parseAlternation();
+            } catch (UnsupportedOperationException e) {
+                return null;
+            }
+            if (parser.pos != parser.regex.length()) {
+                return null;
+            }
+        }
+        List<List<String>> lowercased = new ArrayList<List<String>>(result.size());
+        for (List<String> factor : result) {
+            List<String> alternatives = new ArrayList<String>(factor.size());
+            for (String literal : factor) {
+                alternatives.add(asciiLowerCase(literal));
+            }
+            lowercased.add(alternatives);
+        }
+        return lowercased;
+    }
+
+    protected static String asciiLowerCase(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            sb.append(c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Recursive descent over java.util.regex syntax, just far enough to find
+     * required literals. Throws UnsupportedOperationException at anything it
+     * can't be sure about.
+     */
+    protected static class LiteralParser {
+        protected final String regex;
+        protected int pos = 0;
+
+        protected LiteralParser(String regex) {
+            this.regex = regex;
+        }
+
+        /** factors required by every alternative up to ')' or the end */
+        protected List<List<String>> parseAlternation() {
+            List<List<List<String>>> branches = new ArrayList<List<List<String>>>();
+            branches.add(parseSequence());
+            while (pos < regex.length() && regex.charAt(pos) == '|') {
+                pos++;
+                branches.add(parseSequence());
+            }
+            if (branches.size() == 1) {
+                return branches.get(0);
+            }
+            // one of the branches' best factors must be present
+            List<String> union = new ArrayList<String>();
+            for (List<List<String>> branch : branches) {
+                List<String> best = best(branch);
+                if (best == null) {
+                    return new ArrayList<List<String>>();
+                }
+                for (String literal : best) {
+                    if (!union.contains(literal)) {
+                        union.add(literal);
+                    }
+                }
+            }
+            List<List<String>> result = new ArrayList<List<String>>();
+            result.add(union);
+            return result;
+        }
+
+        protected static List<String> best(List<List<String>> factors) {
+            List<String> best = null;
+            int bestScore = 0;
+            for (List<String> factor : factors) {
+                int score = Integer.MAX_VALUE;
+                for (String literal : factor) {
+                    score = Math.min(score, literal.length());
+                }
+                if (best == null || score > bestScore
+                        || (score == bestScore && factor.size() < best.size())) {
+                    best = factor;
+                    bestScore = score;
+                }
+            }
+            return best;
+        }
+
+        /** factors required by a sequence of atoms up to '|', ')' or the end */
+        protected List<List<String>> parseSequence() {
+            List<List<String>> factors = new ArrayList<List<String>>();
+            StringBuilder run = new StringBuilder();
+            while (pos < regex.length()) {
+                char c = regex.charAt(pos);
+                if (c == '|' || c == ')') {
+                    break;
+                }
+                String literal = null;
+                List<List<String>> group = null;
+                switch (c) {
+                case '\\':
+                    literal = parseEscape();
+                    break;
+                case '[':
+                    skipClass();
+                    break;
+                case '(':
+                    group = parseGroup();
+                    break;
+                case '.':
+                case '^':
+                case '$':
+                    pos++;
+                    break;
+                case '*':
+                case '+':
+                case '?':
+                case '{':
+                    throw new UnsupportedOperationException();
+                default:
+                    literal = String.valueOf(c);
+                    pos++;
+                }
+                boolean quantified = pos < regex.length()
+                        && "?*+{".indexOf(regex.charAt(pos)) >= 0;
+                int min = parseQuantifier();
+                if (literal != null) {
+                    // a quantifier applies to the last char only
+                    run.append(literal, 0, literal.length() - 1);
+                    char last = literal.charAt(literal.length() - 1);
+                    if (!quantified) {
+                        run.append(last);
+                        continue;
+                    }
+                    if (min > 0) {
+                        run.append(last);
+                    }
+                }
+                flush(run, factors);
+                if (group != null && min > 0) {
+                    factors.addAll(group);
+                }
+            }
+            flush(run, factors);
+            return factors;
+        }
+
+        protected void flush(StringBuilder run, List<List<String>> factors) {
+            if (run.length() > 0) {
+                List<String> factor = new ArrayList<String>(1);
+                factor.add(run.toString());
+                factors.add(factor);
+                run.setLength(0);
+            }
+        }
+
+        /**
+         * Consume a quantifier, if any.
+         * @return minimum repetitions; 1 if there's no quantifier
+         */
+        protected int parseQuantifier() {
+            if (pos >= regex.length()) {
+                return 1;
+            }
+            int min;
+            switch (regex.charAt(pos)) {
+            case '?':
+            case '*':
+                min = 0;
+                pos++;
+                break;
+            case '+':
+                min = 1;
+                pos++;
+                break;
+            case '{':
+                int close = regex.indexOf('}', pos);
+                if (close < 0) {
+                    throw new UnsupportedOperationException();
+                }
+                String bounds = regex.substring(pos + 1, close);
+                int comma = bounds.indexOf(',');
+                try {
+                    min = Integer.parseInt(comma < 0 ? bounds : bounds.substring(0, comma));
+                } catch (NumberFormatException e) {
+                    throw new UnsupportedOperationException();
+                }
+                pos = close + 1;
+                break;
+            default:
+                return 1;
+            }
+            // reluctant or possessive
+            if (pos < regex.length()
+                    && (regex.charAt(pos) == '?' || regex.charAt(pos) == '+')) {
+                pos++;
+            }
+            return min;
+        }
+
+        /** @return the literal text escaped, or null for a class or assertion */
+        protected String parseEscape() {
+            if (pos + 1 >= regex.length()) {
+                throw new UnsupportedOperationException();
+            }
+            char c = regex.charAt(pos + 1);
+            pos += 2;
+            switch (c) {
+            case 'Q':
+                int end = regex.indexOf("\\E", pos);
+                String quoted = regex.substring(pos, end < 0 ? regex.length() : end);
+                pos = end < 0 ? regex.length() : end + 2;
+                if (quoted.isEmpty()) {
+                    throw new UnsupportedOperationException();
+                }
+                return quoted;
+            case 't':
+                return "\t";
+            case 'n':
+                return "\n";
+            case 'r':
+                return "\r";
+            case 'f':
+                return "\f";
+            case 'a':
+                return "\u0007";
+            case 'e':
+                return "\u001B";
+            case 'd': case 'D': case 's': case 'S': case 'w': case 'W':
+            case 'h': case 'H': case 'v': case 'V': case 'R': case 'X':
+            case 'b': case 'B': case 'A': case 'G': case 'Z': case 'z':
+                return null;
+            case 'p':
+            case 'P':
+                if (pos < regex.length() && regex.charAt(pos) == '{') {
+                    int close = regex.indexOf('}', pos);
+                    if (close < 0) {
+                        throw new UnsupportedOperationException();
+                    }
+                    pos = close + 1;
+                } else {
+                    pos++;
+                }
+                return null;
+            case 'k':
+                int gt = regex.indexOf('>', pos);
+                if (gt < 0) {
+                    throw new UnsupportedOperationException();
+                }
+                pos = gt + 1;
+                return null;
+            default:
+                if (c >= '1' && c <= '9') {
+                    // back reference
+                    while (pos < regex.length() && Character.isDigit(regex.charAt(pos))) {
+                        pos++;
+                    }
+                    return null;
+                }
+                if (Character.isLetterOrDigit(c)) {
+                    // octal, hex, unicode, control chars etc
+                    throw new UnsupportedOperationException();
+                }
+                return String.valueOf(c);
+            }
+        }
+
+        protected void skipClass() {
+            pos++;
+            if (pos < regex.length() && regex.charAt(pos) == '^') {
+                pos++;
+            }
+            if (pos < regex.length() && regex.charAt(pos) == ']') {
+                pos++;
+            }
+            while (pos < regex.length()) {
+                char c = regex.charAt(pos);
+                if (c == '\\') {
+                    if (pos + 1 < regex.length() && regex.charAt(pos + 1) == 'Q') {
+                        throw new UnsupportedOperationException();
+                    }
+                    pos += 2;
+                } else if (c == '[') {
+                    skipClass();
+                } else if (c == ']') {
+                    pos++;
+                    return;
+                } else {
+                    pos++;
+                }
+            }
+            throw new UnsupportedOperationException();
+        }
+
+        /** @return factors required by the group, or null if none */
+        protected List<List<String>> parseGroup() {
+            pos++;
+            boolean lookaround = false;
+            if (pos < regex.length() && regex.charAt(pos) == '?') {
+                pos++;
+                char c = pos < regex.length() ? regex.charAt(pos) : ')';
+                if (c == ':' || c == '>') {
+                    pos++;
+                } else if (c == '=' || c == '!') {
+                    pos++;
+                    lookaround = true;
+                } else if (c == '<') {
+                    pos++;
+                    char d = pos < regex.length() ? regex.charAt(pos) : ')';
+                    if (d == '=' || d == '!') {
+                        pos++;
+                        lookaround = true;
+                    } else {
+                        // named group
+                        int gt = regex.indexOf('>', pos);
+                        if (gt < 0) {
+                            throw new UnsupportedOperationException();
+                        }
+                        pos = gt + 1;
+                    }
+                } else {
+                    // inline flags; case doesn't matter, but some do
+                    int start = pos;
+                    while (pos < regex.length()
+                            && (Character.isLetter(regex.charAt(pos)) || regex.charAt(pos) == '-')) {
+                        pos++;
+                    }
+                    String flags = regex.substring(start, pos);
+                    int minus = flags.indexOf('-');
+                    String on = minus < 0 ? flags : flags.substring(0, minus);
+                    if (on.indexOf('x') >= 0 || on.indexOf('u') >= 0
+                            || pos >= regex.length()) {
+                        throw new UnsupportedOperationException();
+                    }
+                    if (regex.charAt(pos) == ')') {
+                        pos++;
+                        return null;
+                    } else if (regex.charAt(pos) == ':') {
+                        pos++;
+                    } else {
+                        throw new UnsupportedOperationException();
+                    }
+                }
+            }
+            List<List<String>> content = parseAlternation();
+            if (pos >= regex.length() || regex.charAt(pos) != ')') {
+                throw new UnsupportedOperationException();
+            }
+            pos++;
+            return lookaround ? null : content;
+        }
+    }
+}
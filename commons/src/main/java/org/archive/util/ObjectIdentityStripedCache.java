@@ -0,0 +1,612 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.util;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.archive.bdb.KryoBinding;
+
+import com.sleepycat.je.DatabaseEntry;
+
+/**
+ * In-memory object cache for very large numbers of small, mostly idle
+ * objects. Keys are split over a power-of-two number of lock stripes;
+ * each stripe keeps a bounded, access-ordered 'hot' set of live objects
+ * and packs everything else into fixed-size records in direct (off-heap)
+ * buffers, so a cold entry costs its key plus one record rather than a
+ * whole object graph. Cold keys are indexed by an open-addressed table of
+ * primitive slot numbers, so beyond the key String itself an entry needs
+ * no map node or boxed Integer.
+ * 
+ * Subclasses define the record layout via {@link #writeRecord} and
+ * {@link #readRecord}. Objects that do not fit the layout are kept as
+ * Kryo-serialized byte arrays instead ('spills').
+ * 
+ * Identity is kept as the ObjectIdentityCache contract requires: an
+ * object pushed out of the hot set stays reachable through a weak
+ * reference until nobody else holds it, and a get() in the meantime
+ * returns that same object. Its record is written when it leaves the hot
+ * set and rewritten on {@link #dirtyKey(String)}; as with
+ * ObjectIdentityBdbManualCache, changes made to such an object without
+ * makeDirty() are lost once it is collected.
+ * 
+ * Nothing is persisted: the cache is empty after a restart and does not
+ * take part in checkpoints.
+ * 
+ * @param <V>
+ */
+public abstract class ObjectIdentityStripedCache<V extends IdentityCacheable>
+implements ObjectIdentityCache<V> {
+    private static final Logger logger =
+        Logger.getLogger(ObjectIdentityStripedCache.class.getName());
+
+    /** records per direct buffer allocated */
+    protected static final int SLOTS_PER_CHUNK = 4096;
+
+    protected final int recordSize;
+    protected final Stripe[] stripes;
+    protected volatile int maxHotPerStripe;
+    protected final KryoBinding<V> spillBinding;
+
+    protected final LongAdder hits = new LongAdder();
+    protected final LongAdder rescues = new LongAdder();
+    protected final LongAdder hydrations = new LongAdder();
+    protected final LongAdder misses = new LongAdder();
+    protected final LongAdder evictions = new LongAdder();
+    protected final LongAdder spills = new LongAdder();
+
+    /**
+     * @param valueClass class of cached values, for spilled entries
+     * @param recordSize bytes per off-heap record
+     * @param stripeCount number of lock stripes; rounded up to a power of two
+     * @param maxHot total number of objects to keep in the hot sets
+     */
+    protected ObjectIdentityStripedCache(Class<V> valueClass, int recordSize,
+            int stripeCount, int maxHot) {
+        if (recordSize < 1) {
+            throw new IllegalArgumentException("recordSize must be positive: " + recordSize);
+        }
+        if (stripeCount < 1) {
+            throw new IllegalArgumentException("stripeCount must be positive: " + stripeCount);
+        }
+        this.recordSize = recordSize;
+        int n = Integer.highestOneBit(stripeCount);
+        if (n < stripeCount) {
+            n <<= 1;
+        }
+        this.stripes = newStripes(n);
+        this.spillBinding = new KryoBinding<V>(valueClass);
+        setMaxHot(maxHot);
+    }
+
+    /**
+     * @return n new stripes
+     */
+    // Stripe is an inner class of a generic type, so no Stripe[] can be
+    // created without an unchecked cast; every element is a Stripe of
+    // this instance, so the cast is safe
+    @SuppressWarnings("unchecked")
+    protected Stripe[] newStripes(int n) {
+        Stripe[] created = (Stripe[]) new ObjectIdentityStripedCache<?>.Stripe[n];
+        for (int i = 0; i < n; i++) {
+            created[i] = new Stripe();
+        }
+        return created;
+    }
+
+    /**
+     * Write val's state as a record at buf[offset, offset+recordSize).
+     * 
+     * @return false if val does not fit the fixed layout, in which case
+     * nothing may have been retained on its behalf; it is then spilled
+     */
+    protected abstract boolean writeRecord(V val, ByteBuffer buf, int offset);
+
+    /**
+     * Rebuild the object stored under key from its record.
+     */
+    protected abstract V readRecord(String key, ByteBuffer buf, int offset);
+
+    /**
+     * Called when a record is discarded, to let go of anything
+     * writeRecord() retained for it. Default does nothing.
+     */
+    protected void releaseRecord(ByteBuffer buf, int offset) {
+    }
+
+    /**
+     * Prepare val for Kryo serialization when it did not fit a record.
+     * Default does nothing.
+     */
+    protected void prepareSpill(V val) {
+    }
+
+    /**
+     * @param maxHot total number of objects to keep strongly in memory,
+     * divided evenly over the stripes
+     */
+    public void setMaxHot(int maxHot) {
+        this.maxHotPerStripe = Math.max(1, maxHot / stripes.length);
+    }
+
+    public int getMaxHot() {
+        return maxHotPerStripe * stripes.length;
+    }
+
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    protected Stripe stripeFor(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & (stripes.length - 1)];
+    }
+
+    @Override
+    public V get(String key) {
+        return getOrUse(key, null);
+    }
+
+    @Override
+    public V getOrUse(String key, Supplier<V> supplierOrNull) {
+        Stripe s = stripeFor(key);
+        V val;
+        s.lock.lock();
+        try {
+            s.expungeCollected();
+            val = s.hot.get(key);
+            if (val != null) {
+                hits.increment();
+            } else {
+                KeyedReference<V> ref = s.evicted.remove(key);
+                val = (ref == null) ? null : ref.get();
+                if (val != null) {
+                    // evicted but still in use elsewhere: keep identity
+                    rescues.increment();
+                    s.discardCold(key);
+                } else {
+                    val = s.hydrate(key);
+                    if (val != null) {
+                        hydrations.increment();
+                    } else if (supplierOrNull == null) {
+                        return null;
+                    } else {
+                        val = supplierOrNull.get();
+                        misses.increment();
+                    }
+                }
+                s.hot.put(key, val);
+                s.evictExcess();
+            }
+        } finally {
+            s.lock.unlock();
+        }
+        val.setIdentityCache(this);
+        if (logger.isLoggable(Level.FINE)
+                && (hits.sum() + misses.sum()) % 10000 == 0) {
+            logger.fine(composeCacheSummary());
+        }
+        return val;
+    }
+
+    @Override
+    public void dirtyKey(String key) {
+        Stripe s = stripeFor(key);
+        s.lock.lock();
+        try {
+            if (s.hot.containsKey(key)) {
+                // record is written when it leaves the hot set
+                return;
+            }
+            KeyedReference<V> ref = s.evicted.get(key);
+            V val = (ref == null) ? null : ref.get();
+            if (val != null) {
+                s.discardCold(key);
+                s.writeCold(key, val);
+            }
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    @Override
+    public void sync() {
+        // do nothing: no persistent backend
+    }
+
+    @Override
+    public void close() {
+        for (Stripe s : stripes) {
+            s.lock.lock();
+            try {
+                s.hot.clear();
+                s.evicted.clear();
+                s.records.clear();
+                s.spilled.clear();
+                s.chunks = new ByteBuffer[0];
+                s.nextSlot = 0;
+                s.freeCount = 0;
+            } finally {
+                s.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        long size = 0;
+        for (Stripe s : stripes) {
+            s.lock.lock();
+            try {
+                size += s.hot.size() + s.records.size() + s.spilled.size();
+            } finally {
+                s.lock.unlock();
+            }
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return snapshot of all keys, hot and cold
+     */
+    @Override
+    public Set<String> keySet() {
+        Set<String> keys = new HashSet<String>();
+        for (Stripe s : stripes) {
+            s.lock.lock();
+            try {
+                keys.addAll(s.hot.keySet());
+                s.records.addKeysTo(keys);
+                keys.addAll(s.spilled.keySet());
+            } finally {
+                s.lock.unlock();
+            }
+        }
+        return keys;
+    }
+
+    /** @return gets answered from the hot set */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** @return gets answered by an evicted object still in use elsewhere */
+    public long getRescues() {
+        return rescues.sum();
+    }
+
+    /** @return gets answered by rebuilding an object from its record */
+    public long getHydrations() {
+        return hydrations.sum();
+    }
+
+    /** @return gets that found nothing, whether or not a supplier was used */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** @return objects moved out of the hot set */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /** @return cold entries that did not fit a record and were serialized */
+    public long getSpills() {
+        return spills.sum();
+    }
+
+    /** @return count of objects currently in the hot sets */
+    public long getHotCount() {
+        long count = 0;
+        for (Stripe s : stripes) {
+            s.lock.lock();
+            try {
+                count += s.hot.size();
+            } finally {
+                s.lock.unlock();
+            }
+        }
+        return count;
+    }
+
+    /** @return bytes of direct memory allocated for records */
+    public long getOffHeapBytes() {
+        long bytes = 0;
+        for (Stripe s : stripes) {
+            s.lock.lock();
+            try {
+                bytes += (long) s.chunks.length * SLOTS_PER_CHUNK * recordSize;
+            } finally {
+                s.lock.unlock();
+            }
+        }
+        return bytes;
+    }
+
+    public String composeCacheSummary() {
+        StringBuilder sb = new StringBuilder(160);
+        sb.append("hits=").append(getHits())
+          .append(" rescues=").append(getRescues())
+          .append(" hydrations=").append(getHydrations())
+          .append(" misses=").append(getMisses())
+          .append(" evictions=").append(getEvictions())
+          .append(" spills=").append(getSpills())
+          .append(" hot=").append(getHotCount())
+          .append(" size=").append(size())
+          .append(" offHeapBytes=").append(getOffHeapBytes());
+        return sb.toString();
+    }
+
+    /**
+     * Weak reference remembering its key, for expunging.
+     */
+    protected static class KeyedReference<V> extends WeakReference<V> {
+        protected final String key;
+
+        protected KeyedReference(String key, V referent, ReferenceQueue<? super V> q) {
+            super(referent, q);
+            this.key = key;
+        }
+    }
+
+    /**
+     * Map from String keys to non-negative int record slots, by linear
+     * probing over parallel arrays. Not thread-safe; used under a stripe's
+     * lock.
+     */
+    protected static final class SlotIndex {
+        public static final int NONE = -1;
+
+        protected String[] keys = new String[16];
+        protected int[] slots = new int[16];
+        protected int size = 0;
+
+        /** home position of key in the current table */
+        protected int home(String key) {
+            // the stripe was picked by the low hash bits, so use the high
+            return (key.hashCode() * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(keys.length));
+        }
+
+        /** @return position holding key, or -1 */
+        protected int find(String key) {
+            int mask = keys.length - 1;
+            for (int i = home(key); keys[i] != null; i = (i + 1) & mask) {
+                if (keys[i].equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /** @return slot stored for key, or NONE */
+        public int get(String key) {
+            int i = find(key);
+            return i < 0 ? NONE : slots[i];
+        }
+
+        public void put(String key, int slot) {
+            assert slot >= 0;
+            if (4 * (size + 1) > 3 * keys.length) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            int i = home(key);
+            while (keys[i] != null) {
+                if (keys[i].equals(key)) {
+                    slots[i] = slot;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            slots[i] = slot;
+            size++;
+        }
+
+        /** @return slot that was stored for key, or NONE */
+        public int remove(String key) {
+            int i = find(key);
+            if (i < 0) {
+                return NONE;
+            }
+            int slot = slots[i];
+            int mask = keys.length - 1;
+            // backward-shift deletion: pull up any entry whose probe
+            // sequence passed through the emptied position
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (keys[j] == null) {
+                    break;
+                }
+                int h = home(keys[j]);
+                if (((j - h) & mask) >= ((j - i) & mask)) {
+                    keys[i] = keys[j];
+                    slots[i] = slots[j];
+                    i = j;
+                }
+            }
+            keys[i] = null;
+            size--;
+            return slot;
+        }
+
+        public void addKeysTo(Collection<String> target) {
+            for (String key : keys) {
+                if (key != null) {
+                    target.add(key);
+                }
+            }
+        }
+
+        public void clear() {
+            keys = new String[16];
+            slots = new int[16];
+            size = 0;
+        }
+
+        protected void grow() {
+            String[] oldKeys = keys;
+            int[] oldSlots = slots;
+            keys = new String[oldKeys.length * 2];
+            slots = new int[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int k = 0; k < oldKeys.length; k++) {
+                if (oldKeys[k] != null) {
+                    int i = home(oldKeys[k]);
+                    while (keys[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[k];
+                    slots[i] = oldSlots[k];
+                }
+            }
+        }
+    }
+
+    /**
+     * One lock stripe. A key is in exactly one of hot, records or
+     * spilled; evicted holds weak references to cold entries' former
+     * objects.
+     */
+    protected class Stripe {
+        protected final ReentrantLock lock = new ReentrantLock();
+        protected final LinkedHashMap<String, V> hot =
+            new LinkedHashMap<String, V>(16, 0.75f, true);
+        protected final HashMap<String, KeyedReference<V>> evicted =
+            new HashMap<String, KeyedReference<V>>();
+        protected final ReferenceQueue<V> collected = new ReferenceQueue<V>();
+        /** cold keys stored as records, with their record slots */
+        protected final SlotIndex records = new SlotIndex();
+        /** cold keys stored as serialized objects; rare */
+        protected final HashMap<String, byte[]> spilled = new HashMap<String, byte[]>();
+        protected ByteBuffer[] chunks = new ByteBuffer[0];
+        protected int nextSlot = 0;
+        protected int[] freeSlots = new int[16];
+        protected int freeCount = 0;
+
+        protected void evictExcess() {
+            Iterator<Map.Entry<String, V>> iter = hot.entrySet().iterator();
+            while (hot.size() > maxHotPerStripe && iter.hasNext()) {
+                Map.Entry<String, V> eldest = iter.next();
+                iter.remove();
+                writeCold(eldest.getKey(), eldest.getValue());
+                evicted.put(eldest.getKey(), new KeyedReference<V>(
+                        eldest.getKey(), eldest.getValue(), collected));
+                evictions.increment();
+            }
+        }
+
+        protected void expungeCollected() {
+            Object ref;
+            while ((ref = collected.poll()) != null) {
+                String key = ((KeyedReference<?>) ref).key;
+                if (evicted.get(key) == ref) {
+                    evicted.remove(key);
+                }
+            }
+        }
+
+        protected void writeCold(String key, V val) {
+            int slot = allocateSlot();
+            ByteBuffer chunk = chunks[slot / SLOTS_PER_CHUNK];
+            int offset = (slot % SLOTS_PER_CHUNK) * recordSize;
+            if (writeRecord(val, chunk, offset)) {
+                records.put(key, slot);
+                return;
+            }
+            freeSlot(slot);
+            prepareSpill(val);
+            DatabaseEntry entry = new DatabaseEntry();
+            spillBinding.objectToEntry(val, entry);
+            spilled.put(key, entry.getData());
+            spills.increment();
+        }
+
+        /**
+         * Take key's cold entry, if any, and rebuild its object.
+         * 
+         * @return the object, or null if key has no cold entry
+         */
+        protected V hydrate(String key) {
+            int slot = records.remove(key);
+            if (slot == SlotIndex.NONE) {
+                byte[] bytes = spilled.remove(key);
+                return bytes == null ? null
+                        : spillBinding.entryToObject(new DatabaseEntry(bytes));
+            }
+            ByteBuffer chunk = chunks[slot / SLOTS_PER_CHUNK];
+            int offset = (slot % SLOTS_PER_CHUNK) * recordSize;
+            V val = readRecord(key, chunk, offset);
+            releaseRecord(chunk, offset);
+            freeSlot(slot);
+            return val;
+        }
+
+        protected void discardCold(String key) {
+            int slot = records.remove(key);
+            if (slot == SlotIndex.NONE) {
+                spilled.remove(key);
+            } else {
+                releaseRecord(chunks[slot / SLOTS_PER_CHUNK],
+                        (slot % SLOTS_PER_CHUNK) * recordSize);
+                freeSlot(slot);
+            }
+        }
+
+        protected int allocateSlot() {
+            if (freeCount > 0) {
+                return freeSlots[--freeCount];
+            }
+            int slot = nextSlot++;
+            int chunk = slot / SLOTS_PER_CHUNK;
+            if (chunk >= chunks.length) {
+                chunks = Arrays.copyOf(chunks, chunk + 1);
+                chunks[chunk] = ByteBuffer.allocateDirect(SLOTS_PER_CHUNK * recordSize);
+            }
+            return slot;
+        }
+
+        protected void freeSlot(int slot) {
+            if (freeCount == freeSlots.length) {
+                freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+            }
+            freeSlots[freeCount++] = slot;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Immutable radix trie of string prefixes, such as SURT prefixes, packed
+ * into a few flat arrays: edge labels share one char array, and nodes are
+ * laid out breadth-first so that each node's children are contiguous and
+ * sorted by first char, for a binary search at each step of a lookup.
+ * 
+ * <p>Instances are snapshots. {@link #plus(Collection, boolean)} builds a
+ * new trie holding the additions, leaving this one untouched, so a holder
+ * may publish updated tries copy-on-write to concurrent readers.
+ * 
+ * <p>Unlike {@link PrefixFinder} over a sorted set, lookups cost one pass
+ * over the input string whatever the number of prefixes, and shared leading
+ * chars are stored once, rather than a skip-list node and a String for
+ * every prefix.
+ */
+public class PrefixTrie {
+
+    public static final PrefixTrie EMPTY = build(new String[0], 0);
+
+    /** all edge labels, in node order */
+    protected final char[] labels;
+    /** offset in labels of each node's edge label; one extra entry at end */
+    protected final int[] labelStart;
+    /** index of each node's first child; one extra entry at end */
+    protected final int[] firstChild;
+    /** bit per node, set if the path to the node spells a member */
+    protected final long[] terminal;
+    protected final int size;
+
+    protected PrefixTrie(char[] labels, int[] labelStart, int[] firstChild,
+            long[] terminal, int size) {
+        this.labels = labels;
+        this.labelStart = labelStart;
+        this.firstChild = firstChild;
+        this.terminal = terminal;
+        this.size = size;
+    }
+
+    /**
+     * @param prefixes strings to hold, in any order, possibly repeated
+     * @param reduce whether to drop strings that another member is a prefix
+     * of, as {@link PrefixSet} does; lookups other than
+     * {@link #prefixesOf(String)} answer the same either way
+     */
+    public static PrefixTrie of(Collection<String> prefixes, boolean reduce) {
+        return EMPTY.plus(prefixes, reduce);
+    }
+
+    /**
+     * @return a new trie holding the members of this one and the given
+     * additions; this one is unchanged
+     */
+    public PrefixTrie plus(Collection<String> additions, boolean reduce) {
+        String[] added = additions.toArray(new String[additions.size()]);
+        Arrays.sort(added);
+        String[] keys = new String[size + added.length];
+        String[] members = toArray();
+        int n = 0;
+        int i = 0;
+        for (String member : members) {
+            while (i < added.length && added[i].compareTo(member) < 0) {
+                n = append(keys, n, added[i++], reduce);
+            }
+            n = append(keys, n, member, reduce);
+        }
+        while (i < added.length) {
+            n = append(keys, n, added[i++], reduce);
+        }
+        return build(keys, n);
+    }
+
+    /** append key to sorted keys[0..n), unless already covered */
+    protected static int append(String[] keys, int n, String key, boolean reduce) {
+        if (n > 0) {
+            String last = keys[n - 1];
+            if (reduce ? key.startsWith(last) : key.equals(last)) {
+                return n;
+            }
+        }
+        keys[n] = key;
+        return n + 1;
+    }
+
+    /**
+     * Build from sorted, distinct keys[0..n), numbering nodes breadth-first.
+     * Node i covers the keys [lo[i], hi[i]), which share its path of length
+     * depth[i]; these are needed only while building.
+     */
+    protected static PrefixTrie build(String[] keys, int n) {
+        int capacity = 2 * n + 1;
+        int[] lo = new int[capacity];
+        int[] hi = new int[capacity];
+        int[] depth = new int[capacity];
+        int[] labelStart = new int[capacity + 1];
+        int[] firstChild = new int[capacity + 1];
+        long[] terminal = new long[(capacity + 63) >>> 6];
+        StringBuilder labels = new StringBuilder();
+        lo[0] = 0;
+        hi[0] = n;
+        depth[0] = 0;
+        int nodes = 1;
+        for (int node = 0; node < nodes; node++) {
+            firstChild[node] = nodes;
+            int d = depth[node];
+            int k = lo[node];
+            int end = hi[node];
+            if (k < end && keys[k].length() == d) {
+                terminal[node >>> 6] |= 1L << node;
+                k++;
+            }
+            while (k < end) {
+                // group the keys continuing with the same char
+                char c = keys[k].charAt(d);
+                int g = k + 1;
+                while (g < end && keys[g].charAt(d) == c) {
+                    g++;
+                }
+                // sorted, so the group's common prefix is that of its ends
+                String first = keys[k];
+                String last = keys[g - 1];
+                int common = d + 1;
+                int limit = Math.min(first.length(), last.length());
+                while (common < limit && first.charAt(common) == last.charAt(common)) {
+                    common++;
+                }
+                lo[nodes] = k;
+                hi[nodes] = g;
+                depth[nodes] = common;
+                labelStart[nodes] = labels.length();
+                labels.append(first, d, common);
+                nodes++;
+                k = g;
+            }
+        }
+        labelStart[nodes] = labels.length();
+        firstChild[nodes] = nodes;
+        char[] packed = new char[labels.length()];
+        labels.getChars(0, packed.length, packed, 0);
+        return new PrefixTrie(packed,
+                Arrays.copyOf(labelStart, nodes + 1),
+                Arrays.copyOf(firstChild, nodes + 1),
+                Arrays.copyOf(terminal, (nodes + 63) >>> 6), n);
+    }
+
+    protected boolean isTerminal(int node) {
+        return (terminal[node >>> 6] & (1L << node)) != 0;
+    }
+
+    /**
+     * @return child of node whose label starts with c, or -1
+     */
+    protected int child(int node, char c) {
+        int low = firstChild[node];
+        int high = firstChild[node + 1] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            char m = labels[labelStart[mid]];
+            if (m < c) {
+                low = mid + 1;
+            } else if (m > c) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Walk the input down the trie, noting each member that prefixes it.
+     * 
+     * @param shortest whether to stop at the first (shortest) such member
+     * @param all if not null, list to add each such member to, shortest first
+     * @return length of the last such member noted, or -1 if none
+     */
+    protected int walk(CharSequence input, boolean shortest, List<String> all) {
+        int found = -1;
+        int node = 0;
+        int pos = 0;
+        int length = input.length();
+        while (true) {
+            if (isTerminal(node)) {
+                found = pos;
+                if (all != null) {
+                    all.add(input.subSequence(0, pos).toString());
+                }
+                if (shortest) {
+                    return found;
+                }
+            }
+            if (pos >= length) {
+                return found;
+            }
+            node = child(node, input.charAt(pos));
+            if (node < 0) {
+                return found;
+            }
+            int start = labelStart[node];
+            int end = labelStart[node + 1];
+            if (pos + end - start > length) {
+                return found;
+            }
+            for (int i = start; i < end; i++, pos++) {
+                if (labels[i] != input.charAt(pos)) {
+                    return found;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether any member is a prefix of (or equal to) input
+     */
+    public boolean containsPrefixOf(CharSequence input) {
+        return walk(input, true, null) >= 0;
+    }
+
+    /**
+     * @return the longest member that is a prefix of input, or null if none
+     */
+    public String longestPrefixOf(String input) {
+        int length = walk(input, false, null);
+        return length < 0 ? null : input.substring(0, length);
+    }
+
+    /**
+     * @return all members that are prefixes of input, shortest first, as
+     * {@link PrefixFinder#find(java.util.SortedSet, String)} returns them
+     */
+    public List<String> prefixesOf(String input) {
+        List<String> result = new ArrayList<String>(2);
+        walk(input, false, result);
+        return result;
+    }
+
+    public boolean contains(String key) {
+        return walk(key, false, null) == key.length();
+    }
+
+    /**
+     * @return number of members
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return approximate bytes held by the packed arrays
+     */
+    public long sizeInBytes() {
+        return 2L * labels.length + 4L * labelStart.length
+                + 4L * firstChild.length + 8L * terminal.length;
+    }
+
+    /**
+     * @return all members, in sorted order
+     */
+    public String[] toArray() {
+        String[] members = new String[size];
+        int[] n = new int[1];
+        forEach(member -> members[n[0]++] = member);
+        return members;
+    }
+
+    /**
+     * Pass every member to the consumer, in sorted order.
+     */
+    public void forEach(Consumer<? super String> consumer) {
+        // explicit stack of nodes still to visit, and path lengths to them
+        int[] stack = new int[16];
+        int[] pathLength = new int[16];
+        int top = 0;
+        stack[0] = 0;
+        pathLength[0] = 0;
+        StringBuilder path = new StringBuilder();
+        while (top >= 0) {
+            int node = stack[top];
+            path.setLength(pathLength[top]);
+            top--;
+            path.append(labels, labelStart[node], labelStart[node + 1] - labelStart[node]);
+            if (isTerminal(node)) {
+                consumer.accept(path.toString());
+            }
+            int from = firstChild[node];
+            int to = firstChild[node + 1];
+            // push in reverse, to pop in sorted order
+            for (int c = to - 1; c >= from; c--) {
+                if (++top == stack.length) {
+                    stack = Arrays.copyOf(stack, 2 * top);
+                    pathLength = Arrays.copyOf(pathLength, 2 * top);
+                }
+                stack[top] = c;
+                pathLength[top] = path.length();
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.net;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.archive.util.SurtPrefixSet;
+import org.junit.jupiter.api.Test;
+
+public class UURITest {
+
+    @Test
+    public void testSurtViews() throws Exception {
+        UURI uuri = UURIFactory.getInstance("https://www.Archive.org:8443/a/b?c");
+        assertEquals(SurtPrefixSet.getCandidateSurt(uuri), uuri.getCandidateSurt());
+        assertTrue(uuri.getCandidateSurt().startsWith("http://("));
+        assertEquals("org,archive,www,:8443", uuri.getSurtAuthority());
+
+        long reused = UURI.getSurtViewsReused();
+        assertSame(uuri.getCandidateSurt(), uuri.getCandidateSurt());
+        uuri.getSurtAuthority();
+        assertTrue(UURI.getSurtViewsReused() >= reused + 3);
+
+        assertNull(UURIFactory.getInstance("dns:archive.org").getSurtAuthority());
+    }
+}
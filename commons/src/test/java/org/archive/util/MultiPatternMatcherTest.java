@@ -0,0 +1,121 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+public class MultiPatternMatcherTest {
+
+    protected static String literals(String regex) {
+        return literals(Pattern.compile(regex));
+    }
+
+    protected static String literals(Pattern pattern) {
+        List<List<String>> literals = MultiPatternMatcher.requiredLiterals(pattern);
+        return literals == null ? null : literals.toString();
+    }
+
+    @Test
+    public void testRequiredLiterals() {
+        assertEquals("[[http://www.example.com/]]",
+                literals("http://www\\.example\\.com/.*"));
+        assertEquals("[[.example.com/], [calendar, cgi-bin]]",
+                literals(".*\\.example\\.com/(calendar|cgi-bin)/?.*"));
+        assertEquals("[[.], [gif, jp, png]]",
+                literals("(?i).*\\.(GIF|jpe?g|png)$"));
+        assertEquals("[[http://www.netarkivet.dk/], [x], [x], [y]]",
+                literals("http://www\\.netarkivet\\.dk/((x+x+)+)y"));
+        assertEquals("[[ab], [d]]", literals("abc?d"));
+        assertEquals("[[abc], [d]]", literals("abc+d"));
+        assertEquals("[[a.b], [d]]", literals("\\Qa.b\\E[cC]d"));
+        assertEquals("[[sess], [id=]]", literals("(?:[^/]*/)*(?=foo)sess[a-z]*id=.*"));
+        assertEquals("[[a]]", literals("ab{0,3}"));
+        assertEquals("[[ab], [c]]", literals("ab{2,3}?c"));
+        assertEquals("[[ba]]", literals(".*(foo|.*)bar?"));
+        assertEquals("[]", literals(".*(foo|.*)x?"));
+        assertEquals("[[foo]]", literals("(?<name>foo)\\k<name>"));
+        assertEquals("[[x.y]]", literals(Pattern.compile("x.y", Pattern.LITERAL)));
+        assertNull(literals(Pattern.compile("a b", Pattern.COMMENTS)));
+        assertNull(literals("(?x)a b"));
+        assertNull(literals("\\x41bc"));
+    }
+
+    @Test
+    public void testCandidates() {
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        patterns.add(Pattern.compile(".*/calendar/.*"));
+        patterns.add(Pattern.compile("(?i).*\\.(gif|jpe?g)"));
+        patterns.add(Pattern.compile("[a-z]+"));
+        patterns.add(Pattern.compile(".*\\.example\\.(com|org)/.*"));
+        MultiPatternMatcher matcher = new MultiPatternMatcher(patterns);
+        assertEquals(4, matcher.size());
+        assertEquals(3, matcher.getPrefilteredCount());
+        assertTrue(matcher.isFor(patterns));
+        assertFalse(matcher.isFor(new ArrayList<Pattern>(patterns)));
+
+        assertEquals("{2}", matcher.candidates("http://www.example.net/").toString());
+        assertEquals("{1, 2, 3}",
+                matcher.candidates("http://www.EXAMPLE.org/IMG.JPEG").toString());
+        assertEquals("{0, 2, 3}",
+                matcher.candidates("http://www.example.com/calendar/2020").toString());
+    }
+
+    /**
+     * Any pattern that finds a match must be a candidate.
+     */
+    @Test
+    public void testNoFalseNegatives() {
+        String[] regexes = {
+            "ab+c", "(?i)xYz", "a(b|cd)e", "\\Qa+b\\E", "(foo|bar)+baz",
+            "q[^u]", "(?:ab){2,}c", "a.?b", "\\.com/", "c(?=d)d", "ba*", "(x|y)z?w",
+            "(?i:AB)c", "abc|abd|x", "\u00e9t\u00e9", "[ab]c(d)\\1",
+        };
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        for (String regex : regexes) {
+            patterns.add(Pattern.compile(regex));
+        }
+        MultiPatternMatcher matcher = new MultiPatternMatcher(patterns);
+        String alphabet = "abcdefquxyzwABXYZ.+/om\u00e9t";
+        Random random = new Random(0);
+        for (int n = 0; n < 20000; n++) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = random.nextInt(12); i >= 0; i--) {
+                sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            BitSet candidates = matcher.candidates(sb);
+            for (int i = 0; i < patterns.size(); i++) {
+                if (patterns.get(i).matcher(sb).find()) {
+                    assertTrue(candidates.get(i), regexes[i] + " finds in " + sb);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.archive.util.ObjectIdentityStripedCache.SlotIndex;
+import org.junit.jupiter.api.Test;
+
+public class ObjectIdentityStripedCacheTest {
+
+    @Test
+    public void testSlotIndexAgainstHashMap() {
+        SlotIndex index = new SlotIndex();
+        Map<String, Integer> expected = new HashMap<String, Integer>();
+        Random random = new Random(0);
+        for (int i = 0; i < 20000; i++) {
+            // few distinct keys, so puts, replacements and removes all mix
+            String key = "host" + random.nextInt(3000) + ".example.org";
+            if (random.nextInt(3) == 0) {
+                Integer slot = expected.remove(key);
+                assertEquals(slot == null ? SlotIndex.NONE : slot.intValue(), index.remove(key));
+            } else {
+                expected.put(key, i);
+                index.put(key, i);
+            }
+            assertEquals(expected.size(), index.size());
+        }
+        for (int k = 0; k < 3000; k++) {
+            String key = "host" + k + ".example.org";
+            Integer slot = expected.get(key);
+            assertEquals(slot == null ? SlotIndex.NONE : slot.intValue(), index.get(key));
+        }
+        Set<String> keys = new HashSet<String>();
+        index.addKeysTo(keys);
+        assertEquals(expected.keySet(), keys);
+
+        index.clear();
+        assertEquals(0, index.size());
+        assertEquals(SlotIndex.NONE, index.get(keys.iterator().next()));
+    }
+}
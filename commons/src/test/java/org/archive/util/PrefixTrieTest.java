@@ -0,0 +1,110 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+
+public class PrefixTrieTest {
+
+    @Test
+    public void testQueries() {
+        PrefixTrie trie = PrefixTrie.of(Arrays.asList(
+                "http://(org,archive,", "http://(org,archive,www,)/",
+                "http://(com,example,", "http://(org,archive,", "http://(org,"), false);
+        assertEquals(4, trie.size());
+        String surt = "http://(org,archive,www,)/details";
+        assertTrue(trie.containsPrefixOf(surt));
+        assertEquals("http://(org,archive,www,)/", trie.longestPrefixOf(surt));
+        assertEquals(Arrays.asList("http://(org,", "http://(org,archive,",
+                "http://(org,archive,www,)/"), trie.prefixesOf(surt));
+        assertFalse(trie.containsPrefixOf("http://(com,exam"));
+        assertNull(trie.longestPrefixOf("http://(net,"));
+        assertTrue(trie.contains("http://(org,"));
+        assertFalse(trie.contains("http://(org"));
+        assertArrayEquals(new String[] { "http://(com,example,", "http://(org,",
+                "http://(org,archive,", "http://(org,archive,www,)/" }, trie.toArray());
+
+        PrefixTrie reduced = trie.plus(Arrays.asList("http://(com,"), true);
+        assertArrayEquals(new String[] { "http://(com,", "http://(org," },
+                reduced.toArray());
+        assertEquals(4, trie.size());
+        assertTrue(PrefixTrie.EMPTY.isEmpty());
+        assertFalse(PrefixTrie.EMPTY.containsPrefixOf(""));
+    }
+
+    /**
+     * Compare with PrefixFinder and PrefixSet over random prefix sets.
+     */
+    @Test
+    public void testSameAsSortedSets() {
+        Random random = new Random(1);
+        String alphabet = "ab,()/:";
+        for (int round = 0; round < 200; round++) {
+            TreeSet<String> set = new TreeSet<String>();
+            PrefixSet prefixSet = new PrefixSet();
+            List<String> added = new ArrayList<String>();
+            for (int i = random.nextInt(40); i >= 0; i--) {
+                // non-empty, as PrefixFinder never reports "" as a prefix
+                String s = "(" + randomString(random, alphabet, 5);
+                set.add(s);
+                prefixSet.add(s);
+                added.add(s);
+            }
+            int split = random.nextInt(added.size() + 1);
+            PrefixTrie trie = PrefixTrie.of(added.subList(0, split), false)
+                    .plus(added.subList(split, added.size()), false);
+            PrefixTrie reduced = PrefixTrie.of(added, true);
+            assertEquals(set.size(), trie.size());
+            assertArrayEquals(set.toArray(), trie.toArray());
+            assertArrayEquals(prefixSet.toArray(), reduced.toArray());
+            for (int i = 0; i < 100; i++) {
+                String input = randomString(random, alphabet, 9);
+                List<String> expected = PrefixFinder.find(set, input);
+                assertEquals(expected, trie.prefixesOf(input), input);
+                assertEquals(!expected.isEmpty(), trie.containsPrefixOf(input), input);
+                assertEquals(prefixSet.containsPrefixOf(input),
+                        reduced.containsPrefixOf(input), input);
+                assertEquals(expected.isEmpty() ? null : expected.get(expected.size() - 1),
+                        trie.longestPrefixOf(input), input);
+                assertEquals(set.contains(input), trie.contains(input), input);
+            }
+        }
+    }
+
+    protected static String randomString(Random random, String alphabet, int maxLength) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = random.nextInt(maxLength + 1); i > 0; i--) {
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return sb.toString();
+    }
+}
@@ -191,6 +191,50 @@ implements Serializable,
         }
     }
     
+    /**
+     * Whether to run each ToeThread's work on a virtual thread rather than
+     * a platform thread, allowing far higher maxToeThreads for crawls that
+     * spend most of their time waiting on the network. Requires a Java 21+
+     * runtime; otherwise platform threads are used. Code holding a monitor
+     * (synchronized) during blocking I/O pins its carrier thread, so gains 
+     * depend on the processors configured.
+     */
+    protected boolean useVirtualToeThreads = false;
+    public boolean getUseVirtualToeThreads() {
+        return useVirtualToeThreads;
+    }
+    public void setUseVirtualToeThreads(boolean useVirtualToeThreads) {
+        this.useVirtualToeThreads = useVirtualToeThreads;
+    }
+    
+    /**
+     * Maximum number of URIs that may be suspended mid-chain at once, 
+     * waiting on work a processor has handed off (such as FetchHTTP2's
+     * asyncFetch) without holding a ToeThread. While this many are 
+     * suspended, further URIs are processed with their ToeThread waiting
+     * as usual. The default of 0 never suspends.
+     */
+    protected int maxSuspendedUris = 0;
+    public int getMaxSuspendedUris() {
+        return maxSuspendedUris;
+    }
+    public void setMaxSuspendedUris(int maxSuspendedUris) {
+        this.maxSuspendedUris = maxSuspendedUris;
+    }
+    
+    /**
+     * Number of ToeThreads, beyond maxToeThreads, that resume suspended 
+     * URIs once their handed-off work is done, running the rest of their
+     * processing. Only started if maxSuspendedUris is positive.
+     */
+    protected int resumingToeThreads = 4;
+    public int getResumingToeThreads() {
+        return resumingToeThreads;
+    }
+    public void setResumingToeThreads(int resumingToeThreads) {
+        this.resumingToeThreads = resumingToeThreads;
+    }
+    
     /** whether to keep running (without pause or finish) when frontier is empty */
     protected boolean runWhileEmpty = false; 
     public boolean getRunWhileEmpty() {
@@ -531,6 +575,9 @@ implements Serializable,
 
     protected void setupToePool() {
         toePool = new ToePool(alertThreadGroup,this);
+        toePool.setVirtualThreads(getUseVirtualToeThreads());
+        toePool.setMaxSuspended(getMaxSuspendedUris());
+        toePool.setResumingThreads(getResumingToeThreads());
         // TODO: make # of toes self-optimizing
         toePool.setSize(getMaxToeThreads());
         toePool.waitForAll();
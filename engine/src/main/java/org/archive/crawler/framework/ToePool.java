@@ -20,16 +20,29 @@
 package org.archive.crawler.framework;
 
 import java.io.PrintWriter;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.apache.commons.lang.StringUtils;
 import org.archive.crawler.reporting.AlertThreadGroup;
+import org.archive.modules.ProcessorChain.Suspension;
 import org.archive.util.ArchiveUtils;
 import org.archive.util.Histotable;
+import org.archive.util.Recorder;
 import org.archive.util.Reporter;
 
 /**
@@ -37,6 +50,17 @@ import org.archive.util.Reporter;
  * running. It offers methods for increasing and decreasing their 
  * number, keeping track of their state and (not necessarily safely)
  * killing hung threads.
+ * 
+ * By default each worker is a platform {@link ToeThread} in this 
+ * ThreadGroup. With {@link #setVirtualThreads(boolean)} (and a JVM that 
+ * supports them, Java 21+) each {@link ToeWorker} instead runs on its own 
+ * virtual thread, making many thousands of mostly-waiting workers cheap.
+ * 
+ * <p>With {@link #setMaxSuspended(int)} positive, a worker whose URI is
+ * suspended by a processor (as by FetchHTTP2's asyncFetch) hands the URI
+ * off and goes on to another; a few extra resuming workers pick suspended
+ * URIs up again once their handed-off work is done, and run the rest of
+ * their processing.
  *
  * @author Gordon Mohr
  * @author Kristinn Sigurdsson
@@ -47,9 +71,111 @@ public class ToePool extends ThreadGroup implements Reporter {
     /** run worker thread slightly lower than usual */
     public static int DEFAULT_TOE_PRIORITY = Thread.NORM_PRIORITY - 1;
     
+    private static final Logger logger =
+        Logger.getLogger(ToePool.class.getName());
+    
+    /** Thread.ofVirtual(), if this JVM has virtual threads */
+    protected static final Method OF_VIRTUAL;
+    /** Thread.Builder.name(String) */
+    protected static final Method BUILDER_NAME;
+    /** Thread.Builder.unstarted(Runnable) */
+    protected static final Method BUILDER_UNSTARTED;
+    static {
+        Method ofVirtual = null, name = null, unstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+        } catch (ReflectiveOperationException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = name;
+        BUILDER_UNSTARTED = unstarted;
+    }
+    
     protected CrawlController controller;
     protected int nextSerialNumber = 1;
     protected int targetSize = 0; 
+    
+    /** all live workers taking URIs from the frontier, by serial number */
+    protected ConcurrentSkipListMap<Integer,ToeWorker> workers = 
+        new ConcurrentSkipListMap<Integer,ToeWorker>();
+    /** all live workers resuming suspended URIs, by serial number */
+    protected ConcurrentSkipListMap<Integer,ToeWorker> resumers = 
+        new ConcurrentSkipListMap<Integer,ToeWorker>();
+    
+    /** one permit per URI that may be suspended; null if none may be */
+    protected Semaphore suspendPermits = null;
+    protected int maxSuspended = 0;
+    protected int resumingThreads = 4;
+    /** URIs suspended and not yet taken up by a resumer */
+    protected AtomicInteger suspendedCount = new AtomicInteger(0);
+    /** suspended URIs whose handed-off work is done */
+    protected BlockingQueue<Suspension> resumable = 
+        new LinkedBlockingQueue<Suspension>();
+    /** Recorders freed by finished resumed URIs, for reuse by workers */
+    protected ConcurrentLinkedQueue<Recorder> spareRecorders = 
+        new ConcurrentLinkedQueue<Recorder>();
+    protected AtomicInteger nextRecorderNumber = new AtomicInteger(1);
+    
+    protected boolean virtualThreads = false;
+    public boolean getVirtualThreads() {
+        return virtualThreads;
+    }
+    /**
+     * Whether to run workers on virtual threads rather than platform 
+     * ToeThreads. Falls back to platform threads, with a warning, on JVMs
+     * without virtual thread support. Only affects workers started after
+     * the change.
+     * 
+     * <p>Before Java 24, a virtual thread that blocks (on I/O, a lock or a
+     * sleep) while inside a synchronized block or method pins its carrier
+     * thread, and processors and modules still synchronize in places.
+     * With few carriers, such waits can hold up otherwise runnable 
+     * workers; -Djdk.tracePinnedThreads=short reports where they happen.
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        if (virtualThreads && OF_VIRTUAL == null) {
+            logger.warning("virtual threads unavailable in this JVM ("
+                    + System.getProperty("java.version") 
+                    + "); using platform ToeThreads");
+            virtualThreads = false;
+        }
+        this.virtualThreads = virtualThreads;
+    }
+    
+    public int getMaxSuspended() {
+        return maxSuspended;
+    }
+    /**
+     * Maximum number of URIs that may be suspended mid-chain at once, with
+     * no worker holding them. 0 (the default) means workers always wait 
+     * out suspended work themselves. Set before the first setSize().
+     */
+    public void setMaxSuspended(int maxSuspended) {
+        this.maxSuspended = maxSuspended;
+        this.suspendPermits = maxSuspended > 0 ? new Semaphore(maxSuspended) : null;
+    }
+    
+    public int getResumingThreads() {
+        return resumingThreads;
+    }
+    /**
+     * Number of workers resuming suspended URIs, started alongside the 
+     * others if maxSuspended is positive. Set before the first setSize().
+     */
+    public void setResumingThreads(int resumingThreads) {
+        this.resumingThreads = resumingThreads;
+    }
+    
+    /**
+     * @return whether this JVM can run workers on virtual threads
+     */
+    public static boolean isVirtualThreadsSupported() {
+        return OF_VIRTUAL != null;
+    }
 
     /**
      * Constructor. Creates a pool of ToeThreads. 
@@ -64,11 +190,8 @@ public class ToePool extends ThreadGroup implements Reporter {
     
     public void cleanup() {
     	// force all Toes waiting on queues, etc to proceed
-        Thread[] toes = getToes();
-        for(Thread toe : toes) {
-            if(toe!=null) {
-                toe.interrupt();
-            }
+        for(ToeWorker toe : getToes()) {
+            toe.interrupt();
         }
         
         // see HER-2036
@@ -79,11 +202,9 @@ public class ToePool extends ThreadGroup implements Reporter {
      * @return The number of ToeThreads that are not available (Approximation).
      */
     public int getActiveToeCount() {
-        Thread[] toes = getToes();
         int count = 0;
-        for (int i = 0; i < toes.length; i++) {
-            if((toes[i] instanceof ToeThread) &&
-                    ((ToeThread)toes[i]).isActive()) {
+        for (ToeWorker toe : getToes()) {
+            if(toe.isActive()) {
                 count++;
             }
         }
@@ -95,20 +216,109 @@ public class ToePool extends ThreadGroup implements Reporter {
      *         that were not replaced.
      */
     public int getToeCount() {
-        Thread[] toes = getToes();
-        int count = 0;
-        for (int i = 0; i<toes.length; i++) {
-            if((toes[i] instanceof ToeThread)) {
-                count++;
+        return getToes().size(); 
+    }
+    
+    /**
+     * @return snapshot of all live workers, in serial-number order, 
+     * followed by any resuming workers
+     */
+    protected List<ToeWorker> getToes() {
+        List<ToeWorker> toes = new ArrayList<ToeWorker>(workers.size() + resumers.size());
+        addAlive(workers.values(), toes);
+        addAlive(resumers.values(), toes);
+        return toes;
+    }
+    
+    protected static void addAlive(Iterable<ToeWorker> from, List<ToeWorker> to) {
+        for (ToeWorker toe : from) {
+            if (toe.isAlive()) {
+                to.add(toe);
             }
         }
-        return count; 
     }
     
-    private Thread[] getToes() {
-        Thread[] toes = new Thread[activeCount()+10];
-        this.enumerate(toes);
-        return toes;
+    /**
+     * Note that the given worker has finished running.
+     * 
+     * @param toe finished worker
+     */
+    protected void workerFinished(ToeWorker toe) {
+        workers.remove(toe.getSerialNumber(), toe);
+        resumers.remove(toe.getSerialNumber(), toe);
+    }
+    
+    /**
+     * Reserve room for a URI about to be processed to be suspended.
+     * 
+     * @return whether the URI may be suspended; if so, 
+     * {@link #releaseSuspension()} once it is finished
+     */
+    protected boolean tryReserveSuspension() {
+        Semaphore permits = suspendPermits;
+        return permits != null && permits.tryAcquire();
+    }
+    
+    protected void releaseSuspension() {
+        suspendPermits.release();
+    }
+    
+    /**
+     * Hold the given suspended URI until its handed-off work is done, then
+     * queue it for a resuming worker.
+     */
+    protected void suspended(Suspension suspension) {
+        suspendedCount.incrementAndGet();
+        // completed on whatever thread finishes the work, so keep this brief
+        suspension.getCompletion().whenComplete((result, failure) -> resumable.add(suspension));
+    }
+    
+    /**
+     * @return the next suspended URI whose handed-off work is done, 
+     * waiting for one if need be
+     */
+    protected Suspension takeResumable() throws InterruptedException {
+        Suspension suspension = resumable.take();
+        suspendedCount.decrementAndGet();
+        return suspension;
+    }
+    
+    /**
+     * @return a Recorder for a worker whose own went off with a suspended
+     * URI
+     */
+    protected Recorder takeSpareRecorder() {
+        Recorder recorder = spareRecorders.poll();
+        if (recorder == null) {
+            recorder = new Recorder(controller.getScratchDir().getFile(),
+                    "ts" + nextRecorderNumber.getAndIncrement() + "http",
+                    controller.getRecorderOutBufferBytes(),
+                    controller.getRecorderInBufferBytes());
+        }
+        return recorder;
+    }
+    
+    /**
+     * Keep the Recorder of a finished resumed URI for reuse.
+     */
+    protected void recycleRecorder(Recorder recorder) {
+        spareRecorders.add(recorder);
+    }
+    
+    /**
+     * @return number of URIs suspended and not yet taken up by a resuming
+     * worker
+     */
+    public int getSuspendedCount() {
+        return suspendedCount.get();
+    }
+    
+    /**
+     * @return number of suspended URIs whose handed-off work is done, 
+     * waiting for a resuming worker
+     */
+    public int getResumableCount() {
+        return resumable.size();
     }
 
     /**
@@ -119,26 +329,30 @@ public class ToePool extends ThreadGroup implements Reporter {
     public void setSize(int newsize)
     {
         targetSize = newsize;
-        int difference = newsize - getToeCount(); 
+        List<ToeWorker> fetching = new ArrayList<ToeWorker>();
+        addAlive(workers.values(), fetching);
+        if (suspendPermits != null) {
+            List<ToeWorker> resuming = new ArrayList<ToeWorker>();
+            addAlive(resumers.values(), resuming);
+            for (int i = resuming.size(); i < resumingThreads; i++) {
+                startNewThread(true);
+            }
+        }
+        int difference = newsize - fetching.size(); 
         if (difference > 0) {
             // must create threads
             for(int i = 1; i <= difference; i++) {
-                startNewThread();
+                startNewThread(false);
             }
         } else {
             // must retire extra threads
             int retainedToes = targetSize; 
-            Thread[] toes = this.getToes();
-            for (int i = 0; i < toes.length ; i++) {
-                if(!(toes[i] instanceof ToeThread)) {
-                    continue;
-                }
+            for (ToeWorker tt : fetching) {
                 retainedToes--;
                 if (retainedToes>=0) {
                     continue; // this toe is spared
                 }
                 // otherwise:
-                ToeThread tt = (ToeThread)toes[i];
                 tt.retire();
             }
         }
@@ -158,28 +372,55 @@ public class ToePool extends ThreadGroup implements Reporter {
      */
     public void killThread(int threadNumber, boolean replace){
 
-        Thread[] toes = getToes();
-        for (int i = 0; i< toes.length; i++) {
-            if(! (toes[i] instanceof ToeThread)) {
-                continue;
-            }
-            ToeThread toe = (ToeThread) toes[i];
-            if(toe.getSerialNumber()==threadNumber) {
-                toe.kill();
-            }
+        ToeWorker toe = workers.get(threadNumber);
+        boolean resuming = false;
+        if (toe == null) {
+            toe = resumers.get(threadNumber);
+            resuming = toe != null;
+        }
+        if (toe != null) {
+            toe.kill();
         }
 
         if(replace){
             // Create a new toe thread to take its place. Replace toe
-            startNewThread();
+            startNewThread(resuming);
         }
     }
 
-    private synchronized void startNewThread() {
-        ToeThread newThread = new ToeThread(this, nextSerialNumber++);
-        newThread.setPriority(DEFAULT_TOE_PRIORITY);
+    private synchronized void startNewThread(boolean resuming) {
+        ToeWorker worker = new ToeWorker(this, nextSerialNumber++, resuming);
+        Thread newThread = null;
+        if (virtualThreads) {
+            newThread = newVirtualThread(worker);
+        }
+        if (newThread == null) {
+            newThread = new ToeThread(this, worker);
+            newThread.setPriority(DEFAULT_TOE_PRIORITY);
+        }
+        (resuming ? resumers : workers).put(worker.getSerialNumber(), worker);
         newThread.start();
     }
+    
+    /**
+     * Create an unstarted virtual thread to run the given worker.
+     * 
+     * @param worker worker to run
+     * @return the thread, or null if one could not be created
+     */
+    protected Thread newVirtualThread(ToeWorker worker) {
+        try {
+            Object builder = OF_VIRTUAL.invoke(null);
+            builder = BUILDER_NAME.invoke(builder, 
+                    "ToeThread #" + worker.getSerialNumber());
+            Thread thread = (Thread) BUILDER_UNSTARTED.invoke(builder, worker);
+            worker.setThread(thread);
+            return thread;
+        } catch (ReflectiveOperationException e) {
+            logger.log(Level.WARNING, "unable to create virtual thread", e);
+            return null;
+        }
+    }
 
     /**
      * @return Instance of CrawlController.
@@ -199,43 +440,35 @@ public class ToePool extends ThreadGroup implements Reporter {
         writer.print(" Job being crawled: "
                 + this.controller.getMetadata().getJobName() + "\n");
         writer.print(" Number of toe threads in pool: " + getToeCount() + " ("
-                + getActiveToeCount() + " active)\n\n");
+                + getActiveToeCount() + " active)\n");
+        if (suspendPermits != null) {
+            writer.print(" Suspended URIs: " + getSuspendedCount() + " ("
+                    + getResumableCount() + " ready to resume; max " 
+                    + maxSuspended + ")\n");
+        }
+        writer.print("\n");
         
-        Thread[] toes = this.getToes();
-        synchronized (toes) {
-            for (int i = 0; i < toes.length; i++) {
-                if (!(toes[i] instanceof ToeThread)) {
-                    continue;
-                }
-                ToeThread tt = (ToeThread) toes[i];
-                if (tt != null) {
-                    tt.reportTo(writer);
-                }
-            }
+        for (ToeWorker tt : getToes()) {
+            tt.reportTo(writer);
         }
     }      
     
     public void compactReportTo(PrintWriter writer) {
         writer.print(getToeCount() + " threads (" + getActiveToeCount()
-                + " active)\n");
+                + " active)");
+        if (suspendPermits != null) {
+            writer.print("; " + getSuspendedCount() + " suspended URIs");
+        }
+        writer.print("\n");
 
-        Thread[] toes = this.getToes();
         boolean legendWritten = false; 
         // TODO: sort by activity: those with curi the longest at front
-        synchronized (toes) {
-            for (int i = 0; i < toes.length; i++) {
-                if (!(toes[i] instanceof ToeThread)) {
-                    continue;
-                }
-                ToeThread tt = (ToeThread) toes[i];
-                if (tt != null) {
-                    if(!legendWritten) {
-                        writer.println(tt.shortReportLegend());
-                        legendWritten = true;
-                    }
-                    tt.shortReportLineTo(writer);
-                }
+        for (ToeWorker tt : getToes()) {
+            if(!legendWritten) {
+                writer.println(tt.shortReportLegend());
+                legendWritten = true;
             }
+            tt.shortReportLineTo(writer);
         }
     }
 
@@ -243,20 +476,13 @@ public class ToePool extends ThreadGroup implements Reporter {
     public Map<String, Object> shortReportMap() {
         Histotable<Object> steps = new Histotable<Object>();
         Histotable<Object> processors = new Histotable<Object>();
-        Thread[] toes = getToes();
-        for (int i = 0; i < toes.length; i++) {
-            if(!(toes[i] instanceof ToeThread)) {
-                continue;
-            }
-            ToeThread tt = (ToeThread)toes[i];
-            if(tt!=null) {
-                steps.tally(tt.getStep().toString());
-                String currentProcessorName = tt.getCurrentProcessorName();
-                if (StringUtils.isEmpty(currentProcessorName)) {
-                    currentProcessorName = "noActiveProcessor";
-                }
-                processors.tally(currentProcessorName);
+        for (ToeWorker tt : getToes()) {
+            steps.tally(tt.getStep().toString());
+            String currentProcessorName = tt.getCurrentProcessorName();
+            if (StringUtils.isEmpty(currentProcessorName)) {
+                currentProcessorName = "noActiveProcessor";
             }
+            processors.tally(currentProcessorName);
         }
 
         Map<String,Object> data = new LinkedHashMap<String, Object>();
@@ -326,7 +552,7 @@ public class ToePool extends ThreadGroup implements Reporter {
 
     public void waitForAll() {
         while (true) try {
-            if (isAllAlive(getToes())) {
+            if (isAllAlive(workers.values()) && isAllAlive(resumers.values())) {
                 return;
             }
             Thread.sleep(1000);
@@ -336,9 +562,9 @@ public class ToePool extends ThreadGroup implements Reporter {
     }
     
     
-    private static boolean isAllAlive(Thread[] threads) {
-        for (Thread t: threads) {
-            if ((t != null) && (!t.isAlive())) {
+    private static boolean isAllAlive(Iterable<ToeWorker> toes) {
+        for (ToeWorker t: toes) {
+            if (!t.isAlive()) {
                 return false;
             }
         }
@@ -59,6 +59,7 @@ import org.archive.crawler.spring.SheetOverlaysManager;
 import org.archive.modules.CrawlURI;
 import org.archive.modules.deciderules.DecideRule;
 import org.archive.modules.extractor.ExtractorParameters;
+import org.archive.modules.fetcher.FetchDNS;
 import org.archive.modules.fetcher.FetchStats.Stage;
 import org.archive.modules.net.CrawlHost;
 import org.archive.modules.net.CrawlServer;
@@ -242,6 +243,19 @@ public abstract class AbstractFrontier
     public void setFrontierPreparer(FrontierPreparer prep) {
         this.preparer = prep;
     }
+
+    protected FetchDNS fetchDns;
+    public FetchDNS getFetchDns() {
+        return this.fetchDns;
+    }
+    /**
+     * DNS fetcher to ask for prefetches of the hosts of newly-filled
+     * queues. Only used if it has its DNS cache enabled.
+     */
+    @Autowired(required=false)
+    public void setFetchDns(FetchDNS fetchDns) {
+        this.fetchDns = fetchDns;
+    }
     
     /**
      * @param curi CrawlURI we're to get a key for.
@@ -295,6 +309,60 @@ public abstract class AbstractFrontier
     protected ReentrantReadWriteLock outboundLock = 
         new ReentrantReadWriteLock(true);
     
+    /**
+     * Number of stripes to use for handing out work to ToeThreads. When 
+     * zero (the default), every next() passes the fair outboundLock and 
+     * ready queues are kept in a single FIFO. When positive, worker threads 
+     * pass a striped {@link DispatchGate} instead, and implementations may 
+     * spread ready queues over this many lock-free rings (with work 
+     * stealing), so that next() scales with large numbers of ToeThreads. 
+     * A value near the number of available cores is a good start. Only 
+     * read when the frontier starts.
+     */
+    protected int dispatchStripes = 0;
+    public int getDispatchStripes() {
+        return dispatchStripes;
+    }
+    public void setDispatchStripes(int dispatchStripes) {
+        this.dispatchStripes = dispatchStripes;
+    }
+    
+    /** gate used in place of outboundLock's read side when dispatchStripes > 0 */
+    protected DispatchGate dispatchGate = null;
+    
+    /**
+     * Number of threads applying inbound frontier updates: URIs finished by
+     * ToeThreads, and discovered URIs being scheduled. When zero (the 
+     * default), each ToeThread applies its own updates before moving on. 
+     * When positive, updates are handed to this many inbound workers, each 
+     * owning the queues whose classKeys hash to it, so updates to any one
+     * queue are still applied in order while ToeThreads return to fetching
+     * and concurrent updates no longer contend for the same queues. Only 
+     * read when the frontier starts.
+     */
+    protected int inboundThreads = 0;
+    public int getInboundThreads() {
+        return inboundThreads;
+    }
+    public void setInboundThreads(int inboundThreads) {
+        this.inboundThreads = inboundThreads;
+    }
+    
+    /**
+     * Maximum updates waiting for each inbound worker before submitting 
+     * ToeThreads block.
+     */
+    protected int inboundBacklogCapacity = 2000;
+    public int getInboundBacklogCapacity() {
+        return inboundBacklogCapacity;
+    }
+    public void setInboundBacklogCapacity(int inboundBacklogCapacity) {
+        this.inboundBacklogCapacity = inboundBacklogCapacity;
+    }
+    
+    /** inbound update workers, when inboundThreads > 0 */
+    protected InboundWorkers inboundWorkers = null;
+    
     
     /**
      * Distinguished frontier manager thread which handles all juggling
@@ -327,6 +395,14 @@ public abstract class AbstractFrontier
             return; 
         }
         
+        if (getDispatchStripes() > 0) {
+            dispatchGate = new DispatchGate(getDispatchStripes());
+        }
+        if (getInboundThreads() > 0) {
+            inboundWorkers = new InboundWorkers(String.valueOf(this), 
+                    getInboundThreads(), getInboundBacklogCapacity());
+        }
+        
         if (getRecoveryLogEnabled()) try {
             initJournal(loggerModule.getPath().getFile().getAbsolutePath());
         } catch (IOException e) {
@@ -356,9 +432,7 @@ public abstract class AbstractFrontier
                         reachedState = State.EMPTY; 
                     case RUN:
                         // enable outbound takes if previously locked
-                        while(outboundLock.isWriteLockedByCurrentThread()) {
-                            outboundLock.writeLock().unlock();
-                        }
+                        releaseOutbound();
                         if(reachedState==null) {
                             reachedState = State.RUN; 
                         }
@@ -377,10 +451,11 @@ public abstract class AbstractFrontier
                     case PAUSE:
                         // pausing
                         // prevent all outbound takes
-                        outboundLock.writeLock().lock();
+                        holdOutbound();
+                        returnPendingEmits();
                         // process all inbound
                         while (targetState == State.PAUSE) {
-                            if (getInProcessCount()==0) {
+                            if (getInProcessCount()==0 && getInboundBacklog()==0) {
                                 reachedState(State.PAUSE);
                             }
                             
@@ -390,9 +465,10 @@ public abstract class AbstractFrontier
                     case FINISH:
                         logger.fine("FINISH requested, waiting for in process urls to finish");
                         // prevent all outbound takes
-                        outboundLock.writeLock().lock();
+                        holdOutbound();
+                        returnPendingEmits();
                         // process all inbound
-                        while (getInProcessCount()>0) {
+                        while (getInProcessCount()>0 || getInboundBacklog()>0) {
                             Thread.sleep(250);
                         }
                         logger.fine("0 urls in process, running final tasks");
@@ -415,14 +491,50 @@ public abstract class AbstractFrontier
         
         // try to leave in safely restartable state: 
         targetState = State.PAUSE;
-        while(outboundLock.isWriteLockedByCurrentThread()) {
-            outboundLock.writeLock().unlock();
+        releaseOutbound();
+        if (inboundWorkers != null) {
+            inboundWorkers.shutdown();
         }
         //TODO: ensure all other structures are cleanly reset on restart
         
         logger.log(Level.FINE,"ending frontier mgr thread");
     }
 
+    /**
+     * Prevent worker threads from taking any further URIs, waiting for 
+     * those already inside next() to leave. Only for the managerThread. 
+     * 
+     * @throws InterruptedException
+     */
+    protected void holdOutbound() throws InterruptedException {
+        if (dispatchGate != null) {
+            dispatchGate.close();
+        } else {
+            outboundLock.writeLock().lock();
+        }
+    }
+
+    /**
+     * Take back any URIs set aside for upcoming next() calls but not yet
+     * handed out, so in-process counts can settle while outbound takes are
+     * held. Only for the managerThread. By default, nothing.
+     */
+    protected void returnPendingEmits() {
+    }
+
+    /**
+     * Release any hold on outbound takes made by holdOutbound(). Only for 
+     * the managerThread. 
+     */
+    protected void releaseOutbound() {
+        if (dispatchGate != null) {
+            dispatchGate.open();
+        }
+        while(outboundLock.isWriteLockedByCurrentThread()) {
+            outboundLock.writeLock().unlock();
+        }
+    }
+
 
     /**
      * Perform any tasks necessary before entering 
@@ -451,7 +563,17 @@ public abstract class AbstractFrontier
      */
     public CrawlURI next() throws InterruptedException {
         CrawlURI crawlable = null;
+        DispatchGate gate = dispatchGate;
         while(crawlable==null) {
+            if (gate != null) {
+                gate.enter();
+                try {
+                    crawlable = findEligibleURI();
+                } finally {
+                    gate.exit();
+                }
+                continue;
+            }
             outboundLock.readLock().lockInterruptibly();
             // try filling outbound until we get something to work on
             crawlable = findEligibleURI();
@@ -570,12 +692,58 @@ public abstract class AbstractFrontier
      *  (non-Javadoc)
      * @see org.archive.crawler.framework.Frontier#finished(org.archive.modules.CrawlURI)
      */
-    public void finished(CrawlURI curi) {
+    public void finished(final CrawlURI curi) {
+        applyInbound(curi, new Runnable() {
+            public void run() {
+                try {
+                    KeyedProperties.loadOverridesFrom(curi);
+                    processFinish(curi);
+                } finally {
+                    KeyedProperties.clearOverridesFrom(curi); 
+                }
+            }
+        });
+    }
+    
+    /**
+     * Apply an inbound update concerning the given CrawlURI: on the inbound
+     * worker owning its classKey if inboundThreads is positive, otherwise
+     * (or if the CrawlURI has no classKey yet) in the calling thread. 
+     * 
+     * @param curi CrawlURI whose queue the update touches
+     * @param update the update
+     */
+    protected void applyInbound(CrawlURI curi, Runnable update) {
+        InboundWorkers workers = inboundWorkers;
+        if (workers == null || curi.getClassKey() == null) {
+            update.run();
+            return;
+        }
         try {
-            KeyedProperties.loadOverridesFrom(curi);
-            processFinish(curi);
-        } finally {
-            KeyedProperties.clearOverridesFrom(curi); 
+            workers.submit(curi.getClassKey(), update);
+        } catch (InterruptedException e) {
+            // not submitted; apply here rather than lose it
+            update.run();
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * @return number of inbound updates handed to inbound workers and not 
+     * yet applied; always 0 if inboundThreads is 0
+     */
+    public long getInboundBacklog() {
+        InboundWorkers workers = inboundWorkers;
+        return workers == null ? 0 : workers.getBacklog();
+    }
+    
+    /**
+     * Wait for all inbound updates handed to inbound workers to be applied.
+     */
+    protected void awaitInboundDrained() throws InterruptedException {
+        InboundWorkers workers = inboundWorkers;
+        if (workers != null) {
+            workers.awaitDrained();
         }
     }
     
@@ -693,13 +861,23 @@ public abstract class AbstractFrontier
         }
     }
 
+    /**
+     * Journal that an emitted URI was taken back, unprocessed, into its
+     * queue; not tallied, since it was never attempted.
+     */
+    protected void doJournalUnemitted(CrawlURI c) {
+        if (this.recover != null) {
+            this.recover.reenqueued(c);
+        }
+    }
+
     /**
      * Frontier is empty only if all queues are empty and no URIs are in-process
      * 
      * @return True if queues are empty.
      */
     public boolean isEmpty() {
-        return queuedUriCount.get() == 0;
+        return queuedUriCount.get() == 0 && getInboundBacklog() == 0;
     }
 
     /**
@@ -21,13 +21,15 @@ package org.archive.crawler.frontier;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Queue;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.DelayQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -81,8 +83,11 @@ implements Checkpointable, BeanNameAware {
      */
     protected StoredQueue<String> retiredQueues;
     
-    /** all URIs scheduled to be crawled */
+    /** all URIs scheduled to be crawled (the first or only shard) */
     protected transient BdbMultipleWorkQueues pendingUris;
+    
+    /** all pending-URI stores, one per shard; queues assigned by classKey */
+    protected transient BdbMultipleWorkQueues[] pendingUriShards;
 
     protected BdbModule bdb;
     @Autowired
@@ -102,6 +107,83 @@ implements Checkpointable, BeanNameAware {
     public void setDumpPendingAtClose(boolean dumpPendingAtClose) {
         this.dumpPendingAtClose = dumpPendingAtClose;
     }
+    
+    /**
+     * Number of pending URIs to read ahead, in one database cursor scan, 
+     * from the front of each queue as it is dequeued. Saves a cursor open
+     * per URI for most dequeues. 0 or 1 disables read-ahead.
+     */
+    protected int headBufferItems = 16;
+    public int getHeadBufferItems() {
+        return headBufferItems;
+    }
+    public void setHeadBufferItems(int headBufferItems) {
+        this.headBufferItems = headBufferItems;
+        if (pendingUriShards != null) {
+            for (BdbMultipleWorkQueues shard : pendingUriShards) {
+                shard.setHeadBufferItems(headBufferItems);
+            }
+        }
+    }
+    
+    /**
+     * Maximum total bytes of serialized URIs held in memory by queue-head
+     * read-ahead, across all queues.
+     */
+    protected long headBufferMaxBytes = 32 * 1024 * 1024;
+    public long getHeadBufferMaxBytes() {
+        return headBufferMaxBytes;
+    }
+    public void setHeadBufferMaxBytes(long headBufferMaxBytes) {
+        this.headBufferMaxBytes = headBufferMaxBytes;
+        if (pendingUriShards != null) {
+            for (BdbMultipleWorkQueues shard : pendingUriShards) {
+                shard.setHeadBufferMaxBytes(headBufferMaxBytes);
+            }
+        }
+    }
+    
+    /**
+     * Whether to store pending URIs in the compact CrawlURI encoding
+     * (varint fields, packed hop path, URI-relative via and source tag)
+     * rather than plain Kryo. URIs carrying state the compact encoding
+     * does not cover are still written with Kryo, and either format is
+     * always readable, so this may be changed at any time, including on
+     * resume. Checkpoints holding compact entries cannot be resumed by
+     * Heritrix versions predating the compact encoding; set false before
+     * checkpointing if that is needed.
+     */
+    protected boolean compactPendingUris = true;
+    public boolean getCompactPendingUris() {
+        return compactPendingUris;
+    }
+    public void setCompactPendingUris(boolean compactPendingUris) {
+        this.compactPendingUris = compactPendingUris;
+        if (pendingUriShards != null) {
+            for (BdbMultipleWorkQueues shard : pendingUriShards) {
+                shard.getCrawlUriBinding().setWriteCompact(compactPendingUris);
+            }
+        }
+    }
+    
+    /**
+     * Separate BDB environments across which to spread the pending-URI
+     * store, each queue's URIs living in the environment chosen by a hash of
+     * its classKey. Each BdbModule has its own directory (ideally on its own
+     * disk), log cleaner and checkpointing, so pending-URI writes and
+     * cleaning are not funneled through the one shared environment. The
+     * modules should be top-level beans, so they are started, checkpointed
+     * and recovered like the main bdb. Empty (the default) keeps pending
+     * URIs in the main bdb. The number of shards may not change when
+     * resuming from a checkpoint.
+     */
+    protected List<BdbModule> pendingShards = new ArrayList<BdbModule>();
+    public List<BdbModule> getPendingShards() {
+        return pendingShards;
+    }
+    public void setPendingShards(List<BdbModule> pendingShards) {
+        this.pendingShards = pendingShards;
+    }
 
     /* (non-Javadoc)
      * @see org.archive.crawler.frontier.WorkQueueFrontier#getInactiveQueuesByPrecedence()
@@ -119,6 +201,49 @@ implements Checkpointable, BeanNameAware {
         return retiredQueues;
     }
     
+    @Override
+    protected void reportQueueStoreTo(PrintWriter writer) {
+        if (pendingUriShards == null) {
+            return;
+        }
+        long cursorReads = 0, bufferReads = 0, bufferCount = 0, bufferBytes = 0;
+        long compactWrites = 0, compactBytes = 0, legacyWrites = 0, legacyBytes = 0;
+        for (BdbMultipleWorkQueues shard : pendingUriShards) {
+            cursorReads += shard.getHeadCursorReads();
+            bufferReads += shard.getHeadBufferReads();
+            bufferCount += shard.getHeadBufferCount();
+            bufferBytes += shard.getHeadBufferBytes();
+            CompactCrawlURIBinding binding = shard.getCrawlUriBinding();
+            compactWrites += binding.getCompactWrites();
+            compactBytes += binding.getCompactBytes();
+            legacyWrites += binding.getLegacyWrites();
+            legacyBytes += binding.getLegacyBytes();
+        }
+        if (pendingUriShards.length > 1) {
+            writer.print("\n Pending shards:            ");
+            writer.print(pendingUriShards.length);
+        }
+        writer.print("\n Pending head reads:        ");
+        writer.print(cursorReads);
+        writer.print(" cursor, ");
+        writer.print(bufferReads);
+        writer.print(" buffered\n");
+        writer.print("        head buffers:      ");
+        writer.print(bufferCount);
+        writer.print(" (");
+        writer.print(ArchiveUtils.formatBytesForDisplay(bufferBytes));
+        writer.print(")\n");
+        writer.print(" Pending URI writes:        ");
+        writer.print(compactWrites);
+        writer.print(" compact (avg ");
+        writer.print(compactWrites == 0 ? 0 : compactBytes / compactWrites);
+        writer.print(" bytes), ");
+        writer.print(legacyWrites);
+        writer.print(" kryo (avg ");
+        writer.print(legacyWrites == 0 ? 0 : legacyBytes / legacyWrites);
+        writer.print(" bytes)\n");
+    }
+    
     /**
      * Create the single object (within which is one BDB database)
      * inside which all the other queues live. 
@@ -127,6 +252,18 @@ implements Checkpointable, BeanNameAware {
      * @throws DatabaseException
      */
     protected BdbMultipleWorkQueues createMultipleWorkQueues()
+    throws DatabaseException {
+        return createMultipleWorkQueues(bdb);
+    }
+    
+    /**
+     * Create the pending-URI store inside the given BDB environment.
+     * 
+     * @param bdb environment in which to open the 'pending' database
+     * @return the created BdbMultipleWorkQueues
+     * @throws DatabaseException
+     */
+    protected BdbMultipleWorkQueues createMultipleWorkQueues(BdbModule bdb)
     throws DatabaseException {
         Database db;
         boolean recycle = (recoveryCheckpoint != null);
@@ -137,7 +274,12 @@ implements Checkpointable, BeanNameAware {
         // before a page-out is required need never cause disk IO.
         db = bdb.openDatabase("pending", dbConfig, recycle);
         
-        return new BdbMultipleWorkQueues(db, bdb.getClassCatalog());
+        BdbMultipleWorkQueues queues = 
+            new BdbMultipleWorkQueues(db, bdb.getClassCatalog());
+        queues.setHeadBufferItems(getHeadBufferItems());
+        queues.setHeadBufferMaxBytes(getHeadBufferMaxBytes());
+        queues.getCrawlUriBinding().setWriteCompact(getCompactPendingUris());
+        return queues;
     }
 
 
@@ -168,7 +310,9 @@ implements Checkpointable, BeanNameAware {
     }
     
     /**
-     * Return list of urls.
+     * Return list of urls. When pending URIs are sharded, the shards are
+     * listed one after another, and the marker is prefixed with the index
+     * of the shard to continue in, as "index:key".
      * @param marker
      * @param numberOfMatches
      * @param verbose 
@@ -178,7 +322,34 @@ implements Checkpointable, BeanNameAware {
             int numberOfMatches, String pattern, final boolean verbose) {
         try {
             Pattern p = Pattern.compile(pattern);
-            return pendingUris.getFrom(marker, numberOfMatches, p, verbose);
+            if (pendingUriShards.length == 1) {
+                return pendingUris.getFrom(marker, numberOfMatches, p, verbose);
+            }
+            int shard = 0;
+            String shardMarker = null;
+            if (marker != null) {
+                int colon = marker.indexOf(':');
+                shard = Integer.parseInt(marker.substring(0, colon));
+                shardMarker = colon + 1 < marker.length() 
+                        ? marker.substring(colon + 1) : null;
+            }
+            List<String> list = new ArrayList<String>();
+            String nextMarker = null;
+            while (shard < pendingUriShards.length) {
+                if (list.size() >= numberOfMatches) {
+                    nextMarker = shard + ":" + (shardMarker == null ? "" : shardMarker);
+                    break;
+                }
+                CompositeData cd = pendingUriShards[shard].getFrom(shardMarker, 
+                        numberOfMatches - list.size(), p, verbose);
+                Collections.addAll(list, (String[]) cd.get("list"));
+                shardMarker = (String) cd.get("marker");
+                if (shardMarker == null) {
+                    shard++;
+                }
+            }
+            return BdbMultipleWorkQueues.makeUriList(
+                    list.toArray(new String[list.size()]), nextMarker);
         } catch (DatabaseException e) {
             throw new IllegalStateException(e);
         }
@@ -206,13 +377,33 @@ implements Checkpointable, BeanNameAware {
      */
     @Override 
     public void close() {
-        ArchiveUtils.closeQuietly(pendingUris);
+        if (pendingUriShards != null) {
+            for (BdbMultipleWorkQueues shard : pendingUriShards) {
+                ArchiveUtils.closeQuietly(shard);
+            }
+        }
         super.close(); 
     }
         
     protected BdbMultipleWorkQueues getWorkQueues() {
         return pendingUris;
     }
+    
+    /**
+     * Return the pending-URI store holding the queue with the given
+     * classKey. String.hashCode() is specified, so the assignment is
+     * stable across restarts.
+     * 
+     * @param classKey queue key
+     * @return the BdbMultipleWorkQueues for that queue
+     */
+    protected BdbMultipleWorkQueues getWorkQueues(String classKey) {
+        if (pendingUriShards.length == 1) {
+            return pendingUris;
+        }
+        return pendingUriShards[
+            Math.floorMod(classKey.hashCode(), pendingUriShards.length)];
+    }
 
     protected boolean workQueueDataOnDisk() {
         return true;
@@ -224,12 +415,20 @@ implements Checkpointable, BeanNameAware {
     
     public void startCheckpoint(Checkpoint checkpointInProgress) {
         dispositionInProgressLock.writeLock().lock();
+        // finishes and schedules handed off before the lock was taken
+        try {
+            awaitInboundDrained();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     public void doCheckpoint(Checkpoint checkpointInProgress) {
         // An explicit sync on any deferred write dbs is needed to make the
         // db recoverable. Sync'ing the environment is insufficient
-        this.pendingUris.sync();
+        for (BdbMultipleWorkQueues shard : pendingUriShards) {
+            shard.sync();
+        }
         // object caches will be sync()d by BdbModule
         
         // save simple instance fields & inactive-levels summary
@@ -243,6 +442,7 @@ implements Checkpointable, BeanNameAware {
             json.put("disregardedUriCount", disregardedUriCount.get());
             json.put("totalProcessedBytes", totalProcessedBytes.get());
             json.put("inactivePrecedences", inactiveQueuesByPrecedence.keySet());
+            json.put("pendingShards", pendingUriShards.length);
             checkpointInProgress.saveJson(beanName, json);
         } catch (JSONException e) {
             // impossible
@@ -301,6 +501,12 @@ implements Checkpointable, BeanNameAware {
                 failedFetchCount.set(json.getLong("failedFetchCount"));
                 disregardedUriCount.set(json.getLong("disregardedUriCount"));
                 totalProcessedBytes.set(json.getLong("totalProcessedBytes"));
+                int priorShards = json.optInt("pendingShards", 1);
+                if (priorShards != pendingUriShards.length) {
+                    throw new IllegalStateException("checkpoint has "
+                            + priorShards + " pending shards; configured "
+                            + pendingUriShards.length);
+                }
                 JSONArray inactivePrecedences = json.getJSONArray("inactivePrecedences"); 
                 // restore all intended inactiveQueues
                 for(int i = 0; i < inactivePrecedences.length(); i++) {
@@ -337,14 +543,18 @@ implements Checkpointable, BeanNameAware {
         
         // tiny risk of OutOfMemoryError: if giant number of snoozed
         // queues all wake-to-ready at once
-        readyClassQueues = new LinkedBlockingQueue<String>();
+        if (getDispatchStripes() > 0) {
+            readyClassQueues = new StripedReadyQueue(getDispatchStripes());
+        } else {
+            readyClassQueues = new LinkedBlockingQueue<String>();
+        }
 
         inactiveQueuesByPrecedence = new ConcurrentSkipListMap<Integer,Queue<String>>();
         
         retiredQueues = bdb.getStoredQueue("retiredQueues", String.class, recycle);
 
         // primary snoozed queues
-        snoozedClassQueues = new DelayQueue<DelayedWorkQueue>();
+        snoozedClassQueues = new SnoozeWheel(getSnoozeTickMs(), System.currentTimeMillis());
         // just in case: overflow for extreme situations
         snoozedOverflow = bdb.getStoredMap(
                 "snoozedOverflow", Long.class, DelayedWorkQueue.class, true, false);
@@ -352,8 +562,19 @@ implements Checkpointable, BeanNameAware {
         this.futureUris = bdb.getStoredMap(
                 "futureUris", Long.class, CrawlURI.class, true, recoveryCheckpoint!=null);
         
-        // initialize master map in which other queues live
-        this.pendingUris = createMultipleWorkQueues();
+        // initialize master map(s) in which other queues live
+        if (pendingShards == null || pendingShards.isEmpty()) {
+            this.pendingUriShards = new BdbMultipleWorkQueues[] {
+                    createMultipleWorkQueues() };
+        } else {
+            this.pendingUriShards = 
+                new BdbMultipleWorkQueues[pendingShards.size()];
+            for (int i = 0; i < pendingUriShards.length; i++) {
+                pendingUriShards[i] = 
+                    createMultipleWorkQueues(pendingShards.get(i));
+            }
+        }
+        this.pendingUris = pendingUriShards[0];
     }
 
 
@@ -389,7 +610,9 @@ implements Checkpointable, BeanNameAware {
     }
 
     public void forAllPendingDo(Closure closure) {
-        pendingUris.forAllPendingDo(closure);
+        for (BdbMultipleWorkQueues shard : pendingUriShards) {
+            shard.forAllPendingDo(closure);
+        }
     }
 
     /**
@@ -474,10 +697,18 @@ implements Checkpointable, BeanNameAware {
 
     @Override
     public long exportPendingUris(PrintWriter writer) {
-        if (pendingUris == null) {
+        if (pendingUriShards == null) {
             return -5L;
         }
-        return pendingUris.exportPendingUris(writer);
+        long count = 0;
+        for (BdbMultipleWorkQueues shard : pendingUriShards) {
+            long n = shard.exportPendingUris(writer);
+            if (n < 0) {
+                return n;
+            }
+            count += n;
+        }
+        return count;
     }
 
     @Override
@@ -22,22 +22,29 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
+import javax.management.openmbean.ArrayType;
 import javax.management.openmbean.CompositeData;
 import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
 import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
 
 import org.apache.commons.collections.Closure;
-import org.archive.bdb.KryoBinding;
 import org.archive.modules.CrawlURI;
 import org.archive.util.ArchiveUtils;
 
 import com.google.common.base.Charsets;
-import com.sleepycat.bind.EntryBinding;
 import com.sleepycat.bind.serial.StoredClassCatalog;
 import com.sleepycat.je.Cursor;
 import com.sleepycat.je.Database;
@@ -55,6 +62,15 @@ import com.sleepycat.util.RuntimeExceptionWrapper;
  * 
  * <p>For how the bdb keys are made, see {@link #calculateInsertKey(CrawlURI)}.
  * 
+ * <p>Optionally, each queue's next few entries are read in a single cursor
+ * scan into a small in-memory 'head buffer' (see 
+ * {@link #setHeadBufferItems(int)}), so most dequeues need no cursor at
+ * all. Buffers hold the serialized entries, bounded in total by 
+ * {@link #setHeadBufferMaxBytes(long)}, and are discarded whenever an 
+ * insert lands at or ahead of their last entry. Per-queue operations are 
+ * expected to be serialized by the caller (WorkQueueFrontier holds the 
+ * queue's monitor).
+ * 
  * <p>TODO: refactor, improve naming.
  * 
  * @author gojomo
@@ -65,12 +81,68 @@ public class BdbMultipleWorkQueues {
 	
     private static final Logger LOGGER =
         Logger.getLogger(BdbMultipleWorkQueues.class.getName());
+
+    /** type of the lists returned by {@link #getFrom(String, int, Pattern, boolean)} */
+    public static final CompositeType URI_LIST_TYPE;
+    static {
+        try {
+            URI_LIST_TYPE = new CompositeType("uriList", "pending URIs",
+                    new String[] { "list", "marker" },
+                    new String[] { "matching URIs",
+                            "where to continue listing, or null at the end" },
+                    new OpenType<?>[] { ArrayType.getArrayType(SimpleType.STRING),
+                            SimpleType.STRING });
+        } catch (OpenDataException e) {
+            throw new IllegalStateException(e);
+        }
+    }
     
     /** Database holding all pending URIs, grouped in virtual queues */
     private Database pendingUrisDB = null;
     
     /**  Supporting bdb serialization of CrawlURIs */
-    private EntryBinding<CrawlURI> crawlUriBinding;
+    private CompactCrawlURIBinding crawlUriBinding;
+    public CompactCrawlURIBinding getCrawlUriBinding() {
+        return crawlUriBinding;
+    }
+
+    /** max entries to prefetch per queue head; 0 or 1 disables buffering */
+    protected int headBufferItems = 0;
+    public int getHeadBufferItems() {
+        return headBufferItems;
+    }
+    public void setHeadBufferItems(int headBufferItems) {
+        this.headBufferItems = headBufferItems;
+    }
+
+    /** 
+     * max total bytes of buffered entries, across all queues; a queue whose
+     * first entry would overrun it is read without buffering
+     */
+    protected long headBufferMaxBytes = 32 * 1024 * 1024;
+    public long getHeadBufferMaxBytes() {
+        return headBufferMaxBytes;
+    }
+    public void setHeadBufferMaxBytes(long headBufferMaxBytes) {
+        this.headBufferMaxBytes = headBufferMaxBytes;
+    }
+
+    /** buffered entries, by classKey; empty buffers are dropped */
+    protected ConcurrentHashMap<String,HeadBuffer> headBuffers = 
+        new ConcurrentHashMap<String,HeadBuffer>();
+    protected AtomicLong headBufferBytes = new AtomicLong(0);
+    /** queue-head reads which had to open a cursor */
+    protected AtomicLong headCursorReads = new AtomicLong(0);
+    /** queue-head reads answered from a head buffer */
+    protected AtomicLong headBufferReads = new AtomicLong(0);
+
+    /**
+     * Serialized key/value pairs from the front of one queue, in order.
+     */
+    protected static class HeadBuffer {
+        protected ArrayDeque<byte[][]> entries = new ArrayDeque<byte[][]>();
+        protected long bytes = 0;
+    }
 
     /**
      * Create the multi queue in the given environment. 
@@ -82,7 +154,7 @@ public class BdbMultipleWorkQueues {
     throws DatabaseException {
         this.pendingUrisDB = db;
         crawlUriBinding =
-              new KryoBinding<CrawlURI>(CrawlURI.class);
+              new CompactCrawlURIBinding();
 //            new RecyclingSerialBinding<CrawlURI>(classCatalog, CrawlURI.class);
 //            new BenchmarkingBinding<CrawlURI>(new EntryBinding[] {
 //                new KryoBinding<CrawlURI>(CrawlURI.class,true),
@@ -106,6 +178,7 @@ public class BdbMultipleWorkQueues {
             DatabaseEntry headKey) throws DatabaseException {
         long deletedCount = 0;
         Pattern pattern = Pattern.compile(match);
+        clearHeadBuffer(queue);
         DatabaseEntry key = headKey;
         DatabaseEntry value = new DatabaseEntry();
         Cursor cursor = null;
@@ -156,8 +229,13 @@ public class BdbMultipleWorkQueues {
         DatabaseEntry key;
         if (m == null) {
             key = getFirstKey();
+            if (key == null) {
+                // empty
+                return makeUriList(new String[0], null);
+            }
         } else {
-            byte[] marker = m.getBytes(); // = FrontierJMXTypes.fromString(m);
+            // keys are binary; latin-1 maps each byte to one char and back
+            byte[] marker = m.getBytes(Charsets.ISO_8859_1); // = FrontierJMXTypes.fromString(m);
             key = new DatabaseEntry(marker);
         }
 
@@ -194,20 +272,25 @@ public class BdbMultipleWorkQueues {
             // end of scan
             m = null;
         } else {
-            m = new String(key.getData()); // = FrontierJMXTypes.toString(key.getData());
+            m = new String(key.getData(), Charsets.ISO_8859_1); // = FrontierJMXTypes.toString(key.getData());
         }
         
-        String[] arr = results.toArray(new String[results.size()]);
-        CompositeData cd;
+        return makeUriList(results.toArray(new String[results.size()]), m);
+    }
+
+    /**
+     * @param list URIs listed
+     * @param marker where to continue listing, or null at the end
+     * @return list and marker as {@link #URI_LIST_TYPE} data
+     */
+    public static CompositeData makeUriList(String[] list, String marker) {
         try {
-            cd = new CompositeDataSupport(
-                    /*FrontierJMXTypes.URI_LIST_DATA*/ null,
+            return new CompositeDataSupport(URI_LIST_TYPE,
                     new String[] { "list", "marker" },
-                    new Object[] { arr, m });
+                    new Object[] { list, marker });
         } catch (OpenDataException e) {
             throw new IllegalStateException(e);
         }
-        return cd;
     }
     
     /**
@@ -226,6 +309,221 @@ public class BdbMultipleWorkQueues {
         return null;
     }
     
+    /**
+     * Get the first item of the queue with the given classKey and origin
+     * (cap) key, using and refilling that queue's head buffer when 
+     * buffering is enabled. On success headKey is set to the item's key.
+     * 
+     * @param headKey origin key of the queue; updated to the item's key
+     * @param classKey classKey of the queue
+     * @return CrawlURI, or null if none could be read
+     * @throws DatabaseException
+     */
+    public CrawlURI get(DatabaseEntry headKey, String classKey)
+    throws DatabaseException {
+        if (headBufferItems <= 1) {
+            headCursorReads.incrementAndGet();
+            return get(headKey);
+        }
+        HeadBuffer buffer = 
+            headBuffers.computeIfAbsent(classKey, k -> new HeadBuffer());
+        synchronized (buffer) {
+            if (headBuffers.get(classKey) != buffer) {
+                // dropped by clearHeadBuffer() meanwhile; filling it now
+                // would hold bytes nothing will ever release
+                headCursorReads.incrementAndGet();
+                return get(headKey);
+            }
+            if (buffer.entries.isEmpty()) {
+                headCursorReads.incrementAndGet();
+                fillHeadBuffer(buffer, headKey.getData());
+            } else {
+                headBufferReads.incrementAndGet();
+            }
+            byte[][] head = buffer.entries.peekFirst();
+            if (head == null) {
+                headBuffers.remove(classKey, buffer);
+                // over the byte cap, or unexpected; read unbuffered, and 
+                // let that path diagnose any problem
+                return get(headKey);
+            }
+            headKey.setData(head[0]);
+            return entryToCrawlURI(headKey, new DatabaseEntry(head[1]));
+        }
+    }
+
+    /**
+     * Read up to max items of the queue with the given origin (cap) key,
+     * from its head, in one cursor scan. Bypasses the head buffer. 
+     * 
+     * @param origin origin key of the queue
+     * @param max most items to return
+     * @return items in queue order, each with holderKey set
+     * @throws DatabaseException
+     */
+    public List<CrawlURI> getFirstItems(byte[] origin, int max)
+    throws DatabaseException {
+        List<CrawlURI> items = new ArrayList<CrawlURI>(max);
+        DatabaseEntry key = new DatabaseEntry(origin);
+        DatabaseEntry value = new DatabaseEntry();
+        Cursor cursor = null;
+        try {
+            cursor = pendingUrisDB.openCursor(null, null);
+            OperationStatus status = cursor.getSearchKey(key, value, null);
+            if (status != OperationStatus.SUCCESS 
+                    || value.getData().length > 0) {
+                // missing or bad cap
+                return items;
+            }
+            while (items.size() < max) {
+                status = cursor.getNext(key, value, null);
+                if (status != OperationStatus.SUCCESS) {
+                    break;
+                }
+                byte[] k = copyOf(key);
+                if (!ArchiveUtils.startsWith(k, origin)) {
+                    // rolled into next queue
+                    break;
+                }
+                CrawlURI curi = entryToCrawlURI(new DatabaseEntry(k), 
+                        new DatabaseEntry(copyOf(value)));
+                if (curi == null) {
+                    break;
+                }
+                items.add(curi);
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Read up to headBufferItems entries following the given queue cap 
+     * into the (empty) buffer, in one cursor scan, stopping at the first
+     * entry that would take all buffers past headBufferMaxBytes.
+     */
+    protected void fillHeadBuffer(HeadBuffer buffer, byte[] origin)
+    throws DatabaseException {
+        DatabaseEntry key = new DatabaseEntry(origin);
+        DatabaseEntry value = new DatabaseEntry();
+        Cursor cursor = null;
+        try {
+            cursor = pendingUrisDB.openCursor(null, null);
+            OperationStatus status = cursor.getSearchKey(key, value, null);
+            if (status != OperationStatus.SUCCESS 
+                    || value.getData().length > 0) {
+                // missing or bad cap; leave buffer empty
+                return;
+            }
+            while (buffer.entries.size() < headBufferItems) {
+                status = cursor.getNext(key, value, null);
+                if (status != OperationStatus.SUCCESS) {
+                    break;
+                }
+                byte[] k = copyOf(key);
+                if (!ArchiveUtils.startsWith(k, origin)) {
+                    // rolled into next queue
+                    break;
+                }
+                byte[] v = copyOf(value);
+                long size = k.length + v.length;
+                if (headBufferBytes.addAndGet(size) > headBufferMaxBytes) {
+                    headBufferBytes.addAndGet(-size);
+                    break;
+                }
+                buffer.entries.addLast(new byte[][] {k, v});
+                buffer.bytes += size;
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    protected static byte[] copyOf(DatabaseEntry entry) {
+        return Arrays.copyOfRange(entry.getData(), entry.getOffset(),
+                entry.getOffset() + entry.getSize());
+    }
+
+    /**
+     * Discard any buffered entries for the given queue.
+     */
+    protected void clearHeadBuffer(String classKey) {
+        HeadBuffer buffer = headBuffers.remove(classKey);
+        if (buffer != null) {
+            synchronized (buffer) {
+                headBufferBytes.addAndGet(-buffer.bytes);
+                buffer.bytes = 0;
+                buffer.entries.clear();
+            }
+        }
+    }
+
+    /**
+     * Note an insert into the given queue; the buffer is only still valid
+     * if the new key sorts after everything buffered.
+     */
+    protected void headBufferInserted(String classKey, byte[] insertKey) {
+        HeadBuffer buffer = headBuffers.get(classKey);
+        if (buffer == null) {
+            return;
+        }
+        boolean stale;
+        synchronized (buffer) {
+            byte[][] last = buffer.entries.peekLast();
+            stale = last != null 
+                && Arrays.compareUnsigned(insertKey, last[0]) <= 0;
+        }
+        if (stale) {
+            clearHeadBuffer(classKey);
+        }
+    }
+
+    /**
+     * Note a delete from the given queue; normally it's the buffered head,
+     * otherwise the buffer is discarded.
+     */
+    protected void headBufferDeleted(String classKey, byte[] deleteKey) {
+        HeadBuffer buffer = headBuffers.get(classKey);
+        if (buffer == null) {
+            return;
+        }
+        boolean stale = true;
+        synchronized (buffer) {
+            byte[][] head = buffer.entries.peekFirst();
+            if (head != null && Arrays.equals(head[0], deleteKey)) {
+                buffer.entries.removeFirst();
+                long size = head[0].length + head[1].length;
+                buffer.bytes -= size;
+                headBufferBytes.addAndGet(-size);
+                stale = buffer.entries.isEmpty();
+            }
+        }
+        if (stale) {
+            clearHeadBuffer(classKey);
+        }
+    }
+
+    public long getHeadBufferBytes() {
+        return headBufferBytes.get();
+    }
+
+    public int getHeadBufferCount() {
+        return headBuffers.size();
+    }
+
+    public long getHeadCursorReads() {
+        return headCursorReads.get();
+    }
+
+    public long getHeadBufferReads() {
+        return headBufferReads.get();
+    }
+
     /**
      * Get the next nearest item after the given key. Relies on 
      * external discipline -- we'll look at the queues count of how many
@@ -253,7 +551,6 @@ public class BdbMultipleWorkQueues {
         // OperationStatus.NOTFOUND, in which case no data record matched
         // the criteria. "
         OperationStatus status = getNextNearestItem(headKey, result);
-        CrawlURI retVal = null;
         if (status != OperationStatus.SUCCESS) {
             LOGGER.severe("See '1219854 NPE je-2.0 "
                     + "entryToObject...'. OperationStatus "
@@ -263,7 +560,17 @@ public class BdbMultipleWorkQueues {
                     + BdbWorkQueue.getPrefixClassKey(headKey.getData()));
             return null;
         }
-       
+        return entryToCrawlURI(headKey, result);
+    }
+
+    /**
+     * Deserialize the CrawlURI stored under the given key.
+     * 
+     * @return the CrawlURI, with holderKey set, or null on failure
+     */
+    protected CrawlURI entryToCrawlURI(DatabaseEntry headKey,
+            DatabaseEntry result) {
+        CrawlURI retVal = null;
         try {
             retVal = (CrawlURI)crawlUriBinding.entryToObject(result);
         } catch (ClassCastException cce) {
@@ -346,6 +653,7 @@ public class BdbMultipleWorkQueues {
         if (status!=OperationStatus.SUCCESS) {
             LOGGER.log(Level.SEVERE,"URI enqueueing failed; "+status+ " "+curi, new RuntimeException());
         }
+        headBufferInserted(curi.getClassKey(), insertKey.getData());
     }
     
     private long entryCount = 0;
@@ -481,6 +789,7 @@ public class BdbMultipleWorkQueues {
         OperationStatus status;
         DatabaseEntry de = (DatabaseEntry)item.getHolderKey();
         status = pendingUrisDB.delete(null, de);
+        headBufferDeleted(item.getClassKey(), de.getData());
         if (status != OperationStatus.SUCCESS) {
             LOGGER.severe("expected item not present: "
                     + item
@@ -516,6 +825,9 @@ public class BdbMultipleWorkQueues {
      *
      */
     public void close() {
+        for (String classKey : headBuffers.keySet()) {
+            clearHeadBuffer(classKey);
+        }
 /*        try {
             this.pendingUrisDB.close();
         } catch (DatabaseException e) {
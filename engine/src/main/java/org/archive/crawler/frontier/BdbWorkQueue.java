@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.util.HashSet;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -66,14 +67,14 @@ implements Serializable {
         }
         // add the queue-front 'cap' entry; see...
         // http://sourceforge.net/tracker/index.php?func=detail&aid=1262665&group_id=73833&atid=539102
-        frontier.getWorkQueues().addCap(origin);
+        frontier.getWorkQueues(classKey).addCap(origin);
     }
 
     protected long deleteMatchingFromQueue(final WorkQueueFrontier frontier,
             final String match) throws IOException {
         try {
             final BdbMultipleWorkQueues queues = ((BdbFrontier) frontier)
-                .getWorkQueues();
+                .getWorkQueues(classKey);
             return queues.deleteMatchingFromQueue(match, classKey,
                 new DatabaseEntry(origin));
         } catch (DatabaseException e) {
@@ -85,7 +86,7 @@ implements Serializable {
             final CrawlURI peekItem) throws IOException {
         try {
             final BdbMultipleWorkQueues queues = ((BdbFrontier) frontier)
-                .getWorkQueues();
+                .getWorkQueues(classKey);
              queues.delete(peekItem);
         } catch (DatabaseException e) {
             throw new IOException(e);
@@ -95,13 +96,13 @@ implements Serializable {
     protected CrawlURI peekItem(final WorkQueueFrontier frontier)
     throws IOException {
         final BdbMultipleWorkQueues queues = ((BdbFrontier) frontier)
-            .getWorkQueues();
+            .getWorkQueues(classKey);
         DatabaseEntry key = new DatabaseEntry(origin);
         CrawlURI curi = null;
         int tries = 1;
         while(true) {
             try {
-                curi = queues.get(key);
+                curi = queues.get(key, classKey);
             } catch (DatabaseException e) {
                 LOGGER.log(Level.SEVERE,"peekItem failure; retrying",e);
             }
@@ -137,11 +138,22 @@ implements Serializable {
         return curi;
     }
 
+    @Override
+    protected List<CrawlURI> peekItems(final WorkQueueFrontier frontier,
+            int max) throws IOException {
+        try {
+            return ((BdbFrontier) frontier).getWorkQueues(classKey)
+                .getFirstItems(origin, max);
+        } catch (DatabaseException e) {
+            throw new IOException(e);
+        }
+    }
+
     protected void insertItem(final WorkQueueFrontier frontier,
             final CrawlURI curi, boolean overwriteIfPresent) throws IOException {
         try {
             final BdbMultipleWorkQueues queues = ((BdbFrontier) frontier)
-                .getWorkQueues();
+                .getWorkQueues(classKey);
             queues.put(curi, overwriteIfPresent);
             if (LOGGER.isLoggable(Level.FINE)) {
                 LOGGER.fine("Inserted into " + getPrefixClassKey(this.origin) +
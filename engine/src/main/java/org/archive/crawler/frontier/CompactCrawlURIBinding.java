@@ -0,0 +1,124 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.crawler.frontier;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.archive.bdb.KryoBinding;
+import org.archive.modules.CrawlURI;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.util.Pool;
+import com.sleepycat.bind.EntryBinding;
+import com.sleepycat.je.DatabaseEntry;
+
+/**
+ * Binding for pending CrawlURIs which writes the compact, versioned
+ * encoding of {@link CrawlURI#writeCompactTo(Output)} where possible, and
+ * plain Kryo otherwise. Reads accept either format, telling them apart by
+ * the leading marker byte, so queues written by earlier versions (or with
+ * compact writes disabled) remain readable.
+ */
+public class CompactCrawlURIBinding implements EntryBinding<CrawlURI> {
+    private static final int POOL_SIZE = 8;
+
+    protected KryoBinding<CrawlURI> legacyBinding =
+        new KryoBinding<CrawlURI>(CrawlURI.class);
+
+    protected Pool<Output> outputPool = new Pool<Output>(true, false, POOL_SIZE) {
+        protected Output create () {
+            return new Output(4 * 1024, -1);
+        }
+    };
+
+    /** whether to write the compact encoding; false writes Kryo only */
+    protected volatile boolean writeCompact = true;
+    public boolean getWriteCompact() {
+        return writeCompact;
+    }
+    public void setWriteCompact(boolean writeCompact) {
+        this.writeCompact = writeCompact;
+    }
+
+    protected AtomicLong compactWrites = new AtomicLong(0);
+    protected AtomicLong compactBytes = new AtomicLong(0);
+    protected AtomicLong legacyWrites = new AtomicLong(0);
+    protected AtomicLong legacyBytes = new AtomicLong(0);
+    protected AtomicLong compactReads = new AtomicLong(0);
+    protected AtomicLong legacyReads = new AtomicLong(0);
+
+    @Override
+    public void objectToEntry(CrawlURI curi, DatabaseEntry entry) {
+        if (writeCompact) {
+            Output output = outputPool.obtain();
+            try {
+                output.reset();
+                if (curi.writeCompactTo(output)) {
+                    entry.setData(output.toBytes());
+                    compactWrites.incrementAndGet();
+                    compactBytes.addAndGet(entry.getSize());
+                    return;
+                }
+            } finally {
+                outputPool.free(output);
+            }
+        }
+        legacyBinding.objectToEntry(curi, entry);
+        legacyWrites.incrementAndGet();
+        legacyBytes.addAndGet(entry.getSize());
+    }
+
+    @Override
+    public CrawlURI entryToObject(DatabaseEntry entry) {
+        byte[] data = entry.getData();
+        if (entry.getSize() > 0
+                && data[entry.getOffset()] == CrawlURI.COMPACT_MARKER) {
+            compactReads.incrementAndGet();
+            return CrawlURI.readCompactFrom(
+                    new Input(data, entry.getOffset(), entry.getSize()));
+        }
+        legacyReads.incrementAndGet();
+        return legacyBinding.entryToObject(entry);
+    }
+
+    public long getCompactWrites() {
+        return compactWrites.get();
+    }
+
+    public long getCompactBytes() {
+        return compactBytes.get();
+    }
+
+    public long getLegacyWrites() {
+        return legacyWrites.get();
+    }
+
+    public long getLegacyBytes() {
+        return legacyBytes.get();
+    }
+
+    public long getCompactReads() {
+        return compactReads.get();
+    }
+
+    public long getLegacyReads() {
+        return legacyReads.get();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.crawler.frontier;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Striped alternative to the read side of AbstractFrontier's outboundLock.
+ * Worker threads entering the frontier only increment a counter in their
+ * own (cache-line padded) stripe, so they never contend with each other;
+ * the manager thread closes the gate and then waits for every stripe to
+ * drain to zero, giving the same "hold all takes" guarantee as acquiring
+ * the write lock.
+ *
+ * Only a single thread (the frontier manager) should close/open the gate.
+ */
+public class DispatchGate {
+    /** longs per stripe, so that each counter sits on its own cache line */
+    protected static final int PAD = 16;
+
+    protected final AtomicLongArray counts;
+    protected final int stripes;
+    protected volatile boolean closed = false;
+
+    public DispatchGate(int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("stripes must be positive: " + stripes);
+        }
+        this.stripes = stripes;
+        this.counts = new AtomicLongArray(stripes * PAD);
+    }
+
+    protected int stripeIndex() {
+        long id = Thread.currentThread().getId();
+        return ((int) ((id ^ (id >>> 32)) & 0x7fffffff) % stripes) * PAD;
+    }
+
+    /**
+     * Pass through the gate, waiting while it is closed. Every successful
+     * enter() must be matched by an exit() from the same thread.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void enter() throws InterruptedException {
+        int i = stripeIndex();
+        while (true) {
+            counts.incrementAndGet(i);
+            if (!closed) {
+                return;
+            }
+            // back out so a closing thread isn't left waiting on us
+            counts.decrementAndGet(i);
+            synchronized (this) {
+                while (closed) {
+                    wait();
+                }
+            }
+        }
+    }
+
+    public void exit() {
+        counts.decrementAndGet(stripeIndex());
+    }
+
+    /**
+     * Close the gate and wait until all threads that had entered have
+     * exited. Idempotent.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void close() throws InterruptedException {
+        closed = true;
+        while (inside() > 0) {
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Reopen the gate, releasing any waiting threads. Idempotent.
+     */
+    public void open() {
+        synchronized (this) {
+            closed = false;
+            notifyAll();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return number of threads currently between enter() and exit()
+     */
+    public long inside() {
+        long sum = 0;
+        for (int i = 0; i < stripes; i++) {
+            sum += counts.get(i * PAD);
+        }
+        return sum;
+    }
+}
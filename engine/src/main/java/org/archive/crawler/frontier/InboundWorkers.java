@@ -0,0 +1,283 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.crawler.frontier;
+
+import java.io.PrintWriter;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fixed set of threads applying inbound frontier updates (finished URIs,
+ * newly scheduled URIs) on behalf of the threads reporting them. Each 
+ * update is tied to a queue classKey, and every classKey is owned by one
+ * worker, so updates to any single queue are applied one at a time in the
+ * order they were submitted. Submitters block while the owning worker's
+ * backlog is full, except the workers themselves: an update a worker
+ * produces for another worker's queue is queued past that limit, so two
+ * workers feeding each other cannot deadlock, and one for a queue it owns
+ * is applied at once.
+ */
+public class InboundWorkers {
+    private static final Logger logger =
+        Logger.getLogger(InboundWorkers.class.getName());
+
+    protected static class Update {
+        final Runnable task;
+        final long submitNanos;
+        /** whether this update took one of its worker's room permits */
+        final boolean holdsRoom;
+        Update(Runnable task, boolean holdsRoom) {
+            this.task = task;
+            this.submitNanos = System.nanoTime();
+            this.holdsRoom = holdsRoom;
+        }
+    }
+
+    protected class Worker extends Thread {
+        /** unbounded; room limits only submitters other than workers */
+        final BlockingQueue<Update> backlog = new LinkedBlockingQueue<Update>();
+        final Semaphore room;
+        Worker(String name, int capacity) {
+            super(name);
+            this.room = new Semaphore(capacity);
+            setDaemon(true);
+        }
+        Update poll(long timeout, TimeUnit unit) throws InterruptedException {
+            Update update = backlog.poll(timeout, unit);
+            if (update != null && update.holdsRoom) {
+                room.release();
+            }
+            return update;
+        }
+        public void run() {
+            try {
+                // checked between updates too, in case a task swallowed the
+                // interrupt meant to stop this thread
+                while (!stopped) {
+                    Update update = poll(1, TimeUnit.SECONDS);
+                    if (update != null) {
+                        apply(update);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // shutdown
+            }
+        }
+    }
+
+    protected final Worker[] workers;
+    protected volatile boolean shutdown = false;
+    /** set once the workers are to exit */
+    protected volatile boolean stopped = false;
+
+    /** updates submitted and not yet applied */
+    protected AtomicLong pending = new AtomicLong(0);
+    protected volatile long maxPending = 0;
+    protected AtomicLong appliedCount = new AtomicLong(0);
+    protected AtomicLong totalWaitNanos = new AtomicLong(0);
+    /** submits which found the owning worker's backlog full */
+    protected AtomicLong blockedSubmits = new AtomicLong(0);
+
+    public InboundWorkers(String name, int threads, int capacity) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(name + ".inbound" + i, capacity);
+            workers[i].start();
+        }
+    }
+
+    protected Worker ownerOf(String classKey) {
+        return workers[Math.floorMod(classKey.hashCode(), workers.length)];
+    }
+
+    /**
+     * @return the calling thread if it is one of these workers, else null
+     */
+    protected Worker currentWorker() {
+        Thread current = Thread.currentThread();
+        for (Worker worker : workers) {
+            if (worker == current) {
+                return worker;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Apply the given update on the worker owning classKey. Runs it directly
+     * if called from that worker (avoiding a self-deadlock on a full
+     * backlog) or after shutdown. Another worker queues it without waiting
+     * for room.
+     *
+     * @throws InterruptedException if interrupted while waiting for room,
+     * in which case the update has not been submitted
+     */
+    public void submit(String classKey, Runnable task) throws InterruptedException {
+        Worker worker = ownerOf(classKey);
+        Worker current = currentWorker();
+        if (current == worker) {
+            task.run();
+            return;
+        }
+        // count the update before checking for shutdown: either shutdown()
+        // then waits for it to be applied, or we see the flag and run it here
+        long p = pending.incrementAndGet();
+        if (shutdown) {
+            notePendingDone();
+            task.run();
+            return;
+        }
+        if (p > maxPending) {
+            maxPending = p;
+        }
+        if (current != null) {
+            // the owner may itself be waiting on this worker, so never wait
+            worker.backlog.offer(new Update(task, false));
+            return;
+        }
+        try {
+            if (!worker.room.tryAcquire()) {
+                blockedSubmits.incrementAndGet();
+                worker.room.acquire();
+            }
+        } catch (InterruptedException e) {
+            notePendingDone();
+            throw e;
+        }
+        worker.backlog.offer(new Update(task, true));
+    }
+
+    protected void notePendingDone() {
+        if (pending.decrementAndGet() == 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    protected void apply(Update update) {
+        totalWaitNanos.addAndGet(System.nanoTime() - update.submitNanos);
+        try {
+            update.task.run();
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "problem applying inbound update", e);
+        } finally {
+            appliedCount.incrementAndGet();
+            notePendingDone();
+        }
+    }
+
+    /**
+     * Wait until every submitted update has been applied. Only meaningful
+     * once new submits have been stopped by other means.
+     */
+    public synchronized void awaitDrained() throws InterruptedException {
+        while (pending.get() > 0) {
+            wait(100);
+        }
+    }
+
+    /**
+     * Stop the worker threads, first applying any updates already
+     * submitted; later submits run in the calling thread. Anything still
+     * queued once the workers have stopped (if this thread was interrupted
+     * while waiting) is applied here.
+     */
+    public void shutdown() {
+        shutdown = true;
+        boolean interrupted = false;
+        try {
+            awaitDrained();
+        } catch (InterruptedException e) {
+            interrupted = true;
+        }
+        stopped = true;
+        for (Worker worker : workers) {
+            worker.interrupt();
+        }
+        for (Worker worker : workers) {
+            while (worker.isAlive()) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            Update update;
+            while ((update = worker.backlog.poll()) != null) {
+                apply(update);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getThreadCount() {
+        return workers.length;
+    }
+
+    public long getBacklog() {
+        return pending.get();
+    }
+
+    public long getMaxBacklog() {
+        return maxPending;
+    }
+
+    public long getAppliedCount() {
+        return appliedCount.get();
+    }
+
+    public long getBlockedSubmitCount() {
+        return blockedSubmits.get();
+    }
+
+    public double getMeanWaitMs() {
+        long n = appliedCount.get();
+        return n == 0 ? 0 : totalWaitNanos.get() / (n * 1000000.0);
+    }
+
+    public void reportTo(PrintWriter writer) {
+        writer.print(" Inbound workers:           ");
+        writer.print(workers.length);
+        writer.print("\n         backlog:           ");
+        writer.print(getBacklog());
+        writer.print(" (max ");
+        writer.print(getMaxBacklog());
+        writer.print("; per worker");
+        for (Worker worker : workers) {
+            writer.print(' ');
+            writer.print(worker.backlog.size());
+        }
+        writer.print(")\n");
+        writer.print("         applied:           ");
+        writer.print(getAppliedCount());
+        writer.printf(" (mean wait %.2fms, %d blocked submits)\n",
+                getMeanWaitMs(), getBlockedSubmitCount());
+    }
+}
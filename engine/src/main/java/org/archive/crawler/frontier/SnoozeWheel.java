@@ -0,0 +1,391 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.crawler.frontier;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hierarchical timing wheel holding snoozed queues until their wake time.
+ * Insertion and expiry are O(1): each queue lands in the slot for its wake
+ * tick on the lowest level whose current rotation covers that tick, and
+ * moves down a level (at most {@value #LEVELS}-1 times in all) as the wheel
+ * turns, replacing the O(log n) heap operations of a DelayQueue. Turning
+ * the wheel jumps straight to the next occupied slot, so idle stretches
+ * cost nothing however many ticks they span.
+ *
+ * Queues are never woken early, and at most one tick late. Entries whose
+ * wake time lies beyond the {@link #getHorizonMs() horizon} are refused
+ * by {@link #add(DelayedWorkQueue, long)}, so that the caller can keep
+ * them in a disk-backed far-future map instead.
+ *
+ * Also keeps statistics of wake lag (actual minus intended wake time) for
+ * all queues woken through {@link #recordWakeLag(long)}.
+ */
+class SnoozeWheel implements Iterable<DelayedWorkQueue> {
+    protected static final int SLOT_BITS = 8;
+    protected static final int SLOTS = 1 << SLOT_BITS;
+    protected static final int SLOT_MASK = SLOTS - 1;
+    protected static final int LEVELS = 4;
+
+    /** one slot's entries; a named subclass so the array needs no raw type */
+    protected static class Bucket extends ArrayDeque<DelayedWorkQueue> {
+        private static final long serialVersionUID = 1L;
+    }
+
+    protected final long tickMs;
+    protected final Bucket[][] wheels;
+    /** bit per slot of each level, set while the slot holds entries */
+    protected final long[][] occupied;
+    /** expired entries, ready to be polled */
+    protected final ArrayDeque<DelayedWorkQueue> due =
+        new ArrayDeque<DelayedWorkQueue>();
+    /** last tick whose slot has been moved to due */
+    protected long currentTick;
+    /** entries in the wheels, not counting due */
+    protected int inWheels = 0;
+    protected final ReentrantLock lock = new ReentrantLock();
+
+    protected final AtomicLong wakeCount = new AtomicLong(0);
+    protected final AtomicLong totalWakeLagMs = new AtomicLong(0);
+    protected final AtomicLong maxWakeLagMs = new AtomicLong(0);
+
+    public SnoozeWheel(long tickMs, long now) {
+        if (tickMs < 1) {
+            throw new IllegalArgumentException("tickMs must be positive: " + tickMs);
+        }
+        this.tickMs = tickMs;
+        this.currentTick = now / tickMs - 1;
+        wheels = new Bucket[LEVELS][SLOTS];
+        occupied = new long[LEVELS][SLOTS >>> 6];
+    }
+
+    public long getTickMs() {
+        return tickMs;
+    }
+
+    /**
+     * Longest delay from now accepted by {@link #add(DelayedWorkQueue, long)}:
+     * the span of all but the top level, which only holds entries crossing
+     * a top-level rotation boundary.
+     */
+    public long getHorizonMs() {
+        return tickMs << (SLOT_BITS * (LEVELS - 1));
+    }
+
+    /**
+     * Add a snoozed queue, to be woken at its wake time.
+     *
+     * @param dq snoozed queue
+     * @param now current time in ms
+     * @return false if the wake time is beyond the horizon, in which case
+     * the entry was not added
+     */
+    public boolean add(DelayedWorkQueue dq, long now) {
+        if (dq.getWakeTime() - now > getHorizonMs()) {
+            return false;
+        }
+        lock.lock();
+        try {
+            place(dq);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected void place(DelayedWorkQueue dq) {
+        long tick = dq.getWakeTime() / tickMs;
+        if (tick <= currentTick) {
+            due.add(dq);
+            return;
+        }
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = SLOT_BITS * (level + 1);
+            if (level == LEVELS - 1
+                    || (tick >>> shift) == (currentTick >>> shift)) {
+                int slot = (int) (tick >>> (SLOT_BITS * level)) & SLOT_MASK;
+                Bucket bucket = wheels[level][slot];
+                if (bucket == null) {
+                    bucket = new Bucket();
+                    wheels[level][slot] = bucket;
+                }
+                bucket.add(dq);
+                occupied[level][slot >>> 6] |= 1L << slot;
+                inWheels++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Turn the wheel up to the last tick fully elapsed at the given time,
+     * moving expired entries to the due list.
+     */
+    protected void advance(long now) {
+        long target = now / tickMs - 1;
+        while (currentTick < target) {
+            long next = inWheels == 0 ? Long.MAX_VALUE : nextEventTick();
+            if (next > target) {
+                // nothing happens in between
+                currentTick = target;
+                return;
+            }
+            currentTick = next;
+            if ((currentTick & SLOT_MASK) == 0) {
+                cascade(1);
+            }
+            int slot = (int) currentTick & SLOT_MASK;
+            Bucket bucket = wheels[0][slot];
+            if (bucket != null && !bucket.isEmpty()) {
+                inWheels -= bucket.size();
+                due.addAll(bucket);
+                bucket.clear();
+                occupied[0][slot >>> 6] &= ~(1L << slot);
+            }
+        }
+    }
+
+    /**
+     * First tick after the current one at which turning the wheel does
+     * anything: that of the next occupied slot on level 0, or else the
+     * rotation boundary at which the next occupied slot of a higher level
+     * cascades. Every entry below the top level lies in a later slot of
+     * its level's current rotation; the top level is checked at each of
+     * its slot boundaries.
+     */
+    protected long nextEventTick() {
+        for (int level = 0; level < LEVELS - 1; level++) {
+            int shift = SLOT_BITS * level;
+            int from = ((int) (currentTick >>> shift) & SLOT_MASK) + 1;
+            int slot = nextOccupied(level, from);
+            if (slot >= 0) {
+                long rotation = currentTick >>> (shift + SLOT_BITS);
+                return (rotation << (shift + SLOT_BITS)) + ((long) slot << shift);
+            }
+        }
+        int shift = SLOT_BITS * (LEVELS - 1);
+        return ((currentTick >>> shift) + 1) << shift;
+    }
+
+    /**
+     * @return first occupied slot of the level at or after from, or -1
+     */
+    protected int nextOccupied(int level, int from) {
+        long[] bits = occupied[level];
+        for (int word = from >>> 6; word < bits.length; word++) {
+            long w = bits[word];
+            if (word == from >>> 6) {
+                w &= -1L << from;
+            }
+            if (w != 0) {
+                return (word << 6) + Long.numberOfTrailingZeros(w);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Redistribute the slot of the given level which the current tick has
+     * just entered, into the levels below.
+     */
+    protected void cascade(int level) {
+        if (level >= LEVELS) {
+            return;
+        }
+        int shift = SLOT_BITS * level;
+        int slot = (int) (currentTick >>> shift) & SLOT_MASK;
+        if (slot == 0) {
+            cascade(level + 1);
+        }
+        Bucket bucket = wheels[level][slot];
+        if (bucket == null || bucket.isEmpty()) {
+            return;
+        }
+        wheels[level][slot] = null;
+        occupied[level][slot >>> 6] &= ~(1L << slot);
+        inWheels -= bucket.size();
+        for (DelayedWorkQueue dq : bucket) {
+            place(dq);
+        }
+    }
+
+    /**
+     * Remove and return one queue whose wake time has passed, if any.
+     *
+     * @param now current time in ms
+     * @return expired snoozed queue, or null
+     */
+    public DelayedWorkQueue poll(long now) {
+        lock.lock();
+        try {
+            advance(now);
+            DelayedWorkQueue dq = due.poll();
+            if (dq != null) {
+                recordWakeLag(now - dq.getWakeTime());
+            }
+            return dq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Milliseconds until the next snoozed queue is due to wake; 0 if one
+     * is due now, or -1 if the wheel is empty.
+     *
+     * @param now current time in ms
+     */
+    public long getDelay(long now) {
+        lock.lock();
+        try {
+            if (!due.isEmpty()) {
+                return 0;
+            }
+            if (inWheels == 0) {
+                return -1;
+            }
+            // the first occupied slot on the lowest occupied level, looking
+            // forward from the current position, holds the earliest entries
+            for (int level = 0; level < LEVELS; level++) {
+                int shift = SLOT_BITS * level;
+                int start = (int) (currentTick >>> shift) & SLOT_MASK;
+                for (int i = 1; i <= SLOTS; i++) {
+                    Bucket bucket = wheels[level][(start + i) & SLOT_MASK];
+                    if (bucket != null && !bucket.isEmpty()) {
+                        long earliest = Long.MAX_VALUE;
+                        for (DelayedWorkQueue dq : bucket) {
+                            earliest = Math.min(earliest, dq.getWakeTime());
+                        }
+                        // woken once its tick has fully elapsed
+                        long wake = (earliest / tickMs + 1) * tickMs;
+                        return Math.max(0, wake - now);
+                    }
+                }
+            }
+            return -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return inWheels + due.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove all entries, regardless of wake time, into the given
+     * collection.
+     *
+     * @return number of entries removed
+     */
+    public int drainTo(Collection<? super DelayedWorkQueue> c) {
+        lock.lock();
+        try {
+            int n = due.size();
+            c.addAll(due);
+            due.clear();
+            for (Bucket[] wheel : wheels) {
+                for (int i = 0; i < SLOTS; i++) {
+                    if (wheel[i] != null) {
+                        n += wheel[i].size();
+                        c.addAll(wheel[i]);
+                        wheel[i] = null;
+                    }
+                }
+            }
+            for (long[] bits : occupied) {
+                Arrays.fill(bits, 0);
+            }
+            inWheels = 0;
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Snapshot of all entries, in no particular order.
+     */
+    public DelayedWorkQueue[] toArray() {
+        List<DelayedWorkQueue> all = snapshot();
+        return all.toArray(new DelayedWorkQueue[all.size()]);
+    }
+
+    protected List<DelayedWorkQueue> snapshot() {
+        lock.lock();
+        try {
+            List<DelayedWorkQueue> all =
+                new ArrayList<DelayedWorkQueue>(inWheels + due.size());
+            all.addAll(due);
+            for (Bucket[] wheel : wheels) {
+                for (Bucket bucket : wheel) {
+                    if (bucket != null) {
+                        all.addAll(bucket);
+                    }
+                }
+            }
+            return all;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Iterator over a snapshot of all entries; does not support remove().
+     */
+    public Iterator<DelayedWorkQueue> iterator() {
+        return Collections.unmodifiableList(snapshot()).iterator();
+    }
+
+    /**
+     * Note the lag between intended and actual wake time of a queue.
+     */
+    public void recordWakeLag(long lagMs) {
+        lagMs = Math.max(0, lagMs);
+        wakeCount.incrementAndGet();
+        totalWakeLagMs.addAndGet(lagMs);
+        maxWakeLagMs.accumulateAndGet(lagMs, Math::max);
+    }
+
+    public long getWakeCount() {
+        return wakeCount.get();
+    }
+
+    public double getMeanWakeLagMs() {
+        long n = wakeCount.get();
+        return n == 0 ? 0 : (double) totalWakeLagMs.get() / n;
+    }
+
+    public long getMaxWakeLagMs() {
+        return maxWakeLagMs.get();
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.crawler.frontier;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lock-free queue of ready work-queue keys, split into several independent
+ * FIFO 'rings'. Offers are dealt round-robin across the stripes, so keys
+ * stay evenly spread whichever thread makes them ready; a thread polls its
+ * own home stripe first, and steals from the other stripes only when its
+ * own is empty, so many ToeThreads asking for work at once rarely touch
+ * the same memory.
+ *
+ * Ordering is FIFO within each stripe but only approximately FIFO overall,
+ * which is fine for ready queues: all of them are eligible for work right
+ * now, and every stripe is drained before a thread concludes there is
+ * nothing ready.
+ *
+ * Blocking take()/poll(timeout) wait on a condition that an offer signals
+ * only when some thread is actually waiting, so the non-blocking paths
+ * never take the lock.
+ *
+ * @see WorkQueueFrontier#setDispatchStripes(int)
+ */
+public class StripedReadyQueue extends AbstractQueue<String>
+implements BlockingQueue<String> {
+    /** one ring of keys; a named subclass so the array needs no raw type */
+    protected static class Stripe extends ConcurrentLinkedQueue<String> {
+        private static final long serialVersionUID = 1L;
+    }
+
+    protected final Stripe[] stripes;
+    protected final LongAdder count = new LongAdder();
+    /** next stripe to offer to */
+    protected final AtomicInteger nextStripe = new AtomicInteger();
+
+    /** guards notEmpty; taken only by blocking takers and their signallers */
+    protected final ReentrantLock takeLock = new ReentrantLock();
+    protected final Condition notEmpty = takeLock.newCondition();
+    /** threads in (or about to enter) notEmpty.await() */
+    protected final AtomicInteger waiters = new AtomicInteger();
+
+    public StripedReadyQueue(int stripeCount) {
+        if (stripeCount < 1) {
+            throw new IllegalArgumentException("stripeCount must be positive: " + stripeCount);
+        }
+        stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    /**
+     * @return index of the calling thread's home stripe
+     */
+    protected int homeStripe() {
+        long id = Thread.currentThread().getId();
+        return (int) ((id ^ (id >>> 32)) & 0x7fffffff) % stripes.length;
+    }
+
+    @Override
+    public boolean offer(String key) {
+        if (key == null) {
+            throw new NullPointerException();
+        }
+        int stripe = (nextStripe.getAndIncrement() & 0x7fffffff) % stripes.length;
+        stripes[stripe].offer(key);
+        count.increment();
+        // waiters is raised before a taker's last poll(), so either it
+        // sees this key or we see it waiting
+        if (waiters.get() > 0) {
+            signalNotEmpty();
+        }
+        return true;
+    }
+
+    protected void signalNotEmpty() {
+        takeLock.lock();
+        try {
+            notEmpty.signal();
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * Take from the home stripe, or failing that steal from the next
+     * non-empty stripe in turn.
+     */
+    @Override
+    public String poll() {
+        int home = homeStripe();
+        for (int i = 0; i < stripes.length; i++) {
+            String key = stripes[(home + i) % stripes.length].poll();
+            if (key != null) {
+                count.decrement();
+                return key;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String peek() {
+        int home = homeStripe();
+        for (int i = 0; i < stripes.length; i++) {
+            String key = stripes[(home + i) % stripes.length].peek();
+            if (key != null) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Approximate count of ready keys; exact only when no other thread is
+     * offering or polling.
+     */
+    @Override
+    public int size() {
+        long sum = count.sum();
+        return sum > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) Math.max(sum, 0);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (ConcurrentLinkedQueue<String> stripe : stripes) {
+            if (!stripe.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        for (ConcurrentLinkedQueue<String> stripe : stripes) {
+            if (stripe.remove(o)) {
+                count.decrement();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        for (ConcurrentLinkedQueue<String> stripe : stripes) {
+            if (stripe.contains(o)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void clear() {
+        while (poll() != null) {
+            // drain
+        }
+    }
+
+    /**
+     * Weakly-consistent iterator over all stripes in turn.
+     */
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            int stripe = 0;
+            Iterator<String> current = stripes[0].iterator();
+            Iterator<String> lastReturnedFrom = null;
+
+            public boolean hasNext() {
+                while (!current.hasNext()) {
+                    if (++stripe >= stripes.length) {
+                        return false;
+                    }
+                    current = stripes[stripe].iterator();
+                }
+                return true;
+            }
+
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                lastReturnedFrom = current;
+                return current.next();
+            }
+
+            public void remove() {
+                if (lastReturnedFrom == null) {
+                    throw new IllegalStateException();
+                }
+                lastReturnedFrom.remove();
+                lastReturnedFrom = null;
+                count.decrement();
+            }
+        };
+    }
+
+    @Override
+    public void put(String key) {
+        offer(key);
+    }
+
+    @Override
+    public boolean offer(String key, long timeout, TimeUnit unit) {
+        return offer(key);
+    }
+
+    @Override
+    public String take() throws InterruptedException {
+        String key = poll();
+        if (key != null) {
+            return key;
+        }
+        takeLock.lockInterruptibly();
+        waiters.incrementAndGet();
+        try {
+            while ((key = poll()) == null) {
+                notEmpty.await();
+            }
+        } catch (InterruptedException e) {
+            // pass on any signal this thread consumed
+            notEmpty.signal();
+            throw e;
+        } finally {
+            waiters.decrementAndGet();
+            takeLock.unlock();
+        }
+        cascadeSignal();
+        return key;
+    }
+
+    @Override
+    public String poll(long timeout, TimeUnit unit) throws InterruptedException {
+        String key = poll();
+        if (key != null) {
+            return key;
+        }
+        long nanos = unit.toNanos(timeout);
+        takeLock.lockInterruptibly();
+        waiters.incrementAndGet();
+        try {
+            while ((key = poll()) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+        } catch (InterruptedException e) {
+            notEmpty.signal();
+            throw e;
+        } finally {
+            waiters.decrementAndGet();
+            takeLock.unlock();
+        }
+        cascadeSignal();
+        return key;
+    }
+
+    /**
+     * After a woken taker got its key, wake another if more keys remain,
+     * since one offer signals only one waiter.
+     */
+    protected void cascadeSignal() {
+        if (waiters.get() > 0 && !isEmpty()) {
+            signalNotEmpty();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super String> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super String> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        int drained = 0;
+        String key;
+        while (drained < maxElements && (key = poll()) != null) {
+            c.add(key);
+            drained++;
+        }
+        return drained;
+    }
+}
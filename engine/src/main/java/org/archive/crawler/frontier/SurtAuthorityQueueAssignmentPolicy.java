@@ -30,17 +30,10 @@ extends URIAuthorityBasedQueueAssignmentPolicy {
     
     @Override
     protected String getCoreKey(UURI basis) {
-        String candidate = getSurtAuthority(basis.getSurtForm());
-        return candidate.replace(':','#');
-    }
-    
-    protected String getSurtAuthority(String surt) {
-        int indexOfOpen = surt.indexOf("://(");
-        int indexOfClose = surt.indexOf(")");
-        if (indexOfOpen == -1 || indexOfClose == -1
-                || ((indexOfOpen + 4) >= indexOfClose)) {
+        String candidate = basis.getSurtAuthority();
+        if (candidate == null) {
             return DEFAULT_CLASS_KEY;
         }
-        return surt.substring(indexOfOpen + 4, indexOfClose);
+        return candidate.replace(':','#');
     }
 }
@@ -22,9 +22,14 @@ package org.archive.crawler.frontier;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
@@ -98,6 +103,22 @@ public abstract class WorkQueue implements Frontier.FrontierGroup,
     /** The next item to be returned */
     transient protected CrawlURI peekItem = null;
 
+    /**
+     * Items just behind the peekItem handed out alongside it, to be
+     * fetched as concurrent streams of one HTTP/2 connection; null
+     * unless such a batch is outstanding.
+     */
+    transient protected Set<CrawlURI> companions = null;
+
+    /** peekItem and companions of the current batch not yet finished */
+    transient protected int openStreams = 0;
+
+    /** longest politeness delay asked for by any finished batch member */
+    transient protected long batchDelayMs = 0;
+
+    /** whether any finished batch member asked to retire the queue */
+    transient protected boolean batchRetire = false;
+
     /** Last URI enqueued */
     protected String lastQueued;
 
@@ -203,6 +224,73 @@ public abstract class WorkQueue implements Frontier.FrontierGroup,
         lastDequeueTime = System.currentTimeMillis();
     }
 
+    /**
+     * Remove the given companion from the queue and adjust the count.
+     * 
+     * @param frontier  Work queues manager.
+     * @param companion item handed out alongside the peekItem
+     */
+    protected synchronized void dequeueCompanion(final WorkQueueFrontier frontier,
+            CrawlURI companion) {
+        try {
+            deleteItem(frontier, companion);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        count--;
+        lastDequeueTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Note that the given items, just behind the peekItem, are being
+     * handed out together with it. The queue stays in process until all of
+     * them, and the peekItem, have finished.
+     * 
+     * @param emitted companions of the peekItem
+     */
+    protected synchronized void beginBatch(Collection<CrawlURI> emitted) {
+        companions = Collections.newSetFromMap(
+                new IdentityHashMap<CrawlURI, Boolean>());
+        companions.addAll(emitted);
+        openStreams = 1 + emitted.size();
+        batchDelayMs = 0;
+        batchRetire = false;
+    }
+
+    /**
+     * @return whether the given item was handed out as a companion of the
+     * peekItem (rather than being the peekItem itself)
+     */
+    public synchronized boolean isCompanion(CrawlURI curi) {
+        return companions != null && companions.contains(curi);
+    }
+
+    /**
+     * @return whether a multi-item batch is outstanding
+     */
+    public synchronized boolean isBatchOpen() {
+        return companions != null;
+    }
+
+    /**
+     * Note one member of the current batch finished, with the queue
+     * disposition it asked for.
+     * 
+     * @return true if that was the last open member; batchDelayMs and 
+     * batchRetire then hold the disposition for the whole batch
+     */
+    protected synchronized boolean endStream(CrawlURI curi,
+            boolean forceRetire, long delay_ms) {
+        companions.remove(curi);
+        batchRetire |= forceRetire;
+        batchDelayMs = Math.max(batchDelayMs, delay_ms);
+        if (--openStreams > 0) {
+            return false;
+        }
+        companions = null;
+        return true;
+    }
+
     /**
      * Set the session 'activity budget' to the given value. Automatically
      * reset continually as new CrawlURIs are enqueued; a direct change
@@ -429,8 +517,8 @@ public abstract class WorkQueue implements Frontier.FrontierGroup,
     /**
      * Removes the given item from the queue.
      * 
-     * This is only used to remove the first item in the queue,
-     * so it is not necessary to implement a random-access queue.
+     * This is only used to remove the first item in the queue, or
+     * the few items just behind it while multiplexing.
      * 
      * @param frontier  Work queues manager.
      * @throws IOException  if there was a problem while deleting the item
@@ -447,6 +535,18 @@ public abstract class WorkQueue implements Frontier.FrontierGroup,
     protected abstract CrawlURI peekItem(final WorkQueueFrontier frontier)
         throws IOException;
 
+    /**
+     * Returns up to max items from the front of the queue (does not delete),
+     * starting with the first. 
+     * 
+     * @return items in queue order; by default none, disabling multiplexing
+     * @throws IOException  if there was a problem while peeking
+     */
+    protected List<CrawlURI> peekItems(final WorkQueueFrontier frontier,
+            int max) throws IOException {
+        return Collections.emptyList();
+    }
+
     // 
     // Reporter
     //
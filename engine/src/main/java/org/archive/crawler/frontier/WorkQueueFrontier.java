@@ -35,6 +35,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Queue;
@@ -42,10 +43,10 @@ import java.util.Set;
 import java.util.SortedMap;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.DelayQueue;
-import java.util.concurrent.Delayed;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -56,8 +57,11 @@ import org.archive.crawler.event.CrawlURIDispositionEvent;
 import org.archive.crawler.framework.ToeThread;
 import org.archive.crawler.frontier.precedence.BaseQueuePrecedencePolicy;
 import org.archive.crawler.frontier.precedence.QueuePrecedencePolicy;
+import org.archive.crawler.util.SetBasedUriUniqFilter;
 import org.archive.crawler.util.TopNSet;
 import org.archive.modules.CrawlURI;
+import org.archive.modules.net.CrawlHost;
+import org.archive.modules.net.CrawlServer;
 import org.archive.spring.KeyedProperties;
 import org.archive.util.ArchiveUtils;
 import org.archive.util.ObjectIdentityCache;
@@ -128,6 +132,24 @@ implements Closeable,
     }
 
 
+    {
+        setHttp2StreamsPerQueue(1);
+    }
+    public int getHttp2StreamsPerQueue() {
+        return (Integer) kp.get("http2StreamsPerQueue");
+    }
+    /**
+     * Most URIs of one queue to have out at once when its server last
+     * answered over HTTP/2 (or HTTP/3), so they can be fetched as concurrent
+     * streams of one connection. The batch is charged a single politeness
+     * delay, the longest any member asks for, once all of it has finished.
+     * Default 1 (no multiplexing); only raise it, perhaps just via a sheet
+     * overlay, for sites known to tolerate it.
+     */
+    public void setHttp2StreamsPerQueue(int streams) {
+        kp.put("http2StreamsPerQueue",streams);
+    }
+
     {
         setErrorPenaltyAmount(100);
     }
@@ -193,14 +215,51 @@ implements Closeable,
     /** all per-class queues from whom a URI is outstanding */
     protected Set<WorkQueue> inProcessQueues = 
         Collections.newSetFromMap(new ConcurrentHashMap<WorkQueue, Boolean>()); // of ClassKeyQueue
+
+    /** companions of multiplexed queues' peekItems, awaiting next() */
+    transient protected Queue<CrawlURI> pendingCompanions =
+        new ConcurrentLinkedQueue<CrawlURI>();
+    protected AtomicLong companionsEmitted = new AtomicLong(0);
+    public long getCompanionsEmitted() {
+        return companionsEmitted.get();
+    }
     
     /**
-     * All per-class queues held in snoozed state, sorted by wake time.
+     * All per-class queues held in snoozed state, bucketed by wake time.
      */
-    transient protected DelayQueue<DelayedWorkQueue> snoozedClassQueues;
+    transient protected SnoozeWheel snoozedClassQueues;
+    /** snoozed queues beyond the in-memory limit or the wheel's horizon */
     protected StoredSortedMap<Long,DelayedWorkQueue> snoozedOverflow; 
     protected AtomicInteger snoozedOverflowCount = new AtomicInteger(0); 
-    protected static int MAX_SNOOZED_IN_MEMORY = 10000; 
+    protected static int MAX_SNOOZED_IN_MEMORY = 100000; 
+    
+    /**
+     * Resolution, in milliseconds, of the timing wheel holding snoozed
+     * queues. Queues wake at most this long after their due time. Only
+     * read when the frontier starts.
+     */
+    protected long snoozeTickMs = 10;
+    public long getSnoozeTickMs() {
+        return snoozeTickMs;
+    }
+    public void setSnoozeTickMs(long snoozeTickMs) {
+        this.snoozeTickMs = snoozeTickMs;
+    }
+    
+    /**
+     * Maximum number of snoozed queues to hold in memory; further snoozed
+     * queues, and any due to wake beyond the in-memory timing wheel's
+     * horizon (about two days at the default tick), are kept on disk
+     * until their wake time. Each in-memory entry is a few dozen bytes,
+     * but keeps its queue from being evicted from the queue cache.
+     */
+    protected int maxSnoozedInMemory = MAX_SNOOZED_IN_MEMORY;
+    public int getMaxSnoozedInMemory() {
+        return maxSnoozedInMemory;
+    }
+    public void setMaxSnoozedInMemory(int maxSnoozedInMemory) {
+        this.maxSnoozedInMemory = maxSnoozedInMemory;
+    }
     
     /** URIs scheduled to be re-enqueued at future date */
     protected StoredSortedMap<Long, CrawlURI> futureUris; 
@@ -218,6 +277,10 @@ implements Closeable,
     }
     
     protected int highestPrecedenceWaiting = Integer.MAX_VALUE;
+    
+    /** when dispatch is striped, held by the one thread waking snoozed 
+     * queues and futures, so others needn't queue up behind it */
+    protected AtomicBoolean wakeInProgress = new AtomicBoolean(false);
 
     /** The UriUniqFilter to use, tracking those UURIs which are 
      * already in-process (or processed), and thus should not be 
@@ -344,18 +407,27 @@ implements Closeable,
      * @see org.archive.crawler.framework.Frontier#schedule(org.archive.modules.CrawlURI)
      */
     @Override
-    public void schedule(CrawlURI curi) {
+    public void schedule(final CrawlURI curi) {
         sheetOverlaysManager.applyOverlaysTo(curi);
-        try {
-            KeyedProperties.loadOverridesFrom(curi);
-            if(curi.getClassKey()==null) {
-                // remedial processing
+        if(curi.getClassKey()==null) {
+            // remedial processing
+            try {
+                KeyedProperties.loadOverridesFrom(curi);
                 preparer.prepare(curi);
+            } finally {
+                KeyedProperties.clearOverridesFrom(curi); 
             }
-            processScheduleIfUnique(curi);
-        } finally {
-            KeyedProperties.clearOverridesFrom(curi); 
         }
+        applyInbound(curi, new Runnable() {
+            public void run() {
+                try {
+                    KeyedProperties.loadOverridesFrom(curi);
+                    processScheduleIfUnique(curi);
+                } finally {
+                    KeyedProperties.clearOverridesFrom(curi); 
+                }
+            }
+        });
     }
 
     /**
@@ -387,6 +459,7 @@ implements Closeable,
 //        assert Thread.currentThread() == managerThread;
         
         WorkQueue wq = getQueueFor(curi.getClassKey());
+        boolean newlyFilled = false;
         synchronized(wq) {
             int originalPrecedence = wq.getPrecedence();
             wq.enqueue(this, curi);
@@ -398,7 +471,8 @@ implements Closeable,
             if(!wq.isRetired()) {
                 incrementQueuedUriCount();
                 int currentPrecedence = wq.getPrecedence();
-                if(!wq.isManaged() || currentPrecedence < originalPrecedence) {
+                newlyFilled = !wq.isManaged();
+                if(newlyFilled || currentPrecedence < originalPrecedence) {
                     // queue newly filled or bumped up in precedence; ensure enqueuing
                     // at precedence level (perhaps duplicate; if so that's handled elsewhere)
                     deactivateQueue(wq);
@@ -409,6 +483,26 @@ implements Closeable,
             wq.makeDirty();
         }
         largestQueues.update(wq.getClassKey(), wq.getCount());
+        if (newlyFilled) {
+            prefetchDns(curi);
+        }
+    }
+
+    /**
+     * Asks FetchDNS to start looking up the host of a newly-filled queue,
+     * so the answer is likely cached by the time the queue comes up and
+     * its dns: prerequisite is processed.
+     * 
+     * @param curi first URI of the newly-filled queue
+     */
+    protected void prefetchDns(CrawlURI curi) {
+        if (fetchDns == null || fetchDns.getDnsCache() == null) {
+            return;
+        }
+        CrawlHost host = serverCache.getHostFor(curi.getUURI());
+        if (host != null && !host.hasBeenLookedUp()) {
+            fetchDns.prefetch(host.getHostName());
+        }
     }
 
     /**
@@ -579,11 +673,28 @@ implements Closeable,
      * @see org.archive.crawler.framework.Frontier#next()
      */
     protected CrawlURI findEligibleURI() {
-            // wake any snoozed queues
-            wakeQueues();
-            // consider rescheduled URIS
-            checkFutures();
+            if (dispatchGate == null) {
+                // wake any snoozed queues
+                wakeQueues();
+                // consider rescheduled URIS
+                checkFutures();
+            } else if (wakeInProgress.compareAndSet(false, true)) {
+                // striped dispatch: one thread at a time does the waking;
+                // others go straight to the ready queues
+                try {
+                    wakeQueues();
+                    checkFutures();
+                } finally {
+                    wakeInProgress.set(false);
+                }
+            }
                    
+            // companions of a multiplexed queue's last emit go out first
+            CrawlURI companion = pendingCompanions.poll();
+            if (companion != null) {
+                return companion;
+            }
+
             // find a non-empty ready queue, if any 
             // TODO: refactor to untangle these loops, early-exits, etc!
             WorkQueue readyQ = null;
@@ -689,6 +800,7 @@ implements Closeable,
                     if (currentQueueKey.equals(curi.getClassKey())) {
                         // curi was in right queue, emit
                         noteAboutToEmit(curi, readyQ);
+                        emitCompanions(readyQ, curi);
                         return curi;
                     }
                     // URI's assigned queue has changed since it
@@ -737,6 +849,93 @@ implements Closeable,
             return null; 
     }
 
+    /**
+     * If the given queue's server multiplexes and the queue's settings allow
+     * more than one stream, set the items just behind the about-to-be-emitted
+     * head aside for the next few next() calls. 
+     * 
+     * @param wq queue going in process
+     * @param head its first item, about to be emitted
+     */
+    protected void emitCompanions(WorkQueue wq, CrawlURI head) {
+        int streams;
+        try {
+            KeyedProperties.loadOverridesFrom(head);
+            streams = getHttp2StreamsPerQueue();
+        } finally {
+            KeyedProperties.clearOverridesFrom(head);
+        }
+        if (streams <= 1 || wq.getCount() <= 1) {
+            return;
+        }
+        CrawlServer server = serverCache.getServerFor(head.getUURI());
+        if (server == null || !server.isMultiplexed()) {
+            return;
+        }
+        List<CrawlURI> items;
+        synchronized (wq) {
+            try {
+                items = wq.peekItems(this, streams);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "unable to peek companions in "
+                        + wq.getClassKey(), e);
+                return;
+            }
+        }
+        List<CrawlURI> companions = new ArrayList<CrawlURI>(items.size());
+        // first item is the head itself
+        for (CrawlURI curi : items.subList(Math.min(1, items.size()), items.size())) {
+            curi.setOverlayMapsSource(sheetOverlaysManager);
+            sheetOverlaysManager.applyOverlaysTo(curi);
+            String currentQueueKey;
+            try {
+                KeyedProperties.loadOverridesFrom(curi);
+                currentQueueKey = getClassKey(curi);
+            } finally {
+                KeyedProperties.clearOverridesFrom(curi);
+            }
+            CrawlServer itsServer = serverCache.getServerFor(curi.getUURI());
+            if (!currentQueueKey.equals(curi.getClassKey()) || itsServer == null
+                    || !itsServer.getName().equals(server.getName())) {
+                // belongs elsewhere now, or another server; leave it, and
+                // everything behind it, to the usual one-at-a-time path
+                break;
+            }
+            companions.add(curi);
+        }
+        if (companions.isEmpty()) {
+            return;
+        }
+        wq.beginBatch(companions);
+        for (CrawlURI curi : companions) {
+            noteAboutToEmit(curi, wq);
+            pendingCompanions.add(curi);
+        }
+        companionsEmitted.addAndGet(companions.size());
+    }
+
+    /**
+     * Take back companions not yet handed out, as when outbound takes are
+     * held for a pause, so their queues can settle. They stay in their
+     * queues and will be emitted again in turn.
+     */
+    @Override
+    protected void returnPendingEmits() {
+        long now = System.currentTimeMillis();
+        CrawlURI curi;
+        while ((curi = pendingCompanions.poll()) != null) {
+            WorkQueue wq = (WorkQueue) curi.getHolder();
+            synchronized (wq) {
+                curi.setHolder(null);
+                if (wq.endStream(curi, false, 0)) {
+                    handleQueue(wq, wq.batchRetire, now, wq.batchDelayMs);
+                }
+            }
+            // noteAboutToEmit() journaled it as emitted
+            doJournalUnemitted(curi);
+        }
+    }
+
     /**
      * Check for any future-scheduled URIs now eligible for reenqueuing
      */
@@ -843,8 +1042,8 @@ implements Closeable,
      */
     @Override
     protected long getMaxInWait() {
-        Delayed next = snoozedClassQueues.peek();
-        return next == null ? 60000 : next.getDelay(TimeUnit.MILLISECONDS);
+        long delay = snoozedClassQueues.getDelay(System.currentTimeMillis());
+        return delay < 0 ? 60000 : delay;
     }
 
     /**
@@ -853,15 +1052,15 @@ implements Closeable,
      * put all queues in slow-retry-snoozes back to busy-ness. 
      */
     public void forceWakeQueues() {
-        Iterator<DelayedWorkQueue> iterSnoozed = snoozedClassQueues.iterator();
-        while(iterSnoozed.hasNext()) {
-            WorkQueue queue = iterSnoozed.next().getWorkQueue(WorkQueueFrontier.this);
+        List<DelayedWorkQueue> snoozed = new ArrayList<DelayedWorkQueue>();
+        snoozedClassQueues.drainTo(snoozed);
+        for(DelayedWorkQueue dq : snoozed) {
+            WorkQueue queue = dq.getWorkQueue(WorkQueueFrontier.this);
             synchronized(queue) {
                 queue.setWakeTime(0);
                 reenqueueQueue(queue);
                 queue.makeDirty();
             }
-            iterSnoozed.remove(); 
         }
         Iterator<DelayedWorkQueue> iterOverflow = snoozedOverflow.values().iterator();
         while(iterOverflow.hasNext()) {
@@ -880,8 +1079,9 @@ implements Closeable,
      * Wake any queues sitting in the snoozed queue whose time has come.
      */
     protected void wakeQueues() {
+        long now = System.currentTimeMillis();
         DelayedWorkQueue waked; 
-        while((waked = snoozedClassQueues.poll())!=null) {
+        while((waked = snoozedClassQueues.poll(now))!=null) {
             WorkQueue queue = waked.getWorkQueue(this);
             synchronized(queue) {
                 queue.setWakeTime(0);
@@ -893,11 +1093,12 @@ implements Closeable,
         if(!snoozedOverflow.isEmpty()) {
             synchronized(snoozedOverflow) {
                 Iterator<DelayedWorkQueue> iter = 
-                    snoozedOverflow.headMap(System.currentTimeMillis()).values().iterator();
+                    snoozedOverflow.headMap(now).values().iterator();
                 while(iter.hasNext()) {
                     DelayedWorkQueue dq = iter.next();
                     iter.remove();
                     snoozedOverflowCount.decrementAndGet();
+                    snoozedClassQueues.recordWakeLag(now - dq.getWakeTime());
                     WorkQueue queue = dq.getWorkQueue(this);
                     synchronized(queue) {
                         queue.setWakeTime(0);
@@ -940,7 +1141,8 @@ implements Closeable,
             wq.setSessionBudget(getBalanceReplenishAmount());
             wq.setTotalBudget(getQueueTotalBudget());
 
-            if ((wq.peek(this) != curi)) throw new AssertionError("unexpected peek " + wq);
+            boolean companion = wq.isCompanion(curi);
+            if (!companion && (wq.peek(this) != curi)) throw new AssertionError("unexpected peek " + wq);
 
             int holderCost = curi.getHolderCost();
 
@@ -953,9 +1155,11 @@ implements Closeable,
                 long delay_ms = retryDelayFor(curi) * 1000;
                 curi.processingCleanup(); // lose state that shouldn't burden
                                           // retry
-                wq.unpeek(curi);
+                if (!companion) {
+                    wq.unpeek(curi);
+                }
                 wq.update(this, curi); // rewrite any changes
-                handleQueue(wq, curi.includesRetireDirective(), now, delay_ms);
+                finishStream(wq, curi, curi.includesRetireDirective(), now, delay_ms);
                 appCtx.publishEvent(new CrawlURIDispositionEvent(this, curi,
                         DEFERRED_FOR_RETRY));
                 doJournalReenqueued(curi);
@@ -965,7 +1169,11 @@ implements Closeable,
 
             // Curi will definitely be disposed of without retry, so remove from
             // queue
-            wq.dequeue(this, curi);
+            if (companion) {
+                wq.dequeueCompanion(this, curi);
+            } else {
+                wq.dequeue(this, curi);
+            }
             decrementQueuedCount(1);
             largestQueues.update(wq.getClassKey(), wq.getCount());
             log(curi);
@@ -1012,7 +1220,7 @@ implements Closeable,
             wq.expend(holderCost); // successes & failures charge cost to queue
 
             long delay_ms = curi.getPolitenessDelay();
-            handleQueue(wq,curi.includesRetireDirective(),now,delay_ms);
+            finishStream(wq,curi,curi.includesRetireDirective(),now,delay_ms);
             wq.makeDirty();
         }
         
@@ -1028,6 +1236,20 @@ implements Closeable,
         }
     }
     
+    /**
+     * Send an active queue to its next state once the given URI, and any
+     * other members of a multiplexed batch it belongs to, have finished.
+     * A batch takes the strictest disposition any of its members asked for.
+     */
+    protected void finishStream(WorkQueue wq, CrawlURI curi, boolean forceRetire,
+            long now, long delay_ms) {
+        if (!wq.isBatchOpen()) {
+            handleQueue(wq, forceRetire, now, delay_ms);
+        } else if (wq.endStream(curi, forceRetire, delay_ms)) {
+            handleQueue(wq, wq.batchRetire, now, wq.batchDelayMs);
+        }
+    }
+
     /**
      * Send an active queue to its next state, based on the supplied 
      * parameters.
@@ -1061,9 +1283,8 @@ implements Closeable,
         long nextTime = now + delay_ms;
         wq.setWakeTime(nextTime);
         DelayedWorkQueue dq = new DelayedWorkQueue(wq);
-        if(snoozedClassQueues.size()<MAX_SNOOZED_IN_MEMORY) {
-            snoozedClassQueues.add(dq);
-        } else {
+        if(snoozedClassQueues.size() >= getMaxSnoozedInMemory()
+                || !snoozedClassQueues.add(dq, now)) {
             synchronized(snoozedOverflow) {
                 snoozedOverflow.put(nextTime, dq);
                 snoozedOverflowCount.incrementAndGet();
@@ -1289,6 +1510,15 @@ implements Closeable,
         writer.print("               pending:     ");
         writer.print(Long.toString(uriUniqFilter.pending()));
         writer.print("\n");
+        if (uriUniqFilter instanceof SetBasedUriUniqFilter
+                && ((SetBasedUriUniqFilter) uriUniqFilter).getAsyncBatchSize() > 0) {
+            SetBasedUriUniqFilter batching = (SetBasedUriUniqFilter) uriUniqFilter;
+            writer.print("               batches:     ");
+            writer.print(batching.getBatchCount());
+            writer.printf(" (mean size %.1f, mean latency %.1fms, dup rate %.3f, %d blocked adds)\n",
+                    batching.getMeanBatchSize(), batching.getMeanAddLatencyMs(),
+                    batching.getBatchedDuplicateRate(), batching.getBlockedAddCount());
+        }
         writer.print("\n All class queues map size: ");
         writer.print(Long.toString(allCount));
         writer.print("\n");
@@ -1304,6 +1534,11 @@ implements Closeable,
         writer.print("                       Snoozed: ");
         writer.print(snoozedCount);
         writer.print("\n");
+        writer.print("                      wake lag: ");
+        writer.printf("mean %.1fms, max %dms (%d wakes)\n",
+                snoozedClassQueues.getMeanWakeLagMs(),
+                snoozedClassQueues.getMaxWakeLagMs(),
+                snoozedClassQueues.getWakeCount());
         writer.print("           Inactive queues: ");
         writer.print(inactiveCount);
         writer.print(" (");
@@ -1326,6 +1561,7 @@ implements Closeable,
         writer.print("          Exhausted queues: ");
         writer.print(exhaustedCount);
         writer.print("\n");
+        reportQueueStoreTo(writer);
         
         State last = lastReachedState;
         writer.print("\n             Last state: "+last);        
@@ -1333,6 +1569,11 @@ implements Closeable,
         writer.print("\n -----===== MANAGER THREAD =====-----\n");
         ToeThread.reportThread(managerThread, writer);
         
+        if (inboundWorkers != null) {
+            writer.print("\n -----===== INBOUND =====-----\n");
+            inboundWorkers.reportTo(writer);
+        }
+        
         writer.print("\n -----===== "+largestQueues.size()+" LONGEST QUEUES =====-----\n");
         appendQueueReports(writer, "LONGEST", largestQueues.getEntriesDescending().iterator(), largestQueues.size(), largestQueues.size());
         
@@ -1346,8 +1587,7 @@ implements Closeable,
             this.readyClassQueues.size(), maxQueuesPerReportCategory);
         
         writer.print("\n -----===== SNOOZED QUEUES =====-----\n");
-        Object[] objs = snoozedClassQueues.toArray();
-        DelayedWorkQueue[] qs = Arrays.copyOf(objs,objs.length,DelayedWorkQueue[].class);
+        DelayedWorkQueue[] qs = snoozedClassQueues.toArray();
         Arrays.sort(qs);
         appendQueueReports(writer, "SNOOZED", new ObjectArrayIterator(qs), getSnoozedCount(), maxQueuesPerReportCategory);
         
@@ -1366,6 +1606,16 @@ implements Closeable,
         writer.flush();
     }
     
+    /**
+     * Report subclass-specific details of how queued URIs are stored, as 
+     * part of the QUEUES section of the frontier report.
+     * 
+     * @param writer
+     */
+    protected void reportQueueStoreTo(PrintWriter writer) {
+        // nothing by default
+    }
+    
     /** Compact report of all nonempty queues (one queue per line)
      * 
      * @param writer
@@ -1599,6 +1849,7 @@ implements Closeable,
      */
     public boolean isEmpty() {
         return queuedUriCount.get() == 0 
+            && getInboundBacklog() == 0
             && (uriUniqFilter == null || uriUniqFilter.pending() == 0)
             && futureUriCount.get() == 0;
     }
@@ -34,6 +34,7 @@ import org.archive.url.URIException;
 import org.archive.modules.CrawlMetadata;
 import org.archive.modules.CrawlURI;
 import org.archive.modules.Processor;
+import org.archive.modules.fetcher.BandwidthScheduler;
 import org.archive.modules.net.CrawlHost;
 import org.archive.modules.net.CrawlServer;
 import org.archive.modules.net.IgnoreRobotsPolicy;
@@ -67,6 +68,19 @@ public class DispositionProcessor extends Processor {
     public void setServerCache(ServerCache serverCache) {
         this.serverCache = serverCache;
     }
+
+    protected BandwidthScheduler bandwidthScheduler;
+    public BandwidthScheduler getBandwidthScheduler() {
+        return this.bandwidthScheduler;
+    }
+    /**
+     * Crawl-wide bandwidth budget, if any; a queue whose IP or network
+     * is over budget is delayed until that budget recovers.
+     */
+    @Autowired(required=false)
+    public void setBandwidthScheduler(BandwidthScheduler bandwidthScheduler) {
+        this.bandwidthScheduler = bandwidthScheduler;
+    }
     
     {
         setDelayFactor(5.0f);
@@ -289,6 +303,15 @@ public class DispositionProcessor extends Processor {
                     durationToWait = minDurationToWait;
                 }
             }
+
+            if (bandwidthScheduler != null) {
+                CrawlHost host = getServerCache().getHostFor(curi.getUURI());
+                long budgetDelay = (host == null) ? 0
+                        : bandwidthScheduler.getDelayMs(host.getIP());
+                if (budgetDelay > durationToWait) {
+                    durationToWait = budgetDelay;
+                }
+            }
         }
         return durationToWait;
     }
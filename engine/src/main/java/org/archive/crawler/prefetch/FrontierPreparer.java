@@ -33,6 +33,7 @@ import org.archive.modules.CrawlURI;
 import org.archive.modules.SchedulingConstants;
 import org.archive.modules.canonicalize.RulesCanonicalizationPolicy;
 import org.archive.modules.canonicalize.UriCanonicalizationPolicy;
+import org.archive.net.UURI;
 import org.archive.spring.KeyedProperties;
 import org.springframework.beans.factory.annotation.Autowired;
 
@@ -282,4 +283,20 @@ public class FrontierPreparer extends Scoper {
         return cost;
     }
     
+    @Override
+    public String report() {
+        StringBuilder ret = new StringBuilder();
+        ret.append(super.report());
+        ret.append(getCanonicalizationPolicy().report());
+        long uris = UURI.getSurtViewUris();
+        if (uris > 0) {
+            long reused = UURI.getSurtViewsReused();
+            ret.append("  surt views: " + uris + " uris, "
+                    + UURI.getSurtViewsComputed() + " computed, " + reused
+                    + " reused (" + String.format("%.2f", reused / (double) uris)
+                    + " recomputations avoided per uri)\n");
+        }
+        return ret.toString();
+    }
+    
 }
@@ -38,6 +38,12 @@ public class AlertThreadGroup extends ThreadGroup {
     protected int count;
     protected LinkedList<Logger> loggers = new LinkedList<Logger>(); 
     static protected ThreadLocal<Logger> threadLogger = new ThreadLocal<Logger>();
+    /** group for threads (eg virtual) that can't be placed in one */
+    static protected ThreadLocal<AlertThreadGroup> threadGroup = 
+        new ThreadLocal<AlertThreadGroup>();
+    /** processor-name source for threads that aren't themselves one */
+    static protected ThreadLocal<SinkHandlerLogThread> threadSink = 
+        new ThreadLocal<SinkHandlerLogThread>();
     
     public AlertThreadGroup(String name) {
         super(name);
@@ -60,15 +66,51 @@ public class AlertThreadGroup extends ThreadGroup {
         threadLogger.set(logger); 
     }
 
+    /**
+     * Associate the current thread with the given group (and processor-name
+     * source), for threads which cannot be created inside the group, such 
+     * as virtual threads. Pass nulls to clear.
+     */
+    public static void setThreadGroup(AlertThreadGroup group, 
+            SinkHandlerLogThread sink) {
+        if (group == null) {
+            threadGroup.remove();
+            threadSink.remove();
+        } else {
+            threadGroup.set(group);
+            threadSink.set(sink);
+        }
+    }
+
     public static AlertThreadGroup current() {
         Thread t = Thread.currentThread();
         ThreadGroup th = t.getThreadGroup();
         while ((th != null) && !(th instanceof AlertThreadGroup)) {
             th = th.getParent();
         }
+        if (th == null) {
+            return threadGroup.get();
+        }
         return (AlertThreadGroup)th;
     }
 
+    /**
+     * @return the processor-name source of the calling thread: the one 
+     * registered with {@link #setThreadGroup(AlertThreadGroup, 
+     * SinkHandlerLogThread)}, or else the thread itself if it is one; 
+     * null if neither
+     */
+    public static SinkHandlerLogThread currentSink() {
+        SinkHandlerLogThread sink = threadSink.get();
+        if (sink == null) {
+            Thread current = Thread.currentThread();
+            if (current instanceof SinkHandlerLogThread) {
+                sink = (SinkHandlerLogThread) current;
+            }
+        }
+        return sink;
+    }
+
     public static void publishCurrent(LogRecord record) {
         AlertThreadGroup atg = AlertThreadGroup.current();
         if (atg == null) {
@@ -98,8 +140,8 @@ public class AlertThreadGroup extends ThreadGroup {
         Thread current = Thread.currentThread();
         newMessage.append(orig).append(" (in thread '");
         newMessage.append(current.getName()).append("'");
-        if (current instanceof SinkHandlerLogThread) {
-            SinkHandlerLogThread tt = (SinkHandlerLogThread)current;
+        SinkHandlerLogThread tt = currentSink();
+        if (tt != null) {
             if(tt.getCurrentProcessorName().length()>0) {
                 newMessage.append("; in processor '");
                 newMessage.append(tt.getCurrentProcessorName());
@@ -84,7 +84,7 @@ public class HostsReport extends Report {
         } else {
         	keys = stats.serverCache.hostKeys();
         }
-        writer.print("[#urls] [#bytes] [host] [#robots] [#remaining] [#novel-urls] [#novel-bytes] [#dup-by-hash-urls] [#dup-by-hash-bytes] [#not-modified-urls] [#not-modified-bytes]\n"); 
+        writer.print("[#urls] [#bytes] [host] [#robots] [#remaining] [#novel-urls] [#novel-bytes] [#dup-by-hash-urls] [#dup-by-hash-bytes] [#not-modified-urls] [#not-modified-bytes] [#reused-connections] [#connect-ms-saved] [#tls-full-handshakes] [#tls-resumed-handshakes]\n"); 
         for (String key : keys) {
             // key is -count, value is hostname
             try {
@@ -102,7 +102,11 @@ public class HostsReport extends Report {
 	                        host.getSubstats().getDupByHashUrls(),
 	                        host.getSubstats().getDupByHashBytes(),
 	                        host.getSubstats().getNotModifiedUrls(),
-	                        host.getSubstats().getNotModifiedBytes());
+	                        host.getSubstats().getNotModifiedBytes(),
+	                        host.getSubstats().getConnectionsReused(),
+	                        host.getSubstats().getConnectMsSaved(),
+	                        host.getSubstats().getTlsFullHandshakes(),
+	                        host.getSubstats().getTlsResumedHandshakes());
                 }
             } catch (Exception e) {
                 logger.log(Level.WARNING, "unable to tally host stats for " + key, e);
@@ -19,25 +19,32 @@
  
 package org.archive.crawler.spring;
 
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
+import java.util.NavigableSet;
 import java.util.Set;
+import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.archive.modules.CrawlURI;
 import org.archive.spring.OverlayMapsSource;
 import org.archive.spring.Sheet;
-import org.archive.util.PrefixFinder;
-import org.archive.util.SurtPrefixSet;
+import org.archive.util.PrefixTrie;
 import org.springframework.beans.BeansException;
 import org.springframework.beans.TypeMismatchException;
 import org.springframework.beans.factory.BeanFactory;
@@ -63,6 +70,10 @@ BeanFactoryAware, OverlayMapsSource, ApplicationListener<ApplicationEvent> {
     protected SortedSet<DecideRuledSheetAssociation> ruleAssociations = 
         new ConcurrentSkipListSet<DecideRuledSheetAssociation>();
     protected NavigableMap<String,List<String>> sheetNamesBySurt = new ConcurrentSkipListMap<String,List<String>>(); 
+    /** packed snapshot of the sheetNamesBySurt keys; null when stale */
+    protected volatile PrefixTrie sheetSurtTrie;
+    /** sheetNamesBySurt as handed out, invalidating the snapshot on change */
+    protected NavigableMap<String,List<String>> sheetNamesBySurtView = new SheetNamesBySurt();
     
     /** all sheets by (bean)name*/
     protected Map<String,Sheet> sheetsByName = new ConcurrentHashMap<String, Sheet>();
@@ -99,11 +110,231 @@ BeanFactoryAware, OverlayMapsSource, ApplicationListener<ApplicationEvent> {
     
     /**
      * Sheet names, by the SURT prefix to which they should be applied.
+     * The map may be changed through its own methods; its key, value and
+     * entry views and submaps are read-only.
      * 
      * @return map of Sheet names by their configured SURT
      */
     public NavigableMap<String,List<String>> getSheetsNamesBySurt() {
-        return this.sheetNamesBySurt;
+        return this.sheetNamesBySurtView;
+    }
+
+    /**
+     * @return snapshot of the SURT prefixes having sheets, built on first 
+     * use after any change
+     */
+    protected PrefixTrie getSheetSurtTrie() {
+        PrefixTrie trie = sheetSurtTrie;
+        if (trie == null) {
+            synchronized (this) {
+                trie = sheetSurtTrie;
+                if (trie == null) {
+                    trie = PrefixTrie.of(sheetNamesBySurt.keySet(), false);
+                    sheetSurtTrie = trie;
+                }
+            }
+        }
+        return trie;
+    }
+
+    /**
+     * Must follow any change to the sheetNamesBySurt keys. Waits out any
+     * snapshot being built, which may have missed the change.
+     */
+    protected synchronized void invalidateSheetSurtTrie() {
+        sheetSurtTrie = null;
+    }
+
+    /**
+     * Live view of sheetNamesBySurt that invalidates the SURT snapshot
+     * whenever its keys may have changed. Views are read-only, as changes
+     * through them could not be noticed.
+     */
+    protected class SheetNamesBySurt extends AbstractMap<String,List<String>> 
+    implements NavigableMap<String,List<String>> {
+        protected final NavigableMap<String,List<String>> readOnly = 
+            Collections.unmodifiableNavigableMap(sheetNamesBySurt);
+
+        public int size() {
+            return sheetNamesBySurt.size();
+        }
+        public boolean isEmpty() {
+            return sheetNamesBySurt.isEmpty();
+        }
+        public boolean containsKey(Object key) {
+            return sheetNamesBySurt.containsKey(key);
+        }
+        public boolean containsValue(Object value) {
+            return sheetNamesBySurt.containsValue(value);
+        }
+        public List<String> get(Object key) {
+            return sheetNamesBySurt.get(key);
+        }
+
+        public List<String> put(String key, List<String> value) {
+            List<String> previous = sheetNamesBySurt.put(key, value);
+            if (previous == null) {
+                invalidateSheetSurtTrie();
+            }
+            return previous;
+        }
+        public List<String> putIfAbsent(String key, List<String> value) {
+            List<String> previous = sheetNamesBySurt.putIfAbsent(key, value);
+            if (previous == null) {
+                invalidateSheetSurtTrie();
+            }
+            return previous;
+        }
+        public List<String> remove(Object key) {
+            List<String> previous = sheetNamesBySurt.remove(key);
+            if (previous != null) {
+                invalidateSheetSurtTrie();
+            }
+            return previous;
+        }
+        public boolean remove(Object key, Object value) {
+            boolean removed = sheetNamesBySurt.remove(key, value);
+            if (removed) {
+                invalidateSheetSurtTrie();
+            }
+            return removed;
+        }
+        public void clear() {
+            sheetNamesBySurt.clear();
+            invalidateSheetSurtTrie();
+        }
+        public List<String> replace(String key, List<String> value) {
+            return sheetNamesBySurt.replace(key, value);
+        }
+        public boolean replace(String key, List<String> oldValue, List<String> newValue) {
+            return sheetNamesBySurt.replace(key, oldValue, newValue);
+        }
+        public void replaceAll(BiFunction<? super String, ? super List<String>, ? extends List<String>> function) {
+            sheetNamesBySurt.replaceAll(function);
+        }
+        public List<String> computeIfAbsent(String key, 
+                Function<? super String, ? extends List<String>> function) {
+            try {
+                return sheetNamesBySurt.computeIfAbsent(key, function);
+            } finally {
+                invalidateSheetSurtTrie();
+            }
+        }
+        public List<String> computeIfPresent(String key, 
+                BiFunction<? super String, ? super List<String>, ? extends List<String>> function) {
+            try {
+                return sheetNamesBySurt.computeIfPresent(key, function);
+            } finally {
+                invalidateSheetSurtTrie();
+            }
+        }
+        public List<String> compute(String key, 
+                BiFunction<? super String, ? super List<String>, ? extends List<String>> function) {
+            try {
+                return sheetNamesBySurt.compute(key, function);
+            } finally {
+                invalidateSheetSurtTrie();
+            }
+        }
+        public List<String> merge(String key, List<String> value, 
+                BiFunction<? super List<String>, ? super List<String>, ? extends List<String>> function) {
+            try {
+                return sheetNamesBySurt.merge(key, value, function);
+            } finally {
+                invalidateSheetSurtTrie();
+            }
+        }
+        public Map.Entry<String,List<String>> pollFirstEntry() {
+            Map.Entry<String,List<String>> entry = sheetNamesBySurt.pollFirstEntry();
+            if (entry != null) {
+                invalidateSheetSurtTrie();
+            }
+            return entry;
+        }
+        public Map.Entry<String,List<String>> pollLastEntry() {
+            Map.Entry<String,List<String>> entry = sheetNamesBySurt.pollLastEntry();
+            if (entry != null) {
+                invalidateSheetSurtTrie();
+            }
+            return entry;
+        }
+
+        public Set<Map.Entry<String,List<String>>> entrySet() {
+            return readOnly.entrySet();
+        }
+        public Set<String> keySet() {
+            return readOnly.navigableKeySet();
+        }
+        public Collection<List<String>> values() {
+            return readOnly.values();
+        }
+        public Comparator<? super String> comparator() {
+            return readOnly.comparator();
+        }
+        public String firstKey() {
+            return readOnly.firstKey();
+        }
+        public String lastKey() {
+            return readOnly.lastKey();
+        }
+        public Map.Entry<String,List<String>> lowerEntry(String key) {
+            return readOnly.lowerEntry(key);
+        }
+        public String lowerKey(String key) {
+            return readOnly.lowerKey(key);
+        }
+        public Map.Entry<String,List<String>> floorEntry(String key) {
+            return readOnly.floorEntry(key);
+        }
+        public String floorKey(String key) {
+            return readOnly.floorKey(key);
+        }
+        public Map.Entry<String,List<String>> ceilingEntry(String key) {
+            return readOnly.ceilingEntry(key);
+        }
+        public String ceilingKey(String key) {
+            return readOnly.ceilingKey(key);
+        }
+        public Map.Entry<String,List<String>> higherEntry(String key) {
+            return readOnly.higherEntry(key);
+        }
+        public String higherKey(String key) {
+            return readOnly.higherKey(key);
+        }
+        public Map.Entry<String,List<String>> firstEntry() {
+            return readOnly.firstEntry();
+        }
+        public Map.Entry<String,List<String>> lastEntry() {
+            return readOnly.lastEntry();
+        }
+        public NavigableMap<String,List<String>> descendingMap() {
+            return readOnly.descendingMap();
+        }
+        public NavigableSet<String> navigableKeySet() {
+            return readOnly.navigableKeySet();
+        }
+        public NavigableSet<String> descendingKeySet() {
+            return readOnly.descendingKeySet();
+        }
+        public NavigableMap<String,List<String>> subMap(String fromKey, 
+                boolean fromInclusive, String toKey, boolean toInclusive) {
+            return readOnly.subMap(fromKey, fromInclusive, toKey, toInclusive);
+        }
+        public NavigableMap<String,List<String>> headMap(String toKey, boolean inclusive) {
+            return readOnly.headMap(toKey, inclusive);
+        }
+        public NavigableMap<String,List<String>> tailMap(String fromKey, boolean inclusive) {
+            return readOnly.tailMap(fromKey, inclusive);
+        }
+        public SortedMap<String,List<String>> subMap(String fromKey, String toKey) {
+            return readOnly.subMap(fromKey, toKey);
+        }
+        public SortedMap<String,List<String>> headMap(String toKey) {
+            return readOnly.headMap(toKey);
+        }
+        public SortedMap<String,List<String>> tailMap(String fromKey) {
+            return readOnly.tailMap(fromKey);
+        }
     }
     /**
      * Collect all rule-based SheetAssociations. Typically autowired 
@@ -138,7 +369,9 @@ BeanFactoryAware, OverlayMapsSource, ApplicationListener<ApplicationEvent> {
             sheetNames = new LinkedList<String>();
         }
         sheetNames.add(sheetName); 
-        sheetNamesBySurt.put(prefix, sheetNames); 
+        if(sheetNamesBySurt.put(prefix, sheetNames) == null) {
+            invalidateSheetSurtTrie();
+        }
     }
     
     public boolean removeSurtAssociation(String prefix, String sheetName) {
@@ -147,7 +380,12 @@ BeanFactoryAware, OverlayMapsSource, ApplicationListener<ApplicationEvent> {
             // no such association
             return false; 
         }
-        return sheetNames.remove(sheetName); 
+        boolean removed = sheetNames.remove(sheetName); 
+        if(sheetNames.isEmpty() && sheetNamesBySurt.remove(prefix, sheetNames)) {
+            // no sheets left for the prefix
+            invalidateSheetSurtTrie();
+        }
+        return removed;
     }
 
     /** 
@@ -316,10 +554,14 @@ BeanFactoryAware, OverlayMapsSource, ApplicationListener<ApplicationEvent> {
         curi.setOverlayMapsSource(this); 
         // apply SURT-based overlays
         curi.getOverlayNames().clear(); // clear previous info
-        String effectiveSurt = SurtPrefixSet.getCandidateSurt(curi.getPolicyBasisUURI());
-        List<String> foundPrefixes = PrefixFinder.findKeys(sheetNamesBySurt, effectiveSurt);       
+        String effectiveSurt = curi.getPolicyBasisUURI().getCandidateSurt();
+        List<String> foundPrefixes = getSheetSurtTrie().prefixesOf(effectiveSurt);
         for(String prefix : foundPrefixes) {
-            for(String name : sheetNamesBySurt.get(prefix)) {
+            List<String> names = sheetNamesBySurt.get(prefix);
+            if(names == null) {
+                continue; // removed since snapshot
+            }
+            for(String name : names) {
                 curi.getOverlayNames().add(name);
             }
         }
@@ -231,6 +231,7 @@ implements Lifecycle, Checkpointable, BeanNameAware, DisposableBean {
     }
     
     public synchronized void close() {
+        super.close();
         logger.fine("Count of alreadyseen on close " + count.get());
         Environment env = null;
         if (this.alreadySeen != null) {
@@ -315,8 +316,13 @@ implements Lifecycle, Checkpointable, BeanNameAware, DisposableBean {
     }
 
     protected boolean setAdd(CharSequence uri) {
+        return setAdd(uri, createKey(uri));
+    }
+
+    @Override
+    protected boolean setAdd(CharSequence uri, long fingerprint) {
         DatabaseEntry key = new DatabaseEntry();
-        LongBinding.longToEntry(createKey(uri), key);
+        LongBinding.longToEntry(fingerprint, key);
         long started = 0;
         
         OperationStatus status = null;
@@ -380,7 +386,9 @@ implements Lifecycle, Checkpointable, BeanNameAware, DisposableBean {
     // Checkpointable
     // CrawlController's only interest is in knowing that a Checkpoint is
     // being recovered
-    public void startCheckpoint(Checkpoint checkpointInProgress) {}
+    public void startCheckpoint(Checkpoint checkpointInProgress) {
+        awaitPendingAdds();
+    }
     public void doCheckpoint(Checkpoint checkpointInProgress) throws IOException {
         JSONObject json = new JSONObject();
         try {
@@ -391,7 +399,9 @@ implements Lifecycle, Checkpointable, BeanNameAware, DisposableBean {
             throw new RuntimeException(e);
         }
     }
-    public void finishCheckpoint(Checkpoint checkpointInProgress) {}
+    public void finishCheckpoint(Checkpoint checkpointInProgress) {
+        releasePendingAdds();
+    }
     protected Checkpoint recoveryCheckpoint;
     public void setRecoveryCheckpoint(Checkpoint recoveryCheckpoint) {
         this.recoveryCheckpoint = recoveryCheckpoint;
@@ -0,0 +1,529 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.crawler.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.archive.checkpointing.Checkpoint;
+import org.archive.checkpointing.Checkpointable;
+import org.archive.spring.ConfigPath;
+import org.archive.util.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.springframework.beans.factory.BeanNameAware;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.context.Lifecycle;
+
+/**
+ * An exact AlreadySeen set of 64-bit URI fingerprints, held off-heap in
+ * memory-mapped files.
+ *
+ * <p>Uses the same fingerprints as {@link BdbUriUniqFilter} (see
+ * {@link BdbUriUniqFilter#createKey(CharSequence)}), but rather than one
+ * BDB B-tree insert per URI, each fingerprint is a single 8-byte slot in
+ * an open-addressing (linear probing) hash table. The table is split into
+ * 2^segmentBits independently-locked segments, each its own file, which
+ * double in size separately as they fill. Nothing is kept on the Java
+ * heap, so the set costs no GC effort however large it gets; at the
+ * maximum 75% load each URI costs between 10.7 and 21.3 bytes of mapped
+ * file, which the OS pages to and from disk as needed.
+ *
+ * <p>Each segment can hold at most 2^27 slots (a 1GiB mapping). Past 75%
+ * of that it can no longer grow: it logs a warning and fills further, with
+ * ever longer probes, until at 87.5% further adds fail. The default
+ * segmentBits of 6 (64 segments) comfortably allows about 6 billion URIs.
+ *
+ * <p>Checkpoints copy the segment files into the checkpoint directory.
+ */
+public class MappedFPUriUniqFilter extends SetBasedUriUniqFilter
+implements Lifecycle, Checkpointable, BeanNameAware, DisposableBean {
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger logger =
+        Logger.getLogger(MappedFPUriUniqFilter.class.getName());
+
+    /** largest number of slots in one segment: 1GiB of longs */
+    protected static final int MAX_SEGMENT_CAPACITY = 1 << 27;
+
+    /** sun.misc.Unsafe and its invokeCleaner, to unmap eagerly; or null */
+    protected static final Object UNSAFE;
+    protected static final Method INVOKE_CLEANER;
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> c = Class.forName("sun.misc.Unsafe");
+            Field f = c.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = f.get(null);
+            invokeCleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (Exception e) {
+            logger.log(Level.FINE, "mappings will be released only when collected", e);
+            unsafe = null;
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    /**
+     * Directory in which to keep the segment files. Any files left from
+     * an earlier run are discarded at start (unless resuming from a
+     * checkpoint).
+     */
+    protected ConfigPath dir =
+        new ConfigPath("uniq filter subdirectory","uniq");
+    public ConfigPath getDir() {
+        return dir;
+    }
+    public void setDir(ConfigPath dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Log2 of the number of segments. More segments means less contention
+     * between threads, smaller individual resizes, and a higher maximum
+     * size. Ignored when resuming from a checkpoint, which keeps its own.
+     */
+    protected int segmentBits = 6;
+    public int getSegmentBits() {
+        return segmentBits;
+    }
+    public void setSegmentBits(int segmentBits) {
+        this.segmentBits = segmentBits;
+    }
+
+    /**
+     * Starting number of slots in each segment; rounded up to a power of 2.
+     */
+    protected int initialSegmentCapacity = 1 << 16;
+    public int getInitialSegmentCapacity() {
+        return initialSegmentCapacity;
+    }
+    public void setInitialSegmentCapacity(int initialSegmentCapacity) {
+        this.initialSegmentCapacity = initialSegmentCapacity;
+    }
+
+    protected String beanName;
+    public void setBeanName(String name) {
+        this.beanName = name;
+    }
+
+    protected transient Segment[] segments;
+    protected AtomicLong count = new AtomicLong(0);
+
+    public MappedFPUriUniqFilter() {
+        super();
+    }
+
+    protected boolean isRunning = false;
+    public void start() {
+        if(isRunning()) {
+            return;
+        }
+        try {
+            File directory = getDir().getFile();
+            FileUtils.ensureWriteableDirectory(directory);
+            if (segmentBits < 0 || segmentBits > 16) {
+                throw new IllegalArgumentException(
+                        "segmentBits must be 0-16: " + segmentBits);
+            }
+            if (recoveryCheckpoint != null) {
+                recover(directory, recoveryCheckpoint);
+            } else {
+                segments = new Segment[1 << segmentBits];
+                int capacity = Integer.highestOneBit(
+                        Math.max(initialSegmentCapacity - 1, 1)) << 1;
+                for (int i = 0; i < segments.length; i++) {
+                    File f = segmentFile(directory, i);
+                    Files.deleteIfExists(f.toPath());
+                    segments[i] = new Segment(f, capacity, 0);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        isRunning = true;
+    }
+
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    public void stop() {
+        if(!isRunning()) {
+            return;
+        }
+        isRunning = false;
+    }
+
+    public void destroy() {
+        close();
+    }
+
+    @Override
+    public synchronized void close() {
+        super.close();
+        if (segments == null) {
+            return;
+        }
+        logger.fine("Count of alreadyseen on close " + count.get());
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        segments = null;
+    }
+
+    protected static File segmentFile(File directory, int i) {
+        return new File(directory, "fpset-" + i + ".seg");
+    }
+
+    /**
+     * Spread the (host-clustered) fingerprint bits across the whole long,
+     * so both segment and slot choice are uniform.
+     */
+    protected static long mix(long fp) {
+        long h = fp * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+
+    /**
+     * @return fingerprint for the given uri; never 0, which marks an
+     * empty slot
+     */
+    protected static long fingerprint(CharSequence uri) {
+        long fp = BdbUriUniqFilter.createKey(uri);
+        return fp == 0 ? 1 : fp;
+    }
+
+    /**
+     * @throws IllegalStateException if not started, or closed
+     */
+    protected Segment[] segments() {
+        Segment[] s = segments;
+        if (s == null) {
+            throw new IllegalStateException("uniq filter not running");
+        }
+        return s;
+    }
+
+    protected Segment segmentFor(long mixed) {
+        Segment[] s = segments();
+        return s[(int) (mixed >>> (64 - segmentBits)) & (s.length - 1)];
+    }
+
+    protected boolean setAdd(CharSequence uri) {
+        return setAdd(uri, BdbUriUniqFilter.createKey(uri));
+    }
+
+    @Override
+    protected boolean setAdd(CharSequence uri, long fingerprint) {
+        long fp = fingerprint == 0 ? 1 : fingerprint;
+        long mixed = mix(fp);
+        if (segmentFor(mixed).add(fp, mixed)) {
+            count.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    protected boolean setRemove(CharSequence uri) {
+        long fp = fingerprint(uri);
+        long mixed = mix(fp);
+        if (segmentFor(mixed).remove(fp, mixed)) {
+            count.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    protected long setCount() {
+        return count.get();
+    }
+
+    public long flush() {
+        return 0;
+    }
+
+    /**
+     * One open-addressing table of fingerprints, in one mapped file.
+     */
+    protected static class Segment {
+        protected File file;
+        protected RandomAccessFile raf;
+        protected MappedByteBuffer slots;
+        protected int capacity;
+        protected int mask;
+        protected int size;
+        /** capacity beyond which this segment may not grow */
+        protected int maxCapacity = MAX_SEGMENT_CAPACITY;
+        /** whether the at-maximum warning has been logged */
+        protected boolean warned;
+
+        /**
+         * Map the given file, which is created (or extended) to hold
+         * capacity slots.
+         */
+        protected Segment(File file, int capacity, int size) throws IOException {
+            this.file = file;
+            this.size = size;
+            map(capacity);
+        }
+
+        protected void map(int newCapacity) throws IOException {
+            raf = new RandomAccessFile(file, "rw");
+            slots = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                    0, (long) newCapacity * 8);
+            capacity = newCapacity;
+            mask = newCapacity - 1;
+        }
+
+        protected long slot(int i) {
+            return slots.getLong(i << 3);
+        }
+
+        protected void setSlot(int i, long fp) {
+            slots.putLong(i << 3, fp);
+        }
+
+        protected int home(long mixed) {
+            return (int) mixed & mask;
+        }
+
+        /**
+         * @throws IllegalStateException if the segment is closed, since its
+         * mapping may already be gone
+         */
+        protected void ensureOpen() {
+            if (raf == null) {
+                throw new IllegalStateException("segment " + file + " closed");
+            }
+        }
+
+        public synchronized boolean add(long fp, long mixed) {
+            ensureOpen();
+            if (size >= capacity - (capacity >>> 3)) {
+                throw new IllegalStateException("segment " + file
+                        + " full at " + size + " entries; raise segmentBits");
+            }
+            int i = home(mixed);
+            long v;
+            while ((v = slot(i)) != 0) {
+                if (v == fp) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            setSlot(i, fp);
+            size++;
+            if (size > capacity - (capacity >>> 2)) {
+                if (capacity < maxCapacity) {
+                    grow();
+                } else if (!warned) {
+                    warned = true;
+                    logger.warning("segment " + file + " at maximum size and "
+                            + "over 75% full; adds will fail past 87.5%: "
+                            + "raise segmentBits");
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Remove the given fingerprint, shifting back any later entries of
+         * its probe run so that lookups need no tombstones.
+         */
+        public synchronized boolean remove(long fp, long mixed) {
+            ensureOpen();
+            int i = home(mixed);
+            long v;
+            while ((v = slot(i)) != fp) {
+                if (v == 0) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                v = slot(j);
+                if (v == 0) {
+                    break;
+                }
+                int k = home(mix(v));
+                // leave v if its home lies cyclically in (i, j]
+                boolean inRange = (i <= j) ? (i < k && k <= j) : (i < k || k <= j);
+                if (!inRange) {
+                    setSlot(i, v);
+                    i = j;
+                }
+            }
+            setSlot(i, 0);
+            size--;
+            return true;
+        }
+
+        /**
+         * Double the table, rehashing into a new file which then replaces
+         * the old.
+         */
+        protected void grow() {
+            File newFile = new File(file.getPath() + ".grow");
+            try {
+                Segment bigger = new Segment(newFile, capacity << 1, 0);
+                bigger.maxCapacity = maxCapacity;
+                for (int i = 0; i < capacity; i++) {
+                    long v = slot(i);
+                    if (v != 0) {
+                        bigger.add(v, mix(v));
+                    }
+                }
+                close();
+                Files.move(newFile.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+                bigger.close();
+                map(bigger.capacity);
+            } catch (IOException e) {
+                throw new IllegalStateException("unable to grow " + file, e);
+            }
+        }
+
+        public synchronized void force() {
+            ensureOpen();
+            slots.force();
+        }
+
+        public synchronized void close() {
+            if (raf == null) {
+                return;
+            }
+            slots.force();
+            try {
+                raf.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "problem closing " + file, e);
+            }
+            raf = null;
+            unmap(slots);
+            slots = null;
+        }
+
+        /**
+         * Release the mapping now, rather than whenever the buffer is
+         * collected, so old files' address space and page cache are freed
+         * as the segments grow. The buffer must never be touched again.
+         */
+        protected static void unmap(MappedByteBuffer buffer) {
+            if (INVOKE_CLEANER == null) {
+                return;
+            }
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } catch (Exception e) {
+                logger.log(Level.FINE, "unable to unmap; left to collection", e);
+            }
+        }
+
+        public synchronized void copyTo(File target) throws IOException {
+            ensureOpen();
+            slots.force();
+            Files.copy(file.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Checkpointable
+    public void startCheckpoint(Checkpoint checkpointInProgress) {
+        awaitPendingAdds();
+    }
+
+    public void doCheckpoint(Checkpoint checkpointInProgress) throws IOException {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("count", setCount());
+            json.put("segmentBits", segmentBits);
+            JSONArray capacities = new JSONArray();
+            JSONArray sizes = new JSONArray();
+            File cpDir = checkpointInProgress.getCheckpointDir().getFile();
+            Segment[] segments = segments();
+            for (int i = 0; i < segments.length; i++) {
+                Segment segment = segments[i];
+                synchronized (segment) {
+                    segment.copyTo(new File(cpDir, beanName + "-"
+                            + segment.file.getName()));
+                    capacities.put(segment.capacity);
+                    sizes.put(segment.size);
+                }
+            }
+            json.put("capacities", capacities);
+            json.put("sizes", sizes);
+            checkpointInProgress.saveJson(beanName, json);
+        } catch (JSONException e) {
+            // impossible
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void finishCheckpoint(Checkpoint checkpointInProgress) {
+        releasePendingAdds();
+    }
+
+    protected Checkpoint recoveryCheckpoint;
+    public void setRecoveryCheckpoint(Checkpoint recoveryCheckpoint) {
+        this.recoveryCheckpoint = recoveryCheckpoint;
+    }
+
+    /**
+     * Replace any segment files in the directory with those saved in the
+     * given checkpoint.
+     */
+    protected void recover(File directory, Checkpoint checkpoint)
+    throws IOException {
+        JSONObject json = checkpoint.loadJson(beanName);
+        try {
+            segmentBits = json.getInt("segmentBits");
+            JSONArray capacities = json.getJSONArray("capacities");
+            JSONArray sizes = json.getJSONArray("sizes");
+            File cpDir = checkpoint.getCheckpointDir().getFile();
+            segments = new Segment[1 << segmentBits];
+            for (int i = 0; i < segments.length; i++) {
+                File f = segmentFile(directory, i);
+                Files.copy(new File(cpDir, beanName + "-" + f.getName()).toPath(),
+                        f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                segments[i] = new Segment(f, capacities.getInt(i), sizes.getInt(i));
+            }
+            count.set(json.getLong("count"));
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+}
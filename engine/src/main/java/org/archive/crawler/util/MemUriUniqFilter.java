@@ -30,8 +30,13 @@ import java.util.HashSet;
 public class MemUriUniqFilter
 extends SetBasedUriUniqFilter {
     private static final long serialVersionUID = 1L;
-    protected HashSet<CharSequence> hashSet; 
-    
+    protected HashSet<CharSequence> hashSet;
+
+    public MemUriUniqFilter() {
+        super();
+        createUriSet();
+    }
+
     protected synchronized boolean setAdd(CharSequence uri) {
         return hashSet.add(uri);
     }
@@ -24,7 +24,13 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -34,6 +40,15 @@ import org.archive.modules.CrawlURI;
 /**
  * UriUniqFilter based on an underlying UriSet (essentially a Set).
  * 
+ * <p>Normally each add() consults the set in the calling thread. With 
+ * {@link #setAsyncBatchSize(int)} above zero, add() instead just queues 
+ * the candidate; a dedicated thread takes queued candidates in batches,
+ * sorts each batch by {@link BdbUriUniqFilter#createKey(CharSequence)}
+ * (so each host's URIs are looked up together, near each other in the 
+ * set), and passes novel ones on to the receiver. Adding threads block
+ * only when maxPendingAdds candidates are already waiting, or while a
+ * checkpoint is in progress.
+ * 
  * @author gojomo
  */
 public abstract class SetBasedUriUniqFilter implements UriUniqFilter, Serializable {
@@ -46,6 +61,69 @@ public abstract class SetBasedUriUniqFilter implements UriUniqFilter, Serializab
     protected long duplicatesAtLastSample = 0;
     protected AtomicLong addedCount = new AtomicLong();
     
+    /**
+     * Number of candidate URIs to take from the queue and apply to the set
+     * in each batch, in a dedicated thread. 0 (the default) applies each
+     * add() immediately, in the calling thread.
+     */
+    protected int asyncBatchSize = 0;
+    public int getAsyncBatchSize() {
+        return asyncBatchSize;
+    }
+    public void setAsyncBatchSize(int asyncBatchSize) {
+        this.asyncBatchSize = asyncBatchSize;
+    }
+    
+    /**
+     * Maximum number of candidates queued for batch application; further
+     * add()s wait for room.
+     */
+    protected int maxPendingAdds = 100000;
+    public int getMaxPendingAdds() {
+        return maxPendingAdds;
+    }
+    public void setMaxPendingAdds(int maxPendingAdds) {
+        this.maxPendingAdds = maxPendingAdds;
+    }
+    
+    /**
+     * A candidate awaiting batch application.
+     */
+    protected static class PendingAdd implements Comparable<PendingAdd> {
+        protected String key;
+        protected CrawlURI value;
+        protected long order;
+        protected long queuedNanos;
+        public PendingAdd(String key, CrawlURI value, long order) {
+            this.key = key;
+            this.value = value;
+            this.order = order;
+            this.queuedNanos = System.nanoTime();
+        }
+        public int compareTo(PendingAdd o) {
+            return Long.compare(order, o.order);
+        }
+    }
+    
+    protected transient LinkedBlockingQueue<PendingAdd> pendingAdds;
+    protected transient Thread batchThread;
+    /** candidates queued or in a batch not yet fully applied */
+    protected AtomicLong outstandingAdds = new AtomicLong();
+    /** 
+     * shared by threads queueing candidates; held exclusively from 
+     * {@link #awaitPendingAdds()} to {@link #releasePendingAdds()}, and
+     * fair so that a waiting checkpoint isn't starved by a stream of adds
+     */
+    protected ReentrantReadWriteLock queueingLock = 
+        new ReentrantReadWriteLock(true);
+    
+    // batch statistics
+    protected AtomicLong batchCount = new AtomicLong();
+    protected AtomicLong batchedAddCount = new AtomicLong();
+    protected AtomicLong batchedNovelCount = new AtomicLong();
+    protected AtomicLong batchLatencyNanos = new AtomicLong();
+    protected AtomicLong blockedAddCount = new AtomicLong();
+    
     public SetBasedUriUniqFilter() {
         super();
         String profileLogFile = 
@@ -58,6 +136,15 @@ public abstract class SetBasedUriUniqFilter implements UriUniqFilter, Serializab
     
     protected abstract boolean setAdd(CharSequence key);
 
+    /**
+     * Add to the set a key whose {@link BdbUriUniqFilter#createKey(CharSequence)}
+     * fingerprint is already known, as for queued candidates. Implementations
+     * keyed by that fingerprint override this to skip recomputing it.
+     */
+    protected boolean setAdd(CharSequence key, long fingerprint) {
+        return setAdd(key);
+    }
+
     protected abstract boolean setRemove(CharSequence key);
 
     protected abstract long setCount();
@@ -72,8 +159,8 @@ public abstract class SetBasedUriUniqFilter implements UriUniqFilter, Serializab
     }
 
     public long pending() {
-        // no items pile up in this implementation
-        return 0;
+        // only async adds pile up in this implementation
+        return outstandingAdds.get();
     }
 
     public void setDestination(CrawlUriReceiver receiver) {
@@ -89,7 +176,38 @@ public abstract class SetBasedUriUniqFilter implements UriUniqFilter, Serializab
     public void add(String key, CrawlURI value) {
         addedCount.incrementAndGet();
         profileLog(key);
-        if (setAdd(key)) {
+        if (asyncBatchSize > 0) {
+            queueAdd(key, value);
+        } else {
+            applyAdd(key, value);
+        }
+    }
+    
+    /**
+     * Add to the set, passing the value on to the receiver if novel.
+     * 
+     * @return whether key was novel
+     */
+    protected boolean applyAdd(String key, CrawlURI value) {
+        return afterAdd(setAdd(key), value);
+    }
+
+    /**
+     * Add a queued candidate, reusing the fingerprint it was sorted by.
+     *
+     * @return whether key was novel
+     */
+    protected boolean applyAdd(PendingAdd item) {
+        return afterAdd(setAdd(item.key, item.order), item.value);
+    }
+
+    /**
+     * Pass the value on to the receiver if its key was novel, and tally.
+     *
+     * @return novel
+     */
+    protected boolean afterAdd(boolean novel, CrawlURI value) {
+        if (novel) {
             this.receiver.receive(value);
             if (setCount() % 50000 == 0) {
                 LOGGER.log(Level.FINE, "count: " + setCount() + " totalDups: "
@@ -97,13 +215,162 @@ public abstract class SetBasedUriUniqFilter implements UriUniqFilter, Serializab
                         + (duplicateCount - duplicatesAtLastSample));
                 duplicatesAtLastSample = duplicateCount;
             }
+            return true;
         } else {
             duplicateCount++;
+            return false;
+        }
+    }
+    
+    /**
+     * Queue the candidate for the batch thread, waiting if the queue is 
+     * full.
+     */
+    protected void queueAdd(String key, CrawlURI value) {
+        PendingAdd item = new PendingAdd(key, value, 
+                BdbUriUniqFilter.createKey(key));
+        queueingLock.readLock().lock();
+        try {
+            LinkedBlockingQueue<PendingAdd> queue = ensureBatchThread();
+            outstandingAdds.incrementAndGet();
+            if (!queue.offer(item)) {
+                blockedAddCount.incrementAndGet();
+                try {
+                    queue.put(item);
+                } catch (InterruptedException e) {
+                    // don't lose the candidate; apply it here instead
+                    outstandingAdds.decrementAndGet();
+                    applyAdd(key, value);
+                    Thread.currentThread().interrupt();
+                }
+            }
+        } finally {
+            queueingLock.readLock().unlock();
+        }
+    }
+    
+    protected synchronized LinkedBlockingQueue<PendingAdd> ensureBatchThread() {
+        if (batchThread == null) {
+            pendingAdds = new LinkedBlockingQueue<PendingAdd>(
+                    Math.max(maxPendingAdds, 1));
+            batchThread = new Thread(getClass().getSimpleName() + " batcher") {
+                public void run() {
+                    runBatches();
+                }
+            };
+            batchThread.setDaemon(true);
+            batchThread.start();
+        }
+        return pendingAdds;
+    }
+    
+    /**
+     * Batch thread loop: repeatedly take up to asyncBatchSize queued 
+     * candidates, sort, and apply them.
+     */
+    protected void runBatches() {
+        LinkedBlockingQueue<PendingAdd> queue = pendingAdds;
+        List<PendingAdd> batch = new ArrayList<PendingAdd>();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                PendingAdd first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch, Math.max(asyncBatchSize, 1) - 1);
+            Collections.sort(batch);
+            for (PendingAdd item : batch) {
+                try {
+                    if (applyAdd(item)) {
+                        batchedNovelCount.incrementAndGet();
+                    }
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.SEVERE, "problem adding " + item.key, e);
+                } finally {
+                    outstandingAdds.decrementAndGet();
+                }
+                batchLatencyNanos.addAndGet(System.nanoTime() - item.queuedNanos);
+            }
+            batchCount.incrementAndGet();
+            batchedAddCount.addAndGet(batch.size());
+            batch.clear();
+        }
+    }
+    
+    /**
+     * Hold off any further queued adds, and wait until every candidate
+     * already queued has been applied, as at the start of a checkpoint.
+     * Adding threads block until {@link #releasePendingAdds()} is called
+     * from the same thread, so that no candidate is accepted but left out 
+     * of both the checkpointed set and the frontier's queues.
+     */
+    protected void awaitPendingAdds() {
+        queueingLock.writeLock().lock();
+        while (outstandingAdds.get() > 0 && batchThread != null 
+                && batchThread.isAlive()) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
         }
     }
 
+    /**
+     * Let adds continue after {@link #awaitPendingAdds()}, as at the end
+     * of a checkpoint. Does nothing if this thread isn't holding them off.
+     */
+    protected void releasePendingAdds() {
+        if (queueingLock.isWriteLockedByCurrentThread()) {
+            queueingLock.writeLock().unlock();
+        }
+    }
+    
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+    
+    /**
+     * @return mean number of candidates per applied batch
+     */
+    public double getMeanBatchSize() {
+        long batches = batchCount.get();
+        return batches == 0 ? 0 : batchedAddCount.get() / (double) batches;
+    }
+    
+    /**
+     * @return mean milliseconds from queueing to application of a candidate
+     */
+    public double getMeanAddLatencyMs() {
+        long adds = batchedAddCount.get();
+        return adds == 0 ? 0 : batchLatencyNanos.get() / (adds * 1e6);
+    }
+    
+    /**
+     * @return fraction of batched candidates that were already present
+     */
+    public double getBatchedDuplicateRate() {
+        long adds = batchedAddCount.get();
+        return adds == 0 ? 0 
+                : (adds - batchedNovelCount.get()) / (double) adds;
+    }
+    
+    /**
+     * @return number of add()s that had to wait for queue room
+     */
+    public long getBlockedAddCount() {
+        return blockedAddCount.get();
+    }
+
     public void addNow(String key, CrawlURI value) {
-        add(key, value);
+        addedCount.incrementAndGet();
+        profileLog(key);
+        applyAdd(key, value);
     }
     
     public void addForce(String key, CrawlURI value) {
@@ -127,11 +394,54 @@ public abstract class SetBasedUriUniqFilter implements UriUniqFilter, Serializab
     }
 
     public void close() {
+        Thread t;
+        synchronized (this) {
+            t = batchThread;
+            batchThread = null;
+        }
+        if (t != null) {
+            t.interrupt();
+            try {
+                t.join(10000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            applyRemainingAdds();
+        }
         if (profileLog != null) {
             profileLog.close();
         }
     }
 
+    /**
+     * Apply, in the calling thread, whatever candidates the stopped batch
+     * thread left queued, so that none are lost at close.
+     */
+    protected void applyRemainingAdds() {
+        List<PendingAdd> remaining = new ArrayList<PendingAdd>();
+        queueingLock.writeLock().lock();
+        try {
+            pendingAdds.drainTo(remaining);
+        } finally {
+            queueingLock.writeLock().unlock();
+        }
+        if (remaining.isEmpty()) {
+            return;
+        }
+        LOGGER.info("applying " + remaining.size() 
+                + " queued candidates at close");
+        Collections.sort(remaining);
+        for (PendingAdd item : remaining) {
+            try {
+                applyAdd(item);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "problem adding " + item.key, e);
+            } finally {
+                outstandingAdds.decrementAndGet();
+            }
+        }
+    }
+
     public void setProfileLog(File logfile) {
         try {
             profileLog = new PrintWriter(new BufferedOutputStream(
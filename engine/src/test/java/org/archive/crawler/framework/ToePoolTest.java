@@ -0,0 +1,303 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.crawler.framework;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.archive.crawler.reporting.AlertThreadGroup;
+import org.archive.modules.CrawlMetadata;
+import org.archive.modules.CrawlURI;
+import org.archive.modules.DispositionChain;
+import org.archive.modules.FetchChain;
+import org.archive.modules.ProcessResult;
+import org.archive.modules.Processor;
+import org.archive.net.UURIFactory;
+import org.archive.spring.ConfigPath;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ToePoolTest {
+
+    @TempDir
+    File tempDir;
+
+    /** what a processor saw of the thread processing one URI */
+    static class Seen {
+        final CrawlURI curi;
+        final Thread thread;
+        final AlertThreadGroup group;
+        final Object sink;
+        final ToeWorker worker;
+
+        Seen(CrawlURI curi) {
+            this.curi = curi;
+            this.thread = Thread.currentThread();
+            this.group = AlertThreadGroup.current();
+            this.sink = AlertThreadGroup.currentSink();
+            this.worker = ToeWorker.current();
+        }
+    }
+
+    static class RecordingProcessor extends Processor {
+        final ConcurrentLinkedQueue<Seen> seen = new ConcurrentLinkedQueue<Seen>();
+
+        @Override
+        protected boolean shouldProcess(CrawlURI curi) {
+            return true;
+        }
+
+        @Override
+        protected void innerProcess(CrawlURI curi) {
+            seen.add(new Seen(curi));
+        }
+    }
+
+    /** suspends URIs whose path ends in "suspend" until the future completes */
+    static class SuspendingProcessor extends RecordingProcessor {
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+        final ConcurrentLinkedQueue<Seen> resumed = new ConcurrentLinkedQueue<Seen>();
+
+        @Override
+        protected ProcessResult innerProcessResult(CrawlURI curi) {
+            innerProcess(curi);
+            if (!curi.getURI().endsWith("suspend")) {
+                return ProcessResult.PROCEED;
+            }
+            return ProcessResult.suspend(future, () -> {
+                resumed.add(new Seen(curi));
+                return ProcessResult.PROCEED;
+            });
+        }
+    }
+
+    protected BlockingQueue<CrawlURI> pending = new LinkedBlockingQueue<CrawlURI>();
+    protected List<CrawlURI> finished = Collections.synchronizedList(new ArrayList<CrawlURI>());
+    protected RecordingProcessor processor = new RecordingProcessor();
+
+    /**
+     * @return frontier handing out the pending URIs and noting finished
+     * ones; other calls do nothing
+     */
+    protected Frontier makeFrontier() {
+        return (Frontier) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { Frontier.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "next":
+                        return pending.take();
+                    case "finished":
+                        finished.add((CrawlURI) args[0]);
+                        return null;
+                    case "toString":
+                        return "test frontier";
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        return defaultValue(method);
+                    }
+                });
+    }
+
+    protected static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == float.class) {
+            return 0f;
+        } else if (type == double.class) {
+            return 0d;
+        }
+        return null;
+    }
+
+    protected CrawlController makeController() {
+        return makeController(processor);
+    }
+
+    protected CrawlController makeController(Processor processor) {
+        CrawlController controller = new CrawlController();
+        CrawlMetadata metadata = new CrawlMetadata();
+        metadata.setJobName("toepooltest");
+        controller.setMetadata(metadata);
+        controller.setFrontier(makeFrontier());
+        controller.setScratchDir(new ConfigPath("scratch", tempDir.getAbsolutePath()));
+        FetchChain fetchChain = new FetchChain();
+        fetchChain.setProcessors(Collections.<Processor>singletonList(processor));
+        controller.setFetchChain(fetchChain);
+        DispositionChain dispositionChain = new DispositionChain();
+        dispositionChain.setProcessors(Collections.<Processor>emptyList());
+        controller.setDispositionChain(dispositionChain);
+        return controller;
+    }
+
+    protected static CrawlURI makeCuri(String uri) throws Exception {
+        CrawlURI curi = new CrawlURI(UURIFactory.getInstance(uri));
+        // as the frontier would have done, no sheet overlays apply
+        curi.getOverlayNames();
+        return curi;
+    }
+
+    protected void awaitFinished(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (finished.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, finished.size());
+    }
+
+    /**
+     * A worker run on a thread outside the pool's ThreadGroup, as virtual
+     * threads are, still reports alerts to the crawl's AlertThreadGroup and
+     * names itself as the processing thread.
+     */
+    @Test
+    public void testWorkerOutsidePoolThreadGroup() throws Exception {
+        AlertThreadGroup atg = new AlertThreadGroup("test");
+        ToePool pool = new ToePool(atg, makeController());
+        ToeWorker worker = new ToeWorker(pool, 1);
+        worker.retire();
+        CrawlURI curi = makeCuri("http://example.com/");
+        pending.add(curi);
+
+        Thread thread = new Thread(worker, "not a ToeThread");
+        assertFalse(thread.getThreadGroup() instanceof AlertThreadGroup);
+        thread.start();
+        thread.join(TimeUnit.SECONDS.toMillis(10));
+        assertFalse(thread.isAlive());
+
+        assertEquals(1, processor.seen.size());
+        Seen seen = processor.seen.peek();
+        assertSame(curi, seen.curi);
+        assertSame(thread, seen.thread);
+        assertSame(atg, seen.group);
+        assertSame(worker, seen.sink);
+        assertSame(worker, seen.worker);
+        assertEquals(1, curi.getThreadNumber());
+        assertEquals(Collections.singletonList(curi), finished);
+    }
+
+    @Test
+    public void testVirtualThreadPool() throws Exception {
+        AlertThreadGroup atg = new AlertThreadGroup("test");
+        ToePool pool = new ToePool(atg, makeController());
+        pool.setVirtualThreads(true);
+        // falls back to platform threads where unsupported
+        assertEquals(ToePool.isVirtualThreadsSupported(), pool.getVirtualThreads());
+
+        pool.setSize(2);
+        assertEquals(2, pool.getToeCount());
+        for (int i = 0; i < 4; i++) {
+            pending.add(makeCuri("http://example.com/" + i));
+        }
+        awaitFinished(4);
+        assertEquals(4, processor.seen.size());
+
+        Method isVirtual = null;
+        if (ToePool.isVirtualThreadsSupported()) {
+            isVirtual = Thread.class.getMethod("isVirtual");
+        }
+        for (Seen seen : processor.seen) {
+            assertSame(atg, seen.group);
+            assertNotNull(seen.worker);
+            assertSame(seen.worker, seen.sink);
+            assertSame(seen.thread, seen.worker.getThread());
+            if (isVirtual != null) {
+                assertTrue((Boolean) isVirtual.invoke(seen.thread));
+            } else {
+                assertSame(pool, seen.thread.getThreadGroup());
+            }
+        }
+
+        // interrupts workers blocked waiting for a URI
+        pool.cleanup();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (pool.getToeCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, pool.getToeCount());
+    }
+
+    /**
+     * A worker hands off a suspended URI and goes on to others; a resuming
+     * worker finishes it once its suspended work is done.
+     */
+    @Test
+    public void testSuspendedUriResumed() throws Exception {
+        SuspendingProcessor suspending = new SuspendingProcessor();
+        ToePool pool = new ToePool(new AlertThreadGroup("test"), 
+                makeController(suspending));
+        pool.setMaxSuspended(1);
+        pool.setResumingThreads(1);
+        pool.setSize(1);
+        assertEquals(2, pool.getToeCount());
+
+        CrawlURI suspended = makeCuri("http://example.com/suspend");
+        pending.add(suspended);
+        pending.add(makeCuri("http://example.com/1"));
+        awaitFinished(1);
+        assertEquals(1, pool.getSuspendedCount());
+        assertTrue(suspending.resumed.isEmpty());
+
+        // no permit left, so the next one is waited out on its worker
+        pending.add(makeCuri("http://example.com/2suspend"));
+        Thread.sleep(200);
+        assertEquals(1, finished.size());
+
+        suspending.future.complete(null);
+        awaitFinished(3);
+        assertTrue(finished.contains(suspended));
+        assertEquals(0, pool.getSuspendedCount());
+        assertEquals(2, suspending.resumed.size());
+
+        for (Seen resumed : suspending.resumed) {
+            Seen first = suspending.seen.stream()
+                    .filter(s -> s.curi == resumed.curi).findFirst().get();
+            if (resumed.curi == suspended) {
+                assertNotSame(first.worker, resumed.worker);
+                assertTrue(resumed.worker.getName().contains("resuming"));
+            } else {
+                assertSame(first.worker, resumed.worker);
+            }
+        }
+
+        pool.cleanup();
+    }
+}
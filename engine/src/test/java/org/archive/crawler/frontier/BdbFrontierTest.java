@@ -19,7 +19,40 @@
 
 package org.archive.crawler.frontier;
 
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import javax.management.openmbean.CompositeData;
+
+import org.archive.bdb.BdbModule;
+import org.archive.checkpointing.Checkpoint;
 import org.archive.crawler.framework.CrawlerProcessorTestBase;
+import org.archive.crawler.prefetch.FrontierPreparer;
+import org.archive.crawler.spring.SheetOverlaysManager;
+import org.archive.modules.CrawlURI;
+import org.archive.modules.fetcher.DefaultServerCache;
+import org.archive.net.UURIFactory;
+import org.archive.spring.ConfigPath;
+import org.archive.spring.KeyedProperties;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.context.support.StaticApplicationContext;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 
 /**
@@ -28,7 +61,375 @@ import org.archive.crawler.framework.CrawlerProcessorTestBase;
  */
 public class BdbFrontierTest extends CrawlerProcessorTestBase {
 
-    // TODO TESTME
+    @TempDir
+    Path tempDir;
 
-}
+    protected BdbModule makeBdb(String name, Checkpoint recoveryCheckpoint) {
+        ConfigPath basePath = new ConfigPath("testBase", tempDir.toAbsolutePath().toString());
+        ConfigPath dir = new ConfigPath(name, name);
+        dir.setBase(basePath);
+        BdbModule bdb = new BdbModule();
+        bdb.setDir(dir);
+        bdb.setRecoveryCheckpoint(recoveryCheckpoint);
+        bdb.start();
+        return bdb;
+    }
+
+    /**
+     * A frontier with just its queue structures set up, over the main bdb
+     * plus one bdb per pending shard.
+     */
+    protected BdbFrontier makeFrontier(List<BdbModule> bdbs, Checkpoint recoveryCheckpoint) {
+        BdbFrontier frontier = new BdbFrontier();
+        frontier.setBeanName("frontier");
+        frontier.setBdbModule(bdbs.get(0));
+        frontier.setPendingShards(bdbs.subList(1, bdbs.size()));
+        frontier.setRecoveryCheckpoint(recoveryCheckpoint);
+        frontier.initOtherQueues();
+        return frontier;
+    }
+
+    protected List<BdbModule> makeBdbs(int shards, Checkpoint recoveryCheckpoint) {
+        List<BdbModule> bdbs = new ArrayList<BdbModule>();
+        bdbs.add(makeBdb("bdb", recoveryCheckpoint));
+        for (int i = 0; i < shards; i++) {
+            bdbs.add(makeBdb("pending" + i, recoveryCheckpoint));
+        }
+        return bdbs;
+    }
+
+    protected void close(List<BdbModule> bdbs) throws Exception {
+        for (BdbModule bdb : bdbs) {
+            bdb.stop();
+            bdb.destroy();
+        }
+    }
+
+    /** schedule count URIs in each of queues queues, directly to their shards */
+    protected Set<String> fill(BdbFrontier frontier, int queues, int count) throws Exception {
+        Set<String> uris = new HashSet<String>();
+        long ordinal = 0;
+        for (int q = 0; q < queues; q++) {
+            String classKey = "host" + q + ",";
+            for (int i = 0; i < count; i++) {
+                CrawlURI curi = new CrawlURI(UURIFactory.getInstance(
+                        "http://host" + q + "/" + i));
+                curi.setClassKey(classKey);
+                curi.setOrdinal(ordinal++);
+                frontier.getWorkQueues(classKey).put(curi, false);
+                uris.add(curi.toString());
+            }
+        }
+        return uris;
+    }
+
+    /** page through getURIsList, checking each URI comes back once */
+    protected List<String> listAll(BdbFrontier frontier, int pageSize) {
+        List<String> listed = new ArrayList<String>();
+        String marker = null;
+        do {
+            CompositeData page = frontier.getURIsList(marker, pageSize, ".*", false);
+            String[] list = (String[]) page.get("list");
+            assertTrue(list.length <= pageSize);
+            listed.addAll(Arrays.asList(list));
+            marker = (String) page.get("marker");
+        } while (marker != null);
+        assertEquals(new HashSet<String>(listed).size(), listed.size(), "listed twice");
+        return listed;
+    }
+
+    /**
+     * A frontier able to hand out and take back URIs, driven directly
+     * rather than by a manager thread, batching up to 3 streams per queue
+     * and journaling to the temp dir.
+     */
+    protected BdbFrontier makeDispatchingFrontier(List<BdbModule> bdbs) throws Exception {
+        BdbFrontier frontier = new BdbFrontier() {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected void log(CrawlURI curi) {
+                // no crawl.log here
+            }
+        };
+        frontier.setBeanName("frontier");
+        frontier.setBdbModule(bdbs.get(0));
+        frontier.setPendingShards(bdbs.subList(1, bdbs.size()));
+        frontier.setServerCache(new DefaultServerCache());
+        frontier.setSheetOverlaysManager(new SheetOverlaysManager());
+        frontier.setFrontierPreparer(new FrontierPreparer());
+        StaticApplicationContext appCtx = new StaticApplicationContext();
+        appCtx.refresh();
+        frontier.setApplicationContext(appCtx);
+        frontier.setHttp2StreamsPerQueue(3);
+        frontier.initOtherQueues();
+        frontier.initAllQueues();
+        frontier.recover = new FrontierJournal(tempDir.toAbsolutePath().toString(),
+                FrontierJournal.LOGNAME_RECOVER);
+        return frontier;
+    }
+
+    protected CrawlURI enqueue(BdbFrontier frontier, String uri, long ordinal) throws Exception {
+        CrawlURI curi = new CrawlURI(UURIFactory.getInstance(uri));
+        curi.setOrdinal(ordinal);
+        frontier.getSheetOverlaysManager().applyOverlaysTo(curi);
+        KeyedProperties.withOverridesDo(curi, () -> {
+            curi.setClassKey(frontier.getClassKey(curi));
+            frontier.sendToQueue(curi);
+        });
+        return curi;
+    }
+
+    /** finish the emitted URI as a success asking for the given delay */
+    protected void finish(BdbFrontier frontier, CrawlURI curi, long delayMs) {
+        curi.setFetchStatus(200);
+        curi.setPolitenessDelay(delayMs);
+        KeyedProperties.withOverridesDo(curi, () -> frontier.processFinish(curi));
+    }
+
+    /** @return journal lines with the given tag, tag stripped */
+    protected List<String> journaled(BdbFrontier frontier, String tag) throws Exception {
+        frontier.getFrontierJournal().close();
+        List<String> uris = new ArrayList<String>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(
+                        tempDir.resolve(FrontierJournal.LOGNAME_RECOVER).toFile())),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(tag)) {
+                    uris.add(line.substring(tag.length()));
+                }
+            }
+        }
+        return uris;
+    }
+
+    @Test
+    public void testShardRouting() throws Exception {
+        List<BdbModule> bdbs = makeBdbs(3, null);
+        try {
+            BdbFrontier frontier = makeFrontier(bdbs, null);
+            assertEquals(3, frontier.pendingUriShards.length);
+            assertSame(frontier.pendingUriShards[0], frontier.getWorkQueues());
+            Set<String> uris = fill(frontier, 20, 5);
+
+            // each queue lives wholly in the shard its classKey hashes to
+            int[] counts = new int[3];
+            for (int s = 0; s < frontier.pendingUriShards.length; s++) {
+                final int shard = s;
+                frontier.pendingUriShards[s].forAllPendingDo(o -> {
+                    CrawlURI curi = (CrawlURI) o;
+                    assertEquals(shard, Math.floorMod(curi.getClassKey().hashCode(), 3),
+                            curi.getClassKey());
+                    counts[shard]++;
+                });
+            }
+            assertEquals(uris.size(), counts[0] + counts[1] + counts[2]);
+            assertTrue(Arrays.stream(counts).filter(c -> c > 0).count() > 1,
+                    "all queues hashed to one shard");
+
+            // listing covers every shard, in one go or page by page
+            List<String> listed = listAll(frontier, 1000);
+            assertEquals(uris, new HashSet<String>(listed));
+            assertEquals(listed, listAll(frontier, 7));
+            assertEquals(listed, listAll(frontier, 1));
+            CompositeData none = frontier.getURIsList(null, 10, "nomatch", false);
+            assertEquals(0, ((String[]) none.get("list")).length);
+            assertNull(none.get("marker"));
+        } finally {
+            close(bdbs);
+        }
+    }
+
+    @Test
+    public void testCheckpointRecoverShards() throws Exception {
+        ConfigPath checkpointsPath = new ConfigPath("checkpoints", "checkpoints");
+        checkpointsPath.setBase(new ConfigPath("testBase", tempDir.toAbsolutePath().toString()));
+        Checkpoint checkpoint = new Checkpoint();
+        checkpoint.generateFrom(checkpointsPath, 1);
 
+        List<BdbModule> bdbs = makeBdbs(2, null);
+        Set<String> uris;
+        try {
+            BdbFrontier frontier = makeFrontier(bdbs, null);
+            uris = fill(frontier, 10, 3);
+            frontier.doCheckpoint(checkpoint);
+            for (BdbModule bdb : bdbs) {
+                bdb.doCheckpoint(checkpoint);
+            }
+            // not in the checkpoint
+            fill(frontier, 12, 4);
+        } finally {
+            close(bdbs);
+        }
+
+        Checkpoint recovery = new Checkpoint();
+        ConfigPath recoverPath = new ConfigPath("recover", checkpoint.getName());
+        recoverPath.setBase(checkpointsPath);
+        recovery.setCheckpointDir(recoverPath);
+        recovery.afterPropertiesSet();
+
+        bdbs = makeBdbs(2, recovery);
+        try {
+            BdbFrontier frontier = makeFrontier(bdbs, recovery);
+            frontier.initAllQueues();
+            assertEquals(uris, new HashSet<String>(listAll(frontier, 4)));
+        } finally {
+            close(bdbs);
+        }
+
+        // a different shard count would route queues to the wrong shard
+        List<BdbModule> fewer = makeBdbs(1, null);
+        try {
+            BdbFrontier frontier = makeFrontier(fewer, recovery);
+            assertThrows(IllegalStateException.class, frontier::initAllQueues);
+        } finally {
+            close(fewer);
+        }
+    }
+
+    /**
+     * A multiplexed server's queue hands out its head and two companions,
+     * stays in process until all three finish, then snoozes once for the
+     * longest delay any of them asked for.
+     */
+    @Test
+    public void testMultiplexedBatch() throws Exception {
+        List<BdbModule> bdbs = makeBdbs(0, null);
+        try {
+            BdbFrontier frontier = makeDispatchingFrontier(bdbs);
+            frontier.getServerCache().getServerFor(
+                    UURIFactory.getInstance("http://multi.example.com/"))
+                    .setMultiplexed(true);
+            for (int i = 0; i < 5; i++) {
+                enqueue(frontier, "http://multi.example.com/" + i, i);
+            }
+
+            CrawlURI head = frontier.findEligibleURI();
+            assertEquals("http://multi.example.com/0", head.toString());
+            WorkQueue wq = (WorkQueue) head.getHolder();
+            assertTrue(wq.isBatchOpen());
+            assertEquals(2, frontier.getCompanionsEmitted());
+            CrawlURI first = frontier.findEligibleURI();
+            CrawlURI second = frontier.findEligibleURI();
+            assertEquals("http://multi.example.com/1", first.toString());
+            assertEquals("http://multi.example.com/2", second.toString());
+            assertSame(wq, first.getHolder());
+            assertTrue(wq.isCompanion(first));
+
+            long before = System.currentTimeMillis();
+            // finish out of order; the queue waits for the last
+            finish(frontier, second, 100);
+            finish(frontier, head, 5000);
+            assertTrue(frontier.inProcessQueues.contains(wq));
+            assertEquals(1, frontier.getInProcessCount());
+            finish(frontier, first, 200);
+            assertFalse(frontier.inProcessQueues.contains(wq));
+            assertFalse(wq.isBatchOpen());
+            assertTrue(wq.getWakeTime() >= before + 5000, "snoozed for longest delay");
+            assertEquals(2, wq.getCount());
+            assertEquals(2, frontier.queuedUriCount());
+
+            // no batching for a server not known to multiplex
+            for (int i = 0; i < 3; i++) {
+                enqueue(frontier, "http://plain.example.com/" + i, 10 + i);
+            }
+            CrawlURI plain = frontier.findEligibleURI();
+            assertEquals("http://plain.example.com/0", plain.toString());
+            assertFalse(((WorkQueue) plain.getHolder()).isBatchOpen());
+            assertTrue(frontier.pendingCompanions.isEmpty());
+            assertEquals(2, frontier.getCompanionsEmitted());
+            frontier.getFrontierJournal().close();
+        } finally {
+            close(bdbs);
+        }
+    }
+
+    /**
+     * Pausing takes back companions not yet handed out, journaling each;
+     * the queue settles when its head finishes, and they go out again.
+     */
+    @Test
+    public void testReturnPendingEmitsOnPause() throws Exception {
+        List<BdbModule> bdbs = makeBdbs(0, null);
+        try {
+            BdbFrontier frontier = makeDispatchingFrontier(bdbs);
+            frontier.getServerCache().getServerFor(
+                    UURIFactory.getInstance("http://multi.example.com/"))
+                    .setMultiplexed(true);
+            for (int i = 0; i < 4; i++) {
+                enqueue(frontier, "http://multi.example.com/" + i, i);
+            }
+            CrawlURI head = frontier.findEligibleURI();
+            WorkQueue wq = (WorkQueue) head.getHolder();
+            assertEquals(2, frontier.pendingCompanions.size());
+
+            frontier.returnPendingEmits();
+            assertTrue(frontier.pendingCompanions.isEmpty());
+            // the head is still out
+            assertTrue(wq.isBatchOpen());
+            assertEquals(1, frontier.getInProcessCount());
+
+            finish(frontier, head, 0);
+            assertFalse(wq.isBatchOpen());
+            assertEquals(0, frontier.getInProcessCount());
+            assertEquals(3, wq.getCount());
+
+            CrawlURI again = frontier.findEligibleURI();
+            assertEquals("http://multi.example.com/1", again.toString());
+            assertEquals("http://multi.example.com/2", frontier.findEligibleURI().toString());
+            assertEquals("http://multi.example.com/3", frontier.findEligibleURI().toString());
+
+            assertEquals(Arrays.asList("http://multi.example.com/1", 
+                    "http://multi.example.com/2"),
+                    journaled(frontier, FrontierJournal.F_REENQUEUED));
+            assertEquals(Arrays.asList("http://multi.example.com/0",
+                    "http://multi.example.com/1", "http://multi.example.com/2",
+                    "http://multi.example.com/1", "http://multi.example.com/2",
+                    "http://multi.example.com/3"),
+                    journaled(frontier, FrontierJournal.F_EMIT));
+        } finally {
+            close(bdbs);
+        }
+    }
+
+    /**
+     * When every handed-out member has already finished, as a finishing
+     * frontier waits for, taking back the rest closes the batch and
+     * releases the queue, with the dispositions its finished members
+     * asked for.
+     */
+    @Test
+    public void testReturnPendingEmitsOnFinish() throws Exception {
+        List<BdbModule> bdbs = makeBdbs(0, null);
+        try {
+            BdbFrontier frontier = makeDispatchingFrontier(bdbs);
+            frontier.getServerCache().getServerFor(
+                    UURIFactory.getInstance("http://multi.example.com/"))
+                    .setMultiplexed(true);
+            for (int i = 0; i < 3; i++) {
+                enqueue(frontier, "http://multi.example.com/" + i, i);
+            }
+            CrawlURI head = frontier.findEligibleURI();
+            WorkQueue wq = (WorkQueue) head.getHolder();
+            CrawlURI first = frontier.findEligibleURI();
+            assertEquals("http://multi.example.com/1", first.toString());
+
+            long before = System.currentTimeMillis();
+            finish(frontier, head, 3000);
+            finish(frontier, first, 1000);
+            // held by the companion never handed out
+            assertEquals(1, frontier.getInProcessCount());
+
+            frontier.returnPendingEmits();
+            assertEquals(0, frontier.getInProcessCount());
+            assertFalse(wq.isBatchOpen());
+            assertTrue(wq.getWakeTime() >= before + 3000, "snoozed for longest delay");
+            assertEquals(1, wq.getCount());
+            assertEquals(Arrays.asList("http://multi.example.com/2"),
+                    journaled(frontier, FrontierJournal.F_REENQUEUED));
+        } finally {
+            close(bdbs);
+        }
+    }
+}
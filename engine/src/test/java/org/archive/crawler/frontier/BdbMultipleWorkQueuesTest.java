@@ -18,6 +18,8 @@
  */
 package org.archive.crawler.frontier;
 
+import java.nio.file.Path;
+import java.util.List;
 import java.util.logging.Logger;
 
 import org.archive.url.URIException;
@@ -25,10 +27,18 @@ import org.archive.modules.CrawlURI;
 import org.archive.modules.SchedulingConstants;
 import org.archive.net.UURIFactory;
 
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
 import com.sleepycat.je.tree.Key;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
@@ -40,6 +50,9 @@ public class BdbMultipleWorkQueuesTest {
     private static Logger logger =
         Logger.getLogger(BdbMultipleWorkQueuesTest.class.getName());
 
+    @TempDir
+    Path tempDir;
+
     
     /**
      * Basic sanity checks for calculateInsertKey() -- ensure ordinal, cost,
@@ -101,4 +114,168 @@ public class BdbMultipleWorkQueuesTest {
                     "lower cost sorting first (" + ordinalOrigin + ")");
         }
     }
+
+    protected CrawlURI makeCrawlURI(String uri, long ordinal) throws URIException {
+        CrawlURI curi = new CrawlURI(UURIFactory.getInstance(uri));
+        curi.setOrdinal(ordinal);
+        curi.setClassKey("foo");
+        return curi;
+    }
+
+    /**
+     * Dequeue through the head buffer: items come back in key order, most
+     * reads need no cursor, and an insert ahead of the buffered range is
+     * seen immediately.
+     */
+    @Test
+    public void testHeadBuffer() throws Exception {
+        EnvironmentConfig envConfig = new EnvironmentConfig();
+        envConfig.setAllowCreate(true);
+        Environment env = new Environment(tempDir.toFile(), envConfig);
+        DatabaseConfig dbConfig = new DatabaseConfig();
+        dbConfig.setAllowCreate(true);
+        Database db = env.openDatabase(null, "pending", dbConfig);
+        try {
+            BdbMultipleWorkQueues queues = new BdbMultipleWorkQueues(db, null);
+            queues.setHeadBufferItems(4);
+            byte[] origin = BdbMultipleWorkQueues.calculateOriginKey("foo");
+            queues.addCap(origin);
+            for (int i = 0; i < 10; i++) {
+                queues.put(makeCrawlURI("http://foo/" + i, i), false);
+            }
+
+            for (int i = 0; i < 5; i++) {
+                CrawlURI curi = queues.get(new DatabaseEntry(origin), "foo");
+                assertNotNull(curi);
+                assertEquals("http://foo/" + i, curi.toString());
+                queues.delete(curi);
+            }
+            // 4 from the first scan, then a second scan
+            assertEquals(2, queues.getHeadCursorReads());
+            assertEquals(3, queues.getHeadBufferReads());
+            assertTrue(queues.getHeadBufferBytes() > 0);
+
+            CrawlURI urgent = makeCrawlURI("http://foo/urgent", 100);
+            urgent.setSchedulingDirective(SchedulingConstants.HIGH);
+            queues.put(urgent, false);
+            CrawlURI curi = queues.get(new DatabaseEntry(origin), "foo");
+            assertEquals("http://foo/urgent", curi.toString());
+            queues.delete(curi);
+
+            for (int i = 5; i < 10; i++) {
+                curi = queues.get(new DatabaseEntry(origin), "foo");
+                assertEquals("http://foo/" + i, curi.toString());
+                queues.delete(curi);
+            }
+            assertEquals(0, queues.getHeadBufferBytes());
+            assertEquals(0, queues.getHeadBufferCount());
+        } finally {
+            db.close();
+            env.close();
+        }
+    }
+
+    /**
+     * Every buffered entry, a queue's first included, counts against the
+     * byte cap; a queue with no room is still read, unbuffered.
+     */
+    @Test
+    public void testHeadBufferMaxBytes() throws Exception {
+        EnvironmentConfig envConfig = new EnvironmentConfig();
+        envConfig.setAllowCreate(true);
+        Environment env = new Environment(tempDir.toFile(), envConfig);
+        DatabaseConfig dbConfig = new DatabaseConfig();
+        dbConfig.setAllowCreate(true);
+        Database db = env.openDatabase(null, "pending", dbConfig);
+        try {
+            BdbMultipleWorkQueues queues = new BdbMultipleWorkQueues(db, null);
+            queues.setHeadBufferItems(4);
+            byte[] origin = BdbMultipleWorkQueues.calculateOriginKey("foo");
+            queues.addCap(origin);
+            byte[] otherOrigin = BdbMultipleWorkQueues.calculateOriginKey("goo");
+            queues.addCap(otherOrigin);
+            queues.put(makeCrawlURI("http://foo/0", 0), false);
+            for (int i = 0; i < 3; i++) {
+                CrawlURI other = makeCrawlURI("http://goo/" + i, i);
+                other.setClassKey("goo");
+                queues.put(other, false);
+            }
+
+            // size of one entry, from the single-item queue
+            CrawlURI curi = queues.get(new DatabaseEntry(origin), "foo");
+            long oneEntry = queues.getHeadBufferBytes();
+            assertTrue(oneEntry > 0);
+            queues.clearHeadBuffer("foo");
+            queues.setHeadBufferMaxBytes(oneEntry);
+
+            // room for goo's first entry only
+            CrawlURI other = queues.get(new DatabaseEntry(otherOrigin), "goo");
+            assertEquals("http://goo/0", other.toString());
+            assertEquals(oneEntry, queues.getHeadBufferBytes());
+            assertEquals(1, queues.getHeadBufferCount());
+
+            // no room at all for foo's
+            curi = queues.get(new DatabaseEntry(origin), "foo");
+            assertEquals("http://foo/0", curi.toString());
+            assertEquals(oneEntry, queues.getHeadBufferBytes());
+            assertEquals(1, queues.getHeadBufferCount());
+
+            queues.delete(other);
+            assertEquals(0, queues.getHeadBufferBytes());
+            assertEquals("http://foo/0", 
+                    queues.get(new DatabaseEntry(origin), "foo").toString());
+            assertEquals(oneEntry, queues.getHeadBufferBytes());
+        } finally {
+            db.close();
+            env.close();
+        }
+    }
+
+    /**
+     * Read the front of a queue for multiplexed dispatch, then finish one
+     * of the items behind the head first.
+     */
+    @Test
+    public void testGetFirstItems() throws Exception {
+        EnvironmentConfig envConfig = new EnvironmentConfig();
+        envConfig.setAllowCreate(true);
+        Environment env = new Environment(tempDir.toFile(), envConfig);
+        DatabaseConfig dbConfig = new DatabaseConfig();
+        dbConfig.setAllowCreate(true);
+        Database db = env.openDatabase(null, "pending", dbConfig);
+        try {
+            BdbMultipleWorkQueues queues = new BdbMultipleWorkQueues(db, null);
+            queues.setHeadBufferItems(4);
+            byte[] origin = BdbMultipleWorkQueues.calculateOriginKey("foo");
+            queues.addCap(origin);
+            byte[] otherOrigin = BdbMultipleWorkQueues.calculateOriginKey("goo");
+            queues.addCap(otherOrigin);
+            for (int i = 0; i < 3; i++) {
+                queues.put(makeCrawlURI("http://foo/" + i, i), false);
+                CrawlURI other = makeCrawlURI("http://goo/" + i, i);
+                other.setClassKey("goo");
+                queues.put(other, false);
+            }
+
+            CrawlURI head = queues.get(new DatabaseEntry(origin), "foo");
+            List<CrawlURI> items = queues.getFirstItems(origin, 5);
+            // stops at the end of the queue
+            assertEquals(3, items.size());
+            for (int i = 0; i < 3; i++) {
+                assertEquals("http://foo/" + i, items.get(i).toString());
+                assertNotNull(items.get(i).getHolderKey());
+            }
+
+            queues.delete(items.get(1));
+            assertEquals(head.toString(),
+                    queues.get(new DatabaseEntry(origin), "foo").toString());
+            queues.delete(head);
+            assertEquals("http://foo/2",
+                    queues.get(new DatabaseEntry(origin), "foo").toString());
+            assertEquals(1, queues.getFirstItems(origin, 5).size());
+        } finally {
+            db.close();
+            env.close();
+        }
+    }
 }
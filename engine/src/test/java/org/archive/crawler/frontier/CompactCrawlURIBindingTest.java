@@ -0,0 +1,180 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.crawler.frontier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.archive.bdb.KryoBinding;
+import org.archive.modules.CoreAttributeConstants;
+import org.archive.modules.CrawlURI;
+import org.archive.modules.extractor.HTMLLinkContext;
+import org.archive.modules.extractor.Hop;
+import org.archive.modules.extractor.LinkContext;
+import org.archive.net.UURIFactory;
+import org.junit.jupiter.api.Test;
+
+import com.sleepycat.je.DatabaseEntry;
+
+/**
+ * Tests for CompactCrawlURIBinding.
+ */
+public class CompactCrawlURIBindingTest {
+
+    protected static CrawlURI sample() throws Exception {
+        CrawlURI seed = new CrawlURI(
+                UURIFactory.getInstance("http://www.example.com/"));
+        seed.setSeed(true);
+        seed.setSourceTag("http://www.example.com/");
+        seed.makeHeritable(CoreAttributeConstants.A_SOURCE_TAG);
+        CrawlURI page = seed.createCrawlURI("http://www.example.com/a/b.html",
+                HTMLLinkContext.A_HREF, Hop.NAVLINK);
+        CrawlURI curi = page.createCrawlURI("http://www.example.com/a/img.png",
+                HTMLLinkContext.get("img/@data-src"), Hop.EMBED);
+        curi.setClassKey("com,example,www,");
+        curi.setSchedulingDirective(1);
+        curi.setPrecedence(3);
+        curi.setHolderCost(7);
+        curi.setOrdinal(123456789L);
+        curi.setPolitenessDelay(2500);
+        curi.setRescheduleTime(1700000000000L);
+        curi.setFetchStatus(-50);
+        curi.incrementDeferrals();
+        curi.setContentSize(4096);
+        curi.setContentType("image/png");
+        curi.setContentDigest("sha1", new byte[] {1, 2, 3, 4});
+        curi.getData().put(CoreAttributeConstants.A_FORCE_RETIRE, Boolean.TRUE);
+        curi.getData().put("custom-count", 42);
+        curi.getData().put("custom-long", Long.MAX_VALUE);
+        curi.addExtraInfo("note", "x");
+        return curi;
+    }
+
+    protected static void assertSame(CrawlURI expected, CrawlURI actual) {
+        assertEquals(expected.getUURI().toCustomString(), actual.getUURI().toCustomString());
+        assertEquals(expected.getVia().toCustomString(), actual.getVia().toCustomString());
+        assertEquals(expected.getViaContext(), actual.getViaContext());
+        assertEquals(expected.getPathFromSeed(), actual.getPathFromSeed());
+        assertEquals(expected.isSeed(), actual.isSeed());
+        assertEquals(expected.getClassKey(), actual.getClassKey());
+        assertEquals(expected.getSchedulingDirective(), actual.getSchedulingDirective());
+        assertEquals(expected.getPrecedence(), actual.getPrecedence());
+        assertEquals(expected.getHolderCost(), actual.getHolderCost());
+        assertEquals(expected.getOrdinal(), actual.getOrdinal());
+        assertEquals(expected.getPolitenessDelay(), actual.getPolitenessDelay());
+        assertEquals(expected.getRescheduleTime(), actual.getRescheduleTime());
+        assertEquals(expected.getFetchStatus(), actual.getFetchStatus());
+        assertEquals(expected.getDeferrals(), actual.getDeferrals());
+        assertEquals(expected.getContentSize(), actual.getContentSize());
+        assertEquals(expected.getContentType(), actual.getContentType());
+        assertEquals(expected.getContentDigestSchemeString(), actual.getContentDigestSchemeString());
+        assertEquals(expected.getSourceTag(), actual.getSourceTag());
+        assertEquals(expected.getData(), actual.getData());
+        assertEquals(expected.getExtraInfo().toString(), actual.getExtraInfo().toString());
+    }
+
+    @Test
+    public void testCompactRoundTrip() throws Exception {
+        CompactCrawlURIBinding binding = new CompactCrawlURIBinding();
+        CrawlURI curi = sample();
+        DatabaseEntry entry = new DatabaseEntry();
+        binding.objectToEntry(curi, entry);
+        assertEquals(CrawlURI.COMPACT_MARKER, entry.getData()[0]);
+        assertSame(curi, binding.entryToObject(entry));
+        assertEquals(1, binding.getCompactWrites());
+        assertEquals(1, binding.getCompactReads());
+    }
+
+    @Test
+    public void testReadsLegacyKryo() throws Exception {
+        CrawlURI curi = sample();
+        DatabaseEntry entry = new DatabaseEntry();
+        new KryoBinding<CrawlURI>(CrawlURI.class).objectToEntry(curi, entry);
+        assertNotEquals(CrawlURI.COMPACT_MARKER, entry.getData()[0]);
+        CompactCrawlURIBinding binding = new CompactCrawlURIBinding();
+        assertSame(curi, binding.entryToObject(entry));
+        assertEquals(1, binding.getLegacyReads());
+    }
+
+    @Test
+    public void testFallsBackForUnsupportedState() throws Exception {
+        CompactCrawlURIBinding binding = new CompactCrawlURIBinding();
+        CrawlURI curi = sample();
+        curi.getData().put("custom-list", Arrays.asList("a", "b"));
+        DatabaseEntry entry = new DatabaseEntry();
+        binding.objectToEntry(curi, entry);
+        assertNotEquals(CrawlURI.COMPACT_MARKER, entry.getData()[0]);
+        assertEquals(1, binding.getLegacyWrites());
+        assertSame(curi, binding.entryToObject(entry));
+
+        binding.setWriteCompact(false);
+        binding.objectToEntry(sample(), entry);
+        assertEquals(2, binding.getLegacyWrites());
+        assertEquals(0, binding.getCompactWrites());
+    }
+
+    @Test
+    public void testSimpleContextAndRawPath() throws Exception {
+        CompactCrawlURIBinding binding = new CompactCrawlURIBinding();
+        CrawlURI curi = new CrawlURI(
+                UURIFactory.getInstance("https://example.org/robots.txt"),
+                "LLZ", UURIFactory.getInstance("https://example.org/"),
+                LinkContext.PREREQ_MISC);
+        curi.setPrerequisite(true);
+        curi.getData().put(CoreAttributeConstants.A_HERITABLE_KEYS,
+                new HashSet<String>(Arrays.asList("source", "my-key")));
+        DatabaseEntry entry = new DatabaseEntry();
+        binding.objectToEntry(curi, entry);
+        CrawlURI copy = binding.entryToObject(entry);
+        assertEquals("LLZ", copy.getPathFromSeed());
+        assertTrue(copy.getViaContext() == LinkContext.PREREQ_MISC);
+        assertTrue(copy.isPrerequisite());
+        assertEquals(curi.getData(), copy.getData());
+    }
+
+    @Test
+    public void testSmallerThanKryo() throws Exception {
+        // a typical freshly-discovered URI, as queued by the frontier
+        CrawlURI seed = new CrawlURI(
+                UURIFactory.getInstance("http://www.example.com/"));
+        seed.setSourceTag("http://www.example.com/");
+        seed.makeHeritable(CoreAttributeConstants.A_SOURCE_TAG);
+        CrawlURI curi = seed.createCrawlURI(
+                "http://www.example.com/news/2024/story.html",
+                HTMLLinkContext.A_HREF, Hop.NAVLINK);
+        curi.setClassKey("com,example,www,");
+        curi.setOrdinal(1234567);
+        DatabaseEntry compact = new DatabaseEntry();
+        new CompactCrawlURIBinding().objectToEntry(curi, compact);
+        DatabaseEntry kryo = new DatabaseEntry();
+        new KryoBinding<CrawlURI>(CrawlURI.class).objectToEntry(curi, kryo);
+        assertTrue(compact.getSize() < kryo.getSize() * 3 / 5,
+                compact.getSize() + " vs " + kryo.getSize());
+
+        CrawlURI rich = sample();
+        new CompactCrawlURIBinding().objectToEntry(rich, compact);
+        new KryoBinding<CrawlURI>(CrawlURI.class).objectToEntry(rich, kryo);
+        assertTrue(compact.getSize() < kryo.getSize(),
+                compact.getSize() + " vs " + kryo.getSize());
+    }
+}
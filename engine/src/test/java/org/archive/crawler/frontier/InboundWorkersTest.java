@@ -0,0 +1,226 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.crawler.frontier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for InboundWorkers.
+ */
+public class InboundWorkersTest {
+
+    @Test
+    public void testPerKeyOrderAcrossSubmitters() throws Exception {
+        final InboundWorkers workers = new InboundWorkers("test", 3, 16);
+        final Map<String,List<Integer>> applied =
+            Collections.synchronizedMap(new HashMap<String,List<Integer>>());
+        final int keys = 10, perKey = 500;
+        for (int k = 0; k < keys; k++) {
+            applied.put("q" + k, Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+        // one submitting thread per key, so each key's submit order is known
+        List<Thread> submitters = new ArrayList<Thread>();
+        for (int k = 0; k < keys; k++) {
+            final String key = "q" + k;
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < perKey; i++) {
+                            final int n = i;
+                            workers.submit(key, new Runnable() {
+                                public void run() {
+                                    applied.get(key).add(n);
+                                }
+                            });
+                        }
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            submitters.add(t);
+            t.start();
+        }
+        for (Thread t : submitters) {
+            t.join();
+        }
+        workers.awaitDrained();
+        assertEquals(0, workers.getBacklog());
+        assertEquals(keys * perKey, workers.getAppliedCount());
+        assertTrue(workers.getMaxBacklog() > 0);
+        for (List<Integer> seq : applied.values()) {
+            assertEquals(perKey, seq.size());
+            for (int i = 0; i < perKey; i++) {
+                assertEquals(i, seq.get(i).intValue());
+            }
+        }
+        workers.shutdown();
+    }
+
+    @Test
+    public void testNestedSubmitRunsInline() throws Exception {
+        final InboundWorkers workers = new InboundWorkers("test", 1, 1);
+        final AtomicBoolean nestedRan = new AtomicBoolean(false);
+        final CountDownLatch done = new CountDownLatch(1);
+        workers.submit("a", new Runnable() {
+            public void run() {
+                try {
+                    // a full backlog must not deadlock a worker submitting to itself
+                    workers.submit("a", new Runnable() {
+                        public void run() {
+                            nestedRan.set(true);
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                done.countDown();
+            }
+        });
+        done.await();
+        assertTrue(nestedRan.get());
+        workers.shutdown();
+    }
+
+    @Test
+    public void testCrossKeySubmitFromWorkerKeepsOrder() throws Exception {
+        final InboundWorkers workers = new InboundWorkers("test", 2, 1);
+        // find a key owned by each worker
+        String k = "a";
+        for (int i = 0; workers.ownerOf(k) == workers.ownerOf("b"); i++) {
+            k = "a" + i;
+        }
+        final String a = k;
+        final String b = "b";
+        final List<Integer> applied = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch crossSubmitted = new CountDownLatch(1);
+        // hold b's worker so b's next update waits in its (full) backlog
+        workers.submit(b, new Runnable() {
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        workers.submit(b, new Runnable() {
+            public void run() {
+                applied.add(0);
+            }
+        });
+        workers.submit(a, new Runnable() {
+            public void run() {
+                try {
+                    // must neither run here, ahead of b's backlog, nor wait
+                    // for room in it
+                    workers.submit(b, new Runnable() {
+                        public void run() {
+                            applied.add(1);
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                crossSubmitted.countDown();
+            }
+        });
+        assertTrue(crossSubmitted.await(10, TimeUnit.SECONDS));
+        assertTrue(applied.isEmpty());
+        release.countDown();
+        workers.awaitDrained();
+        assertEquals(Arrays.asList(0, 1), applied);
+        assertEquals(0, workers.getBacklog());
+        workers.shutdown();
+    }
+
+    @Test
+    public void testFailedUpdateDoesNotStopWorker() throws Exception {
+        InboundWorkers workers = new InboundWorkers("test", 1, 4);
+        final AtomicBoolean later = new AtomicBoolean(false);
+        workers.submit("a", new Runnable() {
+            public void run() {
+                throw new IllegalStateException("expected by test");
+            }
+        });
+        workers.submit("a", new Runnable() {
+            public void run() {
+                later.set(true);
+            }
+        });
+        workers.shutdown();
+        assertTrue(later.get());
+        assertEquals(2, workers.getAppliedCount());
+    }
+
+    @Test
+    public void testSubmitRacingShutdownIsNotLost() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            final InboundWorkers workers = new InboundWorkers("test", 2, 4);
+            final AtomicInteger ran = new AtomicInteger();
+            final AtomicInteger submitted = new AtomicInteger();
+            final CountDownLatch start = new CountDownLatch(1);
+            Thread[] submitters = new Thread[4];
+            for (int t = 0; t < submitters.length; t++) {
+                final String key = "k" + t;
+                submitters[t] = new Thread() {
+                    public void run() {
+                        try {
+                            start.await();
+                            for (int i = 0; i < 500; i++) {
+                                workers.submit(key, new Runnable() {
+                                    public void run() {
+                                        ran.incrementAndGet();
+                                    }
+                                });
+                                submitted.incrementAndGet();
+                            }
+                        } catch (InterruptedException e) {
+                            // test will fail
+                        }
+                    }
+                };
+                submitters[t].start();
+            }
+            start.countDown();
+            Thread.sleep(1);
+            workers.shutdown();
+            for (Thread t : submitters) {
+                t.join();
+            }
+            assertEquals(submitted.get(), ran.get());
+            assertEquals(0, workers.getBacklog());
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.crawler.frontier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.archive.modules.CrawlURI;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for SnoozeWheel.
+ */
+public class SnoozeWheelTest {
+
+    protected static DelayedWorkQueue snoozed(String key, long wakeTime) {
+        WorkQueue wq = new WorkQueue(key) {
+            private static final long serialVersionUID = 1L;
+            protected void insertItem(WorkQueueFrontier frontier,
+                    CrawlURI curi, boolean overwriteIfPresent) {
+            }
+            protected long deleteMatchingFromQueue(WorkQueueFrontier frontier,
+                    String match) {
+                return 0;
+            }
+            protected void deleteItem(WorkQueueFrontier frontier,
+                    CrawlURI item) {
+            }
+            protected CrawlURI peekItem(WorkQueueFrontier frontier) {
+                return null;
+            }
+        };
+        wq.setWakeTime(wakeTime);
+        return new DelayedWorkQueue(wq);
+    }
+
+    @Test
+    public void testNeverEarlyAtMostOneTickLate() {
+        long start = 1000000;
+        SnoozeWheel wheel = new SnoozeWheel(10, start);
+        Random rand = new Random(1);
+        int n = 5000;
+        for (int i = 0; i < n; i++) {
+            // spread over many level-1 rotations, so levels 0-2 are all used
+            long wake = start + rand.nextInt(3 * 60 * 60 * 1000);
+            assertTrue(wheel.add(snoozed("q" + i, wake), start));
+        }
+        assertEquals(n, wheel.size());
+        Set<String> woken = new HashSet<String>();
+        // polling every 5ms, no queue may wake later than tick+5ms
+        for (long now = start; woken.size() < n; now += 5) {
+            DelayedWorkQueue dq;
+            while ((dq = wheel.poll(now)) != null) {
+                assertTrue(dq.getWakeTime() <= now, "woken early: " + dq.getClassKey());
+                assertTrue(now - dq.getWakeTime() < 15, "woken late: " + dq.getClassKey());
+                assertTrue(woken.add(dq.getClassKey()));
+            }
+            if (woken.size() < n) {
+                assertTrue(wheel.getDelay(now) >= 0);
+            }
+        }
+        assertEquals(0, wheel.size());
+        assertEquals(-1, wheel.getDelay(start));
+        assertEquals(n, wheel.getWakeCount());
+    }
+
+    @Test
+    public void testWakeLagAndDelay() {
+        long start = 500000;
+        SnoozeWheel wheel = new SnoozeWheel(10, start);
+        wheel.add(snoozed("a", start + 100), start);
+        wheel.add(snoozed("b", start + 5000), start);
+        // first due once a's tick has elapsed
+        assertEquals(110, wheel.getDelay(start));
+        assertNull(wheel.poll(start + 99));
+        assertNull(wheel.poll(start + 109));
+        DelayedWorkQueue a = wheel.poll(start + 110);
+        assertEquals("a", a.getClassKey());
+        assertEquals(10, wheel.getMaxWakeLagMs());
+        assertEquals(5010 - 110, wheel.getDelay(start + 110));
+        DelayedWorkQueue b = wheel.poll(start + 5030);
+        assertEquals("b", b.getClassKey());
+        assertEquals(30, wheel.getMaxWakeLagMs());
+        assertEquals(20.0, wheel.getMeanWakeLagMs(), 0.001);
+    }
+
+    @Test
+    public void testHorizonAndDrain() {
+        long start = 0;
+        SnoozeWheel wheel = new SnoozeWheel(1, start);
+        assertFalse(wheel.add(snoozed("far", start + wheel.getHorizonMs() + 1), start));
+        assertTrue(wheel.add(snoozed("near", start + 5), start));
+        // already due when added
+        assertTrue(wheel.add(snoozed("past", start - 100), start));
+        assertEquals(2, wheel.size());
+        assertEquals(0, wheel.getDelay(start));
+        List<DelayedWorkQueue> drained = new ArrayList<DelayedWorkQueue>();
+        assertEquals(2, wheel.drainTo(drained));
+        assertEquals(0, wheel.size());
+        assertEquals(2, drained.size());
+    }
+
+    @Test
+    public void testSparsePollsSkipAhead() {
+        // 1ms ticks, entries out to the horizon, polled at long and irregular
+        // intervals, with adds in between
+        long start = 7;
+        SnoozeWheel wheel = new SnoozeWheel(1, start);
+        Random rand = new Random(2);
+        List<DelayedWorkQueue> pending = new ArrayList<DelayedWorkQueue>();
+        long now = start;
+        int added = 0;
+        int woken = 0;
+        while (now < start + 4 * wheel.getHorizonMs()) {
+            for (int i = 0; i < 20; i++) {
+                long delay = rand.nextInt(4) == 0
+                        ? (long) (rand.nextDouble() * wheel.getHorizonMs())
+                        : rand.nextInt(100000);
+                DelayedWorkQueue dq = snoozed("q" + added++, now + delay);
+                assertTrue(wheel.add(dq, now));
+                pending.add(dq);
+            }
+            now += 1 + (long) (rand.nextDouble() * rand.nextDouble() * 5000000);
+            Set<String> expected = new HashSet<String>();
+            for (DelayedWorkQueue dq : pending) {
+                if (dq.getWakeTime() < now) {
+                    expected.add(dq.getClassKey());
+                }
+            }
+            Set<String> got = new HashSet<String>();
+            DelayedWorkQueue dq;
+            while ((dq = wheel.poll(now)) != null) {
+                assertTrue(dq.getWakeTime() <= now, "woken early: " + dq.getClassKey());
+                assertTrue(got.add(dq.getClassKey()));
+            }
+            assertEquals(expected, got);
+            pending.removeIf(q -> expected.contains(q.getClassKey()));
+            woken += got.size();
+        }
+        assertEquals(added - woken, wheel.size());
+        assertTrue(woken > 0);
+    }
+}
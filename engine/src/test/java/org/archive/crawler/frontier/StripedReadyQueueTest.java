@@ -0,0 +1,247 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.crawler.frontier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for StripedReadyQueue and DispatchGate.
+ */
+public class StripedReadyQueueTest {
+
+    @Test
+    public void testOfferPollSingleThread() {
+        StripedReadyQueue q = new StripedReadyQueue(4);
+        assertTrue(q.isEmpty());
+        assertNull(q.poll());
+        for (int i = 0; i < 10; i++) {
+            q.put("q" + i);
+        }
+        assertEquals(10, q.size());
+        assertTrue(q.contains("q3"));
+        Set<String> seen = new HashSet<String>();
+        String key;
+        while ((key = q.poll()) != null) {
+            assertTrue(seen.add(key), "duplicate " + key);
+        }
+        assertEquals(10, seen.size());
+        assertEquals(0, q.size());
+        assertTrue(q.isEmpty());
+    }
+
+    @Test
+    public void testOffersSpreadAcrossStripes() {
+        // one producer thread must not pile every key onto one stripe
+        StripedReadyQueue q = new StripedReadyQueue(4);
+        for (int i = 0; i < 40; i++) {
+            q.offer("q" + i);
+        }
+        for (int s = 0; s < q.getStripeCount(); s++) {
+            assertEquals(10, q.stripes[s].size());
+        }
+    }
+
+    @Test
+    public void testBlockingTakeWokenByOffer() throws InterruptedException {
+        final StripedReadyQueue q = new StripedReadyQueue(4);
+        final int takers = 8;
+        final Set<String> taken = ConcurrentHashMap.newKeySet();
+        final CountDownLatch done = new CountDownLatch(takers);
+        for (int t = 0; t < takers; t++) {
+            final boolean timed = t % 2 == 0;
+            new Thread() {
+                public void run() {
+                    try {
+                        String key = timed ? q.poll(60, TimeUnit.SECONDS) : q.take();
+                        if (key != null) {
+                            taken.add(key);
+                        }
+                    } catch (InterruptedException e) {
+                        // test will fail
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        Thread.sleep(50);
+        for (int i = 0; i < takers; i++) {
+            q.offer("k" + i);
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(takers, taken.size());
+        assertTrue(q.isEmpty());
+
+        long start = System.nanoTime();
+        assertNull(q.poll(50, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void testStealFromOtherStripes() throws InterruptedException {
+        final StripedReadyQueue q = new StripedReadyQueue(8);
+        Thread[] offerers = new Thread[8];
+        for (int t = 0; t < offerers.length; t++) {
+            final int n = t;
+            offerers[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 100; i++) {
+                        q.offer(n + ":" + i);
+                    }
+                }
+            };
+            offerers[t].start();
+        }
+        for (Thread t : offerers) {
+            t.join();
+        }
+        assertEquals(800, q.size());
+        // this one thread must be able to drain everything, stealing as needed
+        Set<String> seen = new HashSet<String>();
+        String key;
+        while ((key = q.poll()) != null) {
+            assertTrue(seen.add(key), "duplicate " + key);
+        }
+        assertEquals(800, seen.size());
+        assertEquals(0, q.size());
+    }
+
+    @Test
+    public void testIteratorRemove() {
+        StripedReadyQueue q = new StripedReadyQueue(2);
+        q.add("a");
+        q.add("b");
+        q.add("c");
+        Iterator<String> iter = q.iterator();
+        while (iter.hasNext()) {
+            if ("b".equals(iter.next())) {
+                iter.remove();
+            }
+        }
+        assertEquals(2, q.size());
+        assertFalse(q.contains("b"));
+        assertTrue(q.remove("c"));
+        assertEquals(1, q.size());
+        List<String> drained = new ArrayList<String>();
+        assertEquals(1, q.drainTo(drained));
+        assertEquals("a", drained.get(0));
+    }
+
+    @Test
+    public void testConcurrentHandoff() throws InterruptedException {
+        // many threads cycling a fixed set of keys, as in next()/finished():
+        // no key may ever be held by two threads at once, and none lost
+        final StripedReadyQueue q = new StripedReadyQueue(4);
+        final int keys = 50;
+        for (int i = 0; i < keys; i++) {
+            q.add("k" + i);
+        }
+        final ConcurrentHashMap<String, Boolean> held = new ConcurrentHashMap<String, Boolean>();
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final CountDownLatch done = new CountDownLatch(16);
+        for (int t = 0; t < 16; t++) {
+            new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 5000; i++) {
+                            String key = q.poll();
+                            if (key == null) {
+                                continue;
+                            }
+                            if (held.putIfAbsent(key, Boolean.TRUE) != null) {
+                                failed.set(true);
+                            }
+                            held.remove(key);
+                            q.offer(key);
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        assertFalse(failed.get());
+        assertEquals(keys, q.size());
+        Set<String> remaining = new HashSet<String>();
+        q.drainTo(remaining);
+        assertEquals(keys, remaining.size());
+    }
+
+    @Test
+    public void testDispatchGate() throws InterruptedException {
+        final DispatchGate gate = new DispatchGate(4);
+        gate.enter();
+        assertEquals(1, gate.inside());
+        final AtomicBoolean closed = new AtomicBoolean(false);
+        Thread closer = new Thread() {
+            public void run() {
+                try {
+                    gate.close();
+                    closed.set(true);
+                } catch (InterruptedException e) {
+                    // test will fail
+                }
+            }
+        };
+        closer.start();
+        Thread.sleep(50);
+        // close() must wait for the thread inside to leave
+        assertFalse(closed.get());
+        gate.exit();
+        closer.join(5000);
+        assertTrue(closed.get());
+        assertTrue(gate.isClosed());
+
+        final CountDownLatch entered = new CountDownLatch(1);
+        Thread worker = new Thread() {
+            public void run() {
+                try {
+                    gate.enter();
+                    entered.countDown();
+                    gate.exit();
+                } catch (InterruptedException e) {
+                    // test will fail
+                }
+            }
+        };
+        worker.start();
+        // held out while closed
+        assertFalse(entered.await(50, TimeUnit.MILLISECONDS));
+        gate.open();
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        worker.join(5000);
+        assertEquals(0, gate.inside());
+    }
+}
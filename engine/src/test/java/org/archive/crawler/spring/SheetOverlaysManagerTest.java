@@ -0,0 +1,68 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.crawler.spring;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NavigableMap;
+
+import org.archive.modules.CrawlURI;
+import org.archive.net.UURIFactory;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for SheetOverlaysManager's SURT-based associations.
+ */
+public class SheetOverlaysManagerTest {
+
+    protected List<String> overlaysFor(SheetOverlaysManager manager, String uri)
+            throws Exception {
+        CrawlURI curi = new CrawlURI(UURIFactory.getInstance(uri));
+        manager.applyOverlaysTo(curi);
+        return curi.getOverlayNames();
+    }
+
+    @Test
+    public void testChangesAfterLookupAreSeen() throws Exception {
+        SheetOverlaysManager manager = new SheetOverlaysManager();
+        manager.addSurtAssociation("http://(com,example,", "exampleSheet");
+        assertEquals(Arrays.asList("exampleSheet"),
+                overlaysFor(manager, "http://www.example.com/"));
+
+        // changes through the map, after it was handed out and used
+        NavigableMap<String,List<String>> map = manager.getSheetsNamesBySurt();
+        overlaysFor(manager, "http://www.example.org/");
+        map.put("http://(org,example,", new LinkedList<String>(Arrays.asList("orgSheet")));
+        assertEquals(Arrays.asList("orgSheet"),
+                overlaysFor(manager, "http://www.example.org/"));
+        map.remove("http://(org,example,");
+        assertTrue(overlaysFor(manager, "http://www.example.org/").isEmpty());
+        assertThrows(UnsupportedOperationException.class,
+                () -> map.keySet().remove("http://(com,example,"));
+
+        assertTrue(manager.removeSurtAssociation("http://(com,example,", "exampleSheet"));
+        assertTrue(overlaysFor(manager, "http://www.example.com/").isEmpty());
+        assertTrue(map.isEmpty());
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.crawler.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.archive.checkpointing.Checkpoint;
+import org.archive.crawler.datamodel.UriUniqFilter;
+import org.archive.modules.CrawlURI;
+import org.archive.net.UURIFactory;
+import org.archive.spring.ConfigPath;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for MappedFPUriUniqFilter.
+ */
+public class MappedFPUriUniqFilterTest {
+
+    @TempDir
+    Path tempDir;
+
+    protected MappedFPUriUniqFilter filter;
+
+    @BeforeEach
+    protected void setUp() {
+        filter = newFilter();
+        filter.start();
+    }
+
+    @AfterEach
+    protected void tearDown() {
+        filter.close();
+    }
+
+    protected MappedFPUriUniqFilter newFilter() {
+        MappedFPUriUniqFilter f = new MappedFPUriUniqFilter();
+        f.setBeanName("uriUniqFilter");
+        f.setDir(new ConfigPath("test",
+                new File(tempDir.toFile(), "uniq").getAbsolutePath()));
+        f.setSegmentBits(2);
+        f.setInitialSegmentCapacity(16);
+        return f;
+    }
+
+    @Test
+    public void testAddRemove() {
+        assertTrue(filter.setAdd("http://www.archive.org/"));
+        assertFalse(filter.setAdd("http://www.archive.org/"));
+        assertTrue(filter.setAdd("http://www.archive.org/index.html"));
+        assertEquals(2, filter.setCount());
+        assertTrue(filter.setRemove("http://www.archive.org/"));
+        assertFalse(filter.setRemove("http://www.archive.org/"));
+        assertEquals(1, filter.setCount());
+        assertFalse(filter.setAdd("http://www.archive.org/index.html"));
+        assertTrue(filter.setAdd("http://www.archive.org/"));
+    }
+
+    @Test
+    public void testGrowthAndRemoval() {
+        // far past initial capacity, so every segment grows several times
+        int n = 20000;
+        for (int i = 0; i < n; i++) {
+            assertTrue(filter.setAdd("http://host" + (i % 50) + ".example.com/" + i));
+        }
+        assertEquals(n, filter.setCount());
+        // remove every third, which exercises backward-shift deletion
+        for (int i = 0; i < n; i += 3) {
+            assertTrue(filter.setRemove("http://host" + (i % 50) + ".example.com/" + i));
+        }
+        for (int i = 0; i < n; i++) {
+            boolean added = filter.setAdd("http://host" + (i % 50) + ".example.com/" + i);
+            assertEquals(i % 3 == 0, added, "uri " + i);
+        }
+        assertEquals(n, filter.setCount());
+    }
+
+    @Test
+    public void testAsyncBatchedAdds() throws Exception {
+        filter.setAsyncBatchSize(64);
+        filter.setMaxPendingAdds(100);
+        final ConcurrentLinkedQueue<CrawlURI> received = 
+            new ConcurrentLinkedQueue<CrawlURI>();
+        filter.setDestination(new UriUniqFilter.CrawlUriReceiver() {
+            public void receive(CrawlURI item) {
+                received.add(item);
+            }
+        });
+        Thread[] adders = new Thread[4];
+        for (int t = 0; t < adders.length; t++) {
+            adders[t] = new Thread() {
+                public void run() {
+                    try {
+                        // every thread adds the same 1000 URIs
+                        for (int i = 0; i < 1000; i++) {
+                            String uri = "http://host" + (i % 7) + ".example.com/" + i;
+                            filter.add(uri, new CrawlURI(UURIFactory.getInstance(uri)));
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            adders[t].start();
+        }
+        for (Thread t : adders) {
+            t.join();
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (filter.pending() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, filter.pending());
+        assertEquals(4000, filter.addedCount());
+        assertEquals(1000, filter.setCount());
+        Set<String> distinct = new HashSet<String>();
+        for (CrawlURI curi : received) {
+            assertTrue(distinct.add(curi.toString()), "duplicate " + curi);
+        }
+        assertEquals(1000, distinct.size());
+        assertTrue(filter.getBatchCount() > 0);
+        assertEquals(0.75, filter.getBatchedDuplicateRate(), 0.001);
+    }
+
+    /**
+     * Queued adds wait out a checkpoint, so none is accepted without 
+     * reaching either the checkpointed set or the receiver beforehand.
+     */
+    @Test
+    public void testCheckpointHoldsAsyncAdds() throws Exception {
+        filter.setAsyncBatchSize(64);
+        final ConcurrentLinkedQueue<CrawlURI> received = 
+            new ConcurrentLinkedQueue<CrawlURI>();
+        filter.setDestination(new UriUniqFilter.CrawlUriReceiver() {
+            public void receive(CrawlURI item) {
+                received.add(item);
+            }
+        });
+        for (int i = 0; i < 100; i++) {
+            String uri = "http://example.com/" + i;
+            filter.add(uri, new CrawlURI(UURIFactory.getInstance(uri)));
+        }
+        Checkpoint cp = new Checkpoint();
+        cp.generateFrom(new ConfigPath("checkpoints",
+                new File(tempDir.toFile(), "checkpoints").getAbsolutePath()), 1);
+        filter.startCheckpoint(cp);
+        assertEquals(0, filter.pending());
+        assertEquals(100, received.size());
+
+        Thread adder = new Thread() {
+            public void run() {
+                try {
+                    String uri = "http://example.com/during";
+                    filter.add(uri, new CrawlURI(UURIFactory.getInstance(uri)));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        adder.start();
+        adder.join(200);
+        assertTrue(adder.isAlive());
+        filter.doCheckpoint(cp);
+        assertEquals(0, filter.pending());
+        filter.finishCheckpoint(cp);
+
+        adder.join(10000);
+        assertFalse(adder.isAlive());
+        long deadline = System.currentTimeMillis() + 10000;
+        while (filter.pending() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(101, received.size());
+        assertEquals(101, filter.setCount());
+    }
+
+    /**
+     * Candidates still queued when the filter closes are applied, not 
+     * dropped.
+     */
+    @Test
+    public void testCloseAppliesQueuedAdds() throws Exception {
+        filter.setAsyncBatchSize(64);
+        final CountDownLatch receiving = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ConcurrentLinkedQueue<CrawlURI> received = 
+            new ConcurrentLinkedQueue<CrawlURI>();
+        filter.setDestination(new UriUniqFilter.CrawlUriReceiver() {
+            public void receive(CrawlURI item) {
+                received.add(item);
+                if (received.size() == 1) {
+                    // hold the batch thread until close() interrupts it
+                    receiving.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        });
+        String first = "http://example.com/first";
+        filter.add(first, new CrawlURI(UURIFactory.getInstance(first)));
+        assertTrue(receiving.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 10; i++) {
+            String uri = "http://example.com/" + i;
+            filter.add(uri, new CrawlURI(UURIFactory.getInstance(uri)));
+        }
+        // the held one, and the ten queued behind it
+        assertEquals(11, filter.pending());
+
+        int count = (int) filter.setCount();
+        filter.close();
+        assertEquals(0, filter.pending());
+        assertEquals(11, received.size());
+        assertEquals(1, count);
+    }
+
+    @Test
+    public void testCheckpointRecovery() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            filter.setAdd("http://example.com/" + i);
+        }
+        Checkpoint cp = new Checkpoint();
+        cp.generateFrom(new ConfigPath("checkpoints",
+                new File(tempDir.toFile(), "checkpoints").getAbsolutePath()), 1);
+        filter.startCheckpoint(cp);
+        filter.doCheckpoint(cp);
+        filter.finishCheckpoint(cp);
+        // changes after the checkpoint are not part of it
+        filter.setAdd("http://example.com/after");
+        filter.close();
+
+        filter = newFilter();
+        filter.setRecoveryCheckpoint(cp);
+        filter.start();
+        assertEquals(1000, filter.setCount());
+        assertFalse(filter.setAdd("http://example.com/999"));
+        assertTrue(filter.setAdd("http://example.com/after"));
+    }
+
+    @Test
+    public void testSegmentLoadLimit() throws Exception {
+        MappedFPUriUniqFilter.Segment segment = new MappedFPUriUniqFilter.Segment(
+                new File(tempDir.toFile(), "capped.seg"), 16, 0);
+        segment.maxCapacity = 16;
+        // may fill past the 75% growth point, but not past 87.5%
+        for (long fp = 1; fp <= 14; fp++) {
+            assertTrue(segment.add(fp, MappedFPUriUniqFilter.mix(fp)));
+        }
+        assertEquals(16, segment.capacity);
+        assertThrows(IllegalStateException.class,
+                () -> segment.add(15, MappedFPUriUniqFilter.mix(15)));
+        segment.close();
+        assertThrows(IllegalStateException.class,
+                () -> segment.remove(1, MappedFPUriUniqFilter.mix(1)));
+    }
+
+    @Test
+    public void testUseAfterClose() {
+        filter.setAdd("http://example.com/");
+        filter.close();
+        assertThrows(IllegalStateException.class,
+                () -> filter.setAdd("http://example.com/"));
+        assertThrows(IllegalStateException.class,
+                () -> filter.setRemove("http://example.com/"));
+    }
+}
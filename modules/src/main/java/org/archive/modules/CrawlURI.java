@@ -27,6 +27,7 @@ import org.archive.modules.credential.HttpAuthenticationCredential;
 import org.archive.modules.extractor.HTMLLinkContext;
 import org.archive.modules.extractor.Hop;
 import org.archive.modules.extractor.LinkContext;
+import org.archive.modules.fetcher.ContentSniffer;
 import org.archive.modules.revisit.RevisitProfile;
 import org.archive.net.UURI;
 import org.archive.net.UURIFactory;
@@ -39,6 +40,9 @@ import org.archive.util.Reporter;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
 import java.io.*;
 import java.util.*;
 import java.util.logging.Level;
@@ -217,6 +221,12 @@ implements Reporter, Serializable, OverlayContext, Comparable<CrawlURI> {
      */
     transient private RevisitProfile revisitProfile = null;
 
+    /**
+     * Digests and sniff results gathered while the content-body streamed
+     * in, if the fetcher was configured to gather them.
+     */
+    transient private ContentSniffer contentSniffer = null;
+
     /**
      * Create a new instance of CrawlURI from a {@link UURI}.
      *
@@ -794,6 +804,18 @@ implements Reporter, Serializable, OverlayContext, Comparable<CrawlURI> {
         this.httpRecorder = httpRecorder;
     }
 
+    /**
+     * @return payload digests, charset and content type sniffed while the
+     * content-body was fetched, or null if the fetcher didn't sniff it
+     */
+    public ContentSniffer getContentSniffer() {
+        return contentSniffer;
+    }
+
+    public void setContentSniffer(ContentSniffer contentSniffer) {
+        this.contentSniffer = contentSniffer;
+    }
+
     /**
      * Return true if this is a http transaction.
      *
@@ -823,6 +845,7 @@ implements Reporter, Serializable, OverlayContext, Comparable<CrawlURI> {
         outLinks = null;
         
         this.revisitProfile = null;
+        this.contentSniffer = null;
         
         // XXX er uh surprised this wasn't here before?
         fetchType = FetchType.UNKNOWN;
@@ -1712,6 +1735,410 @@ implements Reporter, Serializable, OverlayContext, Comparable<CrawlURI> {
         kryo.autoregister(org.apache.http.NameValuePair[].class);
         kryo.autoregister(FetchType.class);
     }
+
+    // Compact encoding support
+    /**
+     * Leading byte of a compact entry. Kryo always starts a CrawlURI with
+     * its canonicalString field, which never encodes as a zero byte, so
+     * readers can tell the two formats apart.
+     */
+    public static final byte COMPACT_MARKER = 0x00;
+    public static final int COMPACT_VERSION = 1;
+
+    private static final int CF_SEED = 1;
+    private static final int CF_FORCE_REVISIT = 1 << 1;
+    private static final int CF_PREREQUISITE = 1 << 2;
+    private static final int CF_VIA = 1 << 3;
+    private static final int CF_VIA_CONTEXT = 1 << 4;
+    private static final int CF_PATH_RAW = 1 << 5;
+    private static final int CF_USER_AGENT = 1 << 6;
+    private static final int CF_CONTENT_TYPE = 1 << 7;
+    private static final int CF_DIGEST = 1 << 8;
+    private static final int CF_CANONICAL = 1 << 9;
+    private static final int CF_EXTRA_INFO = 1 << 10;
+    private static final int CF_DATA = 1 << 11;
+    private static final int CF_CLASS_KEY = 1 << 12;
+    private static final int CF_RESCHEDULE = 1 << 13;
+    private static final int CF_POLITENESS = 1 << 14;
+    private static final int CF_CONTENT_SIZES = 1 << 15;
+    private static final int CF_FETCH_STATE = 1 << 16;
+
+    /** hop characters packable into a nibble each; index 0 is unused */
+    private static final String COMPACT_HOPS = "_LPEXRIM";
+
+    /**
+     * Data keys written as a single varint. The positions are part of the
+     * format: new keys may only be appended, together with a bump of
+     * {@link #COMPACT_VERSION} if older readers must reject them.
+     */
+    private static final String[] COMPACT_DATA_KEYS = {
+        null, "source", "heritable", "prerequisite-uri", "force-retire",
+        "precalc-precedence", "server-ip", "distance-from-seed",
+        "via-digest", "reference-length", "annotations",
+    };
+
+    private static final int DV_STRING = 1;
+    private static final int DV_INT = 2;
+    private static final int DV_LONG = 3;
+    private static final int DV_TRUE = 4;
+    private static final int DV_FALSE = 5;
+    private static final int DV_STRING_SET = 6;
+
+    /**
+     * Write this CrawlURI in the compact pending-queue encoding. Only the
+     * state a queued CrawlURI normally carries is supported; anything else
+     * (an unusual LinkContext, data values other than strings, numbers,
+     * booleans and string sets) makes this return false, with the output in
+     * an undefined state, so the caller can fall back to Kryo.
+     *
+     * @param out destination
+     * @return true if written, false if not representable
+     */
+    public boolean writeCompactTo(Output out) {
+        if (getClass() != CrawlURI.class) {
+            return false;
+        }
+        if (viaContext != null
+                && viaContext.getClass() != LinkContext.SimpleLinkContext.class
+                && viaContext.getClass() != HTMLLinkContext.class) {
+            return false;
+        }
+        boolean hasData = data != null && !data.isEmpty();
+        if (hasData && data.getClass() != HashMap.class) {
+            return false;
+        }
+        boolean packedPath = isPackablePath(pathFromSeed);
+        int flags = 0;
+        if (isSeed) flags |= CF_SEED;
+        if (forceRevisit) flags |= CF_FORCE_REVISIT;
+        if (prerequisite) flags |= CF_PREREQUISITE;
+        if (via != null) flags |= CF_VIA;
+        if (viaContext != null) flags |= CF_VIA_CONTEXT;
+        if (!packedPath) flags |= CF_PATH_RAW;
+        if (userAgent != null) flags |= CF_USER_AGENT;
+        if (!"unknown".equals(contentType)) flags |= CF_CONTENT_TYPE;
+        if (contentDigest != null || contentDigestScheme != null) flags |= CF_DIGEST;
+        if (canonicalString != null) flags |= CF_CANONICAL;
+        if (extraInfo != null) flags |= CF_EXTRA_INFO;
+        if (hasData) flags |= CF_DATA;
+        if (classKey != null) flags |= CF_CLASS_KEY;
+        if (rescheduleTime != -1) flags |= CF_RESCHEDULE;
+        if (politenessDelay != -1) flags |= CF_POLITENESS;
+        if (contentSize != UNCALCULATED || contentLength != UNCALCULATED) {
+            flags |= CF_CONTENT_SIZES;
+        }
+        if (fetchStatus != 0 || deferrals != 0 || fetchAttempts != 0
+                || fetchType != FetchType.UNKNOWN) {
+            flags |= CF_FETCH_STATE;
+        }
+
+        out.writeByte(COMPACT_MARKER);
+        out.writeVarInt(COMPACT_VERSION, true);
+        out.writeVarInt(flags, true);
+        String uriString = uuri == null ? null : uuri.toCustomString();
+        out.writeString(uriString);
+        if (packedPath) {
+            writePackedPath(out, pathFromSeed);
+        } else {
+            out.writeString(pathFromSeed);
+        }
+        if (via != null) {
+            writeShared(out, uriString, via.toCustomString());
+        }
+        if (viaContext != null) {
+            out.writeByte(viaContext instanceof HTMLLinkContext ? 1 : 0);
+            out.writeString(viaContext.toString());
+        }
+        out.writeVarInt(schedulingDirective, true);
+        out.writeVarInt(precedence, false);
+        out.writeVarInt(holderCost, false);
+        out.writeVarLong(ordinal, true);
+        if (classKey != null) out.writeString(classKey);
+        if (userAgent != null) out.writeString(userAgent);
+        if (!"unknown".equals(contentType)) out.writeString(contentType);
+        if ((flags & CF_DIGEST) != 0) {
+            out.writeString(contentDigestScheme);
+            out.writeVarInt(contentDigest == null ? 0 : contentDigest.length + 1, true);
+            if (contentDigest != null) out.writeBytes(contentDigest);
+        }
+        if (canonicalString != null) writeShared(out, uriString, canonicalString);
+        if (rescheduleTime != -1) out.writeVarLong(rescheduleTime, false);
+        if (politenessDelay != -1) out.writeVarLong(politenessDelay, false);
+        if ((flags & CF_CONTENT_SIZES) != 0) {
+            out.writeVarLong(contentSize, false);
+            out.writeVarLong(contentLength, false);
+        }
+        if ((flags & CF_FETCH_STATE) != 0) {
+            out.writeVarInt(fetchStatus, false);
+            out.writeVarInt(deferrals, true);
+            out.writeVarInt(fetchAttempts, true);
+            out.writeVarInt(fetchType.ordinal(), true);
+        }
+        if (extraInfo != null) out.writeString(extraInfo.toString());
+        if (hasData) {
+            out.writeVarInt(data.size(), true);
+            for (Map.Entry<String,Object> e : data.entrySet()) {
+                if (!writeCompactDataEntry(out, uriString, e.getKey(), e.getValue())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read a CrawlURI written by {@link #writeCompactTo(Output)}, starting
+     * at its marker byte.
+     *
+     * @param in source
+     * @return the CrawlURI
+     * @throws IllegalArgumentException if the entry is not compact or is of
+     * an unknown version
+     */
+    public static CrawlURI readCompactFrom(Input in) {
+        byte marker = in.readByte();
+        if (marker != COMPACT_MARKER) {
+            throw new IllegalArgumentException("not a compact CrawlURI entry");
+        }
+        int version = in.readVarInt(true);
+        if (version != COMPACT_VERSION) {
+            throw new IllegalArgumentException(
+                    "unsupported compact CrawlURI version " + version);
+        }
+        int flags = in.readVarInt(true);
+        CrawlURI curi = new CrawlURI();
+        String uriString = in.readString();
+        curi.uuri = readCompactUuri(uriString);
+        curi.isSeed = (flags & CF_SEED) != 0;
+        curi.forceRevisit = (flags & CF_FORCE_REVISIT) != 0;
+        curi.prerequisite = (flags & CF_PREREQUISITE) != 0;
+        curi.pathFromSeed = (flags & CF_PATH_RAW) != 0
+                ? in.readString() : readPackedPath(in);
+        if ((flags & CF_VIA) != 0) {
+            curi.via = readCompactUuri(readShared(in, uriString));
+        }
+        if ((flags & CF_VIA_CONTEXT) != 0) {
+            byte kind = in.readByte();
+            String desc = in.readString();
+            curi.viaContext = kind == 1
+                    ? HTMLLinkContext.get(desc) : simpleLinkContext(desc);
+        }
+        curi.schedulingDirective = in.readVarInt(true);
+        curi.precedence = in.readVarInt(false);
+        curi.holderCost = in.readVarInt(false);
+        curi.ordinal = in.readVarLong(true);
+        if ((flags & CF_CLASS_KEY) != 0) curi.classKey = in.readString();
+        if ((flags & CF_USER_AGENT) != 0) curi.userAgent = in.readString();
+        if ((flags & CF_CONTENT_TYPE) != 0) curi.contentType = in.readString();
+        if ((flags & CF_DIGEST) != 0) {
+            curi.contentDigestScheme = in.readString();
+            int len = in.readVarInt(true);
+            if (len > 0) curi.contentDigest = in.readBytes(len - 1);
+        }
+        if ((flags & CF_CANONICAL) != 0) {
+            curi.canonicalString = readShared(in, uriString);
+        }
+        if ((flags & CF_RESCHEDULE) != 0) curi.rescheduleTime = in.readVarLong(false);
+        if ((flags & CF_POLITENESS) != 0) curi.politenessDelay = in.readVarLong(false);
+        if ((flags & CF_CONTENT_SIZES) != 0) {
+            curi.contentSize = in.readVarLong(false);
+            curi.contentLength = in.readVarLong(false);
+        }
+        if ((flags & CF_FETCH_STATE) != 0) {
+            curi.fetchStatus = in.readVarInt(false);
+            curi.deferrals = in.readVarInt(true);
+            curi.fetchAttempts = in.readVarInt(true);
+            curi.fetchType = FetchType.values()[in.readVarInt(true)];
+        }
+        if ((flags & CF_EXTRA_INFO) != 0) {
+            try {
+                curi.extraInfo = new JSONObject(in.readString());
+            } catch (JSONException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+        if ((flags & CF_DATA) != 0) {
+            int n = in.readVarInt(true);
+            curi.data = new HashMap<String,Object>();
+            for (int i = 0; i < n; i++) {
+                readCompactDataEntry(in, uriString, curi.data);
+            }
+        }
+        return curi;
+    }
+
+    private static boolean isPackablePath(String path) {
+        if (path == null) {
+            return false;
+        }
+        for (int i = 0; i < path.length(); i++) {
+            if (COMPACT_HOPS.indexOf(path.charAt(i)) < 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writePackedPath(Output out, String path) {
+        out.writeVarInt(path.length(), true);
+        for (int i = 0; i < path.length(); i += 2) {
+            int hi = COMPACT_HOPS.indexOf(path.charAt(i));
+            int lo = i + 1 < path.length()
+                    ? COMPACT_HOPS.indexOf(path.charAt(i + 1)) : 0;
+            out.writeByte((hi << 4) | lo);
+        }
+    }
+
+    private static String readPackedPath(Input in) {
+        int len = in.readVarInt(true);
+        char[] hops = new char[len];
+        for (int i = 0; i < len; i += 2) {
+            int b = in.readByte() & 0xff;
+            hops[i] = COMPACT_HOPS.charAt(b >> 4);
+            if (i + 1 < len) {
+                hops[i + 1] = COMPACT_HOPS.charAt(b & 0x0f);
+            }
+        }
+        return new String(hops);
+    }
+
+    /**
+     * Write {@code s} as the length of its common prefix with {@code base}
+     * followed by the remaining suffix; vias, canonical strings and source
+     * tags usually share scheme and host with the URI itself.
+     */
+    private static void writeShared(Output out, String base, String s) {
+        if (s == null) {
+            out.writeVarInt(0, true);
+            out.writeString(null);
+            return;
+        }
+        int common = 0;
+        if (base != null) {
+            int max = Math.min(base.length(), s.length());
+            while (common < max && base.charAt(common) == s.charAt(common)) {
+                common++;
+            }
+        }
+        out.writeVarInt(common, true);
+        out.writeString(s.substring(common));
+    }
+
+    private static String readShared(Input in, String base) {
+        int common = in.readVarInt(true);
+        String suffix = in.readString();
+        if (suffix == null) {
+            return null;
+        }
+        return common == 0 ? suffix : base.substring(0, common) + suffix;
+    }
+
+    private static UURI readCompactUuri(String s) {
+        if (s == null) {
+            return null;
+        }
+        try {
+            return new UURI(s, true, "UTF-8");
+        } catch (URIException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private static LinkContext simpleLinkContext(String desc) {
+        for (LinkContext lc : new LinkContext[] {
+                LinkContext.NAVLINK_MISC, LinkContext.EMBED_MISC,
+                LinkContext.PREREQ_MISC, LinkContext.SPECULATIVE_MISC,
+                LinkContext.JS_MISC, LinkContext.INFERRED_MISC,
+                LinkContext.MANIFEST_MISC}) {
+            if (lc.toString().equals(desc)) {
+                return lc;
+            }
+        }
+        return new LinkContext.SimpleLinkContext(desc);
+    }
+
+    private static boolean writeCompactDataEntry(Output out, String uriString,
+            String key, Object value) {
+        int keyIndex = 0;
+        for (int i = 1; i < COMPACT_DATA_KEYS.length; i++) {
+            if (COMPACT_DATA_KEYS[i].equals(key)) {
+                keyIndex = i;
+                break;
+            }
+        }
+        out.writeVarInt(keyIndex, true);
+        if (keyIndex == 0) {
+            out.writeString(key);
+        }
+        if (value instanceof String) {
+            out.writeByte(DV_STRING);
+            writeShared(out, uriString, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(DV_INT);
+            out.writeVarInt((Integer) value, false);
+        } else if (value instanceof Long) {
+            out.writeByte(DV_LONG);
+            out.writeVarLong((Long) value, false);
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? DV_TRUE : DV_FALSE);
+        } else if (value != null && value.getClass() == HashSet.class) {
+            HashSet<?> set = (HashSet<?>) value;
+            for (Object o : set) {
+                if (!(o instanceof String)) {
+                    return false;
+                }
+            }
+            out.writeByte(DV_STRING_SET);
+            out.writeVarInt(set.size(), true);
+            for (Object o : set) {
+                int keyRef = Arrays.asList(COMPACT_DATA_KEYS).indexOf(o);
+                out.writeVarInt(Math.max(keyRef, 0), true);
+                if (keyRef < 1) {
+                    out.writeString((String) o);
+                }
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private static void readCompactDataEntry(Input in, String uriString,
+            Map<String,Object> data) {
+        int keyIndex = in.readVarInt(true);
+        String key = keyIndex == 0 ? in.readString() : COMPACT_DATA_KEYS[keyIndex];
+        Object value;
+        byte type = in.readByte();
+        switch (type) {
+        case DV_STRING:
+            value = readShared(in, uriString);
+            break;
+        case DV_INT:
+            value = in.readVarInt(false);
+            break;
+        case DV_LONG:
+            value = in.readVarLong(false);
+            break;
+        case DV_TRUE:
+            value = Boolean.TRUE;
+            break;
+        case DV_FALSE:
+            value = Boolean.FALSE;
+            break;
+        case DV_STRING_SET:
+            int n = in.readVarInt(true);
+            HashSet<String> set = new HashSet<String>();
+            for (int i = 0; i < n; i++) {
+                int keyRef = in.readVarInt(true);
+                set.add(keyRef == 0 ? in.readString() : COMPACT_DATA_KEYS[keyRef]);
+            }
+            value = set;
+            break;
+        default:
+            throw new IllegalArgumentException("unknown data value type " + type);
+        }
+        data.put(key, value);
+    }
     
     /**
      * Do all actions associated with setting a <code>CrawlURI</code> as
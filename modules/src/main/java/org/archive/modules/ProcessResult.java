@@ -19,6 +19,8 @@
 
 package org.archive.modules;
 
+import java.util.concurrent.CompletionStage;
+
 /**
  * Returned by a Processor's process method to indicate the status of the
  * process.  
@@ -46,6 +48,28 @@ public class ProcessResult {
          * scheduled next processor.
          */
         JUMP,
+
+        /**
+         * The Processor has started work that will complete later without
+         * a thread waiting on it, such as a fetch whose response arrives
+         * on the HTTP client's own threads. The chain should stop here,
+         * and once the completion is done call the resumption (on any
+         * thread) to finish the Processor's work and learn how to go on.
+         * 
+         * @see ProcessorChain#processUntilSuspended(CrawlURI, ProcessorChain.ChainStatusReceiver)
+         */
+        SUSPEND,
+    }
+
+    /**
+     * The rest of a suspended Processor's work, run once its completion
+     * is done.
+     */
+    public interface Resumption {
+        /**
+         * @return how the chain should go on; may itself be SUSPEND
+         */
+        ProcessResult resume() throws InterruptedException;
     }
     
     final public static ProcessResult PROCEED = 
@@ -57,6 +81,8 @@ public class ProcessResult {
     
     final private ProcessStatus status;
     final private String jumpTarget;
+    final private CompletionStage<?> completion;
+    final private Resumption resumption;
     
     
     private ProcessResult(ProcessStatus status) {
@@ -65,8 +91,16 @@ public class ProcessResult {
     
     
     private ProcessResult(ProcessStatus status, String jumpName) {
+        this(status, jumpName, null, null);
+    }
+    
+    
+    private ProcessResult(ProcessStatus status, String jumpName, 
+            CompletionStage<?> completion, Resumption resumption) {
         this.status = status;
         this.jumpTarget = jumpName;
+        this.completion = completion;
+        this.resumption = resumption;
     }
     
     
@@ -80,7 +114,28 @@ public class ProcessResult {
     }
     
     
+    public CompletionStage<?> getCompletion() {
+        return completion;
+    }
+    
+    
+    public Resumption getResumption() {
+        return resumption;
+    }
+    
+    
     public static ProcessResult jump(String jumpTarget) {
         return new ProcessResult(ProcessStatus.JUMP, jumpTarget);
     }
+    
+    
+    /**
+     * @param completion done (normally or not) once the started work is
+     * @param resumption finishes the Processor's work after completion
+     */
+    public static ProcessResult suspend(CompletionStage<?> completion, 
+            Resumption resumption) {
+        return new ProcessResult(ProcessStatus.SUSPEND, null, completion, 
+                resumption);
+    }
 }
@@ -5,6 +5,8 @@ import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
 
 import org.archive.spring.HasKeyedProperties;
 import org.archive.spring.KeyedProperties;
@@ -114,11 +116,40 @@ implements Iterable<Processor>,
         }
     }
 
+    /**
+     * Run the curi through the chain, waiting out any Processor that 
+     * suspends.
+     */
     public void process(CrawlURI curi, ChainStatusReceiver thread) throws InterruptedException {
+        Suspension suspension = processUntilSuspended(curi, thread);
+        while (suspension != null) {
+            suspension.await();
+            suspension = suspension.resume(thread);
+        }
+    }
+    
+    /**
+     * Run the curi through the chain, stopping at any Processor that 
+     * suspends rather than waiting for it.
+     * 
+     * @return the suspension, to be resumed once its completion is done, 
+     * or null if the chain is finished with the curi
+     */
+    public Suspension processUntilSuspended(CrawlURI curi, ChainStatusReceiver thread) 
+    throws InterruptedException {
         assert KeyedProperties.overridesActiveFrom(curi);
-        String skipToProc = null; 
-        
-        ploop: for(Processor curProc : this ) {
+        return processFrom(curi, thread, getProcessors(), 0, null);
+    }
+    
+    /**
+     * Run the curi through processors, starting with the one at index 
+     * from, or with the first named skipToProc at or after it if not null.
+     */
+    protected static Suspension processFrom(CrawlURI curi, ChainStatusReceiver thread,
+            List<Processor> processors, int from, String skipToProc) 
+    throws InterruptedException {
+        ploop: for (int i = from; i < processors.size(); i++) {
+            Processor curProc = processors.get(i);
             if(skipToProc!=null && !curProc.getBeanName().equals(skipToProc)) {
                 continue;
             } else {
@@ -137,6 +168,86 @@ implements Iterable<Processor>,
                 case JUMP:
                     skipToProc = pr.getJumpTarget();
                     continue;
+                case SUSPEND:
+                    return new Suspension(curi, processors, i, pr);
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * A curi's place in a chain, stopped at a Processor that suspended.
+     */
+    public static class Suspension {
+        protected final CrawlURI curi;
+        /** the chain's processors as they were when the curi started */
+        protected final List<Processor> processors;
+        protected final int index;
+        protected final ProcessResult result;
+        
+        protected Suspension(CrawlURI curi, List<Processor> processors, 
+                int index, ProcessResult result) {
+            this.curi = curi;
+            this.processors = processors;
+            this.index = index;
+            this.result = result;
+        }
+        
+        public CrawlURI getCuri() {
+            return curi;
+        }
+        
+        public Processor getProcessor() {
+            return processors.get(index);
+        }
+        
+        /**
+         * @return done once the suspended work is, normally or not
+         */
+        public CompletionStage<?> getCompletion() {
+            return result.getCompletion();
+        }
+        
+        /**
+         * Wait for the suspended work to be done. If interrupted, cancel
+         * the completion and let the Processor's resumption clean up
+         * before passing on the interrupt.
+         */
+        public void await() throws InterruptedException {
+            try {
+                result.getCompletion().toCompletableFuture().get();
+            } catch (ExecutionException e) {
+                // for the resumption to make sense of
+            } catch (InterruptedException e) {
+                result.getCompletion().toCompletableFuture().cancel(false);
+                result.getResumption().resume();
+                throw e;
+            }
+        }
+        
+        /**
+         * Finish the suspended Processor's work and run the rest of the
+         * chain. Call only once the completion is done, with the curi's
+         * overrides active.
+         * 
+         * @return a further suspension, or null if the chain is finished
+         * with the curi
+         */
+        public Suspension resume(ChainStatusReceiver thread) throws InterruptedException {
+            assert KeyedProperties.overridesActiveFrom(curi);
+            if (thread != null) {
+                thread.atProcessor(getProcessor());
+            }
+            ProcessResult pr = result.getResumption().resume();
+            switch (pr.getProcessStatus()) {
+                case FINISH:
+                    return null;
+                case JUMP:
+                    return processFrom(curi, thread, processors, index + 1, pr.getJumpTarget());
+                case SUSPEND:
+                    return new Suspension(curi, processors, index, pr);
+                default:
+                    return processFrom(curi, thread, processors, index + 1, null);
             }
         }
     }
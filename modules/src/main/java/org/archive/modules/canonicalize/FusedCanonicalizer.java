@@ -0,0 +1,380 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.canonicalize;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A list of canonicalization rules compiled for speed. Each of the stock
+ * rules (LowercaseRule, StripUserinfoRule, StripWWWRule, StripWWWNRule,
+ * StripSessionIDs, StripSessionCFIDs, StripExtraSlashes) is replaced by a
+ * hand-written scan giving exactly the result of its regexes, which
+ * returns its input untouched, without allocating, when there's nothing
+ * to change; so an already-canonical URI passes through the whole list
+ * without a copy. Any other rule, including RegexRule and subclasses of
+ * the stock rules, is run as configured.
+ * 
+ * <p>Also keeps a count of applications, changes and time taken for each
+ * rule, for {@link RulesCanonicalizationPolicy#report()}.
+ */
+public class FusedCanonicalizer {
+
+    protected static final int RULE = 0;
+    protected static final int LOWERCASE = 1;
+    protected static final int USERINFO = 2;
+    protected static final int WWW = 3;
+    protected static final int WWWN = 4;
+    protected static final int SESSION_IDS = 5;
+    protected static final int SESSION_CFIDS = 6;
+    protected static final int EXTRA_SLASHES = 7;
+
+    protected final List<CanonicalizationRule> source;
+    protected final CanonicalizationRule[] rules;
+    protected final int[] kinds;
+    protected final LongAdder[] applied;
+    protected final LongAdder[] changed;
+    protected final LongAdder[] nanos;
+
+    public FusedCanonicalizer(List<CanonicalizationRule> rules) {
+        this.source = rules;
+        this.rules = rules.toArray(new CanonicalizationRule[rules.size()]);
+        this.kinds = new int[this.rules.length];
+        this.applied = new LongAdder[this.rules.length];
+        this.changed = new LongAdder[this.rules.length];
+        this.nanos = new LongAdder[this.rules.length];
+        for (int i = 0; i < this.rules.length; i++) {
+            kinds[i] = kindOf(this.rules[i]);
+            applied[i] = new LongAdder();
+            changed[i] = new LongAdder();
+            nanos[i] = new LongAdder();
+        }
+    }
+
+    protected static int kindOf(CanonicalizationRule rule) {
+        // exact classes only: a subclass may do anything
+        Class<?> c = rule.getClass();
+        if (c == LowercaseRule.class) {
+            return LOWERCASE;
+        } else if (c == StripUserinfoRule.class) {
+            return USERINFO;
+        } else if (c == StripWWWRule.class) {
+            return WWW;
+        } else if (c == StripWWWNRule.class) {
+            return WWWN;
+        } else if (c == StripSessionIDs.class) {
+            return SESSION_IDS;
+        } else if (c == StripSessionCFIDs.class) {
+            return SESSION_CFIDS;
+        } else if (c == StripExtraSlashes.class) {
+            return EXTRA_SLASHES;
+        }
+        return RULE;
+    }
+
+    /**
+     * Whether this was compiled from the given list, as it is now.
+     */
+    public boolean isFor(List<CanonicalizationRule> rules) {
+        return source == rules && this.rules.length == rules.size();
+    }
+
+    public String canonicalize(String url) {
+        // the rules' regexes treat line terminators specially; leave any
+        // such (unusual) URI to them
+        boolean plain = !hasLineTerminator(url);
+        for (int i = 0; i < rules.length; i++) {
+            if (!rules[i].getEnabled()) {
+                continue;
+            }
+            long start = System.nanoTime();
+            String after;
+            if (plain && kinds[i] != RULE) {
+                after = apply(kinds[i], url);
+            } else {
+                after = rules[i].canonicalize(url);
+                plain = plain && !hasLineTerminator(after);
+            }
+            nanos[i].add(System.nanoTime() - start);
+            applied[i].increment();
+            if (!after.equals(url)) {
+                changed[i].increment();
+            }
+            url = after;
+        }
+        return url;
+    }
+
+    protected String apply(int kind, String url) {
+        switch (kind) {
+        case LOWERCASE:
+            return url.toLowerCase();
+        case USERINFO:
+            return stripUserinfo(url);
+        case WWW:
+            return stripWWW(url, false);
+        case WWWN:
+            return stripWWW(url, true);
+        case SESSION_IDS:
+            if (url.indexOf('=') < 0) {
+                return url;
+            }
+            url = stripLast(url, JSESSIONID_PHPSESSID);
+            url = stripLast(url, SID);
+            return stripLast(url, ASPSESSIONID);
+        case SESSION_CFIDS:
+            if (url.indexOf('=') < 0) {
+                return url;
+            }
+            return stripLast(url, CFID);
+        case EXTRA_SLASHES:
+            return stripExtraSlashes(url);
+        default:
+            throw new IllegalArgumentException("kind " + kind);
+        }
+    }
+
+    /**
+     * {@code ^((?:(?:https?)|(?:ftps?))://)(?:[^/]+@)(.*)$}, case-sensitive:
+     * the rule hands only the pattern string, not its flags, to the matcher.
+     */
+    protected static String stripUserinfo(String url) {
+        int start = schemeEnd(url, true, false);
+        if (start < 0) {
+            return url;
+        }
+        int slash = url.indexOf('/', start);
+        int end = slash < 0 ? url.length() : slash;
+        int at = url.lastIndexOf('@', end - 1);
+        if (at <= start) {
+            return url;
+        }
+        return url.substring(0, start) + url.substring(at + 1);
+    }
+
+    /**
+     * The StripWWWRule regex or, with digits, the StripWWWNRule one: strip
+     * "www." (or "www" and digits and ".") after the http(s) scheme, if
+     * there's a slash after the host followed by something.
+     */
+    protected static String stripWWW(String url, boolean digits) {
+        int start = schemeEnd(url, false, true);
+        if (start < 0 || !url.regionMatches(true, start, "www", 0, 3)) {
+            return url;
+        }
+        int i = start + 3;
+        if (digits) {
+            while (i < url.length() && url.charAt(i) >= '0' && url.charAt(i) <= '9') {
+                i++;
+            }
+        }
+        if (i >= url.length() || url.charAt(i) != '.') {
+            return url;
+        }
+        int rest = i + 1;
+        int slash = url.indexOf('/', rest);
+        if (slash < 0 || slash + 1 >= url.length()) {
+            return url;
+        }
+        return url.substring(0, start) + url.substring(rest);
+    }
+
+    /**
+     * @return offset after "http://" or "https://" (or with ftp, "ftp://"
+     * or "ftps://") at the start of the url; -1 if none
+     */
+    protected static int schemeEnd(String url, boolean ftp, boolean ignoreCase) {
+        int i;
+        if (url.regionMatches(ignoreCase, 0, "http", 0, 4)) {
+            i = 4;
+        } else if (ftp && url.regionMatches(ignoreCase, 0, "ftp", 0, 3)) {
+            i = 3;
+        } else {
+            return -1;
+        }
+        if (i < url.length()
+                && (url.charAt(i) == 's' || (ignoreCase && url.charAt(i) == 'S'))) {
+            i++;
+        }
+        return url.startsWith("://", i) ? i + 3 : -1;
+    }
+
+    /** {@code (^https?://.*?)//+(.*)}, applied until it no longer matches */
+    protected static String stripExtraSlashes(String url) {
+        int start;
+        if (url.startsWith("http://")) {
+            start = 7;
+        } else if (url.startsWith("https://")) {
+            start = 8;
+        } else {
+            return url;
+        }
+        int first = url.indexOf("//", start);
+        if (first < 0) {
+            return url;
+        }
+        StringBuilder sb = new StringBuilder(url.length());
+        sb.append(url, 0, first);
+        for (int i = first; i < url.length(); i++) {
+            char c = url.charAt(i);
+            if (c != '/' || sb.length() == start || sb.charAt(sb.length() - 1) != '/') {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Matches a session id token starting at a given offset.
+     */
+    protected interface Token {
+        /** @return end of the token at offset p of url, or -1 */
+        int matchAt(String url, int p);
+    }
+
+    /**
+     * Equivalent of {@link BaseRule#doStripRegexMatch(String, String)} with
+     * a regex like {@code (?i)^(.+)TOKEN(?:&(.*))?$}: the greedy
+     * {@code (.+)} means it's the last token, not at the very start, that
+     * is followed by '&amp;' or the end, that gets stripped.
+     */
+    protected static String stripLast(String url, Token token) {
+        int n = url.length();
+        for (int p = n - 1; p >= 1; p--) {
+            int e = token.matchAt(url, p);
+            if (e < 0) {
+                continue;
+            }
+            if (e == n) {
+                return url.substring(0, p);
+            }
+            if (url.charAt(e) == '&') {
+                return url.substring(0, p) + url.substring(e + 1);
+            }
+        }
+        return url;
+    }
+
+    protected static boolean isAsciiAlnum(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    protected static boolean isAsciiLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    /** @return offset after count chars of the class, or -1 */
+    protected static int run(String url, int p, int count, boolean letters) {
+        if (p + count > url.length()) {
+            return -1;
+        }
+        for (int i = p; i < p + count; i++) {
+            char c = url.charAt(i);
+            if (letters ? !isAsciiLetter(c) : !isAsciiAlnum(c)) {
+                return -1;
+            }
+        }
+        return p + count;
+    }
+
+    /** {@code (?:(?:jsessionid)|(?:phpsessid))=[0-9a-zA-Z]{32}} */
+    protected static final Token JSESSIONID_PHPSESSID = new Token() {
+        public int matchAt(String url, int p) {
+            if (url.regionMatches(true, p, "jsessionid=", 0, 11)) {
+                return run(url, p + 11, 32, false);
+            } else if (url.regionMatches(true, p, "phpsessid=", 0, 10)) {
+                return run(url, p + 10, 32, false);
+            }
+            return -1;
+        }
+    };
+
+    /** {@code sid=[0-9a-zA-Z]{32}} */
+    protected static final Token SID = new Token() {
+        public int matchAt(String url, int p) {
+            if (url.regionMatches(true, p, "sid=", 0, 4)) {
+                return run(url, p + 4, 32, false);
+            }
+            return -1;
+        }
+    };
+
+    /** {@code ASPSESSIONID[a-zA-Z]{8}=[a-zA-Z]{24}} */
+    protected static final Token ASPSESSIONID = new Token() {
+        public int matchAt(String url, int p) {
+            if (!url.regionMatches(true, p, "aspsessionid", 0, 12)) {
+                return -1;
+            }
+            int e = run(url, p + 12, 8, true);
+            if (e < 0 || e >= url.length() || url.charAt(e) != '=') {
+                return -1;
+            }
+            return run(url, e + 1, 24, true);
+        }
+    };
+
+    /**
+     * {@code cfid=[^&]+&cftoken=[^&]+(?:jsession=[^&]+)?}; the optional
+     * part never changes what's stripped, as the greedy {@code [^&]+}
+     * before it has already reached the next '&amp;'.
+     */
+    protected static final Token CFID = new Token() {
+        public int matchAt(String url, int p) {
+            if (!url.regionMatches(true, p, "cfid=", 0, 5)) {
+                return -1;
+            }
+            int amp = url.indexOf('&', p + 5);
+            if (amp <= p + 5 || !url.regionMatches(true, amp + 1, "cftoken=", 0, 8)) {
+                return -1;
+            }
+            int valueStart = amp + 9;
+            int end = url.indexOf('&', valueStart);
+            if (end < 0) {
+                end = url.length();
+            }
+            return end > valueStart ? end : -1;
+        }
+    };
+
+    protected static boolean hasLineTerminator(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Costs of each rule so far, one line per rule.
+     */
+    public void appendReport(StringBuilder sb) {
+        for (int i = 0; i < rules.length; i++) {
+            long n = applied[i].sum();
+            long ns = nanos[i].sum();
+            sb.append("    ").append(rules[i].getClass().getSimpleName())
+              .append(kinds[i] == RULE ? "" : " (compiled)")
+              .append(": ").append(n).append(" applied, ")
+              .append(changed[i].sum()).append(" changed, ")
+              .append(ns / 1000000).append("ms, ")
+              .append(n > 0 ? ns / n : 0).append("ns each\n");
+        }
+    }
+}
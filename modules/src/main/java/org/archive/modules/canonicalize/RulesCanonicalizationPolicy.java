@@ -21,6 +21,7 @@ package org.archive.modules.canonicalize;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -55,29 +56,63 @@ public class RulesCanonicalizationPolicy
         kp.put("rules", rules);
     }
     
+    /*
+     * Compiled versions of the configured lists, keyed by list identity.
+     * Needs to be a map rather than a single value to handle overrides.
+     */
+    protected ConcurrentHashMap<Integer,FusedCanonicalizer> compiled =
+        new ConcurrentHashMap<Integer,FusedCanonicalizer>();
+    protected FusedCanonicalizer getCompiled(List<CanonicalizationRule> rules) {
+        int key = System.identityHashCode(rules);
+        FusedCanonicalizer fused = compiled.get(key);
+        if (fused == null || !fused.isFor(rules)) {
+            fused = new FusedCanonicalizer(rules);
+            compiled.put(key, fused);
+        }
+        return fused;
+    }
+
     /**
      * Run the passed uuri through the list of rules.
      * @param before Url to canonicalize.
      * @return Canonicalized URL.
      */
     public String canonicalize(String before) {
-        String canonical = before;
         if (logger.isLoggable(Level.FINER)) {
-            logger.finer("Canonicalizing: "+before);
+            return canonicalizeLogging(before);
         }
+        return getCompiled(getRules()).canonicalize(before);
+    }
+
+    protected String canonicalizeLogging(String before) {
+        String canonical = before;
+        logger.finer("Canonicalizing: "+before);
         for (CanonicalizationRule rule : getRules()) {
             if(rule.getEnabled()) {
                 canonical = rule.canonicalize(canonical);
             }
-            if (logger.isLoggable(Level.FINER)) {
-                logger.finer(
-                    "Rule " + rule.getClass().getName() + " "
-                    + (rule.getEnabled()
-                            ? canonical :" (disabled)"));
-            }
+            logger.finer(
+                "Rule " + rule.getClass().getName() + " "
+                + (rule.getEnabled()
+                        ? canonical :" (disabled)"));
         }
         return canonical;
     }
+
+    /**
+     * Applications, changes and time taken by each rule.
+     */
+    @Override
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        if (!compiled.isEmpty()) {
+            sb.append("  canonicalization rules:\n");
+        }
+        for (FusedCanonicalizer fused : compiled.values()) {
+            fused.appendReport(sb);
+        }
+        return sb.toString();
+    }
     
     /**
      * A reasonable set of default rules to use, if no others are
@@ -8,4 +8,11 @@ package org.archive.modules.canonicalize;
  */
 public abstract class UriCanonicalizationPolicy {
     public abstract String canonicalize(String uri);
+
+    /**
+     * @return lines for the processors report, if any
+     */
+    public String report() {
+        return "";
+    }
 }
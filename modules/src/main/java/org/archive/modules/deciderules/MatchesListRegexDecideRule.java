@@ -19,7 +19,9 @@
 package org.archive.modules.deciderules;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.FutureTask;
@@ -31,6 +33,7 @@ import java.util.regex.Pattern;
 
 import org.archive.modules.CrawlURI;
 import org.archive.util.InterruptibleCharSequence;
+import org.archive.util.MultiPatternMatcher;
 
 /**
  * Rule applies configured decision to any CrawlURIs whose String URI
@@ -94,9 +97,28 @@ public class MatchesListRegexDecideRule extends PredicatedDecideRule {
     public MatchesListRegexDecideRule() {
     }
 
+    /*
+     * Prefilters for the configured lists, keyed by list identity. Needs to
+     * be a map rather than a single value to handle overrides.
+     */
+    protected transient ConcurrentHashMap<Integer,MultiPatternMatcher> matchers;
+    protected MultiPatternMatcher getMatcher(List<Pattern> regexes) {
+        if (matchers == null) {
+            matchers = new ConcurrentHashMap<Integer,MultiPatternMatcher>();
+        }
+        int key = System.identityHashCode(regexes);
+        MultiPatternMatcher matcher = matchers.get(key);
+        if (matcher == null || !matcher.isFor(regexes)) {
+            matcher = new MultiPatternMatcher(regexes);
+            matchers.put(key, matcher);
+        }
+        return matcher;
+    }
+
     /**
      * Evaluate whether given object's string version
-     * matches configured regexes
+     * matches configured regexes. Regexes whose literal text doesn't appear
+     * in the URI can't match, so only the rest are actually run.
      */
     @Override
     protected boolean evaluate(CrawlURI uri) {
@@ -108,34 +130,15 @@ public class MatchesListRegexDecideRule extends PredicatedDecideRule {
         String str = uri.toString();
         boolean listLogicOR = getListLogicalOr();
 
-        for (Pattern p: regexes) {
-            boolean matches = false;
-            if (getTimeoutPerRegexSeconds() <= 0) {
-                matches = p.matcher(str).matches();
-            } else {
-                InterruptibleCharSequence interruptible = new InterruptibleCharSequence(str);
-                FutureTask<Boolean> matchesFuture = new FutureTask<>(() -> p.matcher(interruptible).matches());
-                ForkJoinPool.commonPool().submit(matchesFuture);
-                try {
-                    matches = matchesFuture.get(getTimeoutPerRegexSeconds(), TimeUnit.SECONDS);
-                } catch (TimeoutException e) {
-                    matchesFuture.cancel(true);
-                    logger.warning("Timed out after " + getTimeoutPerRegexSeconds() + " seconds waiting for '" + p + "' to match.");
-                } catch (InterruptedException e) {
-                    matchesFuture.cancel(true);
-                    logger.warning("InterruptedException while waiting for '" + p + "' to match.");
-                } catch (ExecutionException e) {
-                    matchesFuture.cancel(true);
-                    logger.warning("ExecutionException while waiting for '" + p + "' to match: " + e.getMessage());
-                }
-            }
-
-            if (logger.isLoggable(Level.FINER)) {
-                logger.finer("Tested '" + str + "' match with regex '" +
-                        p.pattern() + " and result was " + matches);
-            }
+        MultiPatternMatcher matcher = getMatcher(regexes);
+        BitSet candidates = matcher.candidates(str);
+        if (!listLogicOR && candidates.cardinality() < matcher.size()) {
+            // AND based and some regex can't match, done!
+            return false;
+        }
 
-            if(matches){
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            if(matches(matcher.getPattern(i), str)){
                 if(listLogicOR){
                     // OR based and we just got a match, done!
                     logger.fine("Matched: " + str);
@@ -156,4 +159,33 @@ public class MatchesListRegexDecideRule extends PredicatedDecideRule {
         }
     }
 
+    protected boolean matches(Pattern p, String str) {
+        boolean matches = false;
+        if (getTimeoutPerRegexSeconds() <= 0) {
+            matches = p.matcher(str).matches();
+        } else {
+            InterruptibleCharSequence interruptible = new InterruptibleCharSequence(str);
+            FutureTask<Boolean> matchesFuture = new FutureTask<>(() -> p.matcher(interruptible).matches());
+            ForkJoinPool.commonPool().submit(matchesFuture);
+            try {
+                matches = matchesFuture.get(getTimeoutPerRegexSeconds(), TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                matchesFuture.cancel(true);
+                logger.warning("Timed out after " + getTimeoutPerRegexSeconds() + " seconds waiting for '" + p + "' to match.");
+            } catch (InterruptedException e) {
+                matchesFuture.cancel(true);
+                logger.warning("InterruptedException while waiting for '" + p + "' to match.");
+            } catch (ExecutionException e) {
+                matchesFuture.cancel(true);
+                logger.warning("ExecutionException while waiting for '" + p + "' to match: " + e.getMessage());
+            }
+        }
+
+        if (logger.isLoggable(Level.FINER)) {
+            logger.finer("Tested '" + str + "' match with regex '" +
+                    p.pattern() + " and result was " + matches);
+        }
+        return matches;
+    }
+
 }
\ No newline at end of file
@@ -63,7 +63,7 @@ public class ViaSurtPrefixedDecideRule extends PredicatedDecideRule {
     @Override
     protected boolean evaluate(CrawlURI uri) {
         if (uri.getVia() != null && getSurtPrefixes() !=null){
-            return surtPrefixes.containsPrefixOf(SurtPrefixSet.getCandidateSurt(uri.getVia()));
+            return surtPrefixes.containsPrefixOf(uri.getVia().getCandidateSurt());
         }
         else
             return false;
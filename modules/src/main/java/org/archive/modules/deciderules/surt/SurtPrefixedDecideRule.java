@@ -23,6 +23,10 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -38,6 +42,7 @@ import org.archive.modules.seeds.SeedListener;
 import org.archive.modules.seeds.SeedModule;
 import org.archive.net.UURI;
 import org.archive.spring.ConfigFile;
+import org.archive.util.PrefixTrie;
 import org.archive.util.SurtPrefixSet;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -55,6 +60,9 @@ import org.springframework.context.event.ContextStartedEvent;
  * 
  * The set can be filled with SURT prefixes implied or
  * listed in the seeds file, or another external file. 
+ * Once read, prefixes are held in a packed {@link PrefixTrie} 
+ * snapshot; later additions (as from seeds) collect in a 
+ * small set until folded into a new snapshot. 
  *
  * The "also-check-via" option to implement "one hop off" 
  * scoping derives from a contribution by Shifra Raffel
@@ -159,7 +167,17 @@ public class SurtPrefixedDecideRule extends PredicatedDecideRule implements
         }
     }
     
+    /**
+     * Prefixes as read, or added since the last snapshot; see 
+     * {@link #snapshotSurtPrefixes()}.
+     */
     protected SurtPrefixSet surtPrefixes = new SurtPrefixSet();
+    /** snapshot of prefixes, replaced copy-on-write */
+    protected volatile PrefixTrie surtTrie = PrefixTrie.EMPTY;
+    /** additions to surtPrefixes since the last snapshot */
+    protected AtomicInteger pendingPrefixCount = new AtomicInteger();
+    /** fewest pending additions worth folding into a new snapshot */
+    protected static final int MIN_PENDING_PREFIXES = 1024;
 
     public SurtPrefixedDecideRule() {
     }
@@ -184,17 +202,46 @@ public class SurtPrefixedDecideRule extends PredicatedDecideRule implements
     }
     
     private boolean innerDecide(UURI uuri) {
-        String candidateSurt;
-        candidateSurt = SurtPrefixSet.getCandidateSurt(uuri);
+        if (uuri == null) {
+            return false;
+        }
+        String candidateSurt = uuri.getCandidateSurt();
         if (candidateSurt == null) {
             return false;
         }
-        if (surtPrefixes.containsPrefixOf(candidateSurt)) {
+        if (surtTrie.containsPrefixOf(candidateSurt)) {
             return true;
-        } else {
-            return false;
+        }
+        return !surtPrefixes.isEmpty() 
+                && surtPrefixes.containsPrefixOf(candidateSurt);
+    }
+
+    /**
+     * Fold the prefixes collected in surtPrefixes into a new snapshot, 
+     * publish it, and clear them from surtPrefixes. Readers see each 
+     * prefix in one or the other throughout. 
+     */
+    protected synchronized void snapshotSurtPrefixes() {
+        pendingPrefixCount.set(0);
+        if (surtPrefixes.isEmpty()) {
+            return;
+        }
+        List<String> pending = new ArrayList<String>(surtPrefixes);
+        surtTrie = surtTrie.plus(pending, true);
+        surtPrefixes.removeAll(pending);
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine(surtTrie.size() + " surt prefixes in " 
+                    + surtTrie.sizeInBytes() + " bytes");
         }
     }
+    
+    /**
+     * @return all prefixes in use, sorted
+     */
+    public List<String> getAllSurtPrefixes() {
+        snapshotSurtPrefixes();
+        return Arrays.asList(surtTrie.toArray());
+    }
 
     protected void readPrefixes() {
         buildSurtPrefixSet();
@@ -204,6 +251,7 @@ public class SurtPrefixedDecideRule extends PredicatedDecideRule implements
      * Dump the current prefixes in use to configured dump file (if any)
      */
     protected void dumpSurtPrefixSet() {
+        snapshotSurtPrefixes();
         // dump surts to file, if appropriate
         String dumpPath = getSurtsDumpFile().getPath();
         if (!StringUtils.isEmpty(dumpPath)) {
@@ -211,7 +259,9 @@ public class SurtPrefixedDecideRule extends PredicatedDecideRule implements
             try {
                 FileWriter fw = new FileWriter(dump);
                 try {
-                    surtPrefixes.exportTo(fw);
+                    for (String prefix : surtTrie.toArray()) {
+                        fw.write(prefix + "\n");
+                    }
                 } finally {
                     fw.close();
                 }
@@ -247,7 +297,11 @@ public class SurtPrefixedDecideRule extends PredicatedDecideRule implements
      */
     public void addedSeed(final CrawlURI curi) {
         if(getSeedsAsSurtPrefixes()) {
-            surtPrefixes.add(prefixFrom(curi.getURI()));
+            if (surtPrefixes.add(prefixFrom(curi.getURI()))
+                    && pendingPrefixCount.incrementAndGet() >= Math.max(
+                            MIN_PENDING_PREFIXES, surtTrie.size() / 4)) {
+                snapshotSurtPrefixes();
+            }
         }
     }
     
@@ -306,6 +360,7 @@ public class SurtPrefixedDecideRule extends PredicatedDecideRule implements
             } else {
                 readPrefixes();
             }
+            snapshotSurtPrefixes();
         }
     }
     
@@ -324,7 +379,7 @@ public class SurtPrefixedDecideRule extends PredicatedDecideRule implements
             throws IOException {
         try {
             JSONObject json = new JSONObject();
-            json.put("surtPrefixes", surtPrefixes);
+            json.put("surtPrefixes", getAllSurtPrefixes());
             checkpointInProgress.saveJson(beanName, json);
         } catch (JSONException e) {
             throw new RuntimeException(e);
@@ -27,8 +27,11 @@ import java.net.URLDecoder;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Locale;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -41,6 +44,7 @@ import org.archive.io.ReplayCharSequence;
 import org.archive.modules.CoreAttributeConstants;
 import org.archive.modules.CrawlMetadata;
 import org.archive.modules.CrawlURI;
+import org.archive.modules.fetcher.ContentSniffer;
 import org.archive.modules.net.RobotsPolicy;
 import org.archive.net.UURI;
 import org.archive.net.UURIFactory;
@@ -391,40 +395,110 @@ public class ExtractorHTML extends ContentExtractor implements InitializingBean
     }
     
 
-    protected void processGeneralTag(CrawlURI curi, CharSequence element,
-            CharSequence cs) {
+    // kinds of attribute, numbered as the EACH_ATTRIBUTE_EXTRACTOR groups
+    static final int ATTR_HREF = 2;
+    static final int ATTR_ACTION = 3;
+    static final int ATTR_ON = 4;
+    static final int ATTR_SRC = 5;
+    static final int ATTR_CODEBASE = 6;
+    static final int ATTR_CLASSID = 7;
+    static final int ATTR_ARCHIVE = 8;
+    static final int ATTR_CODE = 9;
+    static final int ATTR_VALUE = 10;
+    static final int ATTR_STYLE = 11;
+    static final int ATTR_METHOD = 12;
+    static final int ATTR_OTHER = 13;
+
+    static final Set<String> DATA_SRC_ATTRIBUTES = new HashSet<String>(Arrays.asList(
+            "data-src", "data-src-small", "data-src-medium", "data-srcset",
+            "data-original", "data-original-set", "data-lazy", "data-lazy-srcset",
+            "data-full-src"));
+
+    static final String[] ATTR_NAMES = {
+            "href", "cite", "action", "src", "srcset", "lowsrc", "background",
+            "longdesc", "usemap", "profile", "datasrc", "data-src",
+            "data-srcset", "data-original", "data-original-set", "codebase",
+            "classid", "data", "archive", "code", "value", "style", "method" };
+    static final int[] ATTR_NAME_KINDS = {
+            ATTR_HREF, ATTR_HREF, ATTR_ACTION, ATTR_SRC, ATTR_SRC, ATTR_SRC, ATTR_SRC,
+            ATTR_SRC, ATTR_SRC, ATTR_SRC, ATTR_SRC, ATTR_SRC,
+            ATTR_SRC, ATTR_SRC, ATTR_SRC, ATTR_CODEBASE,
+            ATTR_CLASSID, ATTR_CLASSID, ATTR_ARCHIVE, ATTR_CODE, ATTR_VALUE, ATTR_STYLE, ATTR_METHOD };
 
-        Matcher attr = TextUtils.getMatcher(eachAttributePattern,cs);
+    /**
+     * Kind of the attribute named cs[start,end), as the
+     * EACH_ATTRIBUTE_EXTRACTOR groups would have it.
+     *
+     * @return one of the ATTR_ constants
+     */
+    static int attributeKind(CharSequence cs, int start, int end) {
+        int length = end - start;
+        if (length >= 2 && regionMatchesIgnoreCase(cs, start, "on")) {
+            int i = start + 2;
+            while (i < end && HTMLTokenizer.isAsciiWordChar(cs.charAt(i))) {
+                i++;
+            }
+            if (i == end) {
+                return ATTR_ON;
+            }
+        }
+        for (int i = 0; i < ATTR_NAMES.length; i++) {
+            if (ATTR_NAMES[i].length() == length
+                    && regionMatchesIgnoreCase(cs, start, ATTR_NAMES[i])) {
+                return ATTR_NAME_KINDS[i];
+            }
+        }
+        return ATTR_OTHER;
+    }
+
+    /**
+     * What processGeneralTag has gathered from a tag's attributes so far,
+     * some of which can only be acted on once all have been seen.
+     */
+    protected static class TagState {
+        protected final CharSequence element;
+        protected final String elementStr;
+        protected final boolean framesAsEmbeds;
+        protected final boolean ignoreFormActions;
+        protected final boolean extractValueAttributes;
+        /** an A tag with data-remote="true" */
+        protected boolean dataRemote;
 
         // Just in case it's an OBJECT or APPLET tag
-        String codebase = null;
-        ArrayList<String> resources = null;
-        
+        protected String codebase = null;
+        protected ArrayList<String> resources = null;
+
         // Just in case it's a FORM
-        CharSequence action = null;
-        CharSequence actionContext = null;
-        CharSequence method = null; 
-        
+        protected CharSequence action = null;
+        protected CharSequence actionContext = null;
+        protected CharSequence method = null;
+
         // Just in case it's a VALUE whose interpretation depends on accompanying NAME
-        CharSequence valueVal = null; 
-        CharSequence valueContext = null;
-        CharSequence nameVal = null;
+        protected CharSequence valueVal = null;
+        protected CharSequence valueContext = null;
+        protected CharSequence nameVal = null;
 
         // Just in case it's an A or LINK tag
-        CharSequence linkHref = null;
-        CharSequence linkRel = null;
-        CharSequence linkContext = null;
-        
-        final boolean framesAsEmbeds = 
-            getTreatFramesAsEmbedLinks();
+        protected CharSequence linkHref = null;
+        protected CharSequence linkRel = null;
+        protected CharSequence linkContext = null;
+
+        protected TagState(ExtractorHTML extractor, CharSequence element) {
+            this.element = element;
+            this.elementStr = element.toString();
+            this.framesAsEmbeds = extractor.getTreatFramesAsEmbedLinks();
+            this.ignoreFormActions = extractor.getIgnoreFormActionUrls();
+            this.extractValueAttributes = extractor.getExtractValueAttributes();
+        }
+    }
 
-        final boolean ignoreFormActions = 
-            getIgnoreFormActionUrls();
-        
-        final boolean extractValueAttributes = 
-            getExtractValueAttributes();
+    protected void processGeneralTag(CrawlURI curi, CharSequence element,
+            CharSequence cs) {
+
+        Matcher attr = TextUtils.getMatcher(eachAttributePattern,cs);
 
-        final String elementStr = element.toString();
+        TagState tag = new TagState(this, element);
+        tag.dataRemote = "a".equals(element) && isDataRemote(cs, 0, cs.length());
 
         while (attr.find()) {
             int valueGroup =
@@ -436,163 +510,210 @@ public class ExtractorHTML extends ContentExtractor implements InitializingBean
             CharSequence value = cs.subSequence(start, end);
             CharSequence attrName = cs.subSequence(attr.start(1),attr.end(1));
             value = TextUtils.unescapeHtml(value);
-            if (attr.start(2) > -1) {
-                CharSequence context;
-                // HREF
-                if ("a".equals(element) && TextUtils.matches("(?i).*data-remote\\s*=\\s*([\"'])true.*\\1", cs)) {
-                    context = "a[data-remote='true']/@href";
-                } else {
-                    context = elementContext(element, attr.group(2));
-                }
-                
-
-                if ((elementStr.equalsIgnoreCase(LINK) || elementStr.equalsIgnoreCase("a"))
-                    && linkHref == null) {
-                    // delay handling A and LINK until the end as we need both HREF and REL
-                    linkHref = value;
-                    linkContext = context;
-                } else if ("a[data-remote='true']/@href".equals(context)) {
-                    processEmbed(curi, value, context);
-                } else {
-                    // other HREFs treated as links
-                    processLink(curi, value, context);
-                }
-                // Set the relative or absolute base URI if it's not already been modified. 
-                // See https://github.com/internetarchive/heritrix3/pull/209
-                if (elementStr.equalsIgnoreCase(BASE) && !curi.containsDataKey(CoreAttributeConstants.A_HTML_BASE)) {
-                    try {
-                        UURI base = UURIFactory.getInstance(curi.getUURI(),value.toString());
-                        curi.setBaseURI(base);
-                    } catch (URIException e) {
-                        logUriError(e, curi.getUURI(), value);
-                    }
-                }
-            } else if (attr.start(3) > -1) {
-                // ACTION
-                if (!ignoreFormActions) {
-                    action = value; 
-                    actionContext = elementContext(element, attr.group(3));
-                    // handling finished only at end (after METHOD also collected)
-                }
-            } else if (attr.start(4) > -1) {
-                // ON____
-                processScriptCode(curi, value); // TODO: context?
-            } else if (attr.start(5) > -1) {
-                // SRC etc.
-                CharSequence context = elementContext(element, attr.group(5));
-                if (!context.toString().toLowerCase().startsWith("data:")) {
-
-                    // true, if we expect another HTML page instead of an image etc.
-                    final Hop hop;
-
-                    if (!framesAsEmbeds
-                            && (elementStr.equalsIgnoreCase(FRAME) || elementStr
-                            .equalsIgnoreCase(IFRAME))) {
-                        hop = Hop.NAVLINK;
-                    } else {
-                        hop = Hop.EMBED;
-                    }
-                    processEmbed(curi, value, context, hop);
-                }
-            } else if (attr.start(6) > -1) {
-                // CODEBASE
-                codebase = (value instanceof String)?
-                    (String)value: value.toString();
-                CharSequence context = elementContext(element,
-                    attr.group(6));
-                processLink(curi, codebase, context);
-            } else if (attr.start(7) > -1) {
-                // CLASSID, DATA
-                if (resources == null) {
-                    resources = new ArrayList<String>();
-                }
-                resources.add(value.toString());
-            } else if (attr.start(8) > -1) {
-                // ARCHIVE
-                if (resources==null) {
-                    resources = new ArrayList<String>();
-                }
-                String[] multi = TextUtils.split(WHITESPACE, value);
-                for(int i = 0; i < multi.length; i++ ) {
-                    resources.add(multi[i]);
+            int kind = ATTR_OTHER;
+            for (int group = ATTR_HREF; group < ATTR_OTHER; group++) {
+                if (attr.start(group) > -1) {
+                    kind = group;
+                    break;
                 }
-            } else if (attr.start(9) > -1) {
-                // CODE
-                if (resources==null) {
-                    resources = new ArrayList<String>();
+            }
+            processAttribute(curi, tag, kind, attrName, value);
+        }
+        TextUtils.recycleMatcher(attr);
+
+        finishGeneralTag(curi, tag);
+    }
+
+    /**
+     * Handle one attribute of a tag, or note it for
+     * {@link #finishGeneralTag(CrawlURI, TagState)}.
+     * 
+     * @param kind one of the ATTR_ constants
+     * @param attrName attribute name as it appears in the tag
+     * @param value unescaped attribute value
+     */
+    protected void processAttribute(CrawlURI curi, TagState tag, int kind,
+            CharSequence attrName, CharSequence value) {
+        final CharSequence element = tag.element;
+        final String elementStr = tag.elementStr;
+        switch (kind) {
+        case ATTR_HREF: {
+            CharSequence context;
+            // HREF
+            if (tag.dataRemote) {
+                context = "a[data-remote='true']/@href";
+            } else {
+                context = elementContext(element, attrName);
+            }
+            
+
+            if ((elementStr.equalsIgnoreCase(LINK) || elementStr.equalsIgnoreCase("a"))
+                && tag.linkHref == null) {
+                // delay handling A and LINK until the end as we need both HREF and REL
+                tag.linkHref = value;
+                tag.linkContext = context;
+            } else if ("a[data-remote='true']/@href".equals(context)) {
+                processEmbed(curi, value, context);
+            } else {
+                // other HREFs treated as links
+                processLink(curi, value, context);
+            }
+            // Set the relative or absolute base URI if it's not already been modified. 
+            // See https://github.com/internetarchive/heritrix3/pull/209
+            if (elementStr.equalsIgnoreCase(BASE) && !curi.containsDataKey(CoreAttributeConstants.A_HTML_BASE)) {
+                try {
+                    UURI base = UURIFactory.getInstance(curi.getUURI(),value.toString());
+                    curi.setBaseURI(base);
+                } catch (URIException e) {
+                    logUriError(e, curi.getUURI(), value);
                 }
-                // If element is applet and code value does not end with
-                // '.class' then append '.class' to the code value.
-                if (elementStr.equalsIgnoreCase(APPLET) &&
-                        !value.toString().toLowerCase().endsWith(CLASSEXT)) {
-                    resources.add(value.toString() + CLASSEXT);
+            }
+            break;
+        }
+        case ATTR_ACTION:
+            // ACTION
+            if (!tag.ignoreFormActions) {
+                tag.action = value; 
+                tag.actionContext = elementContext(element, attrName);
+                // handling finished only at end (after METHOD also collected)
+            }
+            break;
+        case ATTR_ON:
+            // ON____
+            processScriptCode(curi, value); // TODO: context?
+            break;
+        case ATTR_SRC: {
+            // SRC etc.
+            CharSequence context = elementContext(element, attrName);
+            if (!context.toString().toLowerCase().startsWith("data:")) {
+
+                // true, if we expect another HTML page instead of an image etc.
+                final Hop hop;
+
+                if (!tag.framesAsEmbeds
+                        && (elementStr.equalsIgnoreCase(FRAME) || elementStr
+                        .equalsIgnoreCase(IFRAME))) {
+                    hop = Hop.NAVLINK;
                 } else {
-                    resources.add(value.toString());
-                }
-            } else if (attr.start(10) > -1) {
-                // VALUE, with possibility of URI
-                // store value, context for handling at end
-                valueVal = value; 
-                valueContext = elementContext(element,attr.group(10));
-            } else if (attr.start(11) > -1) {
-                // STYLE inline attribute
-                // then, parse for URIs
-                numberOfLinksExtracted.addAndGet(ExtractorCSS.processStyleCode(
-                        this, curi, value));        
-            } else if (attr.start(12) > -1) {
-                // METHOD
-                method = value;
-                // form processing finished at end (after ACTION also collected)
-            } else if (attr.start(13) > -1) {
-                if (Ascii.equalsIgnoreCase(attrName, "NAME")) {
-                    // remember 'name' for end-analysis
-                    nameVal = value; 
-                } else if (Ascii.equalsIgnoreCase(attrName, "FLASHVARS")) {
-                    // consider FLASHVARS attribute immediately
-                    valueContext = elementContext(element,attr.group(13));
-                    considerQueryStringValues(curi, value, valueContext,Hop.SPECULATIVE);
-                } else if (Ascii.equalsIgnoreCase(attrName, "REL")) {
-                    // remember 'rel' for end-analysis
-                    linkRel = value;
+                    hop = Hop.EMBED;
                 }
+                processEmbed(curi, value, context, hop);
+            }
+            break;
+        }
+        case ATTR_CODEBASE: {
+            // CODEBASE
+            tag.codebase = (value instanceof String)?
+                (String)value: value.toString();
+            CharSequence context = elementContext(element, attrName);
+            processLink(curi, tag.codebase, context);
+            break;
+        }
+        case ATTR_CLASSID:
+            // CLASSID, DATA
+            if (tag.resources == null) {
+                tag.resources = new ArrayList<String>();
+            }
+            tag.resources.add(value.toString());
+            break;
+        case ATTR_ARCHIVE: {
+            // ARCHIVE
+            if (tag.resources==null) {
+                tag.resources = new ArrayList<String>();
+            }
+            String[] multi = TextUtils.split(WHITESPACE, value);
+            for(int i = 0; i < multi.length; i++ ) {
+                tag.resources.add(multi[i]);
+            }
+            break;
+        }
+        case ATTR_CODE:
+            // CODE
+            if (tag.resources==null) {
+                tag.resources = new ArrayList<String>();
+            }
+            // If element is applet and code value does not end with
+            // '.class' then append '.class' to the code value.
+            if (elementStr.equalsIgnoreCase(APPLET) &&
+                    !value.toString().toLowerCase().endsWith(CLASSEXT)) {
+                tag.resources.add(value.toString() + CLASSEXT);
+            } else {
+                tag.resources.add(value.toString());
+            }
+            break;
+        case ATTR_VALUE:
+            // VALUE, with possibility of URI
+            // store value, context for handling at end
+            tag.valueVal = value; 
+            tag.valueContext = elementContext(element, attrName);
+            break;
+        case ATTR_STYLE:
+            // STYLE inline attribute
+            // then, parse for URIs
+            numberOfLinksExtracted.addAndGet(ExtractorCSS.processStyleCode(
+                    this, curi, value));        
+            break;
+        case ATTR_METHOD:
+            // METHOD
+            tag.method = value;
+            // form processing finished at end (after ACTION also collected)
+            break;
+        default: {
+            if (Ascii.equalsIgnoreCase(attrName, "NAME")) {
+                // remember 'name' for end-analysis
+                tag.nameVal = value; 
+            } else if (Ascii.equalsIgnoreCase(attrName, "FLASHVARS")) {
+                // consider FLASHVARS attribute immediately
+                tag.valueContext = elementContext(element, attrName);
+                considerQueryStringValues(curi, value, tag.valueContext,Hop.SPECULATIVE);
+            } else if (Ascii.equalsIgnoreCase(attrName, "REL")) {
+                // remember 'rel' for end-analysis
+                tag.linkRel = value;
+            }
 
-				// 2023 updates get img or source data attr
-				CharSequence context = elementContext(element, attr.group(13));
-				if (TextUtils.matches(
-						"data-(src|src-small|src-medium|srcset|original|original-set|lazy|lazy-srcset|full-src)", //
-						attr.group(13).toLowerCase())) {
-
-					// true, if we expect another HTML page instead of an image etc.
-					final Hop hop;
-
-					if (!framesAsEmbeds
-							&& (elementStr.equalsIgnoreCase(FRAME) || elementStr.equalsIgnoreCase(IFRAME))) {
-						hop = Hop.NAVLINK;
-					} else {
-						hop = Hop.EMBED;
-					}
-					processEmbed(curi, value, context, hop);
-				}
-
-                // any other attribute
-                // ignore for now
-                // could probe for path- or script-looking strings, but
-                // those should be vanishingly rare in other attributes,
-                // and/or symptomatic of page bugs
+            // 2023 updates get img or source data attr
+            CharSequence context = elementContext(element, attrName);
+            if (DATA_SRC_ATTRIBUTES.contains(attrName.toString().toLowerCase(Locale.ROOT))) {
+
+                // true, if we expect another HTML page instead of an image etc.
+                final Hop hop;
+
+                if (!tag.framesAsEmbeds
+                        && (elementStr.equalsIgnoreCase(FRAME) || elementStr.equalsIgnoreCase(IFRAME))) {
+                    hop = Hop.NAVLINK;
+                } else {
+                    hop = Hop.EMBED;
+                }
+                processEmbed(curi, value, context, hop);
             }
+
+            // any other attribute
+            // ignore for now
+            // could probe for path- or script-looking strings, but
+            // those should be vanishingly rare in other attributes,
+            // and/or symptomatic of page bugs
         }
-        TextUtils.recycleMatcher(attr);
+        }
+    }
+
+    /**
+     * Act on what processAttribute noted once all a tag's attributes have
+     * been seen.
+     */
+    protected void finishGeneralTag(CrawlURI curi, TagState tag) {
+        final CharSequence element = tag.element;
+        final String elementStr = tag.elementStr;
 
         // handle codebase/resources
-        if (resources != null) {
-            Iterator<String> iter = resources.iterator();
+        if (tag.resources != null) {
+            Iterator<String> iter = tag.resources.iterator();
             UURI codebaseURI = null;
             String res = null;
             try {
-                if (codebase != null) {
+                if (tag.codebase != null) {
                     // TODO: Pass in the charset.
                     codebaseURI = UURIFactory.
-                        getInstance(curi.getUURI(), codebase);
+                        getInstance(curi.getUURI(), tag.codebase);
                 }
                 while(iter.hasNext()) {
                     res = iter.next().toString();
@@ -606,52 +727,143 @@ public class ExtractorHTML extends ContentExtractor implements InitializingBean
                 curi.getNonFatalFailures().add(e);
             } catch (IllegalArgumentException e) {
                 DevUtils.logger.log(Level.WARNING, "processGeneralTag()\n" +
-                    "codebase=" + codebase + " res=" + res + "\n" +
+                    "codebase=" + tag.codebase + " res=" + res + "\n" +
                     DevUtils.extraInfo(), e);
             }
         }
 
         // finish handling LINK now both HREF and REL should be available
-        if (linkHref != null) {
+        if (tag.linkHref != null) {
             if (elementStr.equalsIgnoreCase(LINK)) {
-                if (linkRel != null) {
-                    processLinkTagWithRel(curi, linkHref, linkRel);
+                if (tag.linkRel != null) {
+                    processLinkTagWithRel(curi, tag.linkHref, tag.linkRel);
                 }
             } else {
-                if (linkRel != null && getObeyRelNofollow()
-                    && TextUtils.matches("(?i).*\\bnofollow\\b.*", linkRel)) {
-                    if (logger.isLoggable(Level.FINEST)) logger.finest("ignoring nofollow link: " + linkHref);
+                if (tag.linkRel != null && getObeyRelNofollow()
+                    && isNofollow(tag.linkRel)) {
+                    if (logger.isLoggable(Level.FINEST)) logger.finest("ignoring nofollow link: " + tag.linkHref);
                 } else {
-                    processLink(curi, linkHref, linkContext);
+                    processLink(curi, tag.linkHref, tag.linkContext);
                 }
             }
         }
            
         // finish handling form action, now method is available
-        if(action != null) {
-            if(method == null || "GET".equalsIgnoreCase(method.toString()) 
+        if(tag.action != null) {
+            if(tag.method == null || "GET".equalsIgnoreCase(tag.method.toString()) 
                         || ! getExtractOnlyFormGets()) {
-                processLink(curi, action, actionContext);
+                processLink(curi, tag.action, tag.actionContext);
             }
         }
         
         // finish handling VALUE
-        if(valueVal != null) {
-            if ("PARAM".equalsIgnoreCase(elementStr) && nameVal != null
-                    && "flashvars".equalsIgnoreCase(nameVal.toString())) {
+        if(tag.valueVal != null) {
+            if ("PARAM".equalsIgnoreCase(elementStr) && tag.nameVal != null
+                    && "flashvars".equalsIgnoreCase(tag.nameVal.toString())) {
                 // special handling for <PARAM NAME='flashvars" VALUE="">
-                String queryStringLike = valueVal.toString();
+                String queryStringLike = tag.valueVal.toString();
                 // treat value as query-string-like "key=value[&key=value]*" pairings
-                considerQueryStringValues(curi, queryStringLike, valueContext,Hop.SPECULATIVE);
+                considerQueryStringValues(curi, queryStringLike, tag.valueContext,Hop.SPECULATIVE);
             } else {
                 // regular VALUE handling
-                if (extractValueAttributes) {
-                    considerIfLikelyUri(curi,valueVal,valueContext,Hop.NAVLINK);
+                if (tag.extractValueAttributes) {
+                    considerIfLikelyUri(curi,tag.valueVal,tag.valueContext,Hop.NAVLINK);
                 }
             }
         }
     }
 
+    /**
+     * Whether tag text matches, in full, the regex
+     * {@code (?i).*data-remote\s*=\s*(["'])true.*\1}: some
+     * data-remote="true (or single-quoted) with the text ending in that same
+     * quote char. As '.' doesn't match line terminators, none may come
+     * before the attribute name or after "true"; {@code \s} may match them.
+     */
+    protected static boolean isDataRemote(CharSequence cs, int start, int end) {
+        if (end - start < 17) {
+            return false;
+        }
+        char last = cs.charAt(end - 1);
+        if (last != '"' && last != '\'') {
+            return false;
+        }
+        int firstTerminator = end;
+        int lastTerminator = -1;
+        for (int i = start; i < end; i++) {
+            if (isLineTerminator(cs.charAt(i))) {
+                if (firstTerminator == end) {
+                    firstTerminator = i;
+                }
+                lastTerminator = i;
+            }
+        }
+        for (int i = start; i + 11 <= end && i <= firstTerminator; i++) {
+            if (!regionMatchesIgnoreCase(cs, i, "data-remote")) {
+                continue;
+            }
+            int p = i + 11;
+            while (p < end && isRegexSpace(cs.charAt(p))) p++;
+            if (p >= end || cs.charAt(p) != '=') continue;
+            p++;
+            while (p < end && isRegexSpace(cs.charAt(p))) p++;
+            if (p >= end || cs.charAt(p) != last) continue;
+            p++;
+            // "true", then '.'s up to the final quote
+            if (p + 4 <= end - 1 && regionMatchesIgnoreCase(cs, p, "true")
+                    && lastTerminator < p + 4) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether a rel value has the word nofollow, as the regex
+     * {@code (?i).*\bnofollow\b.*} decides.
+     */
+    protected static boolean isNofollow(CharSequence rel) {
+        int n = rel.length();
+        for (int i = 0; i < n; i++) {
+            if (isLineTerminator(rel.charAt(i))) {
+                return false;
+            }
+        }
+        for (int i = 0; i + 8 <= n; i++) {
+            if (regionMatchesIgnoreCase(rel, i, "nofollow")
+                    && (i == 0 || !isWordChar(rel.charAt(i - 1)))
+                    && (i + 8 == n || !isWordChar(rel.charAt(i + 8)))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    /** {@code \s} */
+    static boolean isRegexSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    static boolean regionMatchesIgnoreCase(CharSequence cs, int offset, String lowercase) {
+        if (offset + lowercase.length() > cs.length()) {
+            return false;
+        }
+        for (int i = 0; i < lowercase.length(); i++) {
+            if (Ascii.toLowerCase(cs.charAt(offset + i)) != lowercase.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     // see: https://html.spec.whatwg.org/multipage/links.html#linkTypes
     protected void processLinkTagWithRel(CrawlURI curi, CharSequence href, CharSequence rel) {
         boolean emitAsNavLink = false;
@@ -837,7 +1049,17 @@ public class ExtractorHTML extends ContentExtractor implements InitializingBean
             return true;
         }
 
-        String contentPrefixLC = uri.getRecorder().getContentReplayPrefixString(1000).toLowerCase();
+        String contentPrefix = null;
+        ContentSniffer sniffer = uri.getContentSniffer();
+        if (sniffer != null) {
+            // prefix kept while fetching, if enough to go on
+            contentPrefix = sniffer.getContentPrefixString(1000,
+                    uri.getRecorder().getCharset());
+        }
+        if (contentPrefix == null) {
+            contentPrefix = uri.getRecorder().getContentReplayPrefixString(1000);
+        }
+        String contentPrefixLC = contentPrefix.toLowerCase();
         if (contentPrefixLC.contains("<html") || contentPrefixLC.contains("<!doctype html")) {
             return true;
         }
@@ -846,7 +1068,12 @@ public class ExtractorHTML extends ContentExtractor implements InitializingBean
     }
 
     public boolean innerExtract(CrawlURI curi) {
-        if (!curi.containsContentTypeCharsetDeclaration()) {
+        ContentSniffer sniffer = curi.getContentSniffer();
+        if (sniffer != null && sniffer.isSniffed()) {
+            // declaration already found while the content was fetched
+            ContentSniffer.applyDeclaredCharset(curi,
+                    sniffer.getHtmlCharsetDeclaration(), "HTML");
+        } else if (!curi.containsContentTypeCharsetDeclaration()) {
             String contentPrefix = curi.getRecorder().getContentReplayPrefixString(1000);
             Charset contentDeclaredEncoding = getContentDeclaredCharset(curi,contentPrefix);
             if(!curi.getRecorder().getCharset().equals(contentDeclaredEncoding) && contentDeclaredEncoding!=null) {
@@ -1074,7 +1301,15 @@ public class ExtractorHTML extends ContentExtractor implements InitializingBean
             // TODO: handle other stuff
         }
         TextUtils.recycleMatcher(attr);
+        return processMeta(curi, name, httpEquiv, content);
+    }
 
+    /**
+     * Act on the attributes of a meta tag.
+     * @return True robots exclusion metatag.
+     */
+    protected boolean processMeta(CrawlURI curi, String name,
+            String httpEquiv, String content) {
         // Look for the 'robots' meta-tag
         if("robots".equalsIgnoreCase(name) && content != null ) {
             curi.getData().put(A_META_ROBOTS, content);
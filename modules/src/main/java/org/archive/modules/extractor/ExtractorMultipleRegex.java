@@ -22,19 +22,23 @@ import groovy.text.SimpleTemplateEngine;
 import groovy.text.Template;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.MatchResult;
 import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.archive.url.URIException;
 import org.archive.io.ReplayCharSequence;
 import org.archive.modules.CrawlURI;
 import org.archive.modules.fetcher.FetchStatusCodes;
+import org.archive.util.MultiPatternMatcher;
 import org.archive.util.TextUtils;
 
 /**
@@ -173,6 +177,27 @@ public class ExtractorMultipleRegex extends Extractor {
     }
     
     
+    /*
+     * Prefilters for the content regexes, which rule out in one pass over
+     * the content any regex whose literal text is missing from it. Needs to
+     * be a map rather than a single value to handle overrides.
+     */
+    protected ConcurrentHashMap<Map<String,String>,MultiPatternMatcher> contentMatchers =
+        new ConcurrentHashMap<Map<String,String>,MultiPatternMatcher>();
+    protected MultiPatternMatcher contentMatcher() {
+        Map<String,String> contentRegexes = getContentRegexes();
+        MultiPatternMatcher matcher = contentMatchers.get(contentRegexes);
+        if (matcher == null) {
+            List<Pattern> patterns = new ArrayList<Pattern>();
+            for (String regex: contentRegexes.values()) {
+                patterns.add(Pattern.compile(regex));
+            }
+            matcher = new MultiPatternMatcher(patterns);
+            contentMatchers.put(new LinkedHashMap<String,String>(contentRegexes), matcher);
+        }
+        return matcher;
+    }
+
     @Override
     protected boolean shouldProcess(CrawlURI uri) {
         if (uri.getContentLength() <= 0) {
@@ -235,6 +260,13 @@ public class ExtractorMultipleRegex extends Extractor {
             return;
         }
         
+        // every regex needs a match, so give up if any can't have one
+        MultiPatternMatcher contentMatcher = contentMatcher();
+        if (contentMatcher.candidates(cs).cardinality() < contentMatcher.size()) {
+	    TextUtils.recycleMatcher(matcher);
+            return;
+        }
+
         // run all the regexes on the content and cache results
         for (String regexName: getContentRegexes().keySet()) {
             String regex = getContentRegexes().get(regexName);
@@ -24,7 +24,6 @@ import java.util.ArrayList;
 import java.util.logging.Logger;
 
 import org.archive.url.URIException;
-import org.archive.io.SinkHandlerLogThread;
 import org.archive.modules.CrawlURI;
 import org.archive.net.UURI;
 import org.archive.net.UURIFactory;
@@ -76,15 +75,10 @@ public class ExtractorPDF extends ContentExtractor {
     protected boolean innerExtract(CrawlURI curi){
         File tempFile;
 
-        int sn;
-	Thread thread = Thread.currentThread();
-        if (thread instanceof SinkHandlerLogThread) {
-            sn = ((SinkHandlerLogThread)thread).getSerialNumber();
-        } else {
-            sn = System.identityHashCode(thread);
-        }
+        // named for the URI's ToeThread, which needn't be the current
+        // Thread (eg, a virtual thread)
         try {
-            tempFile = File.createTempFile("tt" + sn , "tmp.pdf");
+            tempFile = File.createTempFile("tt" + curi.getThreadNumber() + "-", "tmp.pdf");
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
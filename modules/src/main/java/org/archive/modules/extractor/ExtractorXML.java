@@ -29,6 +29,7 @@ import org.archive.url.URIException;
 import org.apache.commons.lang.StringEscapeUtils;
 import org.archive.io.ReplayCharSequence;
 import org.archive.modules.CrawlURI;
+import org.archive.modules.fetcher.ContentSniffer;
 import org.archive.util.TextUtils;
 import org.archive.util.UriUtils;
 
@@ -81,7 +82,16 @@ public class ExtractorXML extends ContentExtractor {
         
         // check if content starts with xml preamble "<?xml" and does not
         // contain "<!doctype html" or "<html" early in the content
-        String contentStartingChunk = curi.getRecorder().getContentReplayPrefixString(400);
+        String contentStartingChunk = null;
+        ContentSniffer sniffer = curi.getContentSniffer();
+        if (sniffer != null) {
+            // prefix kept while fetching, if enough to go on
+            contentStartingChunk = sniffer.getContentPrefixString(400,
+                    curi.getRecorder().getCharset());
+        }
+        if (contentStartingChunk == null) {
+            contentStartingChunk = curi.getRecorder().getContentReplayPrefixString(400);
+        }
         if (contentStartingChunk.matches("(?is)[\\ufeff]?<\\?xml\\s.*")
                 && !contentStartingChunk.matches("(?is).*(?:<!doctype\\s+html|<html[>\\s]).*")) {
             return true;
@@ -98,8 +108,13 @@ public class ExtractorXML extends ContentExtractor {
         ReplayCharSequence cs = null;
         Charset contentDeclaredEncoding = null; 
         try {
-            // if charset not spec'd in http header look for <?xml encoding=""?>
-            if (!curi.containsContentTypeCharsetDeclaration()) {
+            ContentSniffer sniffer = curi.getContentSniffer();
+            if (sniffer != null && sniffer.isSniffed()) {
+                // declaration already found while the content was fetched
+                ContentSniffer.applyDeclaredCharset(curi,
+                        sniffer.getXmlCharsetDeclaration(), "XML");
+            } else if (!curi.containsContentTypeCharsetDeclaration()) {
+                // if charset not spec'd in http header look for <?xml encoding=""?>
                 String contentPrefix = curi.getRecorder().getContentReplayPrefixString(50);
                 contentDeclaredEncoding = getContentDeclaredCharset(curi, contentPrefix); 
                 if(!curi.getRecorder().getCharset().equals(contentDeclaredEncoding) && contentDeclaredEncoding!=null) {
@@ -0,0 +1,399 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.extractor;
+
+import static org.archive.modules.extractor.ExtractorHTML.isLineTerminator;
+import static org.archive.modules.extractor.ExtractorHTML.isRegexSpace;
+import static org.archive.modules.extractor.ExtractorHTML.regionMatchesIgnoreCase;
+
+/**
+ * Single forward pass over HTML text, finding the same tags and attributes
+ * as the {@link ExtractorHTML#RELEVANT_TAG_EXTRACTOR} and
+ * {@link ExtractorHTML#EACH_ATTRIBUTE_EXTRACTOR} regexes, but without
+ * backtracking and without allocating anything per tag. Positions are
+ * reported as offsets into the scanned text; it's up to the caller to take
+ * subsequences of the ones it cares about.
+ * 
+ * <p>Like the regexes, this is deliberately lenient rather than an HTML5
+ * parser: a tag ends at the first '&gt;', a script or style element ends at
+ * the first matching close tag, and comments (other than conditional
+ * comments) are skipped.
+ * 
+ * <p>Searches for things that may not be there at all (the next '&gt;', the
+ * close of a script, style or comment) remember their last result, so that
+ * a page full of unclosed constructs is still scanned in linear time.
+ */
+public class HTMLTokenizer {
+
+    /** no more tags */
+    public static final int END = 0;
+    /** an element with at least one character of attribute text */
+    public static final int TAG = 1;
+    /** a script element, with open tag attributes and content */
+    public static final int SCRIPT = 2;
+    /** a style element, with open tag attributes and content */
+    public static final int STYLE = 3;
+
+    protected final CharSequence cs;
+    protected final int length;
+    protected final int maxElementLength;
+    protected final int maxAttributeNameLength;
+    protected final int maxAttributeValueLength;
+
+    protected int pos = 0;
+
+    protected int tagStart;
+    protected int elementStart;
+    protected int elementEnd;
+    protected int openTagEnd;
+    protected int contentEnd;
+
+    protected int attributeCount;
+    /** name start, name end, value start, value end of each attribute */
+    protected int[] attributes = new int[4 * 8];
+
+    protected final Needle gt = new Needle(">");
+    protected final Needle scriptClose = new Needle("</script>");
+    protected final Needle styleClose = new Needle("</style>");
+    protected final Needle commentClose = new Needle("-->");
+
+    public HTMLTokenizer(CharSequence cs, int maxElementLength,
+            int maxAttributeNameLength, int maxAttributeValueLength) {
+        this.cs = cs;
+        this.length = cs.length();
+        this.maxElementLength = maxElementLength;
+        this.maxAttributeNameLength = maxAttributeNameLength;
+        this.maxAttributeValueLength = maxAttributeValueLength;
+    }
+
+    /**
+     * Advance to the next tag.
+     * 
+     * @return {@link #TAG}, {@link #SCRIPT}, {@link #STYLE} or {@link #END}
+     */
+    public int next() {
+        while (pos < length) {
+            int lt = indexOf('<', pos);
+            if (lt < 0) {
+                break;
+            }
+            tagStart = lt;
+            int p = lt + 1;
+            if (gt.find(p) < 0) {
+                // every kind of tag needs a '>' somewhere after the '<'
+                break;
+            }
+            int token = END;
+            if (regionMatchesIgnoreCase(cs, p, "script")) {
+                token = rawText(p, 6, scriptClose, SCRIPT);
+            } else if (regionMatchesIgnoreCase(cs, p, "style")) {
+                token = rawText(p, 5, styleClose, STYLE);
+            }
+            if (token == END) {
+                token = tag(p);
+            }
+            if (token != END) {
+                return token;
+            }
+            if (regionMatchesIgnoreCase(cs, p, "!--")
+                    && !regionMatchesIgnoreCase(cs, p + 3, "[if")
+                    && !regionMatchesIgnoreCase(cs, p + 3, ">")) {
+                int close = commentClose.find(p + 3);
+                if (close >= 0) {
+                    pos = close + 3;
+                    continue;
+                }
+            }
+            pos = p;
+        }
+        pos = length;
+        return END;
+    }
+
+    protected int rawText(int p, int nameLength, Needle close, int token) {
+        int end = gt.find(p + nameLength);
+        if (end < 0) {
+            return END;
+        }
+        int closeStart = close.find(end + 1);
+        if (closeStart < 0) {
+            return END;
+        }
+        elementStart = p;
+        elementEnd = p + nameLength;
+        openTagEnd = end;
+        contentEnd = closeStart;
+        pos = closeStart + close.text.length();
+        scanAttributes(p, end);
+        return token;
+    }
+
+    protected int tag(int p) {
+        int q = p;
+        while (q < length && isAsciiWordChar(cs.charAt(q))) {
+            if (q - p == maxElementLength) {
+                return END;
+            }
+            q++;
+        }
+        if (q == p || q >= length || !isRegexSpace(cs.charAt(q))) {
+            return END;
+        }
+        int end = gt.find(q + 1);
+        if (end < 0) {
+            return END;
+        }
+        elementStart = p;
+        elementEnd = q;
+        openTagEnd = end;
+        contentEnd = end;
+        pos = end + 1;
+        scanAttributes(p, end);
+        return TAG;
+    }
+
+    protected void scanAttributes(int start, int end) {
+        attributeCount = 0;
+        // where the regex's '$' could first match: end of the tag text, or
+        // just before a final line terminator
+        int dollar = end;
+        if (end - 2 >= start && cs.charAt(end - 2) == '\r'
+                && cs.charAt(end - 1) == '\n') {
+            dollar = end - 2;
+        } else if (end - 1 >= start && isLineTerminator(cs.charAt(end - 1))) {
+            dollar = end - 1;
+        }
+        int i = start;
+        while (i < end) {
+            if (!isNameChar(cs.charAt(i))) {
+                i++;
+                continue;
+            }
+            int runStart = i;
+            int lastDash = -1;
+            int runEnd = i;
+            while (runEnd < end && isNameChar(cs.charAt(runEnd))) {
+                if (cs.charAt(runEnd) == '-') {
+                    lastDash = runEnd;
+                }
+                runEnd++;
+            }
+            int q = runEnd;
+            while (q < end && isRegexSpace(cs.charAt(q))) {
+                q++;
+            }
+            if (q >= end || cs.charAt(q) != '=') {
+                i = runEnd;
+                continue;
+            }
+            q++;
+            while (q < end && isRegexSpace(cs.charAt(q))) {
+                q++;
+            }
+            if (q >= end) {
+                break;
+            }
+
+            int nameStart = runStart;
+            while (!isNameMatch(nameStart, runEnd, lastDash)) {
+                nameStart++;
+            }
+
+            int valueStart;
+            int valueEnd = -1;
+            int next = -1;
+            char c = cs.charAt(q);
+            if (c == '"' || c == '\'') {
+                valueStart = q + 1;
+                int limit = Math.min(end, valueStart + maxAttributeValueLength + 1);
+                for (int k = valueStart; k < limit; k++) {
+                    if (cs.charAt(k) == c) {
+                        valueEnd = k;
+                        next = k + 1;
+                        break;
+                    }
+                }
+                if (valueEnd < 0 && dollar >= valueStart
+                        && dollar - valueStart <= maxAttributeValueLength) {
+                    valueEnd = dollar;
+                    next = dollar;
+                }
+            }
+            if (valueEnd < 0) {
+                valueStart = q;
+                valueEnd = q;
+                while (valueEnd < end && valueEnd - q < maxAttributeValueLength
+                        && !isRegexSpace(cs.charAt(valueEnd))) {
+                    valueEnd++;
+                }
+                next = valueEnd;
+            } else {
+                valueStart = q + 1;
+            }
+            addAttribute(nameStart, runEnd, valueStart, valueEnd);
+            i = next;
+        }
+    }
+
+    /**
+     * Whether the regex would take cs[start,end) as an attribute name; when
+     * a run of name characters is too long, it settles on the first suffix
+     * that is short enough or is an event handler name.
+     */
+    protected boolean isNameMatch(int start, int end, int lastDash) {
+        if (end - start <= maxAttributeNameLength) {
+            return true;
+        }
+        if (start > lastDash && regionMatchesIgnoreCase(cs, start, "on")) {
+            return true;
+        }
+        return ExtractorHTML.attributeKind(cs, start, end) != ExtractorHTML.ATTR_OTHER;
+    }
+
+    protected void addAttribute(int nameStart, int nameEnd, int valueStart,
+            int valueEnd) {
+        int at = attributeCount * 4;
+        if (at + 4 > attributes.length) {
+            int[] grown = new int[attributes.length * 2];
+            System.arraycopy(attributes, 0, grown, 0, attributes.length);
+            attributes = grown;
+        }
+        attributes[at] = nameStart;
+        attributes[at + 1] = nameEnd;
+        attributes[at + 2] = valueStart;
+        attributes[at + 3] = valueEnd;
+        attributeCount++;
+    }
+
+    protected int indexOf(char c, int from) {
+        for (int i = from; i < length; i++) {
+            if (cs.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** {@code \w} without UNICODE_CHARACTER_CLASS */
+    static boolean isAsciiWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    /** {@code [-\w]} */
+    static boolean isNameChar(char c) {
+        return c == '-' || isAsciiWordChar(c);
+    }
+
+    /**
+     * Case-insensitive forward search that remembers its last answer: a
+     * search from anywhere between the last starting point and the last
+     * match (or the end, if there was none) has the same answer.
+     */
+    protected class Needle {
+        protected final String text;
+        protected int lastFrom = Integer.MAX_VALUE;
+        protected int lastFound = -1;
+
+        protected Needle(String lowercase) {
+            this.text = lowercase;
+        }
+
+        protected int find(int from) {
+            if (from >= lastFrom && (lastFound < 0 || from <= lastFound)) {
+                return lastFound;
+            }
+            lastFrom = from;
+            lastFound = -1;
+            char first = text.charAt(0);
+            for (int i = from; i + text.length() <= length; i++) {
+                char c = cs.charAt(i);
+                if ((c == first || (c | 0x20) == first)
+                        && regionMatchesIgnoreCase(cs, i, text)) {
+                    lastFound = i;
+                    break;
+                }
+            }
+            return lastFound;
+        }
+    }
+
+    /** offset of the '&lt;' opening the current tag */
+    public int getTagStart() {
+        return tagStart;
+    }
+
+    public int getElementStart() {
+        return elementStart;
+    }
+
+    public int getElementEnd() {
+        return elementEnd;
+    }
+
+    /** whether the current element name is, ignoring case, the given one */
+    public boolean isElement(String lowercase) {
+        return elementEnd - elementStart == lowercase.length()
+                && regionMatchesIgnoreCase(cs, elementStart, lowercase);
+    }
+
+    /**
+     * Offset of the '&gt;' closing the open tag; the attribute text runs
+     * from the element name up to here.
+     */
+    public int getOpenTagEnd() {
+        return openTagEnd;
+    }
+
+    /** start of script or style content */
+    public int getContentStart() {
+        return openTagEnd + 1;
+    }
+
+    /** end of script or style content, the offset of its close tag */
+    public int getContentEnd() {
+        return contentEnd;
+    }
+
+    public int getAttributeCount() {
+        return attributeCount;
+    }
+
+    public int getNameStart(int i) {
+        return attributes[i * 4];
+    }
+
+    public int getNameEnd(int i) {
+        return attributes[i * 4 + 1];
+    }
+
+    public int getValueStart(int i) {
+        return attributes[i * 4 + 2];
+    }
+
+    public int getValueEnd(int i) {
+        return attributes[i * 4 + 3];
+    }
+
+    /** whether attribute i's name is, ignoring case, the given one */
+    public boolean isAttribute(int i, String lowercase) {
+        return getNameEnd(i) - getNameStart(i) == lowercase.length()
+                && regionMatchesIgnoreCase(cs, getNameStart(i), lowercase);
+    }
+}
@@ -27,6 +27,7 @@ import org.apache.commons.lang.StringUtils;
 import org.archive.io.ReplayCharSequence;
 import org.archive.modules.CrawlURI;
 import org.archive.modules.Processor;
+import org.archive.modules.fetcher.ContentSniffer;
 import org.archive.util.TextUtils;
 
 /**
@@ -51,7 +52,9 @@ import org.archive.util.TextUtils;
  * <p>
  * It is generally recommended that this recalculation only be performed when 
  * absolutely needed (because of stripping data that changes automatically each 
- * time the URL is fetched) as this is an expensive operation.
+ * time the URL is fetched) as this is an expensive operation. See
+ * {@link #setUseStreamedDigest(boolean)} for a cheaper option when no strip
+ * regex is needed.
  * 
  * NOTE: This processor may open a ReplayCharSequence from the 
  * CrawlURI's Recorder, without closing that ReplayCharSequence, to allow
@@ -99,6 +102,25 @@ public class HTTPContentDigest extends Processor {
         kp.put("maxSizeToDigest",threshold);
     }
     
+    {
+        setUseStreamedDigest(false);
+    }
+    public boolean getUseStreamedDigest() {
+        return (Boolean) kp.get("useStreamedDigest");
+    }
+    /**
+     * Without a strip regex, use the SHA1 the fetcher's {@link ContentSniffer}
+     * computed as the content arrived, if it was transferred unencoded,
+     * instead of replaying it. That is a digest of the bytes as fetched,
+     * whereas this processor otherwise digests the content decoded in its
+     * charset and re-encoded in the platform default charset; the two differ
+     * for any content that doesn't survive that round trip unchanged, so
+     * values will not match digests made with this off.
+     */
+    public void setUseStreamedDigest(boolean useStreamedDigest) {
+        kp.put("useStreamedDigest", useStreamedDigest);
+    }
+
     private static final String SHA1 = "SHA1";
 
     
@@ -127,6 +149,17 @@ public class HTTPContentDigest extends Processor {
         // Get the regex
         String regex = getStripRegex();
         
+        if (StringUtils.isEmpty(regex) && getUseStreamedDigest()) {
+            ContentSniffer sniffer = curi.getContentSniffer();
+            if (sniffer != null && sniffer.isIdentityEncoded()) {
+                byte[] streamed = sniffer.getPayloadDigest(SHA1);
+                if (streamed != null) {
+                    curi.setContentDigest(SHA1, streamed);
+                    return;
+                }
+            }
+        }
+
         // Get a replay of the document character seq.
         ReplayCharSequence cs = null;
         try {
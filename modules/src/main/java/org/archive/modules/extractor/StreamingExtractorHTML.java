@@ -0,0 +1,156 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.extractor;
+
+import java.util.logging.Logger;
+
+import org.archive.modules.CrawlURI;
+import org.archive.util.TextUtils;
+
+/**
+ * Version of ExtractorHTML that finds tags and attributes with a single
+ * forward pass of an {@link HTMLTokenizer} instead of the
+ * RELEVANT_TAG_EXTRACTOR and EACH_ATTRIBUTE_EXTRACTOR regexes. It finds the
+ * same outlinks, with the same hops and contexts, handing script and style
+ * content to ExtractorJS and ExtractorCSS just as ExtractorHTML does, but
+ * runs in time linear in the length of the document, so pages of unclosed
+ * tags or runaway attributes can't stall a toethread.
+ * 
+ * <p>To use it, change the class of the extractorHtml bean in
+ * crawler-beans.cxml; all of ExtractorHTML's settings apply.
+ */
+public class StreamingExtractorHTML extends ExtractorHTML {
+    @SuppressWarnings("unused")
+    private static final long serialVersionUID = 1L;
+
+    private static Logger logger =
+        Logger.getLogger(StreamingExtractorHTML.class.getName());
+
+    /**
+     * Give up on a document, keeping the links found so far, once extraction
+     * has taken this long. 0 means no limit.
+     */
+    {
+        setTimeoutMs(30 * 1000);
+    }
+    public long getTimeoutMs() {
+        return (Long) kp.get("timeoutMs");
+    }
+    public void setTimeoutMs(long timeoutMs) {
+        kp.put("timeoutMs", timeoutMs);
+    }
+
+    public StreamingExtractorHTML() {
+    }
+
+    @Override
+    protected void extract(CrawlURI curi, CharSequence cs) {
+        HTMLTokenizer tokenizer = new HTMLTokenizer(cs, getMaxElementLength(),
+                getMaxAttributeNameLength(), getMaxAttributeValLength());
+        long timeoutMs = getTimeoutMs();
+        long deadline = timeoutMs > 0
+                ? System.currentTimeMillis() + timeoutMs : Long.MAX_VALUE;
+        int tags = 0;
+        for (int token = tokenizer.next(); token != HTMLTokenizer.END;
+                token = tokenizer.next()) {
+            if (Thread.interrupted()) {
+                break;
+            }
+            if ((++tags & 0xff) == 0 && System.currentTimeMillis() > deadline) {
+                logger.info("gave up extracting after " + timeoutMs + "ms: "
+                        + curi);
+                curi.getAnnotations().add("extractorHtmlTimeout");
+                break;
+            }
+            switch (token) {
+            case HTMLTokenizer.SCRIPT:
+                processTag(curi, cs, tokenizer);
+                processScriptCode(curi, cs.subSequence(
+                        tokenizer.getContentStart(), tokenizer.getContentEnd()));
+                break;
+            case HTMLTokenizer.STYLE:
+                processTag(curi, cs, tokenizer);
+                numberOfLinksExtracted.addAndGet(ExtractorCSS.processStyleCode(
+                        this, curi, cs.subSequence(
+                                tokenizer.getContentStart(),
+                                tokenizer.getContentEnd())));
+                break;
+            default:
+                if (tokenizer.isElement("meta")) {
+                    if (processMeta(curi, cs, tokenizer)) {
+                        // meta tag included NOFOLLOW; abort processing
+                        return;
+                    }
+                } else {
+                    processTag(curi, cs, tokenizer);
+                    // remember FORM to help later extra processing
+                    if (tokenizer.isElement("form")) {
+                        curi.getDataList(A_FORM_OFFSETS).add(
+                                (Integer) tokenizer.getTagStart());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Equivalent of {@link #processGeneralTag(CrawlURI, CharSequence, CharSequence)}
+     * for the tag the tokenizer is on.
+     */
+    protected void processTag(CrawlURI curi, CharSequence cs,
+            HTMLTokenizer tokenizer) {
+        String element = cs.subSequence(tokenizer.getElementStart(),
+                tokenizer.getElementEnd()).toString();
+        TagState tag = new TagState(this, element);
+        tag.dataRemote = "a".equals(element) && isDataRemote(cs,
+                tokenizer.getElementStart(), tokenizer.getOpenTagEnd());
+        for (int i = 0; i < tokenizer.getAttributeCount(); i++) {
+            int nameStart = tokenizer.getNameStart(i);
+            int nameEnd = tokenizer.getNameEnd(i);
+            CharSequence value = TextUtils.unescapeHtml(cs.subSequence(
+                    tokenizer.getValueStart(i), tokenizer.getValueEnd(i)));
+            processAttribute(curi, tag, attributeKind(cs, nameStart, nameEnd),
+                    cs.subSequence(nameStart, nameEnd), value);
+        }
+        finishGeneralTag(curi, tag);
+    }
+
+    protected boolean processMeta(CrawlURI curi, CharSequence cs,
+            HTMLTokenizer tokenizer) {
+        String name = null;
+        String httpEquiv = null;
+        String content = null;
+        for (int i = 0; i < tokenizer.getAttributeCount(); i++) {
+            if (tokenizer.isAttribute(i, "name")) {
+                name = attributeValue(cs, tokenizer, i);
+            } else if (tokenizer.isAttribute(i, "http-equiv")) {
+                httpEquiv = attributeValue(cs, tokenizer, i);
+            } else if (tokenizer.isAttribute(i, "content")) {
+                content = attributeValue(cs, tokenizer, i);
+            }
+        }
+        return processMeta(curi, name, httpEquiv, content);
+    }
+
+    protected String attributeValue(CharSequence cs, HTMLTokenizer tokenizer,
+            int i) {
+        return TextUtils.unescapeHtml(cs.subSequence(tokenizer.getValueStart(i),
+                tokenizer.getValueEnd(i))).toString();
+    }
+}
@@ -0,0 +1,586 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.fetcher;
+
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.ref.WeakReference;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.IOUtils;
+import org.archive.io.ReadSource;
+import org.archive.spring.ConfigString;
+import org.archive.util.InetAddressUtil;
+
+/**
+ * Crawl-wide byte/sec budget shared by the fetchers, enforced with token
+ * buckets at three levels: all traffic, each remote IP, and each remote
+ * network (an ASN from {@link #setAsnPrefixes(ReadSource)} when known,
+ * otherwise a CIDR prefix of the IP).
+ * 
+ * Fetchers charge bytes as they read them and then wait out any deficit
+ * before reading more. Buckets may go into debt, and a charge waits until
+ * the debt it joined has been paid off. So concurrent readers of one
+ * bucket are served roughly in turn, in proportion to what they read,
+ * rather than the fastest thread taking everything.
+ * 
+ * DispositionProcessor also asks for the per-IP and per-network deficit
+ * after each fetch and snoozes the URI's queue at least that long, so
+ * over-budget sites wait in the frontier instead of tying up ToeThreads.
+ * 
+ * All limits default to 0, meaning unlimited.
+ */
+public class BandwidthScheduler {
+    private static final Logger logger =
+        Logger.getLogger(BandwidthScheduler.class.getName());
+
+    protected long maxGlobalKBSec = 0;
+    public long getMaxGlobalKBSec() {
+        return maxGlobalKBSec;
+    }
+    /**
+     * Maximum rate, in KB/sec, of all fetched content combined. 0 means
+     * unlimited.
+     */
+    public void setMaxGlobalKBSec(long maxGlobalKBSec) {
+        this.maxGlobalKBSec = maxGlobalKBSec;
+        resetBuckets();
+    }
+
+    protected long maxPerIpKBSec = 0;
+    public long getMaxPerIpKBSec() {
+        return maxPerIpKBSec;
+    }
+    /**
+     * Maximum rate, in KB/sec, of content fetched from any one IP address.
+     * 0 means unlimited.
+     */
+    public void setMaxPerIpKBSec(long maxPerIpKBSec) {
+        this.maxPerIpKBSec = maxPerIpKBSec;
+        resetBuckets();
+    }
+
+    protected long maxPerNetworkKBSec = 0;
+    public long getMaxPerNetworkKBSec() {
+        return maxPerNetworkKBSec;
+    }
+    /**
+     * Maximum rate, in KB/sec, of content fetched from any one network:
+     * the ASN of the IP if listed in asnPrefixes, otherwise its
+     * ipv4PrefixLength or ipv6PrefixLength prefix. 0 means unlimited.
+     */
+    public void setMaxPerNetworkKBSec(long maxPerNetworkKBSec) {
+        this.maxPerNetworkKBSec = maxPerNetworkKBSec;
+        resetBuckets();
+    }
+
+    protected int ipv4PrefixLength = 16;
+    public int getIpv4PrefixLength() {
+        return ipv4PrefixLength;
+    }
+    /**
+     * Prefix length grouping IPv4 addresses not listed in asnPrefixes into
+     * one network.
+     */
+    public void setIpv4PrefixLength(int ipv4PrefixLength) {
+        this.ipv4PrefixLength = ipv4PrefixLength;
+        resetBuckets();
+    }
+
+    protected int ipv6PrefixLength = 32;
+    public int getIpv6PrefixLength() {
+        return ipv6PrefixLength;
+    }
+    /**
+     * Prefix length grouping IPv6 addresses not listed in asnPrefixes into
+     * one network.
+     */
+    public void setIpv6PrefixLength(int ipv6PrefixLength) {
+        this.ipv6PrefixLength = ipv6PrefixLength;
+        resetBuckets();
+    }
+
+    protected int burstMs = 1000;
+    public int getBurstMs() {
+        return burstMs;
+    }
+    /**
+     * How many milliseconds' worth of budget an idle bucket accumulates,
+     * and so how large a burst it allows.
+     */
+    public void setBurstMs(int burstMs) {
+        this.burstMs = burstMs;
+        resetBuckets();
+    }
+
+    protected ReadSource asnPrefixes = new ConfigString("");
+    public ReadSource getAsnPrefixes() {
+        return asnPrefixes;
+    }
+    /**
+     * Routed prefixes and their origin ASNs, one "CIDR ASN" pair per line
+     * (for example "192.0.2.0/24 AS64496"), as exported from a BGP table
+     * dump. Lines starting with '#' are ignored. The longest matching
+     * prefix decides an IP's network.
+     */
+    public void setAsnPrefixes(ReadSource asnPrefixes) {
+        this.asnPrefixes = asnPrefixes;
+        this.asnTable = null;
+        resetBuckets();
+    }
+
+    protected int maxTrackedBuckets = 100000;
+    public int getMaxTrackedBuckets() {
+        return maxTrackedBuckets;
+    }
+    /**
+     * Number of per-IP plus per-network buckets beyond which idle ones
+     * are forgotten, once no transfer still holds them.
+     */
+    public void setMaxTrackedBuckets(int maxTrackedBuckets) {
+        this.maxTrackedBuckets = maxTrackedBuckets;
+    }
+
+    /**
+     * A tracked bucket. A sweep only drops the strong reference to an idle
+     * bucket; the entry goes once the bucket is collected, so a transfer
+     * still holding it keeps charging the one bucket its address maps to,
+     * and a later lookup takes it back.
+     */
+    protected static class BucketRef extends WeakReference<TokenBucket> {
+        protected volatile TokenBucket strong;
+
+        protected BucketRef(TokenBucket bucket) {
+            super(bucket);
+            this.strong = bucket;
+        }
+
+        /** @return the bucket, held strongly again; null if collected */
+        protected TokenBucket retain() {
+            TokenBucket bucket = get();
+            if (bucket != null && strong == null) {
+                strong = bucket;
+            }
+            return bucket;
+        }
+    }
+
+    protected volatile TokenBucket globalBucket;
+    protected final ConcurrentHashMap<String, BucketRef> buckets =
+        new ConcurrentHashMap<String, BucketRef>();
+    protected volatile AsnTable asnTable;
+    protected volatile long lastSweep;
+
+    protected final AtomicLong bytesCharged = new AtomicLong();
+    protected final AtomicLong throttledCharges = new AtomicLong();
+    protected final AtomicLong throttledMs = new AtomicLong();
+
+    /** @return total bytes charged against any budget */
+    public long getBytesCharged() {
+        return bytesCharged.get();
+    }
+
+    /** @return count of charges that had to wait */
+    public long getThrottledCharges() {
+        return throttledCharges.get();
+    }
+
+    /** @return total milliseconds readers were asked to wait */
+    public long getThrottledMs() {
+        return throttledMs.get();
+    }
+
+    /** @return count of per-IP and per-network buckets currently tracked */
+    public int getTrackedBucketCount() {
+        return buckets.size();
+    }
+
+    protected void resetBuckets() {
+        globalBucket = null;
+        buckets.clear();
+    }
+
+    /**
+     * @return buckets a transfer from ip is charged to, possibly empty
+     */
+    public TokenBucket[] bucketsFor(InetAddress ip) {
+        TokenBucket global = null;
+        if (maxGlobalKBSec > 0) {
+            global = globalBucket;
+            if (global == null) {
+                synchronized (this) {
+                    if (globalBucket == null) {
+                        globalBucket = new TokenBucket(maxGlobalKBSec, burstMs);
+                    }
+                    global = globalBucket;
+                }
+            }
+        }
+        TokenBucket perIp = null;
+        TokenBucket perNetwork = null;
+        if (ip != null) {
+            if (maxPerIpKBSec > 0) {
+                perIp = bucket("ip:" + ip.getHostAddress(), maxPerIpKBSec);
+            }
+            if (maxPerNetworkKBSec > 0) {
+                perNetwork = bucket(networkOf(ip), maxPerNetworkKBSec);
+            }
+        }
+        int n = (global != null ? 1 : 0) + (perIp != null ? 1 : 0) + (perNetwork != null ? 1 : 0);
+        TokenBucket[] result = new TokenBucket[n];
+        int i = 0;
+        if (perIp != null) result[i++] = perIp;
+        if (perNetwork != null) result[i++] = perNetwork;
+        if (global != null) result[i++] = global;
+        return result;
+    }
+
+    protected TokenBucket bucket(String key, long kbSec) {
+        BucketRef ref = buckets.get(key);
+        TokenBucket bucket = ref == null ? null : ref.retain();
+        if (bucket != null) {
+            return bucket;
+        }
+        maybeSweep();
+        TokenBucket[] result = new TokenBucket[1];
+        buckets.compute(key, (k, r) -> {
+            TokenBucket b = r == null ? null : r.retain();
+            if (b == null) {
+                b = new TokenBucket(kbSec, burstMs);
+                r = new BucketRef(b);
+            }
+            result[0] = b;
+            return r;
+        });
+        return result[0];
+    }
+
+    /**
+     * Release buckets that are full again, and forget those no transfer
+     * held on to, at most once a second and only when there are too many.
+     */
+    protected void maybeSweep() {
+        long now = System.currentTimeMillis();
+        if (buckets.size() < maxTrackedBuckets || now - lastSweep < 1000) {
+            return;
+        }
+        lastSweep = now;
+        buckets.values().removeIf(ref -> {
+            TokenBucket b = ref.get();
+            if (b == null) {
+                return true;
+            }
+            if (b.isIdle(now)) {
+                ref.strong = null;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * @return key naming the network ip belongs to
+     */
+    protected String networkOf(InetAddress ip) {
+        byte[] addr = ip.getAddress();
+        String asn = getAsnTable().lookup(addr);
+        if (asn != null) {
+            return "asn:" + asn;
+        }
+        int len = addr.length == 4 ? ipv4PrefixLength : ipv6PrefixLength;
+        return "net:" + prefixKey(addr, len);
+    }
+
+    protected AsnTable getAsnTable() {
+        AsnTable table = asnTable;
+        if (table == null) {
+            synchronized (this) {
+                if (asnTable == null) {
+                    asnTable = AsnTable.load(asnPrefixes);
+                }
+                table = asnTable;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Charge bytes to the given buckets.
+     * 
+     * @return milliseconds the caller should wait before reading more
+     */
+    public long charge(TokenBucket[] chargeTo, long bytes) {
+        if (chargeTo.length == 0 || bytes <= 0) {
+            return 0;
+        }
+        bytesCharged.addAndGet(bytes);
+        long now = System.currentTimeMillis();
+        long waitMs = 0;
+        for (TokenBucket bucket : chargeTo) {
+            waitMs = Math.max(waitMs, bucket.charge(bytes, now));
+        }
+        if (waitMs > 0) {
+            throttledCharges.incrementAndGet();
+            throttledMs.addAndGet(waitMs);
+        }
+        return waitMs;
+    }
+
+    /**
+     * Charge bytes to the given buckets and sleep out any deficit.
+     */
+    public void acquire(TokenBucket[] chargeTo, long bytes) throws InterruptedException {
+        long waitMs = charge(chargeTo, bytes);
+        if (waitMs > 0) {
+            Thread.sleep(waitMs);
+        }
+    }
+
+    /**
+     * @return milliseconds until the per-IP and per-network budgets for ip
+     * are out of debt; 0 if they are not in debt or ip is null
+     */
+    public long getDelayMs(InetAddress ip) {
+        if (ip == null) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        long delay = 0;
+        if (maxPerIpKBSec > 0) {
+            delay = Math.max(delay, deficitMs("ip:" + ip.getHostAddress(), now));
+        }
+        if (maxPerNetworkKBSec > 0) {
+            delay = Math.max(delay, deficitMs(networkOf(ip), now));
+        }
+        return delay;
+    }
+
+    protected long deficitMs(String key, long now) {
+        BucketRef ref = buckets.get(key);
+        TokenBucket b = ref == null ? null : ref.get();
+        return b == null ? 0 : b.deficitMs(now);
+    }
+
+    /**
+     * @return in, throttled so that everything read from it is charged
+     * to the budgets for ip; in itself if there are no such budgets
+     */
+    public InputStream wrap(InputStream in, InetAddress ip) {
+        TokenBucket[] chargeTo = bucketsFor(ip);
+        if (chargeTo.length == 0) {
+            return in;
+        }
+        return new ThrottledInputStream(in, chargeTo);
+    }
+
+    protected class ThrottledInputStream extends FilterInputStream {
+        protected final TokenBucket[] chargeTo;
+
+        protected ThrottledInputStream(InputStream in, TokenBucket[] chargeTo) {
+            super(in);
+            this.chargeTo = chargeTo;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                throttle(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                throttle(n);
+            }
+            return n;
+        }
+
+        protected void throttle(int bytes) throws InterruptedIOException {
+            try {
+                acquire(chargeTo, bytes);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Token bucket allowing debt: a charge always succeeds and reports how
+     * long until the bucket is out of debt again.
+     */
+    public static class TokenBucket {
+        protected final double bytesPerMs;
+        protected final double capacity;
+        protected double tokens;
+        protected long lastRefill;
+
+        public TokenBucket(long kbSec, int burstMs) {
+            this.bytesPerMs = kbSec * 1024 / 1000.0;
+            this.capacity = Math.max(1, bytesPerMs * burstMs);
+            this.tokens = capacity;
+            this.lastRefill = System.currentTimeMillis();
+        }
+
+        protected void refill(long now) {
+            if (now > lastRefill) {
+                tokens = Math.min(capacity, tokens + (now - lastRefill) * bytesPerMs);
+                lastRefill = now;
+            }
+        }
+
+        /** @return ms until out of debt after charging bytes */
+        public synchronized long charge(long bytes, long now) {
+            refill(now);
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / bytesPerMs);
+        }
+
+        /** @return ms until out of debt */
+        public synchronized long deficitMs(long now) {
+            refill(now);
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / bytesPerMs);
+        }
+
+        public synchronized boolean isIdle(long now) {
+            refill(now);
+            return tokens >= capacity;
+        }
+    }
+
+    /**
+     * @return address masked to its first len bits, with the length
+     */
+    protected static String prefixKey(byte[] addr, int len) {
+        byte[] masked = addr.clone();
+        for (int i = 0; i < masked.length; i++) {
+            int keep = Math.max(0, Math.min(8, len - 8 * i));
+            masked[i] &= (byte) (0xff << (8 - keep));
+        }
+        try {
+            return InetAddress.getByAddress(masked).getHostAddress() + "/" + len;
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e); // only on bad length
+        }
+    }
+
+    /**
+     * Longest-prefix lookup of ASN by address, by probing each prefix
+     * length present in the table.
+     */
+    protected static class AsnTable {
+        protected static final AsnTable EMPTY = new AsnTable(new HashMap<String, String>(), new int[0], new int[0]);
+
+        protected final Map<String, String> asnByPrefix;
+        protected final int[] v4Lengths;
+        protected final int[] v6Lengths;
+
+        protected AsnTable(Map<String, String> asnByPrefix, int[] v4Lengths, int[] v6Lengths) {
+            this.asnByPrefix = asnByPrefix;
+            this.v4Lengths = v4Lengths;
+            this.v6Lengths = v6Lengths;
+        }
+
+        public String lookup(byte[] addr) {
+            for (int len : addr.length == 4 ? v4Lengths : v6Lengths) {
+                String asn = asnByPrefix.get(prefixKey(addr, len));
+                if (asn != null) {
+                    return asn;
+                }
+            }
+            return null;
+        }
+
+        protected static AsnTable load(ReadSource source) {
+            if (source == null) {
+                return EMPTY;
+            }
+            Map<String, String> asnByPrefix = new HashMap<String, String>();
+            TreeSet<Integer> v4 = new TreeSet<Integer>();
+            TreeSet<Integer> v6 = new TreeSet<Integer>();
+            BufferedReader reader = new BufferedReader(source.obtainReader());
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    String[] fields = line.split("\\s+");
+                    int slash = fields[0].indexOf('/');
+                    InetAddress net = fields.length < 2 || slash < 0 ? null
+                            : parseLiteral(fields[0].substring(0, slash));
+                    if (net == null) {
+                        logger.warning("ignoring unparseable ASN prefix line: " + line);
+                        continue;
+                    }
+                    int len = Integer.parseInt(fields[0].substring(slash + 1));
+                    byte[] addr = net.getAddress();
+                    asnByPrefix.put(prefixKey(addr, len), fields[1]);
+                    (addr.length == 4 ? v4 : v6).add(len);
+                }
+            } catch (IOException | NumberFormatException e) {
+                logger.log(Level.WARNING, "problem reading ASN prefixes", e);
+            } finally {
+                IOUtils.closeQuietly(reader);
+            }
+            return new AsnTable(asnByPrefix, descending(v4), descending(v6));
+        }
+
+        /**
+         * @return address for an IPv4 or IPv6 literal, never looked up
+         * in DNS; null if not a literal
+         */
+        protected static InetAddress parseLiteral(String literal) {
+            if (literal.indexOf(':') < 0) {
+                return InetAddressUtil.getIPHostAddress(literal);
+            }
+            if (!literal.matches("[0-9a-fA-F:.]+")) {
+                return null;
+            }
+            try {
+                return InetAddress.getByName(literal);
+            } catch (UnknownHostException e) {
+                return null;
+            }
+        }
+
+        protected static int[] descending(TreeSet<Integer> lengths) {
+            int[] result = new int[lengths.size()];
+            int i = 0;
+            for (Integer len : lengths.descendingSet()) {
+                result[i++] = len;
+            }
+            return result;
+        }
+    }
+}
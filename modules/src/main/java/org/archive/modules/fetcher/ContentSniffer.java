@@ -0,0 +1,519 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.fetcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.archive.modules.CrawlURI;
+
+/**
+ * Single-pass tap on a fetched content-body. Installed as the
+ * RecordingInputStream's digest, it sees every body byte exactly once as
+ * it arrives from the network, and:
+ * <ul>
+ * <li>updates the fetcher's usual payload digest plus any additional
+ * algorithms (eg both SHA-1 and SHA-256)</li>
+ * <li>keeps a small prefix of the body, from which it detects a byte order
+ * mark, the charset declared by an HTML meta tag or XML declaration, and
+ * the binary content type suggested by any magic number</li>
+ * </ul>
+ * The fetcher calls {@link #sniff(String, boolean)} once the body is
+ * complete and records the result on the CrawlURI, so the extractors and
+ * {@link org.archive.modules.extractor.HTTPContentDigest} can use it
+ * instead of replaying the recorded body again. Extractors deciding whether
+ * content is their kind of markup apply their own tests to
+ * {@link #getContentPrefixString(int, Charset)}, as they would to a
+ * replayed prefix.
+ * <p>
+ * Like the recorder's digest, this covers the body as transferred: when it
+ * was chunked or content-encoded, only the prefix is decoded for sniffing.
+ */
+public class ContentSniffer extends MessageDigest {
+
+    public static final int DEFAULT_PREFIX_LENGTH = 1024;
+
+    protected static final Pattern META_HTTP_EQUIV = Pattern.compile(
+            "(?is)<meta\\s+[^>]*http-equiv\\s*=\\s*['\"]content-type['\"][^>]*>");
+    protected static final Pattern CHARSET_PARAM = Pattern.compile(
+            "charset=([^'\";\\s>]+)");
+    protected static final Pattern META_CHARSET = Pattern.compile(
+            "(?si)<meta\\s+[^>]*charset=['\"]([^'\";\\s>]+)['\"]");
+    protected static final Pattern XML_ENCODING = Pattern.compile(
+            "(?is)<\\?xml\\s+[^>]*encoding=['\"]([^'\"]+)['\"]");
+
+    /**
+     * A charset named in the content itself.
+     */
+    public static class CharsetDeclaration {
+        protected final String name;
+        protected final Charset charset;
+        protected final boolean consistent;
+
+        protected CharsetDeclaration(String name, Charset charset, boolean consistent) {
+            this.name = name;
+            this.charset = charset;
+            this.consistent = consistent;
+        }
+        /** @return the charset name as declared */
+        public String getName() {
+            return name;
+        }
+        /** @return the declared charset, or null if not supported */
+        public Charset getCharset() {
+            return charset;
+        }
+        /**
+         * @return whether the prefix, decoded with the declared charset,
+         *         still declares the same charset
+         */
+        public boolean isConsistent() {
+            return consistent;
+        }
+    }
+
+    protected final String[] algorithms;
+    protected final MessageDigest[] digests;
+    /** whether digests[0] is the digest the fetcher asked for */
+    protected final boolean hasPrimary;
+    protected byte[][] values;
+
+    protected final byte[] prefix;
+    protected int prefixFill;
+
+    protected boolean sniffed;
+    /** kept prefix with any transfer and content encoding undone */
+    protected byte[] body;
+    /** whether body holds the whole content, not just its start */
+    protected boolean complete;
+    protected boolean identityEncoded;
+    protected Charset bomCharset;
+    protected String contentType;
+    protected CharsetDeclaration htmlDeclaration;
+    protected CharsetDeclaration xmlDeclaration;
+
+    /**
+     * @param algorithm
+     *            digest returned by {@link #digest()}, as the recorder's
+     *            digest would; may be null
+     * @param additionalAlgorithms
+     *            further digests computed in the same pass; may be null
+     * @param prefixLength
+     *            bytes of the body to keep for sniffing; 0 to only digest
+     */
+    public ContentSniffer(String algorithm, List<String> additionalAlgorithms,
+            int prefixLength) throws NoSuchAlgorithmException {
+        super(algorithm == null ? "sniff" : algorithm);
+        hasPrimary = algorithm != null;
+        int n = (hasPrimary ? 1 : 0)
+                + (additionalAlgorithms == null ? 0 : additionalAlgorithms.size());
+        algorithms = new String[n];
+        digests = new MessageDigest[n];
+        int i = 0;
+        if (hasPrimary) {
+            algorithms[i] = algorithm;
+            digests[i++] = MessageDigest.getInstance(algorithm);
+        }
+        if (additionalAlgorithms != null) {
+            for (String a : additionalAlgorithms) {
+                algorithms[i] = a;
+                digests[i++] = MessageDigest.getInstance(a);
+            }
+        }
+        prefix = new byte[prefixLength];
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return hasPrimary ? digests[0].getDigestLength() : 0;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        for (MessageDigest d : digests) {
+            d.update(input);
+        }
+        if (prefixFill < prefix.length) {
+            prefix[prefixFill++] = input;
+        }
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        for (MessageDigest d : digests) {
+            d.update(input, offset, len);
+        }
+        int keep = Math.min(len, prefix.length - prefixFill);
+        if (keep > 0) {
+            System.arraycopy(input, offset, prefix, prefixFill, keep);
+            prefixFill += keep;
+        }
+    }
+
+    /**
+     * Completes all digests; unlike a plain MessageDigest the values stay
+     * available until the next reset, which the recorder does as the next
+     * body begins.
+     */
+    @Override
+    protected byte[] engineDigest() {
+        completeDigests();
+        return hasPrimary ? values[0].clone() : new byte[0];
+    }
+
+    @Override
+    protected void engineReset() {
+        for (MessageDigest d : digests) {
+            d.reset();
+        }
+        values = null;
+        prefixFill = 0;
+        sniffed = false;
+        body = null;
+        complete = false;
+        identityEncoded = false;
+        bomCharset = null;
+        contentType = null;
+        htmlDeclaration = null;
+        xmlDeclaration = null;
+    }
+
+    protected void completeDigests() {
+        if (values == null) {
+            values = new byte[digests.length][];
+            for (int i = 0; i < digests.length; i++) {
+                values[i] = digests[i].digest();
+            }
+        }
+    }
+
+    /**
+     * @param algorithm
+     *            eg "sha1", "SHA-1" or "sha256"
+     * @return the payload digest in that algorithm, or null if it was not
+     *         computed
+     */
+    public byte[] getPayloadDigest(String algorithm) {
+        completeDigests();
+        String wanted = normalize(algorithm);
+        for (int i = 0; i < algorithms.length; i++) {
+            if (normalize(algorithms[i]).equals(wanted)) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+    protected static String normalize(String algorithm) {
+        return algorithm.replace("-", "").toUpperCase();
+    }
+
+    /**
+     * Completes the digests and sniffs the kept prefix. Called by the fetcher
+     * once the body has been read.
+     *
+     * @param contentEncoding
+     *            Content-Encoding of the body, or null
+     * @param chunked
+     *            whether the recorded body still has chunked framing
+     */
+    public void sniff(String contentEncoding, boolean chunked) {
+        completeDigests();
+        identityEncoded = !chunked && (contentEncoding == null
+                || contentEncoding.trim().isEmpty()
+                || contentEncoding.trim().equalsIgnoreCase("identity"));
+        byte[] body = Arrays.copyOf(prefix, prefixFill);
+        if (chunked) {
+            body = dechunk(body);
+        }
+        if (!identityEncoded && contentEncoding != null) {
+            body = decode(body, contentEncoding.trim().toLowerCase());
+        }
+        if (prefix.length == 0 || body == null
+                || (body.length == 0 && prefixFill > 0)) {
+            // nothing usable; extractors will look at the replay
+            return;
+        }
+        sniffed = true;
+        this.body = body;
+        complete = prefixFill < prefix.length;
+
+        int skip = 0;
+        if (startsWith(body, 0, 0xEF, 0xBB, 0xBF)) {
+            bomCharset = StandardCharsets.UTF_8;
+            skip = 3;
+        } else if (startsWith(body, 0, 0xFE, 0xFF)) {
+            bomCharset = StandardCharsets.UTF_16BE;
+            skip = 2;
+        } else if (startsWith(body, 0, 0xFF, 0xFE)) {
+            bomCharset = StandardCharsets.UTF_16LE;
+            skip = 2;
+        }
+        Charset prefixCharset = bomCharset != null ? bomCharset : StandardCharsets.ISO_8859_1;
+        String text = new String(body, skip, body.length - skip, prefixCharset);
+
+        contentType = sniffContentType(body, skip);
+        htmlDeclaration = declaration(body, skip, text, true);
+        xmlDeclaration = declaration(body, skip, text, false);
+    }
+
+    protected static String sniffContentType(byte[] b, int skip) {
+        if (startsWith(b, skip, '%', 'P', 'D', 'F', '-')) {
+            return "application/pdf";
+        } else if (startsWith(b, skip, 0x89, 'P', 'N', 'G')) {
+            return "image/png";
+        } else if (startsWith(b, skip, 'G', 'I', 'F', '8')) {
+            return "image/gif";
+        } else if (startsWith(b, skip, 0xFF, 0xD8, 0xFF)) {
+            return "image/jpeg";
+        } else if (startsWith(b, skip, 0x1F, 0x8B)) {
+            return "application/gzip";
+        } else if (startsWith(b, skip, 'P', 'K', 3, 4)) {
+            return "application/zip";
+        }
+        return null;
+    }
+
+    protected static CharsetDeclaration declaration(byte[] b, int skip,
+            String text, boolean html) {
+        String name = declaredCharsetName(text, html);
+        if (name == null) {
+            return null;
+        }
+        Charset charset;
+        try {
+            charset = Charset.forName(name);
+        } catch (IllegalArgumentException e) {
+            return new CharsetDeclaration(name, null, false);
+        }
+        // the declaration should survive decoding with what it declares
+        String reflexive = declaredCharsetName(
+                new String(b, skip, b.length - skip, charset), html);
+        boolean consistent = false;
+        try {
+            consistent = reflexive != null && Charset.forName(reflexive).equals(charset);
+        } catch (IllegalArgumentException e) {
+            // not consistent
+        }
+        return new CharsetDeclaration(name, charset, consistent);
+    }
+
+    /**
+     * HTML looks at a content-type meta tag, then a charset meta tag, then
+     * an XML declaration; XML only at the XML declaration.
+     */
+    protected static String declaredCharsetName(String text, boolean html) {
+        if (html) {
+            Matcher m = META_HTTP_EQUIV.matcher(text);
+            if (m.find()) {
+                Matcher p = CHARSET_PARAM.matcher(m.group());
+                if (p.find()) {
+                    return p.group(1);
+                }
+            }
+            m = META_CHARSET.matcher(text);
+            if (m.find()) {
+                return m.group(1);
+            }
+        }
+        Matcher m = XML_ENCODING.matcher(text);
+        return m.find() ? m.group(1) : null;
+    }
+
+    protected static boolean startsWith(byte[] b, int offset, int... magic) {
+        if (b.length - offset < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if ((b[offset + i] & 0xff) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Strips chunked framing from as much of the body as was kept. Returns
+     * the input unchanged if it does not look chunked.
+     */
+    protected static byte[] dechunk(byte[] b) {
+        byte[] out = new byte[b.length];
+        int in = 0, fill = 0;
+        while (in < b.length) {
+            int eol = in;
+            while (eol + 1 < b.length && !(b[eol] == '\r' && b[eol + 1] == '\n')) {
+                eol++;
+            }
+            if (eol + 1 >= b.length) {
+                break;
+            }
+            String sizeLine = new String(b, in, eol - in, StandardCharsets.US_ASCII);
+            int semi = sizeLine.indexOf(';');
+            int size;
+            try {
+                size = Integer.parseInt(
+                        (semi < 0 ? sizeLine : sizeLine.substring(0, semi)).trim(), 16);
+            } catch (NumberFormatException e) {
+                return fill == 0 ? b : Arrays.copyOf(out, fill);
+            }
+            if (size == 0) {
+                break;
+            }
+            in = eol + 2;
+            int n = Math.min(size, b.length - in);
+            System.arraycopy(b, in, out, fill, n);
+            fill += n;
+            in += n + 2;
+        }
+        return Arrays.copyOf(out, fill);
+    }
+
+    /**
+     * Inflates as much of the kept prefix as possible, up to its own length.
+     * Returns null for encodings that aren't understood.
+     */
+    protected byte[] decode(byte[] b, String contentEncoding) {
+        try {
+            InputStream in;
+            if (contentEncoding.equals("gzip") || contentEncoding.equals("x-gzip")) {
+                in = new GZIPInputStream(new ByteArrayInputStream(b));
+            } else if (contentEncoding.equals("deflate")) {
+                in = new InflaterInputStream(new ByteArrayInputStream(b));
+            } else {
+                return null;
+            }
+            byte[] out = new byte[prefix.length];
+            int fill = 0;
+            try {
+                int n;
+                while (fill < out.length && (n = in.read(out, fill, out.length - fill)) > 0) {
+                    fill += n;
+                }
+            } catch (IOException e) {
+                // truncated input; keep what inflated so far
+            }
+            return Arrays.copyOf(out, fill);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return whether {@link #sniff(String, boolean)} could examine the
+     *         content, so the sniff results below are meaningful
+     */
+    public boolean isSniffed() {
+        return sniffed;
+    }
+
+    /**
+     * @return whether the body was transferred as-is, so the payload digests
+     *         are digests of the content itself
+     */
+    public boolean isIdentityEncoded() {
+        return identityEncoded;
+    }
+
+    /** @return charset indicated by a leading byte order mark, or null */
+    public Charset getBomCharset() {
+        return bomCharset;
+    }
+
+    /**
+     * @return binary type suggested by a magic number at the start of the
+     *         content, or null; markup is not classified here
+     */
+    public String getSniffedContentType() {
+        return contentType;
+    }
+
+    /**
+     * The kept prefix decoded as
+     * {@link org.archive.util.Recorder#getContentReplayPrefixString(int, Charset)}
+     * would decode the replay, for extractors to test without replaying.
+     *
+     * @return up to maxChars of the content, or null if the kept prefix
+     *         cannot say for sure what the replay would give
+     */
+    public String getContentPrefixString(int maxChars, Charset charset) {
+        if (!sniffed) {
+            return null;
+        }
+        String text = new String(body, charset);
+        if (text.length() > maxChars) {
+            return text.substring(0, maxChars);
+        }
+        // if truncated, the replay could go on (and the last char may be
+        // half a sequence)
+        return complete ? text : null;
+    }
+
+    /**
+     * @return charset declared by a meta tag or XML declaration in the
+     *         content prefix, or null
+     */
+    public CharsetDeclaration getHtmlCharsetDeclaration() {
+        return htmlDeclaration;
+    }
+
+    /**
+     * @return charset declared by an XML declaration in the content prefix,
+     *         or null
+     */
+    public CharsetDeclaration getXmlCharsetDeclaration() {
+        return xmlDeclaration;
+    }
+
+    /**
+     * Puts a content-declared charset into effect on the curi's recorder,
+     * with the same annotations the extractors have always made. Does
+     * nothing if the HTTP headers named a charset.
+     *
+     * @param where
+     *            annotation suffix, eg "HTML" or "XML"
+     */
+    public static void applyDeclaredCharset(CrawlURI curi,
+            CharsetDeclaration declaration, String where) {
+        if (declaration == null || curi.containsContentTypeCharsetDeclaration()) {
+            return;
+        }
+        Charset charset = declaration.getCharset();
+        if (charset == null) {
+            curi.getAnnotations().add("unsatisfiableCharsetIn" + where + ":" + declaration.getName());
+        } else if (!curi.getRecorder().getCharset().equals(charset)) {
+            if (declaration.isConsistent()) {
+                curi.getAnnotations().add("usingCharsetIn" + where + ":" + charset);
+                curi.getRecorder().setCharset(charset);
+            } else {
+                curi.getAnnotations().add("inconsistentCharsetIn" + where + ":" + charset);
+            }
+        }
+    }
+}
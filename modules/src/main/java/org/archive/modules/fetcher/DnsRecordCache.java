@@ -0,0 +1,189 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.fetcher;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.xbill.DNS.Record;
+
+/**
+ * DNS answers held by hostname until their TTL runs out, so that a
+ * dns: CrawlURI can be satisfied (and still recorded) from a lookup that
+ * was made earlier, e.g. prefetched when the host's queue was created.
+ * Negative answers (NXDOMAIN or no address records) are held too, with
+ * their own TTL.
+ *
+ * <p>Bounded by a number of entries; when full, each put drops the least
+ * recently used entry, so expired entries age out too without a sweep.
+ */
+public class DnsRecordCache {
+
+    public static class Entry {
+        protected final long fetchTime;
+        protected final long expires;
+        protected final Record[] records;
+        protected Entry(long fetchTime, long expires, Record[] records) {
+            this.fetchTime = fetchTime;
+            this.expires = expires;
+            this.records = records;
+        }
+        /** time the answer was received from the resolver */
+        public long getFetchTime() {
+            return fetchTime;
+        }
+        /** address records of the answer, or null for a negative answer */
+        public Record[] getRecords() {
+            return records;
+        }
+        public boolean isNegative() {
+            return records == null;
+        }
+        public long getRemainingTtlSeconds(long now) {
+            return Math.max(0, (expires - now) / 1000);
+        }
+    }
+
+    /** entries in access order; guarded by itself */
+    protected class LruEntries extends LinkedHashMap<String,Entry> {
+        private static final long serialVersionUID = 1L;
+
+        protected LruEntries() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest) {
+            if (size() <= maxEntries) {
+                return false;
+            }
+            if (eldest.getValue().expires > System.currentTimeMillis()) {
+                evicted.incrementAndGet();
+            }
+            return true;
+        }
+    }
+
+    protected final int maxEntries;
+    protected final LruEntries entries = new LruEntries();
+
+    protected AtomicLong hits = new AtomicLong(0);
+    protected AtomicLong negativeHits = new AtomicLong(0);
+    protected AtomicLong misses = new AtomicLong(0);
+    protected AtomicLong evicted = new AtomicLong(0);
+
+    public DnsRecordCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    protected static String key(String hostname) {
+        String key = hostname.toLowerCase();
+        return key.endsWith(".") ? key : key + ".";
+    }
+
+    /**
+     * Unexpired answer for the given hostname, or null.
+     */
+    public Entry get(String hostname) {
+        String key = key(hostname);
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry != null && entry.expires <= System.currentTimeMillis()) {
+                entries.remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+        } else if (entry.isNegative()) {
+            negativeHits.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    public boolean contains(String hostname) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key(hostname));
+        }
+        return entry != null && entry.expires > System.currentTimeMillis();
+    }
+
+    /**
+     * Holds the given address records, until the smallest of their TTLs
+     * runs out.
+     */
+    public void putPositive(String hostname, long fetchTime, List<Record> records) {
+        long ttl = Long.MAX_VALUE;
+        for (Record record : records) {
+            ttl = Math.min(ttl, record.getTTL());
+        }
+        if (records.isEmpty() || ttl <= 0) {
+            return;
+        }
+        put(hostname, new Entry(fetchTime, fetchTime + 1000 * ttl,
+                records.toArray(new Record[records.size()])));
+    }
+
+    /**
+     * Notes that the given hostname has no address, for ttlSeconds.
+     */
+    public void putNegative(String hostname, long fetchTime, long ttlSeconds) {
+        if (ttlSeconds <= 0) {
+            return;
+        }
+        put(hostname, new Entry(fetchTime, fetchTime + 1000 * ttlSeconds, null));
+    }
+
+    protected void put(String hostname, Entry entry) {
+        if (entry.expires <= System.currentTimeMillis()) {
+            return;
+        }
+        synchronized (entries) {
+            entries.put(key(hostname), entry);
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getNegativeHitCount() {
+        return negativeHits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictedCount() {
+        return evicted.get();
+    }
+}
@@ -30,6 +30,16 @@ import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -48,8 +58,14 @@ import org.xbill.DNS.ARecord;
 import org.xbill.DNS.DClass;
 import org.xbill.DNS.DohResolver;
 import org.xbill.DNS.Lookup;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
 import org.xbill.DNS.Record;
+import org.xbill.DNS.Resolver;
 import org.xbill.DNS.ResolverConfig;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
 import org.xbill.DNS.TextParseException;
 import org.xbill.DNS.Type;
 
@@ -169,6 +185,70 @@ public class FetchDNS extends Processor {
         this.digestAlgorithm = digestAlgorithm;
     }
 
+    protected int dnsCacheMaxEntries = 0;
+    public int getDnsCacheMaxEntries() {
+        return dnsCacheMaxEntries;
+    }
+    /**
+     * Maximum number of DNS answers (including negative answers) to hold,
+     * by hostname, until their TTL runs out. A dns: URI whose answer is
+     * held is recorded from that answer without a new query. A non-zero
+     * value also enables prefetching: hosts of newly-filled frontier
+     * queues are looked up asynchronously ahead of their dns: URIs. The
+     * default of 0 disables both. Must be set before the crawl starts.
+     */
+    public void setDnsCacheMaxEntries(int dnsCacheMaxEntries) {
+        this.dnsCacheMaxEntries = dnsCacheMaxEntries;
+    }
+
+    protected long dnsNegativeTtlSeconds = 300;
+    public long getDnsNegativeTtlSeconds() {
+        return dnsNegativeTtlSeconds;
+    }
+    /**
+     * How long, at most, to hold a negative answer (NXDOMAIN or no address
+     * records). A shorter negative TTL given by the zone's SOA record is
+     * honored for prefetched answers.
+     */
+    public void setDnsNegativeTtlSeconds(long dnsNegativeTtlSeconds) {
+        this.dnsNegativeTtlSeconds = dnsNegativeTtlSeconds;
+    }
+
+    protected int dnsPrefetchMaxOutstanding = 256;
+    public int getDnsPrefetchMaxOutstanding() {
+        return dnsPrefetchMaxOutstanding;
+    }
+    /**
+     * Maximum number of prefetch queries awaiting an answer at once; 
+     * further prefetch requests are dropped (their hosts are then looked
+     * up normally). Must be set before the crawl starts.
+     */
+    public void setDnsPrefetchMaxOutstanding(int dnsPrefetchMaxOutstanding) {
+        this.dnsPrefetchMaxOutstanding = dnsPrefetchMaxOutstanding;
+    }
+
+    protected DnsRecordCache dnsCache;
+    protected Semaphore prefetchPermits;
+    /** prefetch queries awaiting an answer, by lookup name */
+    protected Map<String,CompletableFuture<Void>> prefetching = 
+        new ConcurrentHashMap<String,CompletableFuture<Void>>();
+    protected AtomicLong prefetchesSent = new AtomicLong(0);
+    protected AtomicLong prefetchesDropped = new AtomicLong(0);
+    protected AtomicLong prefetchesJoined = new AtomicLong(0);
+    protected volatile Resolver prefetchResolver;
+
+    /**
+     * @return the DNS answer cache, created on first use, or null if 
+     * dnsCacheMaxEntries is 0
+     */
+    public synchronized DnsRecordCache getDnsCache() {
+        if (dnsCache == null && getDnsCacheMaxEntries() > 0) {
+            dnsCache = new DnsRecordCache(getDnsCacheMaxEntries());
+            prefetchPermits = new Semaphore(Math.max(getDnsPrefetchMaxOutstanding(), 1));
+        }
+        return dnsCache;
+    }
+
     private static final long DEFAULT_TTL_FOR_NON_DNS_RESOLVES
         = 6 * 60 * 60; // 6 hrs
 
@@ -180,7 +260,7 @@ public class FetchDNS extends Processor {
     }
 
 
-    protected void innerProcess(CrawlURI curi) {
+    protected void innerProcess(CrawlURI curi) throws InterruptedException {
         Record[] rrecordSet = null; // Retrieved dns records
         String dnsName = null;
         try {
@@ -206,12 +286,22 @@ public class FetchDNS extends Processor {
         // Try to get the records for this host (assume domain name)
         // TODO: Bug #935119 concerns potential hang here
         String lookupName = dnsName.endsWith(".") ? dnsName : dnsName + ".";
+        DnsRecordCache.Entry cached = null;
         // If we have not disabled JavaDNS, use that:
         if (!getDisableJavaDnsResolves()) {
-            try {
-                rrecordSet = createDNSLookup(lookupName).run();
-            } catch (TextParseException e) {
-                rrecordSet = null;
+            cached = getCachedAnswer(lookupName);
+            if (cached != null) {
+                // record the answer as of when it was actually received
+                curi.setFetchBeginTime(cached.getFetchTime());
+                rrecordSet = cached.getRecords();
+            } else {
+                try {
+                    Lookup lookup = createDNSLookup(lookupName);
+                    rrecordSet = lookup.run();
+                    cacheLookupResult(lookupName, curi.getFetchBeginTime(), lookup);
+                } catch (TextParseException e) {
+                    rrecordSet = null;
+                }
             }
         }
         curi.setContentType("text/dns");
@@ -220,6 +310,11 @@ public class FetchDNS extends Processor {
                 logger.fine("Found recordset for " + lookupName);
             }
         	storeDNSRecord(curi, dnsName, targetHost, rrecordSet);
+        	if (cached != null && targetHost.getIP() != null) {
+        	    // only what is left of the TTL applies
+        	    targetHost.setIP(targetHost.getIP(), 
+        	            cached.getRemainingTtlSeconds(System.currentTimeMillis()));
+        	}
         } else {
             if (logger.isLoggable(Level.FINE)) {
                 logger.fine("Failed find of recordset for " + lookupName);
@@ -394,6 +489,189 @@ public class FetchDNS extends Processor {
         return arecord;
     }
 
+    /**
+     * Answer held in the cache for the given name, if any, waiting first
+     * for an outstanding prefetch of that name to be answered.
+     */
+    protected DnsRecordCache.Entry getCachedAnswer(String lookupName) 
+            throws InterruptedException {
+        DnsRecordCache cache = getDnsCache();
+        if (cache == null) {
+            return null;
+        }
+        CompletableFuture<Void> pending = prefetching.get(DnsRecordCache.key(lookupName));
+        if (pending != null) {
+            prefetchesJoined.incrementAndGet();
+            try {
+                pending.get(getPrefetchResolver().getTimeout().toMillis(), TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                // fall through to a direct lookup
+            }
+        }
+        return cache.get(lookupName);
+    }
+
+    /**
+     * Caches the outcome of a completed synchronous lookup, if it was
+     * conclusive.
+     */
+    protected void cacheLookupResult(String lookupName, long fetchTime, Lookup lookup) {
+        DnsRecordCache cache = getDnsCache();
+        if (cache == null) {
+            return;
+        }
+        if (lookup.getResult() == Lookup.SUCCESSFUL) {
+            List<Record> records = new ArrayList<Record>();
+            for (Record record : lookup.getAnswers()) {
+                if (record.getType() == Type.A) {
+                    records.add(record);
+                }
+            }
+            cache.putPositive(lookupName, fetchTime, records);
+        } else if (lookup.getResult() == Lookup.HOST_NOT_FOUND 
+                || lookup.getResult() == Lookup.TYPE_NOT_FOUND) {
+            cache.putNegative(lookupName, fetchTime, getDnsNegativeTtlSeconds());
+        }
+    }
+
+    /**
+     * Starts an asynchronous lookup of the given host, so that the answer
+     * is already cached when its dns: URI comes to be processed. Returns 
+     * immediately; does nothing unless the cache is enabled, or if the
+     * host is already cached or being looked up.
+     */
+    public void prefetch(String hostname) {
+        DnsRecordCache cache = getDnsCache();
+        if (cache == null || hostname == null || getDisableJavaDnsResolves()
+                || InetAddressUtil.IPV4_QUADS.matcher(hostname).matches()) {
+            return;
+        }
+        final String key = DnsRecordCache.key(hostname);
+        if (cache.contains(key) || prefetching.containsKey(key)) {
+            return;
+        }
+        Message query;
+        try {
+            query = Message.newQuery(
+                    Record.newRecord(Name.fromString(key), TypeType, ClassType));
+        } catch (TextParseException e) {
+            return;
+        }
+        if (!prefetchPermits.tryAcquire()) {
+            prefetchesDropped.incrementAndGet();
+            return;
+        }
+        final CompletableFuture<Void> done = new CompletableFuture<Void>();
+        if (prefetching.putIfAbsent(key, done) != null) {
+            prefetchPermits.release();
+            return;
+        }
+        prefetchesSent.incrementAndGet();
+        final long fetchTime = System.currentTimeMillis();
+        getPrefetchResolver().sendAsync(query).whenComplete((response, failure) -> {
+            try {
+                if (response != null) {
+                    cacheResponse(key, fetchTime, response);
+                } else if (logger.isLoggable(Level.FINE)) {
+                    logger.fine("DNS prefetch of " + key + " failed: " + failure);
+                }
+            } finally {
+                prefetching.remove(key, done);
+                prefetchPermits.release();
+                done.complete(null);
+            }
+        });
+    }
+
+    /**
+     * Caches a prefetched answer: the address records of a NOERROR answer,
+     * or a negative answer for NXDOMAIN or NOERROR without addresses.
+     * Anything else (SERVFAIL, or a CNAME the resolver didn't chase) is
+     * left to the normal lookup.
+     */
+    protected void cacheResponse(String lookupName, long fetchTime, Message response) {
+        if (response.getRcode() == Rcode.NXDOMAIN) {
+            dnsCache.putNegative(lookupName, fetchTime, getNegativeTtl(response));
+            return;
+        }
+        if (response.getRcode() != Rcode.NOERROR) {
+            return;
+        }
+        List<Record> records = new ArrayList<Record>();
+        boolean alias = false;
+        for (Record record : response.getSection(Section.ANSWER)) {
+            if (record.getType() == Type.A) {
+                records.add(record);
+            } else if (record.getType() == Type.CNAME) {
+                alias = true;
+            }
+        }
+        if (!records.isEmpty()) {
+            dnsCache.putPositive(lookupName, fetchTime, records);
+        } else if (!alias) {
+            dnsCache.putNegative(lookupName, fetchTime, getNegativeTtl(response));
+        }
+    }
+
+    /**
+     * Negative TTL of an answer per RFC 2308: the lesser of the SOA
+     * record's own TTL and its MINIMUM field, capped at 
+     * dnsNegativeTtlSeconds.
+     */
+    protected long getNegativeTtl(Message response) {
+        long ttl = getDnsNegativeTtlSeconds();
+        for (Record record : response.getSection(Section.AUTHORITY)) {
+            if (record instanceof SOARecord) {
+                ttl = Math.min(ttl, Math.min(record.getTTL(), 
+                        ((SOARecord) record).getMinimum()));
+            }
+        }
+        return ttl;
+    }
+
+    /**
+     * @return the resolver prefetches are sent with, made on first use and
+     * shared by all of them (a DohResolver holds its own HTTP client)
+     */
+    protected Resolver getPrefetchResolver() {
+        Resolver resolver = prefetchResolver;
+        if (resolver == null) {
+            synchronized (this) {
+                if (prefetchResolver == null) {
+                    prefetchResolver = createResolver();
+                }
+                resolver = prefetchResolver;
+            }
+        }
+        return resolver;
+    }
+
+    protected Resolver createResolver() {
+        String dohServer = getDnsOverHttpServer();
+        if (StringUtils.isNotEmpty(dohServer)) {
+            return new DohResolver(dohServer);
+        }
+        return Lookup.getDefaultResolver();
+    }
+
+    @Override
+    public String report() {
+        StringBuilder ret = new StringBuilder(super.report());
+        DnsRecordCache cache = dnsCache;
+        if (cache != null) {
+            ret.append("  dns cache: " + cache.size() + " entries, "
+                    + cache.getHitCount() + " hits, " 
+                    + cache.getNegativeHitCount() + " negative hits, "
+                    + cache.getMissCount() + " misses, "
+                    + cache.getEvictedCount() + " evicted\n");
+            ret.append("  dns prefetch: " + prefetchesSent.get() + " sent, "
+                    + prefetching.size() + " outstanding, "
+                    + prefetchesJoined.get() + " joined, "
+                    + prefetchesDropped.get() + " dropped\n");
+        }
+        return ret.toString();
+    }
+
     protected Lookup createDNSLookup(String lookupName)
             throws TextParseException {
         Lookup lookup = new Lookup(lookupName, TypeType, ClassType);
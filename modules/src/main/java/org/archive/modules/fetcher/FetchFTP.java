@@ -22,6 +22,7 @@ import static org.archive.modules.CoreAttributeConstants.A_FTP_CONTROL_CONVERSAT
 import static org.archive.modules.CoreAttributeConstants.A_FTP_FETCH_STATUS;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -49,6 +50,7 @@ import org.archive.net.ClientFTP;
 import org.archive.net.UURI;
 import org.archive.net.UURIFactory;
 import org.archive.util.Recorder;
+import org.springframework.beans.factory.annotation.Autowired;
 
 
 /**
@@ -225,6 +227,18 @@ public class FetchFTP extends Processor  {
     public void setSoTimeoutMs(int timeout) {
         kp.put("soTimeoutMs",timeout);
     }
+
+    protected BandwidthScheduler bandwidthScheduler;
+    public BandwidthScheduler getBandwidthScheduler() {
+        return bandwidthScheduler;
+    }
+    /**
+     * Crawl-wide bandwidth budget to charge fetched bytes against, if any.
+     */
+    @Autowired(required=false)
+    public void setBandwidthScheduler(BandwidthScheduler bandwidthScheduler) {
+        this.bandwidthScheduler = bandwidthScheduler;
+    }
      
     /**
      * Constructs a new <code>FetchFTP</code>.
@@ -491,7 +505,11 @@ public class FetchFTP extends Processor  {
     private void saveToRecorder(CrawlURI curi,
             Socket socket, Recorder recorder) 
     throws IOException, InterruptedException {
-        recorder.inputWrap(socket.getInputStream());
+        InputStream in = socket.getInputStream();
+        if (bandwidthScheduler != null) {
+            in = bandwidthScheduler.wrap(in, socket.getInetAddress());
+        }
+        recorder.inputWrap(in);
         recorder.outputWrap(socket.getOutputStream());
         recorder.markContentBegin();
 
@@ -28,8 +28,11 @@ import static org.archive.modules.fetcher.FetchStatusCodes.S_UNFETCHABLE_URI;
 import static org.archive.modules.recrawl.RecrawlAttributeConstants.A_REFERENCE_LENGTH;
 
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -38,6 +41,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -47,10 +51,12 @@ import javax.net.ssl.TrustManager;
 import org.archive.url.URIException;
 import org.apache.commons.lang.StringUtils;
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.HttpVersion;
+import org.apache.http.MalformedChunkCodingException;
 import org.apache.http.ProtocolVersion;
 import org.apache.http.auth.AuthScheme;
 import org.apache.http.auth.AuthSchemeProvider;
@@ -67,6 +73,7 @@ import org.apache.http.impl.auth.DigestSchemeFactory;
 import org.apache.http.impl.client.ProxyAuthenticationStrategy;
 import org.apache.http.impl.client.TargetAuthenticationStrategy;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.util.EntityUtils;
 import org.archive.httpclient.ConfigurableX509TrustManager;
 import org.archive.httpclient.ConfigurableX509TrustManager.TrustLevel;
 import org.archive.io.RecorderLengthExceededException;
@@ -143,6 +150,34 @@ public class FetchHTTP extends Processor implements Lifecycle {
         this.digestAlgorithm = digestAlgorithm;
     }
 
+    protected List<String> additionalDigestAlgorithms = new ArrayList<String>();
+    public List<String> getAdditionalDigestAlgorithms() {
+        return additionalDigestAlgorithms;
+    }
+    /**
+     * Further algorithms (for example SHA-256) to digest content-bodies
+     * with, in the same pass as {@link #setDigestAlgorithm(String)}. The
+     * values are available from {@link CrawlURI#getContentSniffer()}.
+     */
+    public void setAdditionalDigestAlgorithms(List<String> additionalDigestAlgorithms) {
+        this.additionalDigestAlgorithms = additionalDigestAlgorithms;
+    }
+
+    {
+        setSniffContent(true);
+    }
+    public boolean getSniffContent() {
+        return (Boolean) kp.get("sniffContent");
+    }
+    /**
+     * Whether to keep the first bytes of each content-body as it arrives and
+     * sniff its byte order mark, declared charset and content type from
+     * them, so the extractors needn't replay the body to find out.
+     */
+    public void setSniffContent(boolean sniff) {
+        kp.put("sniffContent",sniff);
+    }
+
     public UserAgentProvider getUserAgentProvider() {
         return (UserAgentProvider) kp.get("userAgentProvider");
     }
@@ -163,7 +198,49 @@ public class FetchHTTP extends Processor implements Lifecycle {
     public void setSendConnectionClose(boolean sendClose) {
         kp.put("sendConnectionClose",sendClose);
     }
-    
+
+    protected int connectionPoolMaxIdle = 0;
+    public int getConnectionPoolMaxIdle() {
+        return connectionPoolMaxIdle;
+    }
+    /**
+     * Maximum number of idle keep-alive connections, across all servers,
+     * to hold open for reuse by later fetches from the same server, saving
+     * the TCP connect and TLS handshake. Only fetches with
+     * sendConnectionClose false that go direct (not via an HTTP or SOCKS
+     * proxy) take part. Default 0 disables pooling.
+     */
+    public void setConnectionPoolMaxIdle(int connectionPoolMaxIdle) {
+        this.connectionPoolMaxIdle = connectionPoolMaxIdle;
+    }
+
+    protected long connectionPoolIdleTimeoutMs = 30000;
+    public long getConnectionPoolIdleTimeoutMs() {
+        return connectionPoolIdleTimeoutMs;
+    }
+    /**
+     * Longest time a pooled connection may sit idle before it is closed
+     * rather than reused. A queue's next fetch comes only after its
+     * politeness snooze, so this should comfortably exceed the frontier's
+     * typical delay (see its delayFactor, minDelayMs and maxDelayMs). A
+     * shorter Keep-Alive timeout sent by the server takes precedence.
+     */
+    public void setConnectionPoolIdleTimeoutMs(long connectionPoolIdleTimeoutMs) {
+        this.connectionPoolIdleTimeoutMs = connectionPoolIdleTimeoutMs;
+    }
+
+    protected ServerConnectionPool connectionPool;
+    /**
+     * @return pool of idle keep-alive connections, or null if pooling is
+     *         not enabled
+     */
+    public synchronized ServerConnectionPool getConnectionPool() {
+        if (connectionPool == null && getConnectionPoolMaxIdle() > 0) {
+            connectionPool = new ServerConnectionPool(getConnectionPoolMaxIdle());
+        }
+        return connectionPool;
+    }
+
     {
         setDefaultEncoding("ISO-8859-1");
     }
@@ -189,8 +266,9 @@ public class FetchHTTP extends Processor implements Lifecycle {
     }
     /**
      * Use HTTP/1.1. Note: even when offering an HTTP/1.1 request, 
-     * Heritrix may not properly handle persistent/keep-alive connections, 
-     * so the sendConnectionClose parameter should remain 'true'. 
+     * Heritrix only handles persistent/keep-alive connections when
+     * connectionPoolMaxIdle is set, so otherwise the sendConnectionClose
+     * parameter should remain 'true'. 
      */
     public void setUseHTTP11(boolean useHTTP11) {
         kp.put("useHTTP11",useHTTP11);
@@ -274,6 +352,18 @@ public class FetchHTTP extends Processor implements Lifecycle {
     public AbstractCookieStore getCookieStore() {
         return cookieStore;
     }
+
+    protected BandwidthScheduler bandwidthScheduler;
+    public BandwidthScheduler getBandwidthScheduler() {
+        return bandwidthScheduler;
+    }
+    /**
+     * Crawl-wide bandwidth budget to charge fetched bytes against, if any.
+     */
+    @Autowired(required=false)
+    public void setBandwidthScheduler(BandwidthScheduler bandwidthScheduler) {
+        this.bandwidthScheduler = bandwidthScheduler;
+    }
     
     {
         // initialize with empty store so declaration not required
@@ -510,6 +600,57 @@ public class FetchHTTP extends Processor implements Lifecycle {
     }
 
 
+    protected int sslSessionCacheSize = 20480;
+    public int getSslSessionCacheSize() {
+        return sslSessionCacheSize;
+    }
+    /**
+     * Maximum number of TLS sessions (including TLS 1.3 session tickets)
+     * remembered, least recently used dropped first, so that later HTTPS
+     * fetches from the same host and port can resume a session with an
+     * abbreviated handshake. 0 means no limit.
+     */
+    public synchronized void setSslSessionCacheSize(int sslSessionCacheSize) {
+        this.sslSessionCacheSize = sslSessionCacheSize;
+        if (sslContext != null) {
+            sslContext.getClientSessionContext().setSessionCacheSize(sslSessionCacheSize);
+        }
+    }
+
+    protected int sslSessionTimeoutSeconds = 86400;
+    public int getSslSessionTimeoutSeconds() {
+        return sslSessionTimeoutSeconds;
+    }
+    /**
+     * How long a remembered TLS session may be offered for resumption.
+     * Servers commonly honor resumption for far less time than the
+     * default of a day; 0 means no limit.
+     */
+    public synchronized void setSslSessionTimeoutSeconds(int sslSessionTimeoutSeconds) {
+        this.sslSessionTimeoutSeconds = sslSessionTimeoutSeconds;
+        if (sslContext != null) {
+            sslContext.getClientSessionContext().setSessionTimeout(sslSessionTimeoutSeconds);
+        }
+    }
+
+    protected AtomicLong tlsFullHandshakes = new AtomicLong(0);
+    protected AtomicLong tlsFullHandshakeMs = new AtomicLong(0);
+    protected AtomicLong tlsResumedHandshakes = new AtomicLong(0);
+    protected AtomicLong tlsResumedHandshakeMs = new AtomicLong(0);
+    protected void noteTlsHandshake(boolean resumed, long handshakeMs) {
+        if (resumed) {
+            tlsResumedHandshakes.incrementAndGet();
+            tlsResumedHandshakeMs.addAndGet(handshakeMs);
+        } else {
+            tlsFullHandshakes.incrementAndGet();
+            tlsFullHandshakeMs.addAndGet(handshakeMs);
+        }
+    }
+
+    /**
+     * The ssl context is shared by all fetches so that its client session
+     * cache, keyed by host and port, lets them resume earlier sessions.
+     */
     protected transient SSLContext sslContext;
     protected synchronized SSLContext sslContext() {
         if (sslContext == null) {
@@ -518,6 +659,8 @@ public class FetchHTTP extends Processor implements Lifecycle {
                         getSslTrustLevel());
                 sslContext = SSLContext.getInstance("SSL");
                 sslContext.init(null, new TrustManager[] {trustManager}, null);
+                sslContext.getClientSessionContext().setSessionCacheSize(getSslSessionCacheSize());
+                sslContext.getClientSessionContext().setSessionTimeout(getSslSessionTimeoutSeconds());
             } catch (Exception e) {
                 logger.log(Level.WARNING, "Failed configure of ssl context "
                         + e.getMessage(), e);
@@ -616,6 +759,40 @@ public class FetchHTTP extends Processor implements Lifecycle {
         }
     }
 
+    /**
+     * @return a sniffer to install as the recorder's digest, or null if
+     *         neither sniffing nor additional digests are wanted
+     */
+    protected ContentSniffer newContentSniffer(String algorithm) {
+        boolean sniff = getSniffContent();
+        if (!sniff && getAdditionalDigestAlgorithms().isEmpty()) {
+            return null;
+        }
+        try {
+            return new ContentSniffer(algorithm, getAdditionalDigestAlgorithms(),
+                    sniff ? ContentSniffer.DEFAULT_PREFIX_LENGTH : 0);
+        } catch (NoSuchAlgorithmException e) {
+            logger.log(Level.WARNING, "not sniffing content", e);
+            return null;
+        }
+    }
+
+    /**
+     * Sniffs the prefix the sniffer kept, lets a byte order mark override
+     * the charset, and records the result on the curi.
+     */
+    protected void setContentSniff(CrawlURI curi, Recorder rec,
+            ContentSniffer sniffer, HttpResponse response) {
+        Header ce = response.getLastHeader("content-encoding");
+        Header te = response.getLastHeader("transfer-encoding");
+        sniffer.sniff(ce == null ? null : ce.getValue(),
+                te != null && te.getValue().toLowerCase().contains("chunked"));
+        if (sniffer.getBomCharset() != null) {
+            rec.setCharset(sniffer.getBomCharset());
+        }
+        curi.setContentSniffer(sniffer);
+    }
+
     protected boolean checkMidfetchAbort(CrawlURI curi) {
         if (curi.isPrerequisite()) {
             return false;
@@ -657,6 +834,11 @@ public class FetchHTTP extends Processor implements Lifecycle {
         String algorithm = null;
         if (digestContent) {
             algorithm = getDigestAlgorithm();
+        }
+        ContentSniffer sniffer = newContentSniffer(algorithm);
+        if (sniffer != null) {
+            rec.getRecordedInput().setDigest(sniffer);
+        } else if (digestContent) {
             rec.getRecordedInput().setDigest(algorithm);
         } else {
             // clear
@@ -714,15 +896,21 @@ public class FetchHTTP extends Processor implements Lifecycle {
                     contentLength = Long.parseLong(contentLengthHeader);
                 } catch (NumberFormatException e) {
                     cleanup(curi, e, "invalid content-length header", S_CONNECT_LOST);
+                    req.releaseConnection(response, false);
                     return;
                 }
             }
         }
+        long pooledBodyLength = UNDELIMITED_BODY;
         try {
             if (!req.request.isAborted()) {
                 // Force read-to-end, so that any socket hangs occur here,
                 // not in later modules.
-                rec.getRecordedInput().readToEndOfContent(contentLength); 
+                if (req.isPooled()) {
+                    pooledBodyLength = readPooledResponse(response, rec, contentLength);
+                } else {
+                    rec.getRecordedInput().readToEndOfContent(contentLength); 
+                }
             }
         } catch (RecorderTimeoutException ex) {
             doAbort(curi, req.request, TIMER_TRUNC);
@@ -741,6 +929,11 @@ public class FetchHTTP extends Processor implements Lifecycle {
             rec.close();
             // ensure recording has stopped
             rec.closeRecorders();
+            // recorded length is known once recording has stopped
+            req.releaseConnection(response, pooledBodyLength == CHUNKED_BODY
+                    || (pooledBodyLength >= 0 
+                            && rec.getResponseContentLength() == pooledBodyLength));
+            tallyConnection(curi, req);
             // Note completion time
             curi.setFetchCompletedTime(System.currentTimeMillis());
             
@@ -750,6 +943,10 @@ public class FetchHTTP extends Processor implements Lifecycle {
             setOtherCodings(curi, rec, response); 
         }
 
+        if (sniffer != null) {
+            setContentSniff(curi, rec, sniffer, response);
+        }
+
         if (digestContent) {
             curi.setContentDigest(algorithm, 
                 rec.getRecordedInput().getDigestValue());
@@ -790,6 +987,76 @@ public class FetchHTTP extends Processor implements Lifecycle {
     }
 
 
+    // readPooledResponse() results other than an exact length
+    protected static final long UNDELIMITED_BODY = -1;
+    protected static final long CHUNKED_BODY = -2;
+
+    /**
+     * Read the rest of a response arriving over a connection that may be
+     * kept alive, without waiting for the server to close it: a response
+     * that is neither bodiless, nor chunked, nor of known length is read
+     * to end of stream as usual.
+     * 
+     * @return length the recorded message body must have for the response
+     *         to have been read to its exact end, so that the connection
+     *         could carry another request; CHUNKED_BODY if the last chunk
+     *         was read; UNDELIMITED_BODY if the end can't be known
+     */
+    protected long readPooledResponse(HttpResponse response, Recorder rec,
+            long contentLength) throws IOException, InterruptedException {
+        int status = response.getStatusLine().getStatusCode();
+        HttpEntity entity = response.getEntity();
+        if (entity == null || status < HttpStatus.SC_OK
+                || status == HttpStatus.SC_NO_CONTENT
+                || status == HttpStatus.SC_NOT_MODIFIED) {
+            return 0;
+        }
+        if (entity.isChunked()) {
+            // consuming through the entity still passes every raw byte
+            // through the recorder, which enforces the usual limits
+            try {
+                EntityUtils.consume(entity);
+                return CHUNKED_BODY;
+            } catch (MalformedChunkCodingException e) {
+                // keep whatever the server sends, as when not pooling
+                rec.getRecordedInput().readToEndOfContent(-1);
+                return UNDELIMITED_BODY;
+            } catch (SocketTimeoutException e) {
+                // as readToEndOfContent(), keep what was read
+                return UNDELIMITED_BODY;
+            }
+        }
+        if (contentLength == 0) {
+            // readToEndOfContent(0) would read to end of stream
+            return 0;
+        }
+        rec.getRecordedInput().readToEndOfContent(contentLength);
+        return contentLength;
+    }
+
+    /**
+     * Tally connection reuse, when pooling, and any tls handshake to the
+     * host's stats.
+     */
+    protected void tallyConnection(CrawlURI curi, FetchHTTPRequest req) {
+        boolean pooledConnect = req.isPooled() && req.getConnectMs() >= 0;
+        if (!pooledConnect && req.getTlsResumed() == null) {
+            return;
+        }
+        CrawlHost host = getServerCache().getHostFor(curi.getUURI());
+        if (host != null) {
+            synchronized (host) {
+                if (pooledConnect) {
+                    host.getSubstats().tallyConnection(req.isConnectionReused(), req.getConnectMs());
+                }
+                if (req.getTlsResumed() != null) {
+                    host.getSubstats().tallyTlsHandshake(req.getTlsResumed());
+                }
+                host.makeDirty();
+            }
+        }
+    }
+
     /**
      * Promote successful credential to the server.
      * 
@@ -1100,6 +1367,9 @@ public class FetchHTTP extends Processor implements Lifecycle {
             return;
         }
         super.stop();
+        if (connectionPool != null) {
+            connectionPool.close();
+        }
         // At the end save cookies to the file specified in the order file.
         if (getCookieStore() != null) {
             AbstractCookieStore r = getCookieStore();
@@ -1111,6 +1381,33 @@ public class FetchHTTP extends Processor implements Lifecycle {
         }
     }
 
+    @Override
+    public String report() {
+        StringBuffer ret = new StringBuffer();
+        ret.append(super.report());
+        long full = tlsFullHandshakes.get();
+        long resumed = tlsResumedHandshakes.get();
+        if (full + resumed > 0) {
+            ret.append("  tls handshakes: " + full + " full (mean "
+                    + String.format("%.1f", tlsFullHandshakeMs.get() / (double) Math.max(full, 1)) + "ms), "
+                    + resumed + " resumed (mean "
+                    + String.format("%.1f", tlsResumedHandshakeMs.get() / (double) Math.max(resumed, 1)) + "ms)\n");
+        }
+        ServerConnectionPool pool = connectionPool;
+        if (pool != null) {
+            ret.append("  connection pool: " + pool.getIdleCount() + " idle, "
+                    + pool.getOpenedCount() + " opened (mean "
+                    + String.format("%.1f", pool.getMeanConnectMs()) + "ms), "
+                    + pool.getReusedCount() + " reused ("
+                    + String.format("%.1f%%", 100 * pool.getReuseRate()) + ", "
+                    + pool.getConnectMsSaved() + "ms connect saved)\n");
+            ret.append("  discarded: " + pool.getDiscardedStaleCount() + " stale, "
+                    + pool.getDiscardedExpiredCount() + " expired, "
+                    + pool.getEvictedCount() + " evicted\n");
+        }
+        return ret.toString();
+    }
+
     protected static String getServerKey(CrawlURI uri) {
         try {
             return CrawlServer.getServerKey(uri.getUURI());
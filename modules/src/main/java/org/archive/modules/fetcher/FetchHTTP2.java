@@ -27,6 +27,7 @@ import org.apache.http.impl.cookie.BasicClientCookie;
 import org.archive.io.RecorderLengthExceededException;
 import org.archive.io.RecorderTimeoutException;
 import org.archive.modules.CrawlURI;
+import org.archive.modules.ProcessResult;
 import org.archive.modules.Processor;
 import org.archive.modules.net.CrawlHost;
 import org.archive.modules.net.CrawlServer;
@@ -43,28 +44,39 @@ import org.eclipse.jetty.http3.client.HTTP3Client;
 import org.eclipse.jetty.http3.client.transport.ClientConnectionFactoryOverHTTP3;
 import org.eclipse.jetty.io.ClientConnectionFactory;
 import org.eclipse.jetty.io.ClientConnector;
+import org.eclipse.jetty.io.Content;
 import org.eclipse.jetty.quic.client.ClientQuicConfiguration;
 import org.eclipse.jetty.quic.quiche.jna.LibQuiche;
 import org.eclipse.jetty.util.Promise;
 import org.eclipse.jetty.util.SocketAddressResolver;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.Scheduler;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.Lifecycle;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
 import java.nio.charset.StandardCharsets;
 import java.nio.charset.UnsupportedCharsetException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -84,8 +96,15 @@ public class FetchHTTP2 extends Processor implements Lifecycle, InitializingBean
     protected final ServerCache serverCache;
     protected final AbstractCookieStore cookieStore;
     protected String digestAlgorithm = "sha1";
+    protected List<String> additionalDigestAlgorithms = new ArrayList<>();
+    protected boolean sniffContent = true;
     protected boolean useHTTP2 = true;
     protected boolean useHTTP3 = false;
+    protected boolean asyncFetch = false;
+    protected int asyncCarrierThreads = 8;
+    protected BandwidthScheduler bandwidthScheduler;
+    private final AtomicInteger asyncInFlight = new AtomicInteger();
+    private final AtomicInteger asyncMaxInFlight = new AtomicInteger();
     private final Map<HttpProxySettings, HttpProxy> httpProxies = new ConcurrentHashMap<>();
 
     public FetchHTTP2(@Autowired ServerCache serverCache, @Autowired(required = false) AbstractCookieStore cookieStore) {
@@ -146,6 +165,11 @@ public class FetchHTTP2 extends Processor implements Lifecycle, InitializingBean
         httpClient.setDestinationIdleTimeout(5 * 60 * 1000);
         httpClient.setConnectTimeout(20 * 1000);
         httpClient.setMaxConnectionsPerDestination(6);
+        if (asyncFetch) {
+            var carriers = new QueuedThreadPool(asyncCarrierThreads, Math.min(2, asyncCarrierThreads));
+            carriers.setName("FetchHTTP2-carrier");
+            httpClient.setExecutor(carriers);
+        }
         if (serverCache != null) {
             httpClient.setSocketAddressResolver(this::resolveSocketAddress);
         }
@@ -193,44 +217,58 @@ public class FetchHTTP2 extends Processor implements Lifecycle, InitializingBean
         return true;
     }
 
+    /**
+     * With asyncFetch, starts the fetch and suspends, so the calling 
+     * ToeThread is free for other work until the response has completed
+     * into the Recorder; see {@link #startAsyncFetch(CrawlURI)}.
+     */
+    @Override
+    protected ProcessResult innerProcessResult(CrawlURI curi) throws InterruptedException {
+        if (!asyncFetch) {
+            return super.innerProcessResult(curi);
+        }
+        RecordingResponseListener listener = startAsyncFetch(curi);
+        return ProcessResult.suspend(listener.completion, () -> {
+            finishAsyncFetch(listener);
+            return ProcessResult.PROCEED;
+        });
+    }
+
     @Override
     protected void innerProcess(CrawlURI curi) throws InterruptedException {
+        if (asyncFetch) {
+            // called other than through a chain, so wait for the response here
+            RecordingResponseListener listener = startAsyncFetch(curi);
+            try {
+                listener.completion.get();
+            } catch (ExecutionException e) {
+                // never completed exceptionally
+            } catch (InterruptedException e) {
+                listener.completion.cancel(false);
+                finishAsyncFetch(listener);
+                throw e;
+            }
+            finishAsyncFetch(listener);
+            return;
+        }
+
         var listener = new InputStreamResponseListener();
 
         var recorder = curi.getRecorder();
-        if (digestAlgorithm != null) recorder.getRecordedInput().setDigest(digestAlgorithm);
+        setDigest(curi, recorder);
         recorder.getRecordedInput().setLimits(getMaxLengthBytes(),
                 1000L * (long) getTimeoutSeconds(), getMaxFetchKBSec());
         curi.setFetchBeginTime(System.currentTimeMillis());
 
         try {
-            Request request = httpClient.newRequest(curi.getURI())
-                    .timeout(getTimeoutSeconds(), TimeUnit.SECONDS)
-                    .method(curi.getFetchType() == CrawlURI.FetchType.HTTP_POST ? HttpMethod.POST : HttpMethod.GET)
-                    .agent(getUserAgentProvider().getUserAgent())
-                    .tag(getProxy());
-            if (!curi.getUURI().getScheme().equals("https")) {
-                request.version(HttpVersion.HTTP_1_1);
-            } else if (useHTTP3 && curi.getFetchAttempts() == 0) {
-                // use HTTP/3 if we've seen an Alt-Svc header
-                CrawlServer crawlServer = serverCache.getServerFor(curi.getUURI());
-                int http3Port = crawlServer.getHttp3AltSvcPort();
-                if (http3Port > 0) {
-                    // TODO: Support alternate Alt-Svc ports for HTTP/3.
-                    //   Tricky to do because we need to preserve the original request URI.
-                    //   Maybe changing the port in resolveSocketAddress() would work?
-                    if (http3Port == curi.getUURI().getPort() || (curi.getUURI().getPort() == -1 && http3Port == 443)) {
-                        request.version(HttpVersion.HTTP_3);
-                    }
-                }
-            }
+            Request request = newRequest(curi);
             request.send(listener);
             recordRequest(request, recorder);
             Response response = listener.get(getTimeoutSeconds(), TimeUnit.SECONDS);
             handleAltSvcHeader(curi, response);
             curi.getRecorder().inputWrap(null);
             updateCrawlURIWithResponseHeader(curi, response);
-            recordResponse(response, recorder, listener);
+            recordResponse(response, recorder, throttle(curi, listener.getInputStream()));
         } catch (RecorderTimeoutException ex) {
             curi.getAnnotations().add(TIMER_TRUNC);
         } catch (RecorderLengthExceededException ex) {
@@ -253,6 +291,222 @@ public class FetchHTTP2 extends Processor implements Lifecycle, InitializingBean
         }
     }
 
+    /**
+     * Sends the request for the URI and returns without waiting for the
+     * response, which the client's carrier threads write into the Recorder
+     * as it arrives. The returned listener's completion is done once the
+     * exchange is over, normally or not; the request is aborted if it
+     * somehow outlives the fetch timeout.
+     */
+    protected RecordingResponseListener startAsyncFetch(CrawlURI curi) {
+        var recorder = curi.getRecorder();
+        setDigest(curi, recorder);
+        // maxFetchKBSec is applied by delaying demand rather than by sleeping in the recorder
+        recorder.getRecordedInput().setLimits(getMaxLengthBytes(),
+                1000L * (long) getTimeoutSeconds(), 0);
+        curi.setFetchBeginTime(System.currentTimeMillis());
+
+        Request request = newRequest(curi);
+        var listener = new RecordingResponseListener(curi, request, getMaxFetchKBSec());
+        request.onRequestCommit(listener::recordRequest);
+        // a waiter giving up cancels the completion; stop the exchange too
+        listener.completion.whenComplete((result, cancelled) -> {
+            if (cancelled != null) {
+                listener.abandon();
+                request.abort(cancelled);
+            }
+        });
+        asyncMaxInFlight.accumulateAndGet(asyncInFlight.incrementAndGet(), Math::max);
+        // the request timeout normally completes the listener first
+        listener.deadline = httpClient.getScheduler().schedule(
+                () -> request.abort(new TimeoutException("no response completion")),
+                getTimeoutSeconds() + 5L, TimeUnit.SECONDS);
+        try {
+            request.send(listener);
+        } catch (RuntimeException e) {
+            listener.onComplete(new Result(request, e, null));
+        }
+        return listener;
+    }
+
+    /**
+     * Notes the outcome of a completed asynchronous fetch on its CrawlURI
+     * and closes its Recorder.
+     */
+    protected void finishAsyncFetch(RecordingResponseListener listener) {
+        CrawlURI curi = listener.curi;
+        var recorder = curi.getRecorder();
+        try {
+            CompletableFuture<Result> completion = listener.completion;
+            Throwable failure = completion.isDone() && !completion.isCompletedExceptionally()
+                    ? completion.join().getFailure()
+                    : new CancellationException("fetch abandoned before completion");
+            if (failure instanceof RecorderTimeoutException) {
+                curi.getAnnotations().add(TIMER_TRUNC);
+            } else if (failure instanceof RecorderLengthExceededException) {
+                curi.getAnnotations().add(LENGTH_TRUNC);
+            } else if (failure != null) {
+                if (logger.isLoggable(Level.INFO)) {
+                    logger.info(curi + ": " + failure);
+                }
+                curi.getNonFatalFailures().add(failure);
+                if (failure instanceof TimeoutException) {
+                    curi.setFetchStatus(FetchStatusCodes.S_TIMEOUT);
+                } else {
+                    curi.setFetchStatus(FetchStatusCodes.S_CONNECT_FAILED);
+                }
+            }
+        } finally {
+            listener.closeBody();
+            recorder.close();
+            recorder.closeRecorders();
+            updateCrawlURIOnCompletion(curi, recorder);
+        }
+    }
+
+    protected Request newRequest(CrawlURI curi) {
+        Request request = httpClient.newRequest(curi.getURI())
+                .timeout(getTimeoutSeconds(), TimeUnit.SECONDS)
+                .method(curi.getFetchType() == CrawlURI.FetchType.HTTP_POST ? HttpMethod.POST : HttpMethod.GET)
+                .agent(getUserAgentProvider().getUserAgent())
+                .tag(getProxy());
+        if (!curi.getUURI().getScheme().equals("https")) {
+            request.version(HttpVersion.HTTP_1_1);
+        } else if (useHTTP3 && curi.getFetchAttempts() == 0) {
+            // use HTTP/3 if we've seen an Alt-Svc header
+            CrawlServer crawlServer = serverCache.getServerFor(curi.getUURI());
+            int http3Port = crawlServer.getHttp3AltSvcPort();
+            if (http3Port > 0) {
+                // TODO: Support alternate Alt-Svc ports for HTTP/3.
+                //   Tricky to do because we need to preserve the original request URI.
+                //   Maybe changing the port in resolveSocketAddress() would work?
+                if (http3Port == curi.getUURI().getPort() || (curi.getUURI().getPort() == -1 && http3Port == 443)) {
+                    request.version(HttpVersion.HTTP_3);
+                }
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Records a response into the CrawlURI's Recorder as the client delivers
+     * it. Callbacks run on the client's carrier threads; once the fetching
+     * thread has given up on the response (see {@link #abandon()}) any late
+     * callbacks leave the Recorder alone.
+     */
+    protected class RecordingResponseListener implements Response.Listener {
+        protected final CrawlURI curi;
+        protected final Request request;
+        protected final double maxBytesPerMs;
+        protected final BandwidthScheduler.TokenBucket[] chargeTo;
+        protected final CompletableFuture<Result> completion = new CompletableFuture<>();
+        protected OutputStream body;
+        protected byte[] buffer;
+        protected long contentBytes;
+        protected long contentBeginTime;
+        protected boolean abandoned;
+        /** aborts the request should it outlive the fetch timeout */
+        protected volatile Scheduler.Task deadline;
+        /** cleared once this fetch is no longer counted in flight */
+        protected final AtomicBoolean inFlight = new AtomicBoolean(true);
+
+        public RecordingResponseListener(CrawlURI curi, Request request, int maxFetchKBSec) {
+            this.curi = curi;
+            this.request = request;
+            this.maxBytesPerMs = maxFetchKBSec * 1024 / 1000.0;
+            this.chargeTo = bandwidthScheduler == null ? null
+                    : bandwidthScheduler.bucketsFor(getHostIP(curi));
+        }
+
+        public synchronized void recordRequest(Request request) {
+            if (abandoned) return;
+            try {
+                FetchHTTP2.recordRequest(request, curi.getRecorder());
+            } catch (IOException e) {
+                request.abort(e);
+            }
+        }
+
+        @Override
+        public synchronized void onHeaders(Response response) {
+            if (abandoned) return;
+            try {
+                handleAltSvcHeader(curi, response);
+                curi.getRecorder().inputWrap(null);
+                updateCrawlURIWithResponseHeader(curi, response);
+                body = curi.getRecorder().getRecordedInput().asOutputStream();
+                body.write(formatResponseHeader(response).getBytes(StandardCharsets.US_ASCII));
+            } catch (IOException e) {
+                response.abort(e);
+            }
+        }
+
+        @Override
+        public void onContent(Response response, ByteBuffer content) {
+            // unused, content arrives through the demand-driven variant below
+        }
+
+        @Override
+        public void onContent(Response response, Content.Chunk chunk, Runnable demander) {
+            long delayMs;
+            int chunkBytes;
+            synchronized (this) {
+                if (abandoned || body == null) return;
+                ByteBuffer content = chunk.getByteBuffer();
+                try {
+                    if (buffer == null) buffer = new byte[8192];
+                    chunkBytes = content.remaining();
+                    while (content.hasRemaining()) {
+                        int n = Math.min(content.remaining(), buffer.length);
+                        content.get(buffer, 0, n);
+                        body.write(buffer, 0, n);
+                        contentBytes += n;
+                    }
+                } catch (IOException e) {
+                    response.abort(e);
+                    return;
+                }
+                long now = System.currentTimeMillis();
+                if (contentBeginTime == 0) contentBeginTime = now;
+                delayMs = maxBytesPerMs > 0
+                        ? contentBeginTime + (long) (contentBytes / maxBytesPerMs) - now : 0;
+            }
+            if (chargeTo != null) {
+                delayMs = Math.max(delayMs, bandwidthScheduler.charge(chargeTo, chunkBytes));
+            }
+            if (delayMs > 0) {
+                httpClient.getScheduler().schedule(demander, delayMs, TimeUnit.MILLISECONDS);
+            } else {
+                demander.run();
+            }
+        }
+
+        @Override
+        public void onComplete(Result result) {
+            if (inFlight.compareAndSet(true, false)) {
+                asyncInFlight.decrementAndGet();
+            }
+            Scheduler.Task task = deadline;
+            if (task != null) {
+                task.cancel();
+            }
+            completion.complete(result);
+        }
+
+        /**
+         * Stops any further writes to the Recorder. Called by the fetching
+         * thread before it closes the Recorder without waiting for completion.
+         */
+        public synchronized void abandon() {
+            abandoned = true;
+        }
+
+        public synchronized void closeBody() {
+            abandoned = true;
+            IOUtils.closeQuietly(body);
+        }
+    }
+
     public String getHttpProxyHost() {
         return (String) kp.get("httpProxyHost");
     }
@@ -383,14 +637,32 @@ public class FetchHTTP2 extends Processor implements Lifecycle, InitializingBean
         recorder.outputWrap(NullOutputStream.INSTANCE).write(requestHeader.getBytes(StandardCharsets.US_ASCII));
     }
 
+    /**
+     * @return the response body, charged to the bandwidth budget of the
+     * URI's host if there is one
+     */
+    protected InputStream throttle(CrawlURI curi, InputStream body) {
+        if (bandwidthScheduler == null) return body;
+        return bandwidthScheduler.wrap(body, getHostIP(curi));
+    }
+
+    /**
+     * @return the resolved address of the URI's host, or null if there is
+     * none (only the global bandwidth budget then applies)
+     */
+    protected InetAddress getHostIP(CrawlURI curi) {
+        CrawlHost host = serverCache.getHostFor(curi.getUURI());
+        return host == null ? null : host.getIP();
+    }
+
     /**
      * Reconstructs the HTTP response and records it.
      */
-    private static void recordResponse(Response response, Recorder recorder, InputStreamResponseListener listener) throws IOException {
+    private static void recordResponse(Response response, Recorder recorder, InputStream body) throws IOException {
         String header = formatResponseHeader(response);
         try (var responseRecorder = recorder.getRecordedInput().asOutputStream()) {
             responseRecorder.write(header.getBytes(StandardCharsets.US_ASCII));
-            try (InputStream inputStream = listener.getInputStream()) {
+            try (InputStream inputStream = body) {
                 inputStream.transferTo(responseRecorder);
             }
         }
@@ -460,6 +732,39 @@ public class FetchHTTP2 extends Processor implements Lifecycle, InitializingBean
         } else if (response.getVersion().equals(HttpVersion.HTTP_3)) {
             curi.getAnnotations().add("h3");
         }
+
+        // lets the frontier multiplex this server's queue, if so configured
+        if (serverCache != null) {
+            CrawlServer crawlServer = serverCache.getServerFor(curi.getUURI());
+            if (crawlServer != null) {
+                crawlServer.setMultiplexed(response.getVersion().equals(HttpVersion.HTTP_2)
+                        || response.getVersion().equals(HttpVersion.HTTP_3));
+            }
+        }
+    }
+
+    /**
+     * Installs the recorder's digest: a {@link ContentSniffer} if sniffing or
+     * additional digests are wanted, otherwise the plain digest algorithm.
+     */
+    protected void setDigest(CrawlURI curi, Recorder recorder) {
+        curi.setContentSniffer(null);
+        if (sniffContent || !additionalDigestAlgorithms.isEmpty()) {
+            try {
+                var sniffer = new ContentSniffer(digestAlgorithm, additionalDigestAlgorithms,
+                        sniffContent ? ContentSniffer.DEFAULT_PREFIX_LENGTH : 0);
+                recorder.getRecordedInput().setDigest(sniffer);
+                curi.setContentSniffer(sniffer);
+                return;
+            } catch (NoSuchAlgorithmException e) {
+                logger.log(Level.WARNING, "not sniffing content", e);
+            }
+        }
+        if (digestAlgorithm != null) {
+            recorder.getRecordedInput().setDigest(digestAlgorithm);
+        } else {
+            recorder.getRecordedInput().setDigest((MessageDigest) null);
+        }
     }
 
     /**
@@ -467,6 +772,14 @@ public class FetchHTTP2 extends Processor implements Lifecycle, InitializingBean
      */
     public void updateCrawlURIOnCompletion(CrawlURI curi, Recorder recorder) {
         curi.setFetchCompletedTime(System.currentTimeMillis());
+        ContentSniffer sniffer = curi.getContentSniffer();
+        if (sniffer != null) {
+            // the client has already removed any transfer encoding
+            sniffer.sniff(curi.getHttpResponseHeader("Content-Encoding"), false);
+            if (sniffer.getBomCharset() != null) {
+                recorder.setCharset(sniffer.getBomCharset());
+            }
+        }
         if (digestAlgorithm != null) {
             curi.setContentDigest(digestAlgorithm, recorder.getRecordedInput().getDigestValue());
         }
@@ -514,6 +827,18 @@ public class FetchHTTP2 extends Processor implements Lifecycle, InitializingBean
         kp.put("userAgentProvider", provider);
     }
 
+    public BandwidthScheduler getBandwidthScheduler() {
+        return bandwidthScheduler;
+    }
+
+    /**
+     * Crawl-wide bandwidth budget to charge fetched bytes against, if any.
+     */
+    @Autowired(required = false)
+    public void setBandwidthScheduler(BandwidthScheduler bandwidthScheduler) {
+        this.bandwidthScheduler = bandwidthScheduler;
+    }
+
     public void setTimeoutSeconds(int timeout) {
         kp.put("timeoutSeconds", timeout);
     }
@@ -532,6 +857,32 @@ public class FetchHTTP2 extends Processor implements Lifecycle, InitializingBean
         return digestAlgorithm;
     }
 
+    /**
+     * Further algorithms (for example SHA-256) to digest content-bodies with,
+     * in the same pass as the digest algorithm. The values are available
+     * from {@link CrawlURI#getContentSniffer()}.
+     */
+    public void setAdditionalDigestAlgorithms(List<String> additionalDigestAlgorithms) {
+        this.additionalDigestAlgorithms = additionalDigestAlgorithms;
+    }
+
+    public List<String> getAdditionalDigestAlgorithms() {
+        return additionalDigestAlgorithms;
+    }
+
+    /**
+     * Whether to sniff the byte order mark, declared charset and content type
+     * of each content-body from its first bytes as it arrives, so the
+     * extractors needn't replay the body to find out.
+     */
+    public void setSniffContent(boolean sniffContent) {
+        this.sniffContent = sniffContent;
+    }
+
+    public boolean getSniffContent() {
+        return sniffContent;
+    }
+
     /**
      * Indicates whether the HTTP/2 protocol is enabled.
      */
@@ -588,6 +939,70 @@ public class FetchHTTP2 extends Processor implements Lifecycle, InitializingBean
         kp.put("maxFetchKBSec",rate);
     }
 
+    /**
+     * Indicates whether fetches are handed off to the HTTP client, freeing
+     * the fetching ToeThread until the response has arrived.
+     */
+    public boolean getAsyncFetch() {
+        return asyncFetch;
+    }
+
+    /**
+     * Configures whether the fetching ToeThread hands each request to the
+     * HTTP client and moves on, rather than reading the response itself
+     * through a blocking stream. The client's carrier threads write the
+     * response into the Recorder as it arrives, and maxFetchKBSec is
+     * enforced by delaying reads rather than by sleeping. When the response
+     * is complete the URI is picked up again by one of the ToePool's
+     * resuming threads, which finishes the fetch and runs the rest of the
+     * processor chains, so a few threads can keep many fetches in flight.
+     * The number of URIs suspended this way is bounded by the
+     * CrawlController's maxSuspendedUris; with that at 0, or when this
+     * processor is run other than through a chain, the calling thread
+     * waits for the response instead. Must be set before the processor is
+     * started.
+     */
+    public void setAsyncFetch(boolean asyncFetch) {
+        this.asyncFetch = asyncFetch;
+    }
+
+    public int getAsyncCarrierThreads() {
+        return asyncCarrierThreads;
+    }
+
+    /**
+     * Maximum number of threads the HTTP client uses for I/O and response
+     * callbacks when asyncFetch is enabled. Must be set before the
+     * processor is started.
+     */
+    public void setAsyncCarrierThreads(int asyncCarrierThreads) {
+        this.asyncCarrierThreads = asyncCarrierThreads;
+    }
+
+    /**
+     * Number of asynchronous fetches currently in flight.
+     */
+    public int getAsyncInFlight() {
+        return asyncInFlight.get();
+    }
+
+    /**
+     * Highest number of asynchronous fetches that have been in flight at once.
+     */
+    public int getAsyncMaxInFlight() {
+        return asyncMaxInFlight.get();
+    }
+
+    @Override
+    public String report() {
+        StringBuilder ret = new StringBuilder(super.report());
+        if (asyncFetch) {
+            ret.append("  async fetches: " + asyncInFlight.get() + " in flight (max "
+                    + asyncMaxInFlight.get() + ") on " + asyncCarrierThreads + " carrier threads\n");
+        }
+        return ret.toString();
+    }
+
     public HttpClient getHttpClient() {
         return httpClient;
     }
@@ -35,6 +35,7 @@ import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CodingErrorAction;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -43,10 +44,14 @@ import java.util.Map.Entry;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
 
 import org.archive.url.URIException;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.apache.commons.lang.StringUtils;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
@@ -77,6 +82,7 @@ import org.apache.http.config.RegistryBuilder;
 import org.apache.http.config.SocketConfig;
 import org.apache.http.conn.DnsResolver;
 import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.HttpClientConnectionOperator;
 import org.apache.http.conn.ManagedHttpClientConnection;
 import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.routing.HttpRoutePlanner;
@@ -91,8 +97,11 @@ import org.apache.http.entity.mime.MultipartEntityBuilder;
 import org.apache.http.impl.DefaultBHttpClientConnection;
 import org.apache.http.impl.client.BasicAuthCache;
 import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.DefaultClientConnectionReuseStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.conn.BasicHttpClientConnectionManager;
+import org.apache.http.impl.conn.DefaultHttpClientConnectionOperator;
 import org.apache.http.impl.conn.DefaultHttpResponseParserFactory;
 import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
 import org.apache.http.impl.io.DefaultHttpRequestWriterFactory;
@@ -111,6 +120,7 @@ import org.archive.modules.credential.Credential;
 import org.archive.modules.credential.HtmlFormCredential;
 import org.archive.modules.credential.HttpAuthenticationCredential;
 import org.archive.modules.extractor.LinkContext;
+import org.archive.modules.fetcher.ServerConnectionPool.PooledSocket;
 import org.archive.modules.forms.HTMLForm.NameValue;
 import org.archive.modules.net.CrawlHost;
 import org.archive.modules.net.CrawlServer;
@@ -179,6 +189,16 @@ public class FetchHTTPRequest {
     // make this a member variable so it doesn't get gc'd prematurely
     protected HttpClientConnectionManager connMan;
 
+    // null if no tls handshake was made
+    protected Boolean tlsResumed;
+    protected long tlsHandshakeMs = -1;
+
+    // keep-alive connection pooling; poolKey is null when not pooling
+    protected String poolKey;
+    protected RecordingHttpClientConnection connection;
+    protected boolean connectionReused;
+    protected long connectMs = -1;
+
     public FetchHTTPRequest(FetchHTTP fetcher, CrawlURI curi) throws URIException {
         this.fetcher = fetcher;
         this.curi = curi;
@@ -253,6 +273,14 @@ public class FetchHTTPRequest {
         if (proxyHost != null) {
             request.addHeader("Proxy-Connection", "close");
         }
+
+        if (fetcher.getConnectionPool() != null && proxyHost == null
+                && !useSocksProxy && !fetcher.getSendConnectionClose()) {
+            String bindAddress = (String) fetcher.getAttributeEither(curi, FetchHTTP.HTTP_BIND_ADDRESS);
+            this.poolKey = curi.getUURI().getScheme() + "://" 
+                    + CrawlServer.getServerKey(curi.getUURI())
+                    + (StringUtils.isNotEmpty(bindAddress) ? "@" + bindAddress : "");
+        }
         
         initHttpClientBuilder();
         configureHttpClientBuilder();
@@ -618,10 +646,25 @@ public class FetchHTTPRequest {
                                         final Socket socket, final String target,
                                         final int port, final HttpContext context)
                                         throws IOException {
+                                    // always pass the real target, which keys
+                                    // the ssl context's session cache
+                                    long start = System.currentTimeMillis();
+                                    Socket sslSocket = super.createLayeredSocket(
+                                            socket, target, port, context);
+                                    if (sslSocket instanceof SSLSocket) {
+                                        noteTlsHandshake(((SSLSocket) sslSocket).getSession(), start);
+                                    }
+                                    return sslSocket;
+                                }
 
-                                    return super.createLayeredSocket(socket,
-                                            isDisableSNI() ? "" : target, port,
-                                            context);
+                                @Override
+                                protected void prepareSocket(SSLSocket socket)
+                                        throws IOException {
+                                    if (isDisableSNI()) {
+                                        SSLParameters params = socket.getSSLParameters();
+                                        params.setServerNames(Collections.<SNIServerName>emptyList());
+                                        socket.setSSLParameters(params);
+                                    }
                                 }
                             })
                     .build();
@@ -652,15 +695,26 @@ public class FetchHTTPRequest {
                     charencoder.onMalformedInput(malformedInputAction);
                     charencoder.onUnmappableCharacter(unmappableInputAction);
                 }
-                return new RecordingHttpClientConnection(DEFAULT_BUFSIZE,
+                RecordingHttpClientConnection conn = new RecordingHttpClientConnection(DEFAULT_BUFSIZE,
                         DEFAULT_BUFSIZE, chardecoder, charencoder,
                         cconfig.getMessageConstraints(), null, null,
                         DefaultHttpRequestWriterFactory.INSTANCE,
                         DefaultHttpResponseParserFactory.INSTANCE, proxyHost, curi);
+                conn.setPooled(isPooled());
+                conn.setBandwidthScheduler(fetcher.getBandwidthScheduler());
+                connection = conn;
+                return conn;
             }
         };
-        BasicHttpClientConnectionManager connMan = new BasicHttpClientConnectionManager(
-                socketFactoryRegistry, connFactory, null, dnsResolver);
+        BasicHttpClientConnectionManager connMan;
+        if (isPooled()) {
+            connMan = new BasicHttpClientConnectionManager(
+                    buildPooledConnectionOperator(socketFactoryRegistry, dnsResolver),
+                    connFactory);
+        } else {
+            connMan = new BasicHttpClientConnectionManager(
+                    socketFactoryRegistry, connFactory, null, dnsResolver);
+        }
         
         SocketConfig.Builder socketConfigBuilder = SocketConfig.custom();
         socketConfigBuilder.setSoTimeout(fetcher.getSoTimeoutMs());
@@ -668,6 +722,128 @@ public class FetchHTTPRequest {
         
         return connMan;
     }
+
+    /**
+     * Connection operator that binds an idle socket from the fetcher's
+     * connection pool when one is available for this server, and otherwise
+     * connects as usual, timing the connect (and TLS handshake).
+     */
+    protected HttpClientConnectionOperator buildPooledConnectionOperator(
+            Registry<ConnectionSocketFactory> socketFactoryRegistry,
+            DnsResolver dnsResolver) {
+        final ServerConnectionPool pool = fetcher.getConnectionPool();
+        final HttpClientConnectionOperator delegate =
+                new DefaultHttpClientConnectionOperator(socketFactoryRegistry, null, dnsResolver);
+        return new HttpClientConnectionOperator() {
+            @Override
+            public void connect(ManagedHttpClientConnection conn, HttpHost host,
+                    InetSocketAddress localAddress, int connectTimeout,
+                    SocketConfig socketConfig, HttpContext context)
+                    throws IOException {
+                PooledSocket pooled = pool.take(poolKey);
+                if (pooled != null) {
+                    pooled.getSocket().setSoTimeout(socketConfig.getSoTimeout());
+                    conn.bind(pooled.getSocket());
+                    connectionReused = true;
+                    connectMs = pooled.getConnectMs();
+                    return;
+                }
+                long start = System.currentTimeMillis();
+                delegate.connect(conn, host, localAddress, connectTimeout, socketConfig, context);
+                connectionReused = false;
+                connectMs = System.currentTimeMillis() - start;
+                pool.noteOpened(connectMs);
+            }
+
+            @Override
+            public void upgrade(ManagedHttpClientConnection conn, HttpHost host,
+                    HttpContext context) throws IOException {
+                delegate.upgrade(conn, host, context);
+            }
+        };
+    }
+
+    /**
+     * Note whether the handshake just completed resumed a session cached by
+     * the ssl context, rather than negotiating a new one. A resumed
+     * session keeps the creation time of the handshake that established it.
+     */
+    protected void noteTlsHandshake(SSLSession session, long handshakeStart) {
+        tlsResumed = session.getCreationTime() < handshakeStart;
+        tlsHandshakeMs = System.currentTimeMillis() - handshakeStart;
+        fetcher.noteTlsHandshake(tlsResumed, tlsHandshakeMs);
+    }
+
+    /**
+     * @return true if this fetch resumed a cached tls session, false if it
+     *         made a full tls handshake, null if it made no handshake
+     *         (plain http, or a kept-alive connection)
+     */
+    public Boolean getTlsResumed() {
+        return tlsResumed;
+    }
+
+    public long getTlsHandshakeMs() {
+        return tlsHandshakeMs;
+    }
+
+    /**
+     * @return whether this fetch may use, and give back, a pooled
+     *         keep-alive connection
+     */
+    public boolean isPooled() {
+        return poolKey != null;
+    }
+
+    /**
+     * @return whether this fetch went over a connection kept alive from an
+     *         earlier fetch
+     */
+    public boolean isConnectionReused() {
+        return connectionReused;
+    }
+
+    /**
+     * @return time taken to open the connection used, whether by this fetch
+     *         or, if reused, by the fetch that opened it; -1 if none was
+     *         made
+     */
+    public long getConnectMs() {
+        return connectMs;
+    }
+
+    /**
+     * Finish with the connection. If pooling, and the response was read
+     * completely, and the server will keep the connection alive, the socket
+     * is held for the next fetch from the same server; otherwise it is
+     * closed. Does nothing when not pooling, where closing the recorder 
+     * closes the socket.
+     * 
+     * @param response response received, or null
+     * @param responseComplete whether all of the response has been read,
+     *        leaving the socket at the start of the next response
+     */
+    public void releaseConnection(HttpResponse response, boolean responseComplete) {
+        if (!isPooled()) {
+            return;
+        }
+        try {
+            if (responseComplete && response != null && connection != null
+                    && connection.isOpen() && !request.isAborted()
+                    && DefaultClientConnectionReuseStrategy.INSTANCE.keepAlive(response, httpClientContext)) {
+                long ttl = fetcher.getConnectionPoolIdleTimeoutMs();
+                long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE
+                        .getKeepAliveDuration(response, httpClientContext);
+                if (keepAlive > 0) {
+                    ttl = Math.min(ttl, keepAlive);
+                }
+                Socket socket = connection.detach();
+                fetcher.getConnectionPool().release(poolKey, socket, connectMs, ttl);
+            }
+        } finally {
+            connMan.shutdown();
+        }
+    }
     
     protected static class RecordingHttpClientConnection extends DefaultBHttpClientConnection
     implements ManagedHttpClientConnection {
@@ -678,6 +854,9 @@ public class FetchHTTPRequest {
         private final boolean isProxyConnect;
         private boolean shouldWrapInput = true;
         private boolean shouldWrapOutput = true;
+        private boolean pooled = false;
+        private volatile boolean detached = false;
+        private BandwidthScheduler bandwidthScheduler;
 
         public RecordingHttpClientConnection(
                 final int buffersize,
@@ -703,18 +882,51 @@ public class FetchHTTPRequest {
             }
         }
 
+        /**
+         * Whether the socket may outlive this connection, to be handed back
+         * to the connection pool. If so, closing the recorder's streams
+         * must leave the socket open.
+         */
+        public void setPooled(boolean pooled) {
+            this.pooled = pooled;
+        }
+
+        /**
+         * Crawl-wide bandwidth budget to charge recorded input against,
+         * or null.
+         */
+        public void setBandwidthScheduler(BandwidthScheduler bandwidthScheduler) {
+            this.bandwidthScheduler = bandwidthScheduler;
+        }
+
+        /**
+         * Release the socket from this connection, which will no longer
+         * close it.
+         */
+        public Socket detach() {
+            detached = true;
+            return super.getSocket();
+        }
+
         @Override
         protected InputStream getSocketInputStream(final Socket socket) throws IOException {
             curi.setServerIP(socket.getInetAddress().getHostAddress());
             Recorder recorder = Recorder.getHttpRecorder();
 
+            InputStream in = super.getSocketInputStream(socket);
+            if (pooled) {
+                in = CloseShieldInputStream.wrap(in);
+            }
             if (shouldWrapInput && recorder != null) { // means: !(isSecure() && isProxied()) {
-                return recorder.inputWrap(super.getSocketInputStream(socket));
+                if (bandwidthScheduler != null) {
+                    in = bandwidthScheduler.wrap(in, socket.getInetAddress());
+                }
+                return recorder.inputWrap(in);
             } else {
                 if (isProxyConnect) {
                     shouldWrapInput = true;
                 }
-                return super.getSocketInputStream(socket);
+                return in;
             }
         }
 
@@ -722,20 +934,38 @@ public class FetchHTTPRequest {
         protected OutputStream getSocketOutputStream(final Socket socket) throws IOException {
             Recorder recorder = Recorder.getHttpRecorder();
 
+            OutputStream out = super.getSocketOutputStream(socket);
+            if (pooled) {
+                out = CloseShieldOutputStream.wrap(out);
+            }
             if (shouldWrapOutput && recorder != null) { // means: !(isSecure() && isProxied()) {
-                return recorder.outputWrap(super.getSocketOutputStream(socket));
+                return recorder.outputWrap(out);
             } else {
                 // for the next connection we want to record the contents
                 if (isProxyConnect) {
                     shouldWrapOutput = true;
                 }
-                return super.getSocketOutputStream(socket);
+                return out;
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !detached && super.isOpen();
+        }
+
+        @Override
+        public void shutdown() throws IOException {
+            if (!detached) {
+                super.shutdown();
             }
         }
         
         @Override
         public void close() throws IOException {
-        	super.close();
+            if (!detached) {
+                super.close();
+            }
         	
             /*
              * Need to do this to avoid "java.io.IOException: RIS already open"
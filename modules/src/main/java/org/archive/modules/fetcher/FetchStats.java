@@ -54,6 +54,11 @@ public class FetchStats extends CrawledBytesHistotable implements Serializable,
     public static final String TOTAL_BYTES = "totalBytes";          // total size of all responses
     public static final String FETCH_NONRESPONSES = "fetchNonResponses"; // processing attempts resulting in no response
                                                                     // (both failures and temp deferrals)
+    public static final String CONNECTIONS_OPENED = "connectionsOpened"; // new connections made, when pooling
+    public static final String CONNECTIONS_REUSED = "connectionsReused"; // fetches over a kept-alive connection
+    public static final String CONNECT_MS_SAVED = "connectMsSaved";  // connect/handshake time not spent due to reuse
+    public static final String TLS_FULL_HANDSHAKES = "tlsFullHandshakes"; // tls handshakes negotiating a new session
+    public static final String TLS_RESUMED_HANDSHAKES = "tlsResumedHandshakes"; // tls handshakes resuming a cached session
 
     public interface HasFetchStats {
         public FetchStats getSubstats();
@@ -115,6 +120,30 @@ public class FetchStats extends CrawledBytesHistotable implements Serializable,
         }
     }
 
+    /**
+     * Tally a fetch's use of a new or kept-alive connection.
+     * 
+     * @param reused whether the connection was kept alive from earlier
+     * @param connectMs time taken to open the connection
+     */
+    public synchronized void tallyConnection(boolean reused, long connectMs) {
+        if (reused) {
+            tally(CONNECTIONS_REUSED, 1);
+            tally(CONNECT_MS_SAVED, connectMs);
+        } else {
+            tally(CONNECTIONS_OPENED, 1);
+        }
+    }
+
+    /**
+     * Tally a fetch's tls handshake.
+     * 
+     * @param resumed whether a cached session was resumed
+     */
+    public synchronized void tallyTlsHandshake(boolean resumed) {
+        tally(resumed ? TLS_RESUMED_HANDSHAKES : TLS_FULL_HANDSHAKES, 1);
+    }
+
     public long getFetchSuccesses() {
         return get(FETCH_SUCCESSES);
     }
@@ -139,6 +168,21 @@ public class FetchStats extends CrawledBytesHistotable implements Serializable,
     public long getRobotsDenials() {
         return get(ROBOTS_DENIALS);
     }
+    public long getConnectionsOpened() {
+        return get(CONNECTIONS_OPENED);
+    }
+    public long getConnectionsReused() {
+        return get(CONNECTIONS_REUSED);
+    }
+    public long getConnectMsSaved() {
+        return get(CONNECT_MS_SAVED);
+    }
+    public long getTlsFullHandshakes() {
+        return get(TLS_FULL_HANDSHAKES);
+    }
+    public long getTlsResumedHandshakes() {
+        return get(TLS_RESUMED_HANDSHAKES);
+    }
 
     public long getRemaining() {
         return get(TOTAL_SCHEDULED) - (get(FETCH_SUCCESSES) + get(FETCH_FAILURES)+ get(FETCH_DISREGARDS));
@@ -232,4 +276,8 @@ public class FetchStats extends CrawledBytesHistotable implements Serializable,
     public long getLastSuccessTime() {
         return lastSuccessTime;
     }
+
+    public void setLastSuccessTime(long lastSuccessTime) {
+        this.lastSuccessTime = lastSuccessTime;
+    }
 }
@@ -0,0 +1,255 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.fetcher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Idle keep-alive sockets left open by earlier fetches, kept by server
+ * (scheme, host and port) for reuse by the next fetch from the same 
+ * server. Only raw, already-connected (and for https, already-handshaken)
+ * sockets are held: every fetch still gets its own connection object, 
+ * with fresh buffers and its own recording of the exchanged bytes.
+ * 
+ * <p>Bounded by a total number of idle sockets, oldest evicted first, and
+ * by a per-socket expiry.
+ */
+public class ServerConnectionPool {
+
+    public static class PooledSocket {
+        protected final String key;
+        protected final Socket socket;
+        protected final long expires;
+        protected final long connectMs;
+        protected PooledSocket(String key, Socket socket, long expires, long connectMs) {
+            this.key = key;
+            this.socket = socket;
+            this.expires = expires;
+            this.connectMs = connectMs;
+        }
+        public Socket getSocket() {
+            return socket;
+        }
+        /** time taken to open (connect and handshake) this socket */
+        public long getConnectMs() {
+            return connectMs;
+        }
+    }
+
+    protected final int maxIdle;
+    protected Map<String,ArrayDeque<PooledSocket>> idleByKey = 
+        new HashMap<String,ArrayDeque<PooledSocket>>();
+    /** all idle sockets, oldest release first */
+    protected LinkedHashSet<PooledSocket> idleByAge = new LinkedHashSet<PooledSocket>();
+
+    protected AtomicLong opened = new AtomicLong(0);
+    protected AtomicLong openMs = new AtomicLong(0);
+    protected AtomicLong reused = new AtomicLong(0);
+    protected AtomicLong reusedMsSaved = new AtomicLong(0);
+    protected AtomicLong discardedStale = new AtomicLong(0);
+    protected AtomicLong discardedExpired = new AtomicLong(0);
+    protected AtomicLong evicted = new AtomicLong(0);
+
+    public ServerConnectionPool(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Take a live idle socket for the given server key, if any.
+     * 
+     * @return the socket, or null if none is available
+     */
+    public PooledSocket take(String key) {
+        while (true) {
+            PooledSocket candidate;
+            synchronized (this) {
+                ArrayDeque<PooledSocket> idle = idleByKey.get(key);
+                if (idle == null) {
+                    return null;
+                }
+                // most recently released is least likely to have been closed
+                candidate = idle.pollLast();
+                if (idle.isEmpty()) {
+                    idleByKey.remove(key);
+                }
+                idleByAge.remove(candidate);
+            }
+            if (candidate.expires < System.currentTimeMillis()) {
+                discardedExpired.incrementAndGet();
+                IOUtils.closeQuietly(candidate.socket);
+            } else if (!isAlive(candidate.socket)) {
+                discardedStale.incrementAndGet();
+                IOUtils.closeQuietly(candidate.socket);
+            } else {
+                reused.incrementAndGet();
+                reusedMsSaved.addAndGet(candidate.connectMs);
+                return candidate;
+            }
+        }
+    }
+
+    /**
+     * Check, without blocking for more than a moment, that the server has
+     * neither closed the socket nor sent anything unsolicited.
+     */
+    protected boolean isAlive(Socket socket) {
+        if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+            return false;
+        }
+        try {
+            int soTimeout = socket.getSoTimeout();
+            try {
+                socket.setSoTimeout(1);
+                InputStream in = socket.getInputStream();
+                // -1 is a close; any data would be out of sync with a new request
+                in.read();
+                return false;
+            } catch (SocketTimeoutException e) {
+                return true;
+            } finally {
+                if (!socket.isClosed()) {
+                    socket.setSoTimeout(soTimeout);
+                }
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Note that a new socket was opened because no idle one was available.
+     * 
+     * @param connectMs time taken to connect (and handshake)
+     */
+    public void noteOpened(long connectMs) {
+        opened.incrementAndGet();
+        openMs.addAndGet(connectMs);
+    }
+
+    /**
+     * Hold the given socket for reuse for up to ttlMs, evicting the oldest
+     * idle sockets if over capacity.
+     */
+    public void release(String key, Socket socket, long connectMs, long ttlMs) {
+        if (ttlMs <= 0 || maxIdle <= 0 || socket.isClosed()) {
+            IOUtils.closeQuietly(socket);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        PooledSocket pooled = new PooledSocket(key, socket, now + ttlMs, connectMs);
+        List<PooledSocket> toClose = new ArrayList<PooledSocket>();
+        synchronized (this) {
+            ArrayDeque<PooledSocket> idle = idleByKey.get(key);
+            if (idle == null) {
+                idle = new ArrayDeque<PooledSocket>(2);
+                idleByKey.put(key, idle);
+            }
+            idle.addLast(pooled);
+            idleByAge.add(pooled);
+            Iterator<PooledSocket> oldest = idleByAge.iterator();
+            while (oldest.hasNext()) {
+                PooledSocket p = oldest.next();
+                boolean expired = p.expires < now;
+                if (!expired && idleByAge.size() <= maxIdle) {
+                    break;
+                }
+                oldest.remove();
+                ArrayDeque<PooledSocket> sameKey = idleByKey.get(p.key);
+                sameKey.remove(p);
+                if (sameKey.isEmpty()) {
+                    idleByKey.remove(p.key);
+                }
+                (expired ? discardedExpired : evicted).incrementAndGet();
+                toClose.add(p);
+            }
+        }
+        for (PooledSocket p : toClose) {
+            IOUtils.closeQuietly(p.socket);
+        }
+    }
+
+    /**
+     * Close all idle sockets.
+     */
+    public void close() {
+        List<PooledSocket> toClose;
+        synchronized (this) {
+            toClose = new ArrayList<PooledSocket>(idleByAge);
+            idleByAge.clear();
+            idleByKey.clear();
+        }
+        for (PooledSocket p : toClose) {
+            IOUtils.closeQuietly(p.socket);
+        }
+    }
+
+    public synchronized int getIdleCount() {
+        return idleByAge.size();
+    }
+
+    public long getOpenedCount() {
+        return opened.get();
+    }
+
+    public long getReusedCount() {
+        return reused.get();
+    }
+
+    /** reuses as a fraction of all connections used */
+    public double getReuseRate() {
+        long r = reused.get();
+        long total = r + opened.get();
+        return total == 0 ? 0 : r / (double) total;
+    }
+
+    public double getMeanConnectMs() {
+        long n = opened.get();
+        return n == 0 ? 0 : openMs.get() / (double) n;
+    }
+
+    /** sum, over reuses, of the time the reused socket originally took to open */
+    public long getConnectMsSaved() {
+        return reusedMsSaved.get();
+    }
+
+    public long getDiscardedStaleCount() {
+        return discardedStale.get();
+    }
+
+    public long getDiscardedExpiredCount() {
+        return discardedExpired.get();
+    }
+
+    public long getEvictedCount() {
+        return evicted.get();
+    }
+}
@@ -132,6 +132,16 @@ public class CrawlHost implements Serializable, FetchStats.HasFetchStats, Identi
         }
     }
 
+    /**
+     * Restore IP lookup state exactly as previously recorded, without
+     * stamping a new lookup time.
+     */
+    void restoreIP(InetAddress address, long ipFetched, long ipTTL) {
+        this.ip = address;
+        this.ipFetched = ipFetched;
+        this.ipTTL = ipTTL;
+    }
+
     /** Get the IP address for this host.
      *
      * @return the IP address for this host.
@@ -81,6 +81,9 @@ public class CrawlServer implements Serializable, FetchStats.HasFetchStats, Iden
     protected int http3Port;
     protected long http3Expiry;
 
+    /** whether the last response came over HTTP/2 or HTTP/3 */
+    protected boolean multiplexed = false;
+
     /**
      * Creates a new CrawlServer object.
      *
@@ -126,10 +129,25 @@ public class CrawlServer implements Serializable, FetchStats.HasFetchStats, Iden
         return true;
     }
     
+    /**
+     * Serialized robotstxt this server was restored with, if any; only
+     * deserialized into robotstxt on first use.
+     */
+    transient StripedServerCache.CompactRobots compactRobots;
+
     public Robotstxt getRobotstxt() {
+        if (compactRobots != null && robotstxt == null) {
+            hydrateRobotstxt();
+        }
         return robotstxt;
     }
 
+    protected synchronized void hydrateRobotstxt() {
+        if (compactRobots != null && robotstxt == null) {
+            robotstxt = compactRobots.get();
+        }
+    }
+
     /**
      * Update the server's robotstxt
      *
@@ -268,6 +286,20 @@ public class CrawlServer implements Serializable, FetchStats.HasFetchStats, Iden
         http3Expiry = expiry;
     }
 
+    /**
+     * Whether the server last answered over a protocol that carries
+     * several concurrent requests as streams of one connection (HTTP/2 or
+     * HTTP/3). The frontier may then dispatch a few URIs of the server's
+     * queue at once.
+     */
+    public boolean isMultiplexed() {
+        return multiplexed;
+    }
+
+    public void setMultiplexed(boolean multiplexed) {
+        this.multiplexed = multiplexed;
+    }
+
     /**
      * Retrieves the HTTP/3 alternative service port for the server.
      * This port is valid only if the associated expiry time has not been reached.
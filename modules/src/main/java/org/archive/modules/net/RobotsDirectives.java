@@ -19,67 +19,162 @@
 package org.archive.modules.net;
 
 import java.io.Serializable;
-import java.util.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
 import java.util.concurrent.ConcurrentSkipListSet;
 
 import org.archive.bdb.AutoKryo;
 
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoSerializable;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
 
 /**
  * Represents the directives that apply to a user-agent (or set of
  * user-agents)
+ * 
+ * <p>Allow and disallow patterns are compiled into a {@link RobotsRuleTrie}
+ * on the first check, and it is the compiled form that is stored (e.g. 
+ * with its CrawlServer in the server cache). Reading it back restores the
+ * pattern lists from the trie, so further patterns may still be added.
+ * Entries stored in the older field-by-field layout are still read.
  */
-public class RobotsDirectives implements Serializable {
+public class RobotsDirectives implements Serializable, KryoSerializable {
     private static final long serialVersionUID = 5386542759286155384L;
+
+    /**
+     * Leads the stored form. The older layout began with the Kryo class 
+     * tag of its allows field, which was 0 (null) or a registered class's 
+     * id + 2, never 1 (a class written by name), so this tells them apart.
+     */
+    protected static final int FORMAT_TAG = 1;
     
-    protected PatternSet disallows = new PatternSet();
-    protected PatternSet allows = new PatternSet();
+    protected List<String> disallows = new ArrayList<String>();
+    protected List<String> allows = new ArrayList<String>();
     protected float crawlDelay = -1;
     public transient boolean hasDirectives = false;
+    protected transient volatile RobotsRuleTrie rules;
+
+    public boolean allows(String path) {
+        return getRules().allows(path);
+    }
+
+    /**
+     * @return the compiled allow/disallow rules, compiling them if 
+     * necessary
+     */
+    public RobotsRuleTrie getRules() {
+        RobotsRuleTrie compiled = rules;
+        if (compiled == null) {
+            compiled = RobotsRuleTrie.compile(allows, disallows);
+            rules = compiled;
+        }
+        return compiled;
+    }
+
+    public void addDisallow(String path) {
+        hasDirectives = true;
+        if(path.length()==0) {
+            // ignore empty-string disallows 
+            // (they really mean allow, when alone)
+            return;
+        }
+        disallows.add(path);
+        rules = null;
+    }
+
+    public void addAllow(String path) {
+        hasDirectives = true;
+        allows.add(path);
+        rules = null;
+    }
+
+    public void setCrawlDelay(float i) {
+        hasDirectives = true;
+        crawlDelay=i;
+    }
+
+    public float getCrawlDelay() {
+        return crawlDelay;
+    }
+
+    @Override
+    public void write(Kryo kryo, Output output) {
+        output.writeVarInt(FORMAT_TAG, true);
+        output.writeFloat(crawlDelay);
+        getRules().write(output);
+    }
+
+    @Override
+    public void read(Kryo kryo, Input input) {
+        int tag = input.readVarInt(true);
+        RobotsRuleTrie compiled;
+        if (tag == FORMAT_TAG) {
+            crawlDelay = input.readFloat();
+            compiled = RobotsRuleTrie.read(input);
+        } else {
+            compiled = readLegacy(kryo, input, tag);
+        }
+        allows = new ArrayList<String>();
+        disallows = new ArrayList<String>();
+        compiled.addPatternsTo(allows, disallows);
+        rules = compiled;
+    }
+
+    /**
+     * Reads the remainder of the layout Kryo's FieldSerializer wrote 
+     * before the rules were compiled: allows, crawlDelay and disallows, 
+     * the PatternSets each as class and object.
+     * 
+     * @param allowsTag the class tag of allows, already read
+     */
+    protected RobotsRuleTrie readLegacy(Kryo kryo, Input input, int allowsTag) {
+        PatternSet legacyAllows = allowsTag == Kryo.NULL ? null 
+                : (PatternSet) kryo.readObject(input, kryo.getRegistration(allowsTag - 2).getType());
+        crawlDelay = input.readFloat();
+        PatternSet legacyDisallows = (PatternSet) kryo.readClassAndObject(input);
+        List<String> allowList = new ArrayList<String>();
+        List<String> disallowList = new ArrayList<String>();
+        if (legacyAllows != null) {
+            legacyAllows.addPatternsTo(allowList);
+        }
+        if (legacyDisallows != null) {
+            legacyDisallows.addPatternsTo(disallowList);
+        }
+        return RobotsRuleTrie.compile(allowList, disallowList);
+    }
 
     /**
-     * A set of robots.txt path patterns. Patterns without wildcards are stored in a NavigableSet for faster matching.
+     * The former holder of allow or disallow patterns, kept with its 
+     * fields unchanged only so that entries stored in the older layout 
+     * can still be read.
      */
     protected static class PatternSet {
         private final NavigableSet<String> prefixes = new ConcurrentSkipListSet<>();
         private final Set<WildcardPattern> wildcards = new HashSet<>();
 
-        public void add(String pattern) {
-            if (pattern.endsWith("$") || pattern.contains("*")) {
+        protected void add(String pattern) {
+            if (RobotsRuleTrie.isWildcard(pattern)) {
                 wildcards.add(new WildcardPattern(pattern));
             } else {
                 prefixes.add(pattern);
             }
         }
 
-        /**
-         * Returns the length of the longest pattern matching the given path, or zero if no patterns match.
-         */
-        private int longestMatch(String path) {
-            int longestMatch = longestPrefixLength(path);
-            for (WildcardPattern pattern : wildcards) {
-                if (pattern.length > longestMatch && pattern.matches(path)) {
-                    longestMatch = pattern.length;
-                }
-            }
-            return longestMatch;
-        }
-
-        /**
-         * @return length of longest entry in {@code prefixes} that prefixes {@code str}, or zero
-         *         if no entry prefixes {@code str}
-         */
-        private int longestPrefixLength(String str) {
-            String possiblePrefix = prefixes.floor(str);
-            if (possiblePrefix != null && str.startsWith(possiblePrefix)) {
-                return possiblePrefix.length();
-            } else {
-                return 0;
+        protected void addPatternsTo(List<String> patterns) {
+            patterns.addAll(prefixes);
+            for (WildcardPattern wildcard : wildcards) {
+                patterns.add(wildcard.toPattern());
             }
         }
-
     }
 
+    /** see {@link PatternSet} */
     protected static class WildcardPattern {
         private final String[] segments;
         private final int length;
@@ -96,79 +191,25 @@ public class RobotsDirectives implements Serializable {
             segments = pattern.split("\\*", -1);
         }
 
-        public boolean matches(String path) {
-            int position = 0;
-            if (!segments[0].isEmpty()) {
-                if (!path.startsWith(segments[0])) {
-                    return false;
-                }
-                position = segments[0].length();
-            }
-
-            for (int i = 1; i < segments.length; i++) {
-                String segment = segments[i];
-                if (segment.isEmpty()) continue;
-                int match = path.indexOf(segment, position);
-                if (match < 0) return false;
-                position = match + segment.length();
-            }
-
-            if (anchored) {
-                return position == path.length();
-            }
-
-            return true;
-        }
-
-        @Override
-        public boolean equals(Object object) {
-            if (object == null || getClass() != object.getClass()) return false;
-            WildcardPattern that = (WildcardPattern) object;
-            return length == that.length && anchored == that.anchored && Objects.deepEquals(segments, that.segments);
-        }
-
-        @Override
-        public int hashCode() {
-            return Objects.hash(length, Arrays.hashCode(segments), anchored);
-        }
-    }
-
-    public boolean allows(String path) {
-        return disallows.longestMatch(path) <= allows.longestMatch(path);
-    }
-
-    public void addDisallow(String path) {
-        hasDirectives = true;
-        if(path.length()==0) {
-            // ignore empty-string disallows 
-            // (they really mean allow, when alone)
-            return;
+        /**
+         * @return the pattern as written; a dropped '$' is recovered from 
+         * the length, which counted it
+         */
+        protected String toPattern() {
+            String pattern = String.join("*", segments);
+            return anchored || pattern.length() < length ? pattern + "$" : pattern;
         }
-        disallows.add(path);
-    }
-
-    public void addAllow(String path) {
-        hasDirectives = true;
-        allows.add(path);
-    }
-
-    public void setCrawlDelay(float i) {
-        hasDirectives = true;
-        crawlDelay=i;
-    }
-
-    public float getCrawlDelay() {
-        return crawlDelay;
     }
     
     // Kryo support
     public static void autoregisterTo(AutoKryo kryo) {
         kryo.register(RobotsDirectives.class);
+        // the legacy classes keep their registration ids, for readLegacy
         kryo.register(PatternSet.class);
         kryo.register(WildcardPattern.class);
         kryo.register(HashSet.class);
         kryo.useReferencesFor(RobotsDirectives.class);
-        kryo.autoregister(ConcurrentSkipListSet.class); // now used instead of PrefixSet in RobotsDirectives
+        kryo.autoregister(ConcurrentSkipListSet.class);
     }
 
 }
@@ -0,0 +1,377 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.net;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * The allow and disallow path patterns of a robots.txt group, compiled
+ * into a character trie held in flat arrays. Checking a path walks the trie
+ * once along the path, so the cost depends on the path length and not on
+ * the number of rules. Patterns with wildcards ('*' or a trailing '$') hang
+ * off the node of their literal leading part and are only tried once the
+ * walk reaches that node.
+ *
+ * <p>The outcome is the robots.txt longest-match rule: a path is allowed
+ * unless the longest matching disallow pattern is longer than the longest
+ * matching allow pattern. Pattern length counts wildcard characters, as
+ * written.
+ *
+ * <p>Immutable once compiled.
+ */
+public class RobotsRuleTrie {
+    protected static final int FORMAT_VERSION = 1;
+
+    protected static final byte ALLOW = 1;
+    protected static final byte DISALLOW = 2;
+
+    /** an allow-all trie, with just the root node and no rules */
+    public static final RobotsRuleTrie EMPTY = 
+        compile(new ArrayList<String>(), new ArrayList<String>());
+
+    /**
+     * Nodes are numbered breadth-first, so the children of node n are
+     * the nodes childStart[n] to childStart[n+1]-1, in label order. 
+     * Node 0 is the root.
+     */
+    protected final char[] labels;
+    protected final int[] childStart;
+    /** whether a literal allow and/or disallow pattern ends at each node */
+    protected final byte[] terminals;
+    /** the wildcard patterns hanging off node n are wildcards[wildcardStart[n]] 
+     * to wildcards[wildcardStart[n+1]-1]; null if there are none */
+    protected final int[] wildcardStart;
+    protected final WildcardPattern[] wildcards;
+
+    protected RobotsRuleTrie(char[] labels, int[] childStart, byte[] terminals,
+            int[] wildcardStart, WildcardPattern[] wildcards) {
+        this.labels = labels;
+        this.childStart = childStart;
+        this.terminals = terminals;
+        this.wildcardStart = wildcardStart;
+        this.wildcards = wildcards;
+    }
+
+    protected static class WildcardPattern {
+        protected final String pattern;
+        protected final boolean allow;
+        protected final String[] segments;
+        protected final boolean anchored;
+
+        public WildcardPattern(String pattern, boolean allow) {
+            this.pattern = pattern;
+            this.allow = allow;
+            if (pattern.endsWith("$")) {
+                pattern = pattern.substring(0, pattern.length() - 1);
+                anchored = !pattern.endsWith("*"); // *$ is effectively unanchored
+            } else {
+                anchored = false;
+            }
+            segments = pattern.split("\\*", -1);
+        }
+
+        public int length() {
+            return pattern.length();
+        }
+
+        /**
+         * Whether the path matches, given that it is already known to 
+         * start with the leading segment.
+         */
+        public boolean matchesAfterPrefix(String path) {
+            int position = segments[0].length();
+            int last = segments.length - 1;
+            if (anchored && last == 0) {
+                return position == path.length();
+            }
+            int end = path.length();
+            int free = last;
+            if (anchored) {
+                // the final segment has to sit at the very end, rather
+                // than wherever it first occurs
+                if (!path.endsWith(segments[last])) return false;
+                end -= segments[last].length();
+                free = last - 1;
+            }
+            for (int i = 1; i <= free; i++) {
+                String segment = segments[i];
+                if (segment.isEmpty()) continue;
+                int match = path.indexOf(segment, position);
+                if (match < 0 || match + segment.length() > end) return false;
+                position = match + segment.length();
+            }
+            return position <= end;
+        }
+    }
+
+    protected static boolean isWildcard(String pattern) {
+        return pattern.endsWith("$") || pattern.contains("*");
+    }
+
+    /** node used only while compiling */
+    protected static class BuildNode {
+        TreeMap<Character,BuildNode> children = new TreeMap<Character,BuildNode>();
+        byte terminal;
+        List<WildcardPattern> wildcards;
+
+        BuildNode descend(String path) {
+            BuildNode node = this;
+            for (int i = 0; i < path.length(); i++) {
+                node = node.children.computeIfAbsent(path.charAt(i), c -> new BuildNode());
+            }
+            return node;
+        }
+    }
+
+    public static RobotsRuleTrie compile(List<String> allows, List<String> disallows) {
+        BuildNode root = new BuildNode();
+        add(root, allows, true);
+        add(root, disallows, false);
+        return flatten(root);
+    }
+
+    protected static void add(BuildNode root, List<String> patterns, boolean allow) {
+        for (String pattern : patterns) {
+            if (isWildcard(pattern)) {
+                WildcardPattern wildcard = new WildcardPattern(pattern, allow);
+                BuildNode node = root.descend(wildcard.segments[0]);
+                if (node.wildcards == null) {
+                    node.wildcards = new ArrayList<WildcardPattern>();
+                }
+                node.wildcards.add(wildcard);
+            } else {
+                root.descend(pattern).terminal |= allow ? ALLOW : DISALLOW;
+            }
+        }
+    }
+
+    protected static RobotsRuleTrie flatten(BuildNode root) {
+        List<BuildNode> order = new ArrayList<BuildNode>();
+        List<Character> labelList = new ArrayList<Character>();
+        order.add(root);
+        labelList.add('\0');
+        int wildcardCount = 0;
+        for (int i = 0; i < order.size(); i++) {
+            BuildNode node = order.get(i);
+            if (node.wildcards != null) {
+                // longest first, so checking can stop at the first one
+                // too short to matter
+                node.wildcards.sort((a, b) -> b.length() - a.length());
+                wildcardCount += node.wildcards.size();
+            }
+            for (Map.Entry<Character,BuildNode> child : node.children.entrySet()) {
+                order.add(child.getValue());
+                labelList.add(child.getKey());
+            }
+        }
+        int n = order.size();
+        char[] labels = new char[n];
+        int[] childStart = new int[n + 1];
+        byte[] terminals = new byte[n];
+        int[] wildcardStart = wildcardCount > 0 ? new int[n + 1] : null;
+        WildcardPattern[] wildcards = new WildcardPattern[wildcardCount];
+        int nextChild = 1;
+        int nextWildcard = 0;
+        for (int i = 0; i < n; i++) {
+            BuildNode node = order.get(i);
+            labels[i] = labelList.get(i);
+            terminals[i] = node.terminal;
+            childStart[i] = nextChild;
+            nextChild += node.children.size();
+            if (wildcardStart != null) {
+                wildcardStart[i] = nextWildcard;
+                if (node.wildcards != null) {
+                    for (WildcardPattern wildcard : node.wildcards) {
+                        wildcards[nextWildcard++] = wildcard;
+                    }
+                }
+            }
+        }
+        childStart[n] = nextChild;
+        if (wildcardStart != null) {
+            wildcardStart[n] = nextWildcard;
+        }
+        return new RobotsRuleTrie(labels, childStart, terminals, wildcardStart, wildcards);
+    }
+
+    protected int child(int node, char c) {
+        int i = Arrays.binarySearch(labels, childStart[node], childStart[node + 1], c);
+        return i >= 0 ? i : -1;
+    }
+
+    public boolean allows(String path) {
+        int longestAllow = 0;
+        int longestDisallow = 0;
+        int node = 0;
+        int depth = 0;
+        while (true) {
+            byte terminal = terminals[node];
+            // a wildcard pattern matched higher up may be the longer match
+            if ((terminal & ALLOW) != 0) {
+                longestAllow = Math.max(longestAllow, depth);
+            }
+            if ((terminal & DISALLOW) != 0) {
+                longestDisallow = Math.max(longestDisallow, depth);
+            }
+            if (wildcardStart != null) {
+                for (int w = wildcardStart[node]; w < wildcardStart[node + 1]; w++) {
+                    WildcardPattern wildcard = wildcards[w];
+                    int length = wildcard.length();
+                    if (length <= Math.min(longestAllow, longestDisallow)) {
+                        break;
+                    }
+                    if (length > (wildcard.allow ? longestAllow : longestDisallow)
+                            && wildcard.matchesAfterPrefix(path)) {
+                        if (wildcard.allow) {
+                            longestAllow = length;
+                        } else {
+                            longestDisallow = length;
+                        }
+                    }
+                }
+            }
+            if (depth == path.length()) {
+                break;
+            }
+            node = child(node, path.charAt(depth));
+            if (node < 0) {
+                break;
+            }
+            depth++;
+        }
+        return longestDisallow <= longestAllow;
+    }
+
+    public int getNodeCount() {
+        return labels.length;
+    }
+
+    public int getWildcardCount() {
+        return wildcards.length;
+    }
+
+    /**
+     * Adds every pattern compiled into this trie, as written, to the list
+     * for its kind, so that a trie read back from storage can be
+     * recompiled with further patterns. Order is not preserved.
+     */
+    public void addPatternsTo(List<String> allows, List<String> disallows) {
+        int n = labels.length;
+        int[] parent = new int[n];
+        for (int i = 0; i < n; i++) {
+            for (int c = childStart[i]; c < childStart[i + 1]; c++) {
+                parent[c] = i;
+            }
+        }
+        StringBuilder path = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            if (terminals[i] == 0) {
+                continue;
+            }
+            path.setLength(0);
+            for (int node = i; node > 0; node = parent[node]) {
+                path.append(labels[node]);
+            }
+            String pattern = path.reverse().toString();
+            if ((terminals[i] & ALLOW) != 0) {
+                allows.add(pattern);
+            }
+            if ((terminals[i] & DISALLOW) != 0) {
+                disallows.add(pattern);
+            }
+        }
+        for (WildcardPattern wildcard : wildcards) {
+            (wildcard.allow ? allows : disallows).add(wildcard.pattern);
+        }
+    }
+
+    /**
+     * Writes the compiled trie: per node, in breadth-first order, its 
+     * label, child count and terminal flags, followed by the wildcard
+     * patterns with the nodes they hang off.
+     */
+    public void write(Output output) {
+        output.writeVarInt(FORMAT_VERSION, true);
+        int n = labels.length;
+        output.writeVarInt(n, true);
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                output.writeVarInt(labels[i], true);
+            }
+            output.writeVarInt(childStart[i + 1] - childStart[i], true);
+            output.writeByte(terminals[i]);
+        }
+        output.writeVarInt(wildcards.length, true);
+        if (wildcardStart != null) {
+            for (int i = 0; i < n; i++) {
+                for (int w = wildcardStart[i]; w < wildcardStart[i + 1]; w++) {
+                    output.writeVarInt(i, true);
+                    output.writeBoolean(wildcards[w].allow);
+                    output.writeString(wildcards[w].pattern);
+                }
+            }
+        }
+    }
+
+    public static RobotsRuleTrie read(Input input) {
+        int version = input.readVarInt(true);
+        if (version != FORMAT_VERSION) {
+            throw new IllegalStateException("unknown robots rules format " + version);
+        }
+        int n = input.readVarInt(true);
+        char[] labels = new char[n];
+        int[] childStart = new int[n + 1];
+        byte[] terminals = new byte[n];
+        int nextChild = 1;
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                labels[i] = (char) input.readVarInt(true);
+            }
+            childStart[i] = nextChild;
+            nextChild += input.readVarInt(true);
+            terminals[i] = input.readByte();
+        }
+        childStart[n] = nextChild;
+        int wildcardCount = input.readVarInt(true);
+        int[] wildcardStart = wildcardCount > 0 ? new int[n + 1] : null;
+        WildcardPattern[] wildcards = new WildcardPattern[wildcardCount];
+        int node = 0;
+        for (int w = 0; w < wildcardCount; w++) {
+            int owner = input.readVarInt(true);
+            while (node <= owner) {
+                wildcardStart[node++] = w;
+            }
+            boolean allow = input.readBoolean();
+            wildcards[w] = new WildcardPattern(input.readString(), allow);
+        }
+        if (wildcardStart != null) {
+            while (node <= n) {
+                wildcardStart[node++] = wildcardCount;
+            }
+        }
+        return new RobotsRuleTrie(labels, childStart, terminals, wildcardStart, wildcards);
+    }
+}
@@ -0,0 +1,487 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.net;
+
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.archive.bdb.KryoBinding;
+import org.archive.crawler.util.CrawledBytesHistotable;
+import org.archive.modules.fetcher.DefaultServerCache;
+import org.archive.modules.fetcher.FetchStats;
+import org.archive.util.ObjectIdentityStripedCache;
+import org.archive.util.Reporter;
+
+import com.google.common.hash.Hashing;
+import com.sleepycat.je.DatabaseEntry;
+
+/**
+ * ServerCache for crawls touching many millions of hosts, kept entirely
+ * in memory without BDB round trips.
+ * 
+ * Recently used CrawlHost and CrawlServer objects are held in lock-striped
+ * hot sets; the rest are packed into fixed-layout off-heap records (IP and
+ * TTL, robots fingerprint, connection and alt-svc state, fetch counters).
+ * Identical robots.txt rules are stored once, by fingerprint, and a
+ * server rebuilt from its record only deserializes its robots rules when
+ * they are first consulted.
+ * 
+ * Unlike {@link BdbServerCache}, contents are not checkpointed.
+ * 
+ * @see ObjectIdentityStripedCache
+ */
+public class StripedServerCache extends DefaultServerCache implements Reporter {
+    private static final long serialVersionUID = 1L;
+
+    /** FetchStats keys with a fixed place in records; others force a spill */
+    protected static final String[] STATS_KEYS = {
+        FetchStats.TOTAL_SCHEDULED, FetchStats.FETCH_SUCCESSES,
+        FetchStats.FETCH_FAILURES, FetchStats.FETCH_DISREGARDS,
+        FetchStats.FETCH_RESPONSES, FetchStats.ROBOTS_DENIALS,
+        FetchStats.SUCCESS_BYTES, FetchStats.TOTAL_BYTES,
+        FetchStats.FETCH_NONRESPONSES, FetchStats.CONNECTIONS_OPENED,
+        FetchStats.CONNECTIONS_REUSED, FetchStats.CONNECT_MS_SAVED,
+        FetchStats.TLS_FULL_HANDSHAKES, FetchStats.TLS_RESUMED_HANDSHAKES,
+        CrawledBytesHistotable.NOTMODIFIED, CrawledBytesHistotable.DUPLICATE,
+        CrawledBytesHistotable.OTHERDUPLICATE, CrawledBytesHistotable.NOVEL,
+        CrawledBytesHistotable.NOTMODIFIEDCOUNT, CrawledBytesHistotable.DUPLICATECOUNT,
+        CrawledBytesHistotable.OTHERDUPLICATECOUNT, CrawledBytesHistotable.NOVELCOUNT,
+        CrawledBytesHistotable.WARC_NOVEL_CONTENT_BYTES, CrawledBytesHistotable.WARC_NOVEL_URLS,
+    };
+    protected static final Map<String, Integer> STATS_INDEX = new HashMap<String, Integer>();
+    static {
+        for (int i = 0; i < STATS_KEYS.length; i++) {
+            STATS_INDEX.put(STATS_KEYS[i], i);
+        }
+    }
+    /** int presence mask, one long per key, lastSuccessTime */
+    protected static final int STATS_SIZE = 4 + 8 * STATS_KEYS.length + 8;
+
+    // host record: flags, 16 IP bytes, ipFetched, ipTTL,
+    // earliestNextURIEmitTime, 4 country code bytes, stats
+    protected static final int HOST_FLAGS = 0;
+    protected static final int HOST_IP = 1;
+    protected static final int HOST_IP_FETCHED = 17;
+    protected static final int HOST_IP_TTL = 25;
+    protected static final int HOST_NEXT_EMIT = 33;
+    protected static final int HOST_COUNTRY = 41;
+    protected static final int HOST_STATS = 45;
+    protected static final int HOST_RECORD_SIZE = HOST_STATS + STATS_SIZE;
+    protected static final byte HAS_IP = 1;
+    protected static final byte IPV6 = 2;
+    protected static final byte HAS_COUNTRY = 4;
+
+    // server record: flags, robotsFetched, consecutiveConnectionErrors,
+    // http3Port, http3Expiry, robots fingerprint, stats
+    protected static final int SERVER_FLAGS = 0;
+    protected static final int SERVER_ROBOTS_FETCHED = 1;
+    protected static final int SERVER_CONN_ERRORS = 9;
+    protected static final int SERVER_HTTP3_PORT = 13;
+    protected static final int SERVER_HTTP3_EXPIRY = 17;
+    protected static final int SERVER_ROBOTS = 25;
+    protected static final int SERVER_STATS = 33;
+    protected static final int SERVER_RECORD_SIZE = SERVER_STATS + STATS_SIZE;
+    protected static final byte VALID_ROBOTS = 1;
+    protected static final byte MULTIPLEXED = 2;
+
+    /** robots fingerprint of a server with no robotstxt */
+    protected static final long NO_ROBOTSTXT = 0;
+    /** robots fingerprint of the shared {@link Robotstxt#NO_ROBOTS} */
+    protected static final long EMPTY_ROBOTSTXT = 1;
+
+    protected final KryoBinding<Robotstxt> robotsBinding =
+        new KryoBinding<Robotstxt>(Robotstxt.class);
+    /** fingerprint -&gt; serialized robotstxt shared by cold servers */
+    protected final ConcurrentHashMap<Long, StoredRobots> robotsStore =
+        new ConcurrentHashMap<Long, StoredRobots>();
+    protected final LongAdder robotsHydrations = new LongAdder();
+
+    public StripedServerCache() {
+        this(64, 100000, 100000);
+    }
+
+    /**
+     * @param stripes number of lock stripes (rounded up to a power of two)
+     * @param maxHotHosts CrawlHost objects to keep live in memory
+     * @param maxHotServers CrawlServer objects to keep live in memory
+     */
+    public StripedServerCache(int stripes, int maxHotHosts, int maxHotServers) {
+        super(null, null);
+        this.hosts = new HostRecordCache(stripes, maxHotHosts);
+        this.servers = new ServerRecordCache(stripes, maxHotServers);
+    }
+
+    /**
+     * Number of CrawlHost objects to keep live in memory; others are kept
+     * as compact off-heap records until next needed.
+     */
+    public void setMaxHotHosts(int maxHotHosts) {
+        getHostCache().setMaxHot(maxHotHosts);
+    }
+    public int getMaxHotHosts() {
+        return getHostCache().getMaxHot();
+    }
+
+    /**
+     * Number of CrawlServer objects to keep live in memory; others are
+     * kept as compact off-heap records until next needed.
+     */
+    public void setMaxHotServers(int maxHotServers) {
+        getServerCache().setMaxHot(maxHotServers);
+    }
+    public int getMaxHotServers() {
+        return getServerCache().getMaxHot();
+    }
+
+    public ObjectIdentityStripedCache<CrawlHost> getHostCache() {
+        return (HostRecordCache) hosts;
+    }
+
+    public ObjectIdentityStripedCache<CrawlServer> getServerCache() {
+        return (ServerRecordCache) servers;
+    }
+
+    /** @return count of servers whose robots rules were rebuilt on use */
+    public long getRobotsHydrations() {
+        return robotsHydrations.sum();
+    }
+
+    /** @return count of distinct robotstxt held for cold servers */
+    public int getStoredRobotsCount() {
+        return robotsStore.size();
+    }
+
+    @Override
+    public void reportTo(PrintWriter writer) {
+        writer.println("hosts: " + getHostCache().composeCacheSummary());
+        writer.println("servers: " + getServerCache().composeCacheSummary());
+        writer.println("robots: stored=" + getStoredRobotsCount()
+                + " hydrations=" + getRobotsHydrations());
+    }
+
+    @Override
+    public String shortReportLegend() {
+        return "hostHits hostHydrations hostMisses hostEvictions "
+                + "serverHits serverHydrations serverMisses serverEvictions "
+                + "robotsHydrations";
+    }
+
+    @Override
+    public void shortReportLineTo(PrintWriter writer) {
+        ObjectIdentityStripedCache<?> h = getHostCache();
+        ObjectIdentityStripedCache<?> s = getServerCache();
+        writer.print(h.getHits() + h.getRescues());
+        writer.print(" ");
+        writer.print(h.getHydrations());
+        writer.print(" ");
+        writer.print(h.getMisses());
+        writer.print(" ");
+        writer.print(h.getEvictions());
+        writer.print(" ");
+        writer.print(s.getHits() + s.getRescues());
+        writer.print(" ");
+        writer.print(s.getHydrations());
+        writer.print(" ");
+        writer.print(s.getMisses());
+        writer.print(" ");
+        writer.print(s.getEvictions());
+        writer.print(" ");
+        writer.print(getRobotsHydrations());
+    }
+
+    @Override
+    public Map<String, Object> shortReportMap() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        addCacheStats(map, "host", getHostCache());
+        addCacheStats(map, "server", getServerCache());
+        map.put("storedRobots", getStoredRobotsCount());
+        map.put("robotsHydrations", getRobotsHydrations());
+        return map;
+    }
+
+    protected void addCacheStats(Map<String, Object> map, String prefix,
+            ObjectIdentityStripedCache<?> cache) {
+        map.put(prefix + "Hits", cache.getHits());
+        map.put(prefix + "Rescues", cache.getRescues());
+        map.put(prefix + "Hydrations", cache.getHydrations());
+        map.put(prefix + "Misses", cache.getMisses());
+        map.put(prefix + "Evictions", cache.getEvictions());
+        map.put(prefix + "Spills", cache.getSpills());
+        map.put(prefix + "OffHeapBytes", cache.getOffHeapBytes());
+    }
+
+    //
+    // record layouts
+    //
+
+    protected static boolean writeStats(FetchStats stats, ByteBuffer buf, int offset) {
+        synchronized (stats) {
+            int mask = 0;
+            for (Map.Entry<String, Long> e : stats.entrySet()) {
+                Integer i = STATS_INDEX.get(e.getKey());
+                if (i == null) {
+                    return false;
+                }
+                mask |= 1 << i;
+                buf.putLong(offset + 4 + 8 * i, e.getValue());
+            }
+            buf.putInt(offset, mask);
+            buf.putLong(offset + 4 + 8 * STATS_KEYS.length, stats.getLastSuccessTime());
+        }
+        return true;
+    }
+
+    protected static void readStats(FetchStats stats, ByteBuffer buf, int offset) {
+        int mask = buf.getInt(offset);
+        for (int i = 0; i < STATS_KEYS.length; i++) {
+            if ((mask & (1 << i)) != 0) {
+                stats.put(STATS_KEYS[i], buf.getLong(offset + 4 + 8 * i));
+            }
+        }
+        stats.setLastSuccessTime(buf.getLong(offset + 4 + 8 * STATS_KEYS.length));
+    }
+
+    protected static class HostRecordCache extends ObjectIdentityStripedCache<CrawlHost> {
+        protected HostRecordCache(int stripes, int maxHot) {
+            super(CrawlHost.class, HOST_RECORD_SIZE, stripes, maxHot);
+        }
+
+        @Override
+        protected boolean writeRecord(CrawlHost host, ByteBuffer buf, int offset) {
+            byte flags = 0;
+            InetAddress ip = host.getIP();
+            if (ip != null) {
+                byte[] addr = ip.getAddress();
+                flags |= HAS_IP;
+                if (addr.length == 16) {
+                    flags |= IPV6;
+                }
+                for (int i = 0; i < addr.length; i++) {
+                    buf.put(offset + HOST_IP + i, addr[i]);
+                }
+            }
+            String country = host.getCountryCode();
+            if (country != null) {
+                byte[] cc = country.getBytes(StandardCharsets.US_ASCII);
+                if (cc.length > 4 || !country.equals(new String(cc, StandardCharsets.US_ASCII))
+                        || country.indexOf(0) >= 0) {
+                    return false;
+                }
+                flags |= HAS_COUNTRY;
+                for (int i = 0; i < 4; i++) {
+                    buf.put(offset + HOST_COUNTRY + i, i < cc.length ? cc[i] : 0);
+                }
+            }
+            if (!writeStats(host.getSubstats(), buf, offset + HOST_STATS)) {
+                return false;
+            }
+            buf.put(offset + HOST_FLAGS, flags);
+            buf.putLong(offset + HOST_IP_FETCHED, host.getIpFetched());
+            buf.putLong(offset + HOST_IP_TTL, host.getIpTTL());
+            buf.putLong(offset + HOST_NEXT_EMIT, host.getEarliestNextURIEmitTime());
+            return true;
+        }
+
+        @Override
+        protected CrawlHost readRecord(String key, ByteBuffer buf, int offset) {
+            byte flags = buf.get(offset + HOST_FLAGS);
+            String country = null;
+            if ((flags & HAS_COUNTRY) != 0) {
+                byte[] cc = new byte[4];
+                int len = 0;
+                while (len < 4 && (cc[len] = buf.get(offset + HOST_COUNTRY + len)) != 0) {
+                    len++;
+                }
+                country = new String(cc, 0, len, StandardCharsets.US_ASCII);
+            }
+            CrawlHost host = new CrawlHost(key, country);
+            InetAddress ip = null;
+            if ((flags & HAS_IP) != 0) {
+                byte[] addr = new byte[(flags & IPV6) != 0 ? 16 : 4];
+                for (int i = 0; i < addr.length; i++) {
+                    addr[i] = buf.get(offset + HOST_IP + i);
+                }
+                try {
+                    ip = InetAddress.getByAddress(addr);
+                } catch (UnknownHostException e) {
+                    throw new IllegalStateException(e); // only on bad length
+                }
+            }
+            host.restoreIP(ip, buf.getLong(offset + HOST_IP_FETCHED),
+                    buf.getLong(offset + HOST_IP_TTL));
+            host.setEarliestNextURIEmitTime(buf.getLong(offset + HOST_NEXT_EMIT));
+            readStats(host.getSubstats(), buf, offset + HOST_STATS);
+            return host;
+        }
+    }
+
+    protected class ServerRecordCache extends ObjectIdentityStripedCache<CrawlServer> {
+        protected ServerRecordCache(int stripes, int maxHot) {
+            super(CrawlServer.class, SERVER_RECORD_SIZE, stripes, maxHot);
+        }
+
+        @Override
+        protected boolean writeRecord(CrawlServer server, ByteBuffer buf, int offset) {
+            if (!writeStats(server.getSubstats(), buf, offset + SERVER_STATS)) {
+                return false;
+            }
+            long fingerprint;
+            synchronized (server) {
+                buf.put(offset + SERVER_FLAGS, (byte) ((server.validRobots ? VALID_ROBOTS : 0)
+                        | (server.multiplexed ? MULTIPLEXED : 0)));
+                buf.putLong(offset + SERVER_ROBOTS_FETCHED, server.robotsFetched);
+                buf.putInt(offset + SERVER_CONN_ERRORS, server.consecutiveConnectionErrors);
+                buf.putInt(offset + SERVER_HTTP3_PORT, server.http3Port);
+                buf.putLong(offset + SERVER_HTTP3_EXPIRY, server.http3Expiry);
+                fingerprint = retainRobots(server);
+            }
+            buf.putLong(offset + SERVER_ROBOTS, fingerprint);
+            return true;
+        }
+
+        @Override
+        protected CrawlServer readRecord(String key, ByteBuffer buf, int offset) {
+            CrawlServer server = new CrawlServer(key);
+            server.validRobots = (buf.get(offset + SERVER_FLAGS) & VALID_ROBOTS) != 0;
+            server.multiplexed = (buf.get(offset + SERVER_FLAGS) & MULTIPLEXED) != 0;
+            server.robotsFetched = buf.getLong(offset + SERVER_ROBOTS_FETCHED);
+            server.consecutiveConnectionErrors = buf.getInt(offset + SERVER_CONN_ERRORS);
+            server.http3Port = buf.getInt(offset + SERVER_HTTP3_PORT);
+            server.http3Expiry = buf.getLong(offset + SERVER_HTTP3_EXPIRY);
+            long fingerprint = buf.getLong(offset + SERVER_ROBOTS);
+            if (fingerprint == EMPTY_ROBOTSTXT) {
+                server.robotstxt = Robotstxt.NO_ROBOTS;
+            } else if (fingerprint != NO_ROBOTSTXT) {
+                server.compactRobots = new CompactRobots(fingerprint,
+                        robotsStore.get(fingerprint).bytes);
+            }
+            readStats(server.getSubstats(), buf, offset + SERVER_STATS);
+            return server;
+        }
+
+        @Override
+        protected void releaseRecord(ByteBuffer buf, int offset) {
+            releaseRobots(buf.getLong(offset + SERVER_ROBOTS));
+        }
+
+        @Override
+        protected void prepareSpill(CrawlServer server) {
+            // robotstxt field must be filled before Kryo sees it
+            server.getRobotstxt();
+        }
+    }
+
+    /**
+     * @return fingerprint of the server's robotstxt, holding a reference
+     * to its stored form
+     */
+    protected long retainRobots(CrawlServer server) {
+        Robotstxt robots = server.robotstxt;
+        CompactRobots compact = server.compactRobots;
+        if (compact != null && (robots == null || robots == compact.hydrated)) {
+            // unchanged since restored: no need to serialize again
+            return store(compact.fingerprint, compact.bytes);
+        }
+        if (robots == null) {
+            return NO_ROBOTSTXT;
+        }
+        if (robots == Robotstxt.NO_ROBOTS) {
+            return EMPTY_ROBOTSTXT;
+        }
+        DatabaseEntry entry = new DatabaseEntry();
+        robotsBinding.objectToEntry(robots, entry);
+        byte[] bytes = entry.getData();
+        long fingerprint = Hashing.murmur3_128().hashBytes(bytes).asLong();
+        return store(fingerprint, bytes);
+    }
+
+    /**
+     * Add a reference to the stored robotstxt with these bytes, probing
+     * past any fingerprint collision.
+     */
+    protected long store(long fingerprint, byte[] bytes) {
+        while (true) {
+            if (fingerprint == NO_ROBOTSTXT || fingerprint == EMPTY_ROBOTSTXT) {
+                fingerprint = 2;
+            }
+            final long fp = fingerprint;
+            StoredRobots stored = robotsStore.compute(fp, (k, v) -> {
+                if (v == null) {
+                    v = new StoredRobots(bytes);
+                } else if (v.bytes != bytes && !Arrays.equals(v.bytes, bytes)) {
+                    return v;
+                }
+                v.refs++;
+                return v;
+            });
+            if (stored.bytes == bytes || Arrays.equals(stored.bytes, bytes)) {
+                return fp;
+            }
+            fingerprint++;
+        }
+    }
+
+    protected void releaseRobots(long fingerprint) {
+        if (fingerprint == NO_ROBOTSTXT || fingerprint == EMPTY_ROBOTSTXT) {
+            return;
+        }
+        robotsStore.computeIfPresent(fingerprint, (k, v) -> --v.refs <= 0 ? null : v);
+    }
+
+    protected static class StoredRobots {
+        protected final byte[] bytes;
+        protected int refs;
+
+        protected StoredRobots(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Serialized robotstxt held by a server rebuilt from its record,
+     * deserialized on first use.
+     */
+    class CompactRobots {
+        protected final long fingerprint;
+        protected final byte[] bytes;
+        protected volatile Robotstxt hydrated;
+
+        protected CompactRobots(long fingerprint, byte[] bytes) {
+            this.fingerprint = fingerprint;
+            this.bytes = bytes;
+        }
+
+        public Robotstxt get() {
+            if (hydrated == null) {
+                hydrated = robotsBinding.entryToObject(new DatabaseEntry(bytes));
+                robotsHydrations.increment();
+            }
+            return hydrated;
+        }
+    }
+}
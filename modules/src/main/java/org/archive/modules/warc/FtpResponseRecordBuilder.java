@@ -7,7 +7,7 @@ import java.io.IOException;
 import java.net.URI;
 
 import org.archive.format.warc.WARCConstants.WARCRecordType;
-import org.archive.io.ReplayInputStream;
+import org.archive.io.SpooledReplayInputStream;
 import org.archive.io.warc.WARCRecordInfo;
 import org.archive.modules.CrawlURI;
 import org.archive.util.ArchiveUtils;
@@ -43,8 +43,8 @@ public class FtpResponseRecordBuilder extends BaseWARCRecordBuilder {
             recordInfo.addExtraHeader(HEADER_KEY_IP, curi.getServerIP());
         }
 
-        ReplayInputStream ris =
-            curi.getRecorder().getRecordedInput().getReplayInputStream();
+        SpooledReplayInputStream ris =
+            SpooledReplayInputStream.of(curi.getRecorder().getRecordedInput());
         recordInfo.setContentStream(ris);
         
         return recordInfo;
@@ -12,7 +12,7 @@ import java.util.Collection;
 
 import org.apache.commons.lang.StringUtils;
 import org.archive.format.warc.WARCConstants.WARCRecordType;
-import org.archive.io.ReplayInputStream;
+import org.archive.io.SpooledReplayInputStream;
 import org.archive.io.warc.WARCRecordInfo;
 import org.archive.modules.CrawlURI;
 import org.archive.util.ArchiveUtils;
@@ -77,8 +77,8 @@ public class HttpResponseRecordBuilder extends BaseWARCRecordBuilder {
             }
         }
 
-        ReplayInputStream ris =
-            curi.getRecorder().getRecordedInput().getReplayInputStream();
+        SpooledReplayInputStream ris =
+            SpooledReplayInputStream.of(curi.getRecorder().getRecordedInput());
         recordInfo.setContentStream(ris);
 
         return recordInfo;
@@ -78,9 +78,31 @@ abstract public class BaseWARCWriterProcessor extends WriterPoolProcessor
         return paths;
     }
 
+    /**
+     * Response and resource content with at least this many bytes spooled
+     * to disk by the fetch recorder is moved into the WARC with
+     * FileChannel.transferTo, rather than being read back through the heap
+     * and written out again. Only takes effect when not compressing, since
+     * gzip members have to pass through the deflater. A value of zero
+     * (the default) disables the transfer path.
+     */
+    protected long transferThresholdBytes = 0L;
+    public long getTransferThresholdBytes() {
+        return transferThresholdBytes;
+    }
+    public void setTransferThresholdBytes(long transferThresholdBytes) {
+        this.transferThresholdBytes = transferThresholdBytes;
+    }
+
     @Override
     protected void setupPool(final AtomicInteger serialNo) {
-        setPool(new WARCWriterPool(serialNo, this, getPoolMaxActive(), getMaxWaitForIdleMs()));
+        if (getTransferThresholdBytes() > 0) {
+            setPool(new ChannelWARCWriter.Pool(serialNo, this,
+                    getPoolMaxActive(), getMaxWaitForIdleMs(),
+                    getTransferThresholdBytes()));
+        } else {
+            setPool(new WARCWriterPool(serialNo, this, getPoolMaxActive(), getMaxWaitForIdleMs()));
+        }
     }
 
     private transient List<String> cachedMetadata;
@@ -188,6 +210,15 @@ abstract public class BaseWARCWriterProcessor extends WriterPoolProcessor
         
         buf.append("  Total size on disk ("+ (getCompress() ? "compressed" : "uncompressed") + "): "
                 + getTotalBytesWritten() + " (" + ArchiveUtils.formatBytesForDisplay(getTotalBytesWritten()) + ")\n");
+
+        if (getPool() instanceof ChannelWARCWriter.Pool) {
+            ChannelWARCWriter.Pool pool = (ChannelWARCWriter.Pool) getPool();
+            buf.append("  Content bytes transferred without heap copy: "
+                    + pool.getTransferredBytes() + " ("
+                    + ArchiveUtils.formatBytesForDisplay(pool.getTransferredBytes()) + ")\n");
+            buf.append("  Heap-copied bytes per content byte: "
+                    + String.format("%.3f", pool.getHeapCopiesPerByte()) + "\n");
+        }
         
         return buf.toString();
     }
@@ -0,0 +1,187 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.writer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.archive.io.MiserOutputStream;
+import org.archive.io.SpooledReplayInputStream;
+import org.archive.io.WriterPoolMember;
+import org.archive.io.warc.WARCWriter;
+import org.archive.io.warc.WARCWriterPool;
+import org.archive.io.warc.WARCWriterPoolSettings;
+
+/**
+ * WARCWriter that moves large spooled record content into the WARC file
+ * with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+ * instead of reading it back through the heap and writing it out again.
+ * 
+ * <p>Only applies when the record is written uncompressed and its content
+ * is a {@link SpooledReplayInputStream} with at least
+ * <code>transferThreshold</code> bytes in the spool file; the in-memory
+ * head of the recording, and all content of compressed records, is copied
+ * as usual.
+ */
+public class ChannelWARCWriter extends WARCWriter {
+    protected final Pool pool;
+    protected ChannelOutputStream channelOut;
+
+    public ChannelWARCWriter(AtomicInteger serialNo,
+            WARCWriterPoolSettings settings, Pool pool) {
+        super(serialNo, settings);
+        this.pool = pool;
+    }
+
+    @Override
+    protected String createFile(File file) throws IOException {
+        String name = super.createFile(file);
+        channelOut = null;
+        if (!isCompressed()) {
+            // reopen for append over a stream whose channel can accept
+            // transfers; the warcinfo record already written stays counted
+            long written = countOut.getCount();
+            countOut.close();
+            channelOut = new ChannelOutputStream(
+                    new FileOutputStream(f, true),
+                    settings.getFrequentFlushes(), written);
+            countOut = channelOut;
+            out = countOut;
+        }
+        return name;
+    }
+
+    @Override
+    protected long copyFrom(InputStream is, long recordLength,
+            boolean enforceLength) throws IOException {
+        if (!(is instanceof SpooledReplayInputStream)) {
+            return super.copyFrom(is, recordLength, enforceLength);
+        }
+        SpooledReplayInputStream replay = (SpooledReplayInputStream) is;
+        if (channelOut == null || out != channelOut
+                || replay.spooledRemaining() < pool.getTransferThreshold()) {
+            long copied = super.copyFrom(is, recordLength, enforceLength);
+            pool.contentBytes.add(copied);
+            pool.heapCopiedBytes.add(copied);
+            return copied;
+        }
+
+        long copied = super.copyFrom(is,
+                Math.min(recordLength, replay.bufferedRemaining()), false);
+        long transferred = channelOut.transferFrom(replay,
+                recordLength - copied);
+        long tail = 0;
+        if (copied + transferred < recordLength) {
+            // spool shorter than advertised; let the usual path find out
+            tail = super.copyFrom(is, recordLength - copied - transferred,
+                    false);
+        }
+        pool.contentBytes.add(copied + transferred + tail);
+        pool.heapCopiedBytes.add(copied + tail);
+        pool.transferredBytes.add(transferred);
+
+        long total = copied + transferred + tail;
+        if (enforceLength && total != recordLength) {
+            throw new IOException("Read " + total + " but expected "
+                    + recordLength);
+        }
+        return total;
+    }
+
+    /**
+     * Counting stream over the WARC file that can also append directly from
+     * a spool file through the file's channel.
+     */
+    protected static class ChannelOutputStream extends MiserOutputStream {
+        protected final FileChannel channel;
+
+        public ChannelOutputStream(FileOutputStream file, boolean passFlushes,
+                long count) {
+            super(new BufferedOutputStream(file), passFlushes);
+            this.channel = file.getChannel();
+            this.count = count;
+        }
+
+        public long transferFrom(SpooledReplayInputStream replay,
+                long maxBytes) throws IOException {
+            // buffered bytes must land before the transferred ones
+            out.flush();
+            long n = replay.transferSpooledTo(channel, maxBytes);
+            count += n;
+            return n;
+        }
+    }
+
+    /**
+     * WARCWriterPool making {@link ChannelWARCWriter}s, and holding the
+     * counters they share.
+     */
+    public static class Pool extends WARCWriterPool {
+        protected final long transferThreshold;
+        protected final LongAdder contentBytes = new LongAdder();
+        protected final LongAdder heapCopiedBytes = new LongAdder();
+        protected final LongAdder transferredBytes = new LongAdder();
+
+        public Pool(AtomicInteger serialNo, WARCWriterPoolSettings settings,
+                int poolMaximumActive, int poolMaximumWait,
+                long transferThreshold) {
+            super(serialNo, settings, poolMaximumActive, poolMaximumWait);
+            this.transferThreshold = transferThreshold;
+        }
+
+        @Override
+        protected WriterPoolMember makeWriter() {
+            return new ChannelWARCWriter(serialNo,
+                    (WARCWriterPoolSettings) settings, this);
+        }
+
+        public long getTransferThreshold() {
+            return transferThreshold;
+        }
+
+        /** recorded content bytes written, whichever way they went */
+        public long getContentBytes() {
+            return contentBytes.sum();
+        }
+
+        public long getHeapCopiedBytes() {
+            return heapCopiedBytes.sum();
+        }
+
+        public long getTransferredBytes() {
+            return transferredBytes.sum();
+        }
+
+        /**
+         * @return bytes copied through the heap per recorded content byte
+         *         written; 1.0 if nothing was transferred, 0 before any
+         *         content was written
+         */
+        public double getHeapCopiesPerByte() {
+            long content = getContentBytes();
+            return content == 0 ? 0 : (double) getHeapCopiedBytes() / content;
+        }
+    }
+}
@@ -53,6 +53,7 @@ import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.archive.format.warc.WARCConstants.WARCRecordType;
 import org.archive.io.ReplayInputStream;
+import org.archive.io.SpooledReplayInputStream;
 import org.archive.io.warc.WARCRecordInfo;
 import org.archive.io.warc.WARCWriter;
 import org.archive.io.warc.WARCWriterPoolSettings;
@@ -439,8 +440,8 @@ public class WARCWriterProcessor extends BaseWARCWriterProcessor implements WARC
         recordInfo.setContentLength(curi.getRecorder().getRecordedInput().getSize());
         recordInfo.setEnforceLength(true);
         
-        ReplayInputStream ris =
-            curi.getRecorder().getRecordedInput().getReplayInputStream();
+        SpooledReplayInputStream ris =
+            SpooledReplayInputStream.of(curi.getRecorder().getRecordedInput());
         recordInfo.setContentStream(ris);
         
         try {
@@ -467,7 +468,8 @@ public class WARCWriterProcessor extends BaseWARCWriterProcessor implements WARC
         recordInfo.setContentLength(curi.getRecorder().getRecordedInput().getSize());
         recordInfo.setEnforceLength(true);
         
-        ReplayInputStream ris = curi.getRecorder().getRecordedInput().getReplayInputStream();
+        SpooledReplayInputStream ris =
+            SpooledReplayInputStream.of(curi.getRecorder().getRecordedInput());
         recordInfo.setContentStream(ris);
         try {
             w.writeRecord(recordInfo);
@@ -51,4 +51,40 @@ public class MatchesListRegexDecideRuleTest {
         assertEquals(DecideResult.REJECT, decideResult, "Expected REJECT not " + decideResult);
     }
 
+    @Test
+    public void testManyRegexes() throws URIException {
+        List<Pattern> patternList = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            patternList.add(Pattern.compile("https?://([^/]*\\.)?host" + i + "\\.example\\.(com|org)/.*"));
+        }
+        patternList.add(Pattern.compile("(?i).*/calendar/.*"));
+        MatchesListRegexDecideRule rule = new MatchesListRegexDecideRule();
+        rule.setRegexList(patternList);
+        rule.setDecision(DecideResult.REJECT);
+
+        String[] uris = {
+            "http://host7.example.com/a", "https://www.host499.example.org/",
+            "http://host7.example.net/a", "http://host500.example.com/",
+            "http://www.example.com/CALENDAR/2020", "http://host7.example.com/calendar/",
+        };
+        boolean[] matchAny = { true, true, false, false, true, true };
+        for (int i = 0; i < uris.length; i++) {
+            CrawlURI curi = new CrawlURI(UURIFactory.getInstance(uris[i]));
+            assertEquals(matchAny[i] ? DecideResult.REJECT : DecideResult.NONE,
+                    rule.decisionFor(curi), uris[i]);
+        }
+
+        List<Pattern> andList = new ArrayList<>();
+        andList.add(patternList.get(7));
+        andList.add(patternList.get(500));
+        rule.setRegexList(andList);
+        rule.setListLogicalOr(false);
+        boolean[] matchAll = { false, false, false, false, false, true };
+        for (int i = 0; i < uris.length; i++) {
+            CrawlURI curi = new CrawlURI(UURIFactory.getInstance(uris[i]));
+            assertEquals(matchAll[i] ? DecideResult.REJECT : DecideResult.NONE,
+                    rule.decisionFor(curi), uris[i]);
+        }
+    }
+
 }
\ No newline at end of file
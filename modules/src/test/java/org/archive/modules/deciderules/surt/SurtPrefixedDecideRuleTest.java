@@ -0,0 +1,73 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.modules.deciderules.surt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.archive.modules.CrawlURI;
+import org.archive.net.UURIFactory;
+import org.archive.spring.ConfigFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SurtPrefixedDecideRuleTest {
+
+    protected static CrawlURI curi(String uri) throws Exception {
+        return new CrawlURI(UURIFactory.getInstance(uri));
+    }
+
+    @Test
+    public void testSeedsSnapshotAndDump(@TempDir Path tempDir) throws Exception {
+        SurtPrefixedDecideRule rule = new SurtPrefixedDecideRule();
+        File dump = new File(tempDir.toFile(), "surts.dump");
+        rule.setSurtsDumpFile(new ConfigFile("surtsDumpFile", dump.getAbsolutePath()));
+
+        int hosts = 3 * SurtPrefixedDecideRule.MIN_PENDING_PREFIXES;
+        for (int i = 0; i < hosts; i++) {
+            rule.addedSeed(curi("http://host" + i + ".example.com/"));
+        }
+        // redundant, as already covered
+        rule.addedSeed(curi("http://host7.example.com/deeper/page"));
+        assertTrue(rule.surtTrie.size() >= SurtPrefixedDecideRule.MIN_PENDING_PREFIXES);
+        assertTrue(rule.surtPrefixes.size() < hosts);
+
+        assertTrue(rule.evaluate(curi("http://host0.example.com/a")));
+        assertTrue(rule.evaluate(curi("https://host7.example.com/b")));
+        assertTrue(rule.evaluate(curi("http://host" + (hosts - 1) + ".example.com/")));
+        assertFalse(rule.evaluate(curi("http://host" + hosts + ".example.com/")));
+        assertFalse(rule.evaluate(curi("http://example.com/")));
+
+        rule.concludedSeedBatch();
+        assertTrue(rule.surtPrefixes.isEmpty());
+        List<String> lines = Files.readAllLines(dump.toPath(), StandardCharsets.UTF_8);
+        assertEquals(hosts, lines.size());
+        assertEquals(rule.getAllSurtPrefixes(), lines);
+        assertTrue(lines.contains("http://(com,example,host7,)/"), lines.get(0));
+        assertTrue(rule.evaluate(curi("http://host1.example.com/")));
+    }
+}
@@ -18,6 +18,10 @@
  */
 package org.archive.modules.extractor;
 
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -25,9 +29,11 @@ import java.util.List;
 import org.archive.modules.CrawlMetadata;
 import org.archive.modules.CrawlURI;
 import org.archive.modules.extractor.StringExtractorTestBase.TestData;
+import org.archive.modules.fetcher.ContentSniffer;
 import org.archive.net.UURI;
 import org.archive.net.UURIFactory;
 import org.archive.util.Recorder;
+import org.junit.jupiter.api.Test;
 
 /**
  * Unit test for {@link ExtractorXML}.
@@ -81,4 +87,33 @@ public class ExtractorXMLTest extends StringExtractorTestBase {
         return result;
     }
 
+    protected CrawlURI sniffedCuri(String content) throws Exception {
+        CrawlURI curi = new CrawlURI(UURIFactory.getInstance("http://www.archive.org/feed"),
+                null, null, LinkContext.SPECULATIVE_MISC);
+        curi.setContentType("application/octet-stream");
+        curi.setRecorder(createRecorder(content, "UTF-8"));
+        byte[] body = content.getBytes(StandardCharsets.UTF_8);
+        ContentSniffer sniffer = new ContentSniffer(null, null,
+                ContentSniffer.DEFAULT_PREFIX_LENGTH);
+        sniffer.update(body, 0, body.length);
+        sniffer.sniff(null, false);
+        curi.setContentSniffer(sniffer);
+        return curi;
+    }
+
+    @Test
+    public void testShouldExtractFromSniffedPrefix() throws Exception {
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            padding.append("<item>0123</item>");
+        }
+        // html only beyond the first 400 chars is still xml
+        assertTrue(getExtractor().shouldExtract(sniffedCuri(
+                "<?xml version=\"1.0\"?><rss>" + padding + "<html></html></rss>")));
+        assertFalse(getExtractor().shouldExtract(sniffedCuri(
+                "<?xml version=\"1.0\"?><html xmlns=\"http://www.w3.org/1999/xhtml\">" + padding)));
+        assertFalse(getExtractor().shouldExtract(sniffedCuri(
+                "<rss>" + padding + "</rss>")));
+    }
+
 }
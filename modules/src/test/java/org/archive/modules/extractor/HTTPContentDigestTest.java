@@ -18,7 +18,17 @@
  */
 package org.archive.modules.extractor;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import org.archive.modules.CrawlURI;
 import org.archive.modules.ProcessorTestBase;
+import org.archive.modules.fetcher.ContentSniffer;
+import org.archive.net.UURIFactory;
+import org.archive.util.Recorder;
+import org.junit.jupiter.api.Test;
 
 /**
  * Unit test for {@link HTTPContentDigest}.
@@ -27,6 +37,32 @@ import org.archive.modules.ProcessorTestBase;
  */
 public class HTTPContentDigestTest extends ProcessorTestBase {
 
-    // TODO TESTME!
-    
+    @Test
+    public void testStreamedDigestIsOptIn() throws Exception {
+        String content = "<html>caf\u00e9 \u2603</html>";
+        CrawlURI curi = new CrawlURI(UURIFactory.getInstance("http://www.archive.org/"));
+        curi.setContentType("text/html");
+        Recorder recorder = ContentExtractorTestBase.createRecorder(content, "UTF-8");
+        recorder.setCharset(StandardCharsets.UTF_8);
+        curi.setRecorder(recorder);
+        byte[] raw = content.getBytes(StandardCharsets.UTF_8);
+        curi.setContentSize(raw.length);
+        ContentSniffer sniffer = new ContentSniffer("sha1", null, 0);
+        sniffer.update(raw, 0, raw.length);
+        sniffer.sniff(null, false);
+        curi.setContentSniffer(sniffer);
+
+        // by default, the digest of the decoded content re-encoded
+        HTTPContentDigest processor = new HTTPContentDigest();
+        processor.process(curi);
+        assertArrayEquals(MessageDigest.getInstance("SHA1").digest(
+                recorder.getContentReplayCharSequence().toString().getBytes()),
+                curi.getContentDigest());
+
+        processor.setUseStreamedDigest(true);
+        processor.process(curi);
+        assertArrayEquals(MessageDigest.getInstance("SHA1").digest(raw),
+                curi.getContentDigest());
+    }
+
 }
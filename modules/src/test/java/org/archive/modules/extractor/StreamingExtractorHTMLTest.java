@@ -0,0 +1,203 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.modules.extractor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.archive.modules.CrawlMetadata;
+import org.archive.modules.CrawlURI;
+import org.archive.net.UURIFactory;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs all the ExtractorHTML tests against StreamingExtractorHTML, and
+ * checks that the two find the same links in some awkward markup.
+ */
+public class StreamingExtractorHTMLTest extends ExtractorHTMLTest {
+
+    final static String[] AWKWARD_MARKUP = {
+        "<a href=foo.html>x</a><a\nhref='bar.html'>",
+        "<A HREF=\"caps.html\" REL=\"NoFollow\">",
+        "<a data-remote=\"true\" href=\"remote.html\">",
+        "<a data-remote='true' href=remote2.html\n>",
+        "<img src=\"unclosed.gif>",
+        "<img src=\"unclosed-eol.gif\n>",
+        "<img src=\"unclosed-crlf.gif\r\n>",
+        "<img src = 'spaced.gif' alt=\"a > b\">after.html\">",
+        "<script src=s.js>var x = \"inline.js\"; document.write('<a href=\"w.html\">');</script>",
+        "<SCRIPT type=text/javascript>var u = '/caps/script.js';</SCRIPT >more</script>",
+        "<script>unclosed = '/u.js'; <a href=\"after-script.html\">",
+        "<style>a { background: url(bg.png) }</style><style media=x>@import 'i.css';</STYLE>",
+        "<div style=\"background:url(inline-style.png)\">",
+        "<!-- <a href=\"commented.html\"> --><a href=\"uncommented.html\">",
+        "<!--[if IE]><link rel=stylesheet href=\"ie.css\"><![endif]-->",
+        "<!--><a href=\"empty-comment.html\">",
+        "<!-- unclosed comment <a href=\"in-unclosed-comment.html\">",
+        "<meta http-equiv=\"refresh\" content=\"0; url=refresh.html\">",
+        "<meta name=\"description\" content=\"http://example.com/meta-content\">",
+        "<metadata src=\"not-meta.gif\">",
+        "<form action=\"go.cgi\" method=\"get\"><input name=\"q\" value=\"/v.html\"></form>",
+        "<object codebase=\"http://example.com/cb/\" classid=\"c.class\" archive=\"a.jar b.jar\">"
+            + "<param name=\"movie\" value=\"m.swf\"><param name=flashvars value=\"x=/f.html\">",
+        "<applet code=\"Ap.class\" codebase=\"/applets/\">",
+        "<frame src=\"frame.html\"><iframe src=\"iframe.html\">",
+        "<img srcset=\"a.jpg 1x, b.jpg 2x\" data-src=\"lazy.jpg\" data-original-set=\"c.jpg 1x\">",
+        "<img data-lazy=\"lazy2.jpg\" data-full-src=\"full.jpg\">",
+        "<a onclick=\"window.open('/popup.html')\" ONMOUSEOVER=\"go('/over.html')\">",
+        "<a href=&quot;entity.html&quot; cite=\"c&amp;d.html\">",
+        "<link rel=\"icon stylesheet\" href=\"fav.ico\"><link rel=\"canonical\" href=\"can.html\">",
+        "<a x-0123456789012345678901234567890123456789012345678901234567890123456789href=\"long.html\">",
+        "<a x-0123456789012345678901234567890123456789012345678901234567890123456789onclick=\"f('/h.html')\">",
+        "<a href=\"" + "v".repeat(3000) + ".html\" src=\"after-long.gif\">",
+        "<" + "e".repeat(100) + " src=\"long-element.gif\">",
+        "<a href=\"1.html\"<a href=\"2.html\">",
+        "<<a href=\"double-lt.html\">",
+        "<a href=>empty</a><a href= \"late.html\">",
+        "<base href=\"http://example.org/base/\"><a href=\"rel.html\">",
+    };
+
+    @Override
+    protected Extractor makeExtractor() {
+        return makeExtractor(new StreamingExtractorHTML());
+    }
+
+    protected Extractor makeExtractor(ExtractorHTML result) {
+        UriErrorLoggerModule ulm = new UnitTestUriLoggerModule();
+        result.setLoggerModule(ulm);
+        CrawlMetadata metadata = new CrawlMetadata();
+        metadata.afterPropertiesSet();
+        result.setMetadata(metadata);
+        result.setExtractorJS(new ExtractorJS());
+        result.afterPropertiesSet();
+        return result;
+    }
+
+    protected List<String> links(ExtractorHTML extractor, CharSequence cs)
+            throws Exception {
+        CrawlURI curi = new CrawlURI(
+                UURIFactory.getInstance("http://www.example.com/dir/page.html"));
+        extractor.extract(curi, cs);
+        List<String> links = curi.getOutLinks().stream()
+                .map(l -> l.getURI() + " " + l.getViaContext() + " " + l.getLastHop())
+                .sorted().collect(Collectors.toList());
+        links.add("form-offsets " + curi.getDataList(ExtractorHTML.A_FORM_OFFSETS));
+        return links;
+    }
+
+    @Test
+    public void testSameLinksAsRegexExtractor() throws Exception {
+        ExtractorHTML regex = (ExtractorHTML) makeExtractor(new ExtractorHTML());
+        for (String markup : AWKWARD_MARKUP) {
+            assertEquals(links(regex, markup), links(getExtractor(), markup), markup);
+        }
+        String all = String.join("\n", AWKWARD_MARKUP);
+        assertEquals(links(regex, all), links(getExtractor(), all));
+    }
+
+    @Test
+    public void testSameLinksOnRandomMarkup() throws Exception {
+        ExtractorHTML regex = (ExtractorHTML) makeExtractor(new ExtractorHTML());
+        String[] pieces = { "<", ">", "<a ", "<img ", "<script>", "</script>",
+                "<style ", "</style>", "<!--", "-->", "<!--[if", "href", "src",
+                "=", "\"", "'", " ", "\n", "x.html", "on", "data-remote=\"true\"",
+                "<meta ", "name=robots", "content=", "<form " };
+        Random random = new Random(0);
+        for (int doc = 0; doc < 500; doc++) {
+            StringBuilder markup = new StringBuilder();
+            for (int i = random.nextInt(40); i >= 0; i--) {
+                markup.append(pieces[random.nextInt(pieces.length)]);
+            }
+            assertEquals(links(regex, markup), links(getExtractor(), markup),
+                    markup.toString());
+        }
+    }
+
+    @Test
+    public void testPathologicalMarkup() throws Exception {
+        String[] pathological = {
+            "<script ".repeat(20000) + ">",
+            "<!-- ".repeat(20000) + ">",
+            "<a href=\"".repeat(20000) + ">",
+            "<style>".repeat(20000),
+        };
+        for (String markup : pathological) {
+            long start = System.currentTimeMillis();
+            links(getExtractor(), markup);
+            long elapsed = System.currentTimeMillis() - start;
+            assertTrue(elapsed < 5000, "took " + elapsed + "ms");
+        }
+    }
+
+    /**
+     * The regex isDataRemote() replaces, as TextUtils.matches() applied it
+     * to the tag text: a full match.
+     */
+    protected static final Pattern DATA_REMOTE =
+            Pattern.compile("(?i).*data-remote\\s*=\\s*([\"'])true.*\\1");
+
+    protected static void assertSameAsDataRemoteRegex(String text) {
+        assertEquals(DATA_REMOTE.matcher(text).matches(),
+                ExtractorHTML.isDataRemote(text, 0, text.length()), text);
+    }
+
+    @Test
+    public void testDataRemoteSameAsRegex() {
+        String[] texts = {
+            "a data-remote=\"true\" href=\"/x\" class=foo",
+            "a data-remote=\"true\" href=\"/x\"",
+            "a href=\"/x\" data-remote='true'",
+            "a href='/x' data-remote=\"true\" title='t'",
+            "a DATA-REMOTE = \n 'TRUE' href='/x'",
+            "a data-remote=\"true\"\nhref=\"/x\"",
+            "a\nhref=\"/x\" data-remote=\"true\"",
+            "a data-remote\r\n=\"true\" href=\"/x\"",
+            "a data-remote=\"tru\" href=\"/x\"",
+            "a data-remote=\"true",
+            "a data-remote=\"true\"",
+            "a data-remote='true\"",
+            "a data-remote=true href=\"/x\"",
+            "a data-remote=\"false\" data-remote='true' x='",
+            "a data-remote=\"true\u2028\"",
+        };
+        for (String text : texts) {
+            assertSameAsDataRemoteRegex(text);
+        }
+        assertFalse(ExtractorHTML.isDataRemote(texts[0], 0, texts[0].length()));
+
+        String[] pieces = { "a ", "data-remote", "DATA-Remote", "=", " ", "\n",
+                "\r", "\t", "\"", "'", "true", "TRUE", "tru", "href", "/x",
+                "\u0085" };
+        Random random = new Random(0);
+        for (int n = 0; n < 20000; n++) {
+            StringBuilder text = new StringBuilder();
+            for (int i = random.nextInt(14); i >= 0; i--) {
+                text.append(pieces[random.nextInt(pieces.length)]);
+            }
+            assertSameAsDataRemoteRegex(text.toString());
+        }
+    }
+}
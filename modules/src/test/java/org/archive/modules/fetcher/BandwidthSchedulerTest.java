@@ -0,0 +1,143 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.fetcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.InetAddress;
+
+import org.apache.commons.io.IOUtils;
+import org.archive.modules.fetcher.BandwidthScheduler.TokenBucket;
+import org.archive.spring.ConfigString;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BandwidthSchedulerTest {
+
+    protected static InetAddress ip(String literal) throws Exception {
+        return InetAddress.getByName(literal);
+    }
+
+    @Test
+    public void testTokenBucketDebt() {
+        // 100 KB/sec with a one second burst
+        TokenBucket bucket = new TokenBucket(100, 1000);
+        long now = System.currentTimeMillis();
+        assertEquals(0, bucket.charge(100 * 1024, now));
+        assertEquals(100, bucket.charge(10 * 1024, now));
+        // a second reader joins the queue behind the first
+        assertEquals(200, bucket.charge(10 * 1024, now));
+        assertEquals(100, bucket.deficitMs(now + 100));
+        assertEquals(0, bucket.deficitMs(now + 200));
+        assertTrue(bucket.isIdle(now + 1200));
+    }
+
+    @Test
+    public void testUnlimitedByDefault() throws Exception {
+        BandwidthScheduler scheduler = new BandwidthScheduler();
+        InputStream in = new ByteArrayInputStream(new byte[10]);
+        assertSame(in, scheduler.wrap(in, ip("192.0.2.1")));
+        assertEquals(0, scheduler.getDelayMs(ip("192.0.2.1")));
+    }
+
+    @Test
+    public void testBucketsPerIpAndNetwork() throws Exception {
+        BandwidthScheduler scheduler = new BandwidthScheduler();
+        scheduler.setMaxGlobalKBSec(1000);
+        scheduler.setMaxPerIpKBSec(100);
+        scheduler.setMaxPerNetworkKBSec(200);
+        TokenBucket[] a = scheduler.bucketsFor(ip("198.51.100.1"));
+        TokenBucket[] b = scheduler.bucketsFor(ip("198.51.7.7"));
+        TokenBucket[] c = scheduler.bucketsFor(ip("203.0.113.1"));
+        assertEquals(3, a.length);
+        // per-IP
+        assertNotSame(a[0], b[0]);
+        assertSame(a[0], scheduler.bucketsFor(ip("198.51.100.1"))[0]);
+        // same /16
+        assertSame(a[1], b[1]);
+        assertNotSame(a[1], c[1]);
+        // global
+        assertSame(a[2], c[2]);
+        assertEquals(1, scheduler.bucketsFor(null).length);
+
+        // overspending one IP delays only its own queues
+        scheduler.charge(a, 150 * 1024);
+        assertTrue(scheduler.getDelayMs(ip("198.51.100.1")) > 400);
+        assertEquals(0, scheduler.getDelayMs(ip("203.0.113.1")));
+        assertEquals(150 * 1024, scheduler.getBytesCharged());
+        assertEquals(1, scheduler.getThrottledCharges());
+    }
+
+    @Test
+    public void testSweepKeepsHeldBuckets() throws Exception {
+        BandwidthScheduler scheduler = new BandwidthScheduler();
+        scheduler.setMaxPerIpKBSec(100);
+        scheduler.setMaxTrackedBuckets(2);
+        TokenBucket held = scheduler.bucketsFor(ip("192.0.2.1"))[0];
+        scheduler.bucketsFor(ip("192.0.2.2"));
+        // over the limit: the idle buckets are released
+        scheduler.bucketsFor(ip("192.0.2.3"));
+        assertNull(scheduler.buckets.get("ip:192.0.2.1").strong);
+        assertNull(scheduler.buckets.get("ip:192.0.2.2").strong);
+
+        // but one still in use is the one its address gets, and keeps its debt
+        scheduler.charge(new TokenBucket[] {held}, 150 * 1024);
+        assertSame(held, scheduler.bucketsFor(ip("192.0.2.1"))[0]);
+        assertSame(held, scheduler.buckets.get("ip:192.0.2.1").strong);
+        assertTrue(scheduler.getDelayMs(ip("192.0.2.1")) > 400);
+    }
+
+    @Test
+    public void testAsnPrefixes() throws Exception {
+        BandwidthScheduler scheduler = new BandwidthScheduler();
+        scheduler.setAsnPrefixes(new ConfigString(
+                "# prefix origin\n"
+                + "10.0.0.0/8 AS64496\n"
+                + "10.1.0.0/16 AS64497\n"
+                + "2001:db8::/32 AS64498\n"
+                + "garbage\n"));
+        assertEquals("asn:AS64497", scheduler.networkOf(ip("10.1.2.3")));
+        assertEquals("asn:AS64496", scheduler.networkOf(ip("10.2.3.4")));
+        assertEquals("asn:AS64498", scheduler.networkOf(ip("2001:db8:1::1")));
+        assertEquals("net:11.2.0.0/16", scheduler.networkOf(ip("11.2.3.4")));
+        scheduler.setIpv6PrefixLength(48);
+        assertEquals("net:2001:db9:1:0:0:0:0:0/48", scheduler.networkOf(ip("2001:db9:1:2::1")));
+    }
+
+    @Test
+    public void testThrottledStream() throws Exception {
+        BandwidthScheduler scheduler = new BandwidthScheduler();
+        scheduler.setMaxPerIpKBSec(1000);
+        scheduler.setBurstMs(100);
+        byte[] content = new byte[300 * 1024];
+        long start = System.currentTimeMillis();
+        InputStream in = scheduler.wrap(new ByteArrayInputStream(content), ip("192.0.2.1"));
+        assertEquals(content.length, IOUtils.toByteArray(in).length);
+        long elapsed = System.currentTimeMillis() - start;
+        // 300KB at 1000KB/sec, less the 100KB burst
+        assertTrue(elapsed >= 180, "read too fast: " + elapsed + "ms");
+        // waits asked for shrink by however much each sleep overran
+        assertTrue(scheduler.getThrottledMs() > 0);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.fetcher;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ContentSnifferTest {
+
+    protected static ContentSniffer feed(ContentSniffer sniffer, byte[] body) {
+        // as the recorder does at the start of a message body
+        sniffer.reset();
+        int half = body.length / 2;
+        sniffer.update(body, 0, half);
+        for (int i = half; i < body.length; i++) {
+            sniffer.update(body[i]);
+        }
+        return sniffer;
+    }
+
+    @Test
+    public void testDigestsInOnePass() throws Exception {
+        byte[] body = "0123456789abcdefghijklmnopqrstuvwxyz".getBytes(StandardCharsets.US_ASCII);
+        ContentSniffer sniffer = feed(new ContentSniffer("sha1",
+                Arrays.asList("SHA-256"), 16), body);
+
+        byte[] sha1 = MessageDigest.getInstance("SHA-1").digest(body);
+        assertArrayEquals(sha1, sniffer.digest());
+        // still available after digest(), as the fetchers read it twice
+        assertArrayEquals(sha1, sniffer.getPayloadDigest("SHA1"));
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(body),
+                sniffer.getPayloadDigest("sha256"));
+        assertNull(sniffer.getPayloadDigest("md5"));
+
+        sniffer.sniff(null, false);
+        assertTrue(sniffer.isIdentityEncoded());
+        assertTrue(sniffer.isSniffed());
+        assertNull(sniffer.getSniffedContentType());
+
+        // reset starts over
+        feed(sniffer, new byte[0]);
+        assertArrayEquals(MessageDigest.getInstance("SHA-1").digest(new byte[0]), sniffer.digest());
+    }
+
+    @Test
+    public void testBomAndMetaCharset() throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(new byte[] {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF});
+        body.write("<!DOCTYPE html><head><meta charset=\"iso-8859-1\"></head>".getBytes(StandardCharsets.UTF_8));
+        ContentSniffer sniffer = feed(new ContentSniffer(null, null,
+                ContentSniffer.DEFAULT_PREFIX_LENGTH), body.toByteArray());
+        sniffer.sniff("identity", false);
+
+        assertEquals(StandardCharsets.UTF_8, sniffer.getBomCharset());
+        assertNull(sniffer.getSniffedContentType());
+        assertEquals("\ufeff<!DOCTYPE html>",
+                sniffer.getContentPrefixString(16, StandardCharsets.UTF_8));
+        assertEquals(StandardCharsets.ISO_8859_1, sniffer.getHtmlCharsetDeclaration().getCharset());
+        assertTrue(sniffer.getHtmlCharsetDeclaration().isConsistent());
+        assertNull(sniffer.getXmlCharsetDeclaration());
+        assertEquals(0, sniffer.digest().length);
+    }
+
+    @Test
+    public void testChunkedGzip() throws Exception {
+        ByteArrayOutputStream gz = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(gz)) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-16\"?><feed/>".getBytes(StandardCharsets.US_ASCII));
+        }
+        byte[] gzipped = gz.toByteArray();
+        int split = 12;
+        ByteArrayOutputStream chunked = new ByteArrayOutputStream();
+        chunked.write((Integer.toHexString(split) + ";ext=1\r\n").getBytes(StandardCharsets.US_ASCII));
+        chunked.write(gzipped, 0, split);
+        chunked.write(("\r\n" + Integer.toHexString(gzipped.length - split) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        chunked.write(gzipped, split, gzipped.length - split);
+        chunked.write("\r\n0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+
+        ContentSniffer sniffer = feed(new ContentSniffer("sha1", null,
+                ContentSniffer.DEFAULT_PREFIX_LENGTH), chunked.toByteArray());
+        sniffer.sniff("gzip", true);
+
+        assertFalse(sniffer.isIdentityEncoded());
+        assertTrue(sniffer.isSniffed());
+        assertNull(sniffer.getSniffedContentType());
+        // the whole content fit, so any length can be answered
+        assertEquals("<?xml version=\"1.0\" encoding=\"UTF-16\"?><feed/>",
+                sniffer.getContentPrefixString(400, StandardCharsets.ISO_8859_1));
+        // declares UTF-16 but is evidently not
+        assertEquals("UTF-16", sniffer.getXmlCharsetDeclaration().getName());
+        assertFalse(sniffer.getXmlCharsetDeclaration().isConsistent());
+        assertEquals("UTF-16", sniffer.getHtmlCharsetDeclaration().getName());
+    }
+
+    @Test
+    public void testTruncatedPrefix() throws Exception {
+        byte[] body = new byte[2000];
+        Arrays.fill(body, (byte) 'a');
+        System.arraycopy("%PDF-".getBytes(StandardCharsets.US_ASCII), 0, body, 0, 5);
+        ContentSniffer sniffer = feed(new ContentSniffer(null, null, 1024), body);
+        sniffer.sniff(null, false);
+        assertEquals("application/pdf", sniffer.getSniffedContentType());
+        assertEquals(1000, sniffer.getContentPrefixString(1000, StandardCharsets.US_ASCII).length());
+        // more than was kept: only a replay can say
+        assertNull(sniffer.getContentPrefixString(1024, StandardCharsets.US_ASCII));
+        assertNull(sniffer.getContentPrefixString(1000, StandardCharsets.UTF_16BE));
+    }
+
+    @Test
+    public void testUnknownContentEncoding() throws Exception {
+        ContentSniffer sniffer = feed(new ContentSniffer("sha1", null,
+                ContentSniffer.DEFAULT_PREFIX_LENGTH), new byte[] {1, 2, 3, 4});
+        sniffer.sniff("br", false);
+        assertFalse(sniffer.isSniffed());
+        assertNull(sniffer.getSniffedContentType());
+        assertNull(sniffer.getContentPrefixString(10, StandardCharsets.US_ASCII));
+    }
+}
@@ -18,7 +18,40 @@
  */
 package org.archive.modules.fetcher;
 
+import static org.archive.modules.fetcher.FetchStatusCodes.S_DNS_SUCCESS;
+import static org.archive.modules.fetcher.FetchStatusCodes.S_DOMAIN_UNRESOLVABLE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.archive.modules.CrawlURI;
 import org.archive.modules.ProcessorTestBase;
+import org.archive.modules.net.CrawlHost;
+import org.archive.net.UURIFactory;
+import org.archive.util.Recorder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Resolver;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.SimpleResolver;
 
 /**
  * @author pjack
@@ -26,6 +59,151 @@ import org.archive.modules.ProcessorTestBase;
  */
 public class FetchDNSTest extends ProcessorTestBase {
 
-    // TODO TESTME!
-    
+    @TempDir
+    File tempDir;
+
+    protected static Record aRecord(String name, String ip, long ttl) throws Exception {
+        return new ARecord(Name.fromString(name), DClass.IN, ttl, InetAddress.getByName(ip));
+    }
+
+    @Test
+    public void testDnsRecordCache() throws Exception {
+        long now = System.currentTimeMillis();
+        DnsRecordCache cache = new DnsRecordCache(2);
+        cache.putPositive("Example.COM", now, List.of(aRecord("example.com.", "192.0.2.1", 60),
+                aRecord("example.com.", "192.0.2.2", 30)));
+        DnsRecordCache.Entry entry = cache.get("example.com.");
+        assertEquals(2, entry.getRecords().length);
+        assertFalse(entry.isNegative());
+        assertEquals(30, entry.getRemainingTtlSeconds(now));
+
+        cache.putNegative("nx.example.com", now, 300);
+        assertTrue(cache.get("nx.example.com").isNegative());
+
+        // already expired, and zero ttl, answers aren't held
+        cache.putPositive("old.example.com", now - 120000, List.of(aRecord("old.example.com.", "192.0.2.3", 60)));
+        assertNull(cache.get("old.example.com"));
+        cache.putNegative("zero.example.com", now, 0);
+        assertNull(cache.get("zero.example.com"));
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getNegativeHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(2, cache.size());
+
+        // least recently used goes first
+        cache.putNegative("another.example.com", now, 300);
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictedCount());
+        assertTrue(cache.contains("another.example.com"));
+        assertFalse(cache.contains("example.com"));
+        assertNotNull(cache.get("nx.example.com"));
+        cache.putNegative("third.example.com", now, 300);
+        assertEquals(2, cache.getEvictedCount());
+        assertTrue(cache.contains("nx.example.com"));
+        assertFalse(cache.contains("another.example.com"));
+    }
+
+    @Test
+    public void testCachedAnswerIsRecorded() throws Exception {
+        FetchDNS fetcher = new FetchDNS();
+        fetcher.setServerCache(new DefaultServerCache());
+        fetcher.setDnsCacheMaxEntries(10);
+        long fetchTime = System.currentTimeMillis() - 10000;
+        fetcher.getDnsCache().putPositive("cached.example.com", fetchTime, 
+                List.of(aRecord("cached.example.com.", "192.0.2.7", 3600)));
+        fetcher.getDnsCache().putNegative("missing.example.com", fetchTime, 3600);
+
+        CrawlURI curi = new CrawlURI(UURIFactory.getInstance("dns:cached.example.com"));
+        Recorder recorder = new Recorder(tempDir, "fetchdns");
+        curi.setRecorder(recorder);
+        fetcher.innerProcess(curi);
+        assertEquals(S_DNS_SUCCESS, curi.getFetchStatus());
+        assertEquals(fetchTime, curi.getFetchBeginTime());
+        assertTrue(recorder.getContentReplayPrefixString(1000).contains("192.0.2.7"));
+        CrawlHost host = fetcher.getServerCache().getHostFor("cached.example.com");
+        assertEquals("192.0.2.7", host.getIP().getHostAddress());
+        assertTrue(host.getIpTTL() > 3500 && host.getIpTTL() < 3600);
+        recorder.cleanup();
+
+        CrawlURI missing = new CrawlURI(UURIFactory.getInstance("dns:missing.example.com"));
+        missing.setRecorder(new Recorder(tempDir, "fetchdns-missing"));
+        fetcher.innerProcess(missing);
+        assertEquals(S_DOMAIN_UNRESOLVABLE, missing.getFetchStatus());
+        assertEquals(1, fetcher.getDnsCache().getHitCount());
+        assertEquals(1, fetcher.getDnsCache().getNegativeHitCount());
+        assertTrue(fetcher.report().contains("dns cache: 2 entries, 1 hits, 1 negative hits"));
+        missing.getRecorder().cleanup();
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        // answers www.example.com with an address; anything else with NXDOMAIN
+        DatagramSocket server = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread serverThread = new Thread(() -> {
+            byte[] buf = new byte[512];
+            try {
+                while (true) {
+                    DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                    server.receive(packet);
+                    Message query = new Message(packet.getData());
+                    Message response = new Message(query.getHeader().getID());
+                    response.getHeader().setFlag(Flags.QR);
+                    Record question = query.getQuestion();
+                    response.addRecord(question, Section.QUESTION);
+                    if (question.getName().toString().equals("www.example.com.")) {
+                        response.addRecord(aRecord("www.example.com.", "192.0.2.9", 600), Section.ANSWER);
+                    } else {
+                        response.getHeader().setRcode(Rcode.NXDOMAIN);
+                        response.addRecord(new SOARecord(Name.fromString("example.com."), DClass.IN, 3600,
+                                Name.fromString("ns.example.com."), Name.fromString("admin.example.com."),
+                                1, 3600, 600, 86400, 60), Section.AUTHORITY);
+                    }
+                    byte[] out = response.toWire();
+                    server.send(new DatagramPacket(out, out.length, packet.getSocketAddress()));
+                }
+            } catch (Exception e) {
+                // socket closed
+            }
+        });
+        serverThread.start();
+        try {
+            SimpleResolver resolver = new SimpleResolver(InetAddress.getLoopbackAddress());
+            resolver.setPort(server.getLocalPort());
+            AtomicInteger resolversMade = new AtomicInteger();
+            FetchDNS fetcher = new FetchDNS() {
+                @Override
+                protected Resolver createResolver() {
+                    resolversMade.incrementAndGet();
+                    return resolver;
+                }
+            };
+            fetcher.setServerCache(new DefaultServerCache());
+            fetcher.setDnsCacheMaxEntries(10);
+            fetcher.prefetch("www.example.com");
+            fetcher.prefetch("nx.example.com");
+
+            CrawlURI curi = new CrawlURI(UURIFactory.getInstance("dns:www.example.com"));
+            curi.setRecorder(new Recorder(tempDir, "fetchdns-prefetch"));
+            fetcher.innerProcess(curi);
+            assertEquals(S_DNS_SUCCESS, curi.getFetchStatus());
+            assertTrue(curi.getRecorder().getContentReplayPrefixString(1000).contains("192.0.2.9"));
+            assertEquals("192.0.2.9", 
+                    fetcher.getServerCache().getHostFor("www.example.com").getIP().getHostAddress());
+            curi.getRecorder().cleanup();
+
+            // negative ttl is the SOA minimum
+            while (!fetcher.getDnsCache().contains("nx.example.com")) {
+                Thread.sleep(10);
+            }
+            DnsRecordCache.Entry nx = fetcher.getDnsCache().get("nx.example.com");
+            assertTrue(nx.isNegative());
+            assertTrue(nx.getRemainingTtlSeconds(System.currentTimeMillis()) <= 60);
+            assertTrue(fetcher.report().contains("dns prefetch: 2 sent, 0 outstanding"));
+            assertEquals(1, resolversMade.get(), "prefetches share one resolver");
+        } finally {
+            server.close();
+            serverThread.join();
+        }
+    }
 }
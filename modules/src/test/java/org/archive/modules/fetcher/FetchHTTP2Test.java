@@ -22,6 +22,7 @@ import com.sun.net.httpserver.HttpServer;
 import org.archive.bdb.BdbModule;
 import org.archive.modules.CrawlMetadata;
 import org.archive.modules.CrawlURI;
+import org.archive.modules.ProcessResult;
 import org.archive.net.UURIFactory;
 import org.archive.spring.ConfigPath;
 import org.archive.util.Recorder;
@@ -37,6 +38,7 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPOutputStream;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -167,4 +169,64 @@ public class FetchHTTP2Test {
         assertEquals("Hello World!", curi.getRecorder().getContentReplayPrefixString(100));
         curi.getRecorder().cleanup();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testAsyncFetch() throws Exception {
+        fetcher.setAsyncFetch(true);
+        fetcher.setAsyncCarrierThreads(4);
+        fetcher.start();
+        var curi = new CrawlURI(UURIFactory.getInstance(baseUrl));
+        curi.setRecorder(recorder);
+        fetcher.innerProcess(curi);
+
+        assertEquals(200, curi.getFetchStatus());
+        assertEquals(CrawlURI.FetchType.HTTP_GET, curi.getFetchType());
+        assertEquals(12, curi.getContentLength());
+        assertEquals("UTF-8", curi.getRecorder().getCharset().name());
+        assertEquals("Hello World!", curi.getRecorder().getContentReplayPrefixString(100));
+        assertEquals("foo=bar; Path=/", curi.getHttpResponseHeader("Set-Cookie"));
+        assertTrue(curi.getFetchCompletedTime() >= curi.getFetchBeginTime());
+        assertNotNull(curi.getContentDigest());
+        curi.getRecorder().cleanup();
+
+        var gzipCuri = new CrawlURI(UURIFactory.getInstance(baseUrl + "gzip"));
+        gzipCuri.setRecorder(recorder);
+        fetcher.innerProcess(gzipCuri);
+        assertEquals(200, gzipCuri.getFetchStatus());
+        assertEquals(32, gzipCuri.getContentLength());
+        assertEquals("Hello World!", gzipCuri.getRecorder().getContentReplayPrefixString(100));
+
+        assertEquals(0, fetcher.getAsyncInFlight());
+        assertEquals(1, fetcher.getAsyncMaxInFlight());
+        assertTrue(fetcher.report().contains("async fetches: 0 in flight"));
+    }
+
+    @Test
+    public void testAsyncFetchLengthTruncation() throws Exception {
+        fetcher.setAsyncFetch(true);
+        fetcher.setMaxLengthBytes(5);
+        fetcher.start();
+        var curi = new CrawlURI(UURIFactory.getInstance(baseUrl));
+        curi.setRecorder(recorder);
+        fetcher.innerProcess(curi);
+        assertEquals(200, curi.getFetchStatus());
+        assertTrue(curi.getAnnotations().contains(FetchErrors.LENGTH_TRUNC));
+        assertEquals(0, fetcher.getAsyncInFlight());
+    }
+
+    @Test
+    public void testAsyncFetchSuspends() throws Exception {
+        fetcher.setAsyncFetch(true);
+        fetcher.start();
+        var curi = new CrawlURI(UURIFactory.getInstance(baseUrl));
+        curi.setRecorder(recorder);
+        ProcessResult result = fetcher.process(curi);
+        assertEquals(ProcessResult.ProcessStatus.SUSPEND, result.getProcessStatus());
+        result.getCompletion().toCompletableFuture().get(10, TimeUnit.SECONDS);
+        assertEquals(0, fetcher.getAsyncInFlight());
+
+        assertEquals(ProcessResult.PROCEED, result.getResumption().resume());
+        assertEquals(200, curi.getFetchStatus());
+        assertEquals("Hello World!", curi.getRecorder().getContentReplayPrefixString(100));
+    }
+}
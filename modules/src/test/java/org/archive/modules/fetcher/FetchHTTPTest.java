@@ -208,6 +208,18 @@ public class FetchHTTPTest {
         runDefaultChecks(curi);
     }
 
+    @Test
+    public void testBandwidthScheduler() throws Exception {
+        BandwidthScheduler scheduler = new BandwidthScheduler();
+        scheduler.setMaxPerIpKBSec(1000);
+        fetcher().setBandwidthScheduler(scheduler);
+        CrawlURI curi = makeCrawlURI("http://localhost:7777/");
+        fetcher().process(curi);
+        runDefaultChecks(curi);
+        assertTrue(scheduler.getBytesCharged() >= curi.getRecorder().getRecordedInput().getSize());
+        assertEquals(1, scheduler.getTrackedBucketCount());
+    }
+
     @Test
     public void testAcceptHeaders() throws Exception {
         List<String> headers = Arrays.asList("header1: value1", "header2: value2");
@@ -386,6 +398,27 @@ public class FetchHTTPTest {
         assertEquals("sha1:6HXUWMO6VPBHU4SIPOVJ3OPMCSN6JJW4", curi.getContentDigestSchemeString());
     }
 
+    @Test
+    public void testContentSniffer() throws Exception {
+        CrawlURI curi = makeCrawlURI("http://localhost:7777/");
+        fetcher().setAcceptCompression(true);
+        fetcher().setAdditionalDigestAlgorithms(Arrays.asList("SHA-256"));
+        fetcher().process(curi);
+
+        ContentSniffer sniffer = curi.getContentSniffer();
+        assertNotNull(sniffer);
+        // digests cover the body as transferred, ie gzipped
+        assertArrayEquals(curi.getContentDigest(), sniffer.getPayloadDigest("sha1"));
+        assertArrayEquals(java.security.MessageDigest.getInstance("SHA-256").digest(DEFAULT_GZIPPED_PAYLOAD),
+                sniffer.getPayloadDigest("sha256"));
+        assertFalse(sniffer.isIdentityEncoded());
+        // sniffing looks at the decoded prefix
+        assertTrue(sniffer.isSniffed());
+        assertNull(sniffer.getBomCharset());
+        assertNull(sniffer.getSniffedContentType());
+        assertEquals(StandardCharsets.US_ASCII, curi.getRecorder().getCharset());
+    }
+
     // Test will succeed if there ae at least 2 local Inet4Addresses, and 
     // each can be bound to in turn. (Works better than trying to use 127.0.0.2
     // which may not be available as local address by default on MacOS.)
@@ -732,6 +765,24 @@ public class FetchHTTPTest {
         assertEquals(0, curi.getFetchCompletedTime());
     }
 
+    @Test
+    public void testTlsSessionResumption() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            CrawlURI curi = makeCrawlURI("https://localhost:7443/");
+            fetcher().process(curi);
+            runDefaultChecks(curi, "hostHeader");
+        }
+        FetchStats stats = fetcher().getServerCache().getHostFor("localhost").getSubstats();
+        assertEquals(1, stats.getTlsFullHandshakes());
+        assertEquals(2, stats.getTlsResumedHandshakes());
+
+        // a new trust level means a new ssl context, with nothing cached
+        fetcher().setSslTrustLevel(TrustLevel.LOOSE);
+        fetcher().process(makeCrawlURI("https://localhost:7443/"));
+        assertEquals(2, stats.getTlsFullHandshakes());
+        assertEquals(2, stats.getTlsResumedHandshakes());
+    }
+
     @Test
     public void testHttp11() throws Exception {
         CrawlURI curi = makeCrawlURI("http://localhost:7777/");
@@ -770,6 +821,49 @@ public class FetchHTTPTest {
         assertEquals(DEFAULT_PAYLOAD_STRING, contentString(curi));
     }
 
+    @Test
+    public void testConnectionPool() throws Exception {
+        fetcher().setUseHTTP11(true);
+        fetcher().setSendConnectionClose(false);
+        fetcher().setConnectionPoolMaxIdle(10);
+        // no need to wait for timeouts, as with testChunked()
+        fetcher().setSoTimeoutMs(20000);
+        fetcher().setTimeoutSeconds(20);
+
+        String[] uris = {"http://localhost:7777/", "http://localhost:7777/chunked.txt",
+                "http://localhost:7777/", "https://localhost:7443/", "https://localhost:7443/"};
+        for (String uri : uris) {
+            CrawlURI curi = makeCrawlURI(uri);
+            long start = System.currentTimeMillis();
+            fetcher().process(curi);
+            assertTrue(System.currentTimeMillis() - start < 10000, uri);
+            assertEquals(200, curi.getFetchStatus(), uri);
+            // each recording holds just its own request and response
+            assertTrue(httpRequestString(curi).startsWith("GET " + curi.getUURI().getPath() + " HTTP/1.1\r\n"));
+            assertTrue(rawResponseString(curi).startsWith("HTTP/1.1 200 OK\r\n"));
+            assertEquals(DEFAULT_PAYLOAD_STRING, contentString(curi));
+            assertEquals(curi.getContentSize(), curi.getRecordedSize());
+        }
+
+        ServerConnectionPool pool = fetcher().getConnectionPool();
+        assertEquals(2, pool.getOpenedCount());
+        assertEquals(3, pool.getReusedCount());
+        assertEquals(2, pool.getIdleCount());
+        FetchStats stats = fetcher().getServerCache().getHostFor("localhost").getSubstats();
+        assertEquals(2, stats.getConnectionsOpened());
+        assertEquals(3, stats.getConnectionsReused());
+
+        // requests sending Connection: close bypass the pool
+        CrawlURI curi = makeCrawlURI("http://localhost:7777/");
+        fetcher().setSendConnectionClose(true);
+        fetcher().process(curi);
+        runDefaultChecks(curi, "requestLine");
+        assertEquals(2, pool.getIdleCount());
+
+        fetcher().stop();
+        assertEquals(0, pool.getIdleCount());
+    }
+
     protected static class NoResponseServer extends Thread {
         protected String listenAddress;
         protected int listenPort;
@@ -0,0 +1,138 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.net;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+public class RobotsRuleTrieTest {
+
+    /**
+     * Straightforward longest-match check, translating each pattern to a
+     * regex, to compare the trie against.
+     */
+    protected static boolean naiveAllows(List<String> allows, List<String> disallows, String path) {
+        return longest(disallows, path) <= longest(allows, path);
+    }
+
+    protected static int longest(List<String> patterns, String path) {
+        int longest = 0;
+        for (String pattern : patterns) {
+            String body = pattern.endsWith("$") ? pattern.substring(0, pattern.length() - 1) : pattern;
+            StringBuilder regex = new StringBuilder();
+            for (String part : body.split("\\*", -1)) {
+                if (regex.length() > 0) regex.append(".*");
+                regex.append(Pattern.quote(part));
+            }
+            if (!pattern.endsWith("$")) regex.append(".*");
+            if (Pattern.compile(regex.toString(), Pattern.DOTALL).matcher(path).matches()) {
+                longest = Math.max(longest, pattern.length());
+            }
+        }
+        return longest;
+    }
+
+    @Test
+    public void testLongestMatch() {
+        List<String> allows = List.of("/a", "/page$", "/x/*.html");
+        List<String> disallows = List.of("/", "/ab", "/x/", "/*.php$");
+        RobotsRuleTrie trie = RobotsRuleTrie.compile(allows, disallows);
+        assertTrue(trie.allows("/a"));
+        assertTrue(trie.allows("/ac"));
+        assertFalse(trie.allows("/ab"));
+        assertTrue(trie.allows("/page"));
+        assertFalse(trie.allows("/pages"));
+        assertTrue(trie.allows("/x/y/index.html"));
+        assertFalse(trie.allows("/x/y/index.htm"));
+        assertFalse(trie.allows("/a/index.php"));
+        assertTrue(trie.allows("/a/index.php?x"));
+
+        // a longer literal disallow sorting after the path must not hide a
+        // shorter one that matches
+        trie = RobotsRuleTrie.compile(List.of(), List.of("/a", "/ab"));
+        assertFalse(trie.allows("/ac"));
+
+        // an anchored pattern's last segment matches at the end, not
+        // where it first occurs
+        trie = RobotsRuleTrie.compile(List.of(), List.of("/a*.$"));
+        assertFalse(trie.allows("/ab...."));
+        assertTrue(trie.allows("/ab..x"));
+
+        assertTrue(RobotsRuleTrie.EMPTY.allows("/anything"));
+        assertTrue(RobotsRuleTrie.compile(List.of(""), List.of()).allows("/"));
+    }
+
+    @Test
+    public void testAgainstNaiveMatching() {
+        Random random = new Random(1234);
+        String alphabet = "/ab.*$";
+        for (int round = 0; round < 500; round++) {
+            List<String> allows = new ArrayList<String>();
+            List<String> disallows = new ArrayList<String>();
+            for (int i = random.nextInt(12); i > 0; i--) {
+                String pattern = "/" + randomString(random, "/ab.*", random.nextInt(6));
+                if (random.nextInt(5) == 0) pattern += "$";
+                (random.nextBoolean() ? allows : disallows).add(pattern);
+            }
+            RobotsRuleTrie trie = RobotsRuleTrie.compile(allows, disallows);
+            for (int i = 0; i < 50; i++) {
+                String path = "/" + randomString(random, alphabet, random.nextInt(8));
+                assertEquals(naiveAllows(allows, disallows, path), trie.allows(path),
+                        "allows=" + allows + " disallows=" + disallows + " path=" + path);
+            }
+        }
+    }
+
+    protected static String randomString(Random random, String alphabet, int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testWriteRead() {
+        List<String> allows = List.of("/public/", "/*.css$", "/déjà-vu");
+        List<String> disallows = List.of("/", "/public/private*", "/*?session=");
+        RobotsRuleTrie trie = RobotsRuleTrie.compile(allows, disallows);
+        Output output = new Output(256, -1);
+        trie.write(output);
+        RobotsRuleTrie copy = RobotsRuleTrie.read(new Input(output.toBytes()));
+        assertEquals(trie.getNodeCount(), copy.getNodeCount());
+        assertEquals(3, copy.getWildcardCount());
+        for (String path : List.of("/", "/public/a", "/public/private/a", "/x.css", "/x.css?a",
+                "/public/a?session=1", "/déjà-vu", "/other")) {
+            assertEquals(trie.allows(path), copy.allows(path), path);
+        }
+        assertTrue(copy.allows("/public/a"));
+        assertFalse(copy.allows("/public/privateer"));
+    }
+}
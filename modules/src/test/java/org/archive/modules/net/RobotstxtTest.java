@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
 
+import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 
@@ -206,9 +207,71 @@ public class RobotstxtTest {
             RobotsDirectives da = rt2.getDirectivesFor("a", false);
             RobotsDirectives db = rt2.getDirectivesFor("b", false);
             assertSame(da, db, "user-agent a and b shares the same RobotsDirectives after deserialization");
+            assertFalse(da.allows("/service/index.html"));
+            assertTrue(da.allows("/other"));
         }
     }
 
+    @Test
+    public void testDirectivesReadBackCanBeAddedTo() {
+        AutoKryo kryo = new AutoKryo();
+        kryo.autoregister(RobotsDirectives.class);
+        RobotsDirectives directives = new RobotsDirectives();
+        directives.addDisallow("/private");
+        directives.addAllow("/private/open");
+        directives.addDisallow("/*.cgi$");
+        directives.setCrawlDelay(7);
+        Output buffer = new Output(1024, -1);
+        kryo.writeObject(buffer, directives);
+        RobotsDirectives read = kryo.readObject(new Input(buffer.toBytes()), RobotsDirectives.class);
+        assertEquals(7f, read.getCrawlDelay());
+        assertFalse(read.allows("/private/x"));
+        assertTrue(read.allows("/private/open/x"));
+        assertFalse(read.allows("/a/b.cgi"));
+
+        read.addDisallow("/other");
+        assertFalse(read.allows("/other/x"));
+        assertFalse(read.allows("/private/x"), "earlier patterns survive recompiling");
+        assertTrue(read.allows("/private/open/x"));
+        assertFalse(read.allows("/a/b.cgi"));
+    }
+
+    /**
+     * Entries stored before the rules were compiled hold the pattern sets
+     * field by field; they must still read. (Only literal patterns could
+     * be stored that way: the wildcard holder's String[] was unregistered.)
+     */
+    @Test
+    public void testReadsLegacyLayout() {
+        AutoKryo kryo = new AutoKryo();
+        kryo.autoregister(RobotsDirectives.class);
+        RobotsDirectives.PatternSet allows = new RobotsDirectives.PatternSet();
+        allows.add("/private/open");
+        RobotsDirectives.PatternSet disallows = new RobotsDirectives.PatternSet();
+        disallows.add("/private");
+        disallows.add("/tmp");
+        // as FieldSerializer wrote it: the reference marker, then fields 
+        // in name order
+        Output buffer = new Output(1024, -1);
+        buffer.writeVarInt(Kryo.NOT_NULL, true);
+        kryo.writeClassAndObject(buffer, allows);
+        buffer.writeFloat(3);
+        kryo.writeClassAndObject(buffer, disallows);
+
+        RobotsDirectives read = kryo.readObject(new Input(buffer.toBytes()), RobotsDirectives.class);
+        assertEquals(3f, read.getCrawlDelay());
+        assertFalse(read.allows("/private/x"));
+        assertTrue(read.allows("/private/open/x"));
+        assertFalse(read.allows("/tmpfile"));
+        assertTrue(read.allows("/other"));
+        assertTrue(read.allows.contains("/private/open"));
+        assertTrue(read.disallows.contains("/tmp"));
+
+        read.addAllow("/tmpok");
+        assertTrue(read.allows("/tmpok"));
+        assertFalse(read.allows("/private/x"));
+    }
+
     @Test
     public void testSeparatedSections() throws IOException {
         final String TEST_ROBOTS_TXT = "User-agent: *\n"
@@ -0,0 +1,182 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.net;
+
+import java.io.StringReader;
+import java.lang.ref.WeakReference;
+import java.net.InetAddress;
+
+import org.archive.modules.fetcher.FetchStats;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class StripedServerCacheTest {
+
+    /**
+     * Drop the only strong reference to an evicted object and wait for it
+     * to be collected, so the next get must rebuild it from its record.
+     */
+    protected static void awaitCollection(WeakReference<?> ref) throws InterruptedException {
+        for (int i = 0; i < 100 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assumeTrue(ref.get() == null, "evicted object was not collected");
+    }
+
+    /** Push everything else out of a one-entry-per-stripe hot set. */
+    protected static void churn(StripedServerCache cache) {
+        for (int i = 0; i < 4; i++) {
+            cache.getHostFor("filler" + i + ".example.org");
+            cache.getServerFor("filler" + i + ".example.org:80");
+        }
+    }
+
+    @Test
+    public void testIdentityKeptWhileReferenced() throws Exception {
+        StripedServerCache cache = new StripedServerCache(1, 1, 1);
+        CrawlHost host = cache.getHostFor("www.example.com");
+        CrawlServer server = cache.getServerFor("www.example.com:8080");
+        churn(cache);
+        assertTrue(cache.getHostCache().getEvictions() > 0);
+
+        assertSame(host, cache.getHostFor("www.example.com"));
+        assertSame(server, cache.getServerFor("www.example.com:8080"));
+        assertEquals(0, cache.getHostCache().getHydrations());
+        assertEquals(1, cache.getHostCache().getRescues());
+        assertTrue(cache.containsHost("www.example.com"));
+        assertFalse(cache.containsHost("www.example.net"));
+        assertEquals(5, cache.hostKeys().size());
+    }
+
+    @Test
+    public void testHostRecord() throws Exception {
+        StripedServerCache cache = new StripedServerCache(1, 1, 1);
+        CrawlHost host = cache.getHostFor("www.example.com");
+        InetAddress ip = InetAddress.getByAddress(new byte[] {93, (byte) 184, (byte) 215, 14});
+        host.setIP(ip, 3600);
+        host.setCountryCode("US");
+        host.setEarliestNextURIEmitTime(12345L);
+        host.getSubstats().tally(FetchStats.FETCH_SUCCESSES, 7);
+        host.getSubstats().tally(FetchStats.TOTAL_BYTES, 70000);
+        host.getSubstats().setLastSuccessTime(54321L);
+        long ipFetched = host.getIpFetched();
+        WeakReference<CrawlHost> ref = new WeakReference<CrawlHost>(host);
+        host = null;
+        churn(cache);
+        awaitCollection(ref);
+
+        CrawlHost restored = cache.getHostFor("www.example.com");
+        assertEquals(1, cache.getHostCache().getHydrations());
+        assertEquals(ip, restored.getIP());
+        assertEquals(ipFetched, restored.getIpFetched());
+        assertEquals(3600, restored.getIpTTL());
+        assertEquals("US", restored.getCountryCode());
+        assertEquals(12345L, restored.getEarliestNextURIEmitTime());
+        assertEquals(7, restored.getSubstats().getFetchSuccesses());
+        assertEquals(70000, restored.getSubstats().getTotalBytes());
+        assertFalse(restored.getSubstats().containsKey(FetchStats.FETCH_FAILURES));
+        assertEquals(54321L, restored.getSubstats().getLastSuccessTime());
+        assertEquals(0, cache.getHostCache().getSpills());
+    }
+
+    @Test
+    public void testDirtyEvictedObjectRewritten() throws Exception {
+        StripedServerCache cache = new StripedServerCache(1, 1, 1);
+        CrawlHost host = cache.getHostFor("www.example.com");
+        churn(cache);
+        // mutated while evicted but still referenced
+        host.getSubstats().tally(FetchStats.FETCH_FAILURES, 3);
+        host.makeDirty();
+        WeakReference<CrawlHost> ref = new WeakReference<CrawlHost>(host);
+        host = null;
+        awaitCollection(ref);
+
+        CrawlHost restored = cache.getHostFor("www.example.com");
+        assertEquals(3L, restored.getSubstats().get(FetchStats.FETCH_FAILURES));
+    }
+
+    @Test
+    public void testUnusualStatsSpilled() throws Exception {
+        StripedServerCache cache = new StripedServerCache(1, 1, 1);
+        CrawlHost host = cache.getHostFor("www.example.com");
+        host.getSubstats().tally("someOtherCounter", 5);
+        WeakReference<CrawlHost> ref = new WeakReference<CrawlHost>(host);
+        host = null;
+        churn(cache);
+        awaitCollection(ref);
+
+        assertEquals(1, cache.getHostCache().getSpills());
+        CrawlHost restored = cache.getHostFor("www.example.com");
+        assertEquals(5L, restored.getSubstats().get("someOtherCounter"));
+    }
+
+    @Test
+    public void testRobotsHydratedLazily() throws Exception {
+        StripedServerCache cache = new StripedServerCache(1, 1, 1);
+        String robots = "User-agent: *\nDisallow: /private/\nAllow: /private/ok\n";
+        CrawlServer a = cache.getServerFor("a.example.com");
+        a.robotstxt = new Robotstxt(new StringReader(robots));
+        a.validRobots = true;
+        a.robotsFetched = 1000L;
+        a.incrementConsecutiveConnectionErrors();
+        a.setHttp3AltSvc(443, Long.MAX_VALUE);
+        CrawlServer b = cache.getServerFor("b.example.com");
+        b.robotstxt = new Robotstxt(new StringReader(robots));
+        CrawlServer c = cache.getServerFor("c.example.com");
+        c.robotstxt = Robotstxt.NO_ROBOTS;
+        WeakReference<CrawlServer> refA = new WeakReference<CrawlServer>(a);
+        WeakReference<CrawlServer> refB = new WeakReference<CrawlServer>(b);
+        WeakReference<CrawlServer> refC = new WeakReference<CrawlServer>(c);
+        a = b = c = null;
+        churn(cache);
+        awaitCollection(refA);
+        awaitCollection(refB);
+        awaitCollection(refC);
+        // identical rules stored once
+        assertEquals(1, cache.getStoredRobotsCount());
+
+        CrawlServer restored = cache.getServerFor("a.example.com");
+        assertTrue(restored.isValidRobots());
+        assertEquals(1000L, restored.robotsFetched);
+        assertEquals(1, restored.consecutiveConnectionErrors);
+        assertEquals(443, restored.getHttp3AltSvcPort());
+        assertNull(restored.robotstxt);
+        assertEquals(0, cache.getRobotsHydrations());
+        RobotsDirectives directives = restored.getRobotstxt().getDirectivesFor("heritrix");
+        assertNotNull(directives);
+        assertFalse(directives.allows("/private/x"));
+        assertTrue(directives.allows("/private/ok"));
+        assertTrue(directives.allows("/public"));
+        assertEquals(1, cache.getRobotsHydrations());
+
+        assertSame(Robotstxt.NO_ROBOTS, cache.getServerFor("c.example.com").getRobotstxt());
+        cache.getServerFor("b.example.com");
+        // 'a' and 'b' are hot again and 'c' never stored bytes
+        churn(cache);
+        assertTrue(cache.getStoredRobotsCount() <= 1);
+    }
+}
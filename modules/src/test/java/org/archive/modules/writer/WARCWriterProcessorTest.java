@@ -24,10 +24,12 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.archive.io.WriterPool;
@@ -46,10 +48,12 @@ import org.archive.spring.ConfigPath;
 import org.archive.uid.RecordIDGenerator;
 import org.archive.uid.UUIDGenerator;
 import org.archive.util.FileUtils;
+import org.archive.util.Recorder;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 /**
@@ -197,6 +201,61 @@ public class WARCWriterProcessorTest extends ProcessorTestBase {
         assertEquals(warc.length(), wwp.getStats().get("totals").get("sizeOnDisk").get());
     }
 
+    @Test
+    public void testTransferSpooledContent() throws IOException, InterruptedException {
+        WARCWriterProcessor wwp = new WARCWriterProcessor();
+        wwp.setMetadataProvider(new CrawlMetadata());
+        DefaultServerCache serverCache = new DefaultServerCache();
+        serverCache.getHostFor("test.com").setIP(InetAddress.getLoopbackAddress(), -1);
+        wwp.setServerCache(serverCache);
+        File workDir = new File(tempDir.toFile(), "WARCWriterProcessorTest-testTransfer");
+        wwp.setDirectory(new ConfigPath(null, workDir.getPath()));
+        wwp.setCompress(false);
+        wwp.setTransferThresholdBytes(16 * 1024);
+        wwp.start();
+
+        byte[] body = new byte[300 * 1024];
+        new Random(18).nextBytes(body);
+        byte[] header = ("HTTP/1.1 200 OK\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "\r\n").getBytes("ASCII");
+        byte[] responseBytes = new byte[header.length + body.length];
+        System.arraycopy(header, 0, responseBytes, 0, header.length);
+        System.arraycopy(body, 0, responseBytes, header.length, body.length);
+
+        // small buffers so nearly all of the response lands in the spool file
+        final CrawlURI curi = new CrawlURI(UURIFactory.getInstance("http://test.com/big"));
+        curi.setRecorder(new Recorder(tempDir.toFile(), "transfer", 1024, 1024));
+        curi.getRecorder().inputWrap(new ByteArrayInputStream(responseBytes));
+        curi.getRecorder().getRecordedInput().readFully();
+        curi.getRecorder().close();
+
+        curi.setFetchStatus(200);
+        curi.setFetchType(FetchType.HTTP_GET);
+        curi.setContentSize(responseBytes.length);
+
+        wwp.process(curi);
+
+        ChannelWARCWriter.Pool pool = (ChannelWARCWriter.Pool) wwp.getPool();
+        assertEquals(responseBytes.length - 1024, pool.getTransferredBytes());
+        assertEquals(responseBytes.length, pool.getContentBytes());
+        assertTrue(pool.getHeapCopiesPerByte() < 0.01);
+        wwp.stop();
+
+        File warc = new File(workDir, "warcs").listFiles(new FileFilter() {
+            public boolean accept(File pathname) {
+                return pathname.getName().endsWith(".warc");
+            }
+        })[0];
+        assertEquals(warc.length(), wwp.getStats().get("totals").get("sizeOnDisk").get());
+        String contents = new String(Files.readAllBytes(warc.toPath()), "ISO-8859-1");
+        assertTrue(contents.contains(new String(responseBytes, "ISO-8859-1")));
+        // records written after the transferred one follow on in place
+        assertTrue(contents.lastIndexOf("WARC-Type: metadata")
+                > contents.indexOf(new String(body, "ISO-8859-1")));
+    }
+
     /**
      * WARCWriter whose getPosition() always fails.
      * It simulates disk full during last write() (it didn't fail
@@ -225,7 +284,7 @@ public class WARCWriterProcessorTest extends ProcessorTestBase {
         @Override
         protected WriterPoolMember makeWriter() {
             return new FailWARCWriter(serialNo, 
-                    new WARCWriterPoolSettingsData("","",10,false,Arrays.asList(new File(".")),Collections.EMPTY_LIST,generator));
+                    new WARCWriterPoolSettingsData("","",10,false,Arrays.asList(tempDir.toFile()),Collections.EMPTY_LIST,generator));
         }
     }
 